@@ -21,6 +21,7 @@ import com.jackasher.ageiport.publisher.DeferredTaskTriggerService;
 import com.jackasher.ageiport.service.callback_service.AlertService;
 import com.jackasher.ageiport.service.callback_service.BusinessTaskService;
 import com.jackasher.ageiport.service.callback_service.WebSocketService;
+import com.jackasher.ageiport.service.monitor.ThroughputTracker;
 import com.jackasher.ageiport.utils.ioc.SpringContextUtil;
 
 /**
@@ -45,6 +46,9 @@ public class MainTaskCallback implements com.alibaba.ageiport.processor.core.spi
     @Resource
     private DeferredTaskTriggerService deferredTaskTriggerService;
 
+    @Resource
+    private ThroughputTracker throughputTracker;
+
 
     @Override
     public void afterCreated(MainTask mainTask) {
@@ -109,6 +113,7 @@ public class MainTaskCallback implements com.alibaba.ageiport.processor.core.spi
                     String.format("任务ID: %s\n业务Key: %s\n错误信息: %s",
                             mainTask.getMainTaskId(), mainTask.getBizKey(), mainTask.getResultMessage()));
             cleanupStorageFiles(mainTask);
+            throughputTracker.cleanup(mainTask.getMainTaskId());
         } catch (Exception e) {
             logger.error("在 afterError 回调中处理业务逻辑时发生异常, TaskId: {}", mainTask.getMainTaskId(), e);
         }
@@ -14,7 +14,9 @@ import org.springframework.cloud.context.config.annotation.RefreshScope;
 import org.springframework.stereotype.Component;
 
 import com.jackasher.ageiport.constant.BatchDataProcessMode;
+import com.jackasher.ageiport.constant.ClaimCheckMode;
 import com.jackasher.ageiport.constant.DeferredBroadcast;
+import com.jackasher.ageiport.constant.MessageCodecFormat;
 
 import lombok.Data;
 
@@ -100,10 +102,110 @@ public class ExportProperties {
 
 
     /**
-     * 延迟触发广播策略：http/redis/
+     * 延迟触发广播策略：http/redis/stream，stream 只向持有延迟批次的节点定向投递
      */
     private String deferredTriggerStrategy = DeferredBroadcast.HTTP;
-    
+
+    /**
+     * 持有延迟批次期间重新登记并续期登记表的间隔/单位毫秒，登记失败时也由此重试
+     */
+    private long deferredRegistryRefreshMs = 30000;
+
+    /**
+     * 附件下载缓存配置
+     */
+    private AttachmentCache attachmentCache = new AttachmentCache();
+
+    /**
+     * 附件流式打包配置
+     */
+    private AttachmentArchive attachmentArchive = new AttachmentArchive();
+
+    /**
+     * 附件条目进度刷新配置
+     */
+    private ProgressFlush progressFlush = new ProgressFlush();
+
+    /**
+     * 进度推送(SSE)配置
+     */
+    private ProgressStream progressStream = new ProgressStream();
+
+    /**
+     * 进度查询结果的缓存时间/单位毫秒，期间同一任务的查询共享一次计算，小于等于0表示不缓存
+     */
+    private long progressCacheTtlMs = 500;
+
+    /**
+     * 清理过期进度查询缓存的间隔/单位毫秒
+     */
+    private long progressCacheEvictIntervalMs = 10000;
+
+    /**
+     * 吞吐量统计配置
+     */
+    private Throughput throughput = new Throughput();
+
+    /**
+     * HTTP 方式触发延迟任务的并发通知配置
+     */
+    private DeferredTriggerHttp deferredTriggerHttp = new DeferredTriggerHttp();
+
+    /**
+     * 附件批次共享工作队列配置
+     */
+    private WorkQueue workQueue = new WorkQueue();
+
+    /**
+     * 慢批次推测执行配置
+     */
+    private Speculation speculation = new Speculation();
+
+    /**
+     * MQ/Kafka 模式的取件凭证配置
+     */
+    private ClaimCheck claimCheck = new ClaimCheck();
+
+    /**
+     * 消息编码配置
+     */
+    private Codec codec = new Codec();
+
+    /**
+     * Kafka 大消息分片配置
+     */
+    private MessageSplit messageSplit = new MessageSplit();
+
+    /**
+     * Kafka 批量消费配置
+     */
+    private KafkaBatch kafkaBatch = new KafkaBatch();
+
+    /**
+     * Kafka 重试主题与死信主题配置
+     */
+    private KafkaRetry kafkaRetry = new KafkaRetry();
+
+    /**
+     * Kafka 监听并发按消费积压自动调整的配置
+     */
+    private KafkaAutoscale kafkaAutoscale = new KafkaAutoscale();
+
+    /**
+     * 消息中间件发送失败时的本地 outbox 配置
+     */
+    private Outbox outbox = new Outbox();
+
+    /**
+     * 附件批次幂等保护配置
+     */
+    private Idempotency idempotency = new Idempotency();
+
+    /**
+     * RabbitMQ 发布确认与消费配置
+     */
+    private Rabbit rabbit = new Rabbit();
+
     /**
      * 启动后检查配置
      */
@@ -136,4 +238,585 @@ public class ExportProperties {
         private int maximumPoolSize = 8;
 
     }
-}
\ No newline at end of file
+
+    /**
+     * 内部静态类，用于映射 attachment-cache 配置
+     */
+    @Data
+    public static class AttachmentCache {
+
+        /**
+         * 是否在本地磁盘缓存已下载的附件,关闭后附件用完即删,默认开启
+         */
+        private boolean enabled = true;
+
+        /**
+         * 缓存目录名,位于 fileTempDirectory 之下
+         */
+        private String directoryName = "attachment-cache";
+
+        /**
+         * 缓存容量上限,单位MB,默认10GB
+         */
+        private long maxSizeMb = 10_240;
+
+        /**
+         * 并发下载线程数,默认8
+         */
+        private int downloadThreads = 8;
+
+    }
+
+    /**
+     * 内部静态类，用于映射 attachment-archive 配置
+     */
+    @Data
+    public static class AttachmentArchive {
+
+        /**
+         * 打包时同时在途的附件数,即重排窗口大小,默认16
+         */
+        private int windowSize = 16;
+
+        /**
+         * 本节点所有打包任务读入内存的附件总字节数上限,单位MB,按附件大小占用,默认256MB
+         */
+        private int windowBytesMb = 256;
+
+        /**
+         * 超过该大小的附件不读入内存,直接以流的方式写入压缩包,单位MB,不超过 windowBytesMb,默认32MB
+         */
+        private int streamThresholdMb = 32;
+
+        /**
+         * 压缩流与上传流之间的管道缓冲区大小,单位KB,默认1MB
+         */
+        private int pipeBufferKb = 1024;
+
+        /**
+         * 压缩包在文件存储中的根目录
+         */
+        private String storeDirectory = "attachments";
+
+        /**
+         * 压缩级别 0-9,默认6
+         */
+        private int compressionLevel = 6;
+
+        /**
+         * 并行压缩的分块大小,单位KB,默认128KB
+         */
+        private int deflateBlockKb = 128;
+
+        /**
+         * 并行压缩线程数,小于等于0时取CPU核数
+         */
+        private int deflateThreads = 0;
+
+        /**
+         * 抽样压缩后 压缩大小/原始大小 超过该值的条目改用STORED方式写入,设为1及以上时关闭该判断,默认0.9
+         */
+        private double storedRatioThreshold = 0.9;
+
+    }
+
+    /**
+     * 内部静态类，用于映射 progress-flush 配置
+     */
+    @Data
+    public static class ProgressFlush {
+
+        /**
+         * 定时刷新间隔,单位毫秒,默认1秒
+         */
+        private long intervalMs = 1000;
+
+        /**
+         * 单个子任务未刷新的条目数达到该值时立即刷新,默认500
+         */
+        private long threshold = 500;
+
+    }
+
+    /**
+     * 内部静态类，用于映射 progress-stream 配置
+     */
+    @Data
+    public static class ProgressStream {
+
+        /**
+         * 合并进度变更并推送的最小间隔,单位毫秒,默认500
+         */
+        private long intervalMs = 500;
+
+        /**
+         * 有观察者时重新读取核心导出进度的间隔,单位毫秒,默认5秒
+         */
+        private long refreshMs = 5_000;
+
+        /**
+         * 单个SSE连接的超时时间,单位毫秒,默认30分钟
+         */
+        private long timeoutMs = 1_800_000;
+
+    }
+
+    /**
+     * 内部静态类，用于映射 throughput 配置
+     */
+    @Data
+    public static class Throughput {
+
+        /**
+         * 计算速率的滑动窗口长度,单位秒,默认30秒
+         */
+        private int windowSeconds = 30;
+
+        /**
+         * 本节点速率上报到Redis的间隔,单位毫秒,默认1秒
+         */
+        private long publishMs = 1000;
+
+    }
+
+    /**
+     * 内部静态类，用于映射 deferred-trigger-http 配置
+     */
+    @Data
+    public static class DeferredTriggerHttp {
+
+        /**
+         * 建立连接的超时时间,单位毫秒,默认1秒
+         */
+        private int connectTimeoutMs = 1_000;
+
+        /**
+         * 单次请求等待响应的超时时间,单位毫秒,默认3秒
+         */
+        private int requestTimeoutMs = 3_000;
+
+        /**
+         * 单个节点的通知截止时间(含所有重试),单位毫秒,默认10秒
+         */
+        private long deadlineMs = 10_000;
+
+        /**
+         * 单个节点的最大尝试次数,默认3次
+         */
+        private int maxAttempts = 3;
+
+        /**
+         * 重试的基础退避时间,单位毫秒,每次翻倍并加入随机抖动,默认200毫秒
+         */
+        private long retryBackoffMs = 200;
+
+        /**
+         * 连接池最大连接数,同时也是并发通知的线程数上限,默认64
+         */
+        private int maxConnections = 64;
+
+    }
+
+    /**
+     * 内部静态类，用于映射 work-queue 配置
+     */
+    @Data
+    public static class WorkQueue {
+
+        /**
+         * 队列存储: redis(集群共享) 或 local(进程内,单机部署或测试使用),默认redis
+         */
+        private String store = "redis";
+
+        /**
+         * 本节点同时领取处理的批次数,为0时本节点只投递不领取,默认2
+         */
+        private int concurrency = 2;
+
+        /**
+         * 领取批次的租约时长,单位毫秒,超过该时间未续约的批次会被其他节点重新领取,默认60秒
+         */
+        private long leaseMs = 60_000;
+
+        /**
+         * 处理期间续约的间隔,单位毫秒,应明显小于租约时长,默认15秒
+         */
+        private long heartbeatMs = 15_000;
+
+        /**
+         * 队列为空时再次领取的间隔,单位毫秒,默认500毫秒
+         */
+        private long pollIntervalMs = 500;
+
+        /**
+         * 回收过期租约的间隔,单位毫秒,默认5秒
+         */
+        private long reclaimMs = 5_000;
+
+        /**
+         * 单个批次的最大领取次数,超过后放弃该批次,默认3次
+         */
+        private int maxAttempts = 3;
+
+        /**
+         * 批次处理失败后首次重试前的等待时间,单位毫秒,之后每次翻倍,默认1秒
+         */
+        private long retryBackoffMs = 1_000;
+
+        /**
+         * 批次重试等待时间的上限,单位毫秒,默认30秒
+         */
+        private long maxRetryBackoffMs = 30_000;
+
+    }
+
+    /**
+     * 内部静态类，用于映射 speculation 配置
+     */
+    @Data
+    public static class Speculation {
+
+        /**
+         * 是否对共享队列中的慢批次发起推测执行,默认开启
+         */
+        private boolean enabled = true;
+
+        /**
+         * 检查本节点运行中批次的间隔,单位毫秒,默认2秒
+         */
+        private long checkMs = 2_000;
+
+        /**
+         * 参照同一主任务已完成批次单条耗时的分位数,默认0.9
+         */
+        private double percentile = 0.9;
+
+        /**
+         * 耗时超过 分位数单条耗时 × 条目数 × 该倍数 时视为慢批次,默认1.5
+         */
+        private double slowFactor = 1.5;
+
+        /**
+         * 同一主任务至少完成多少个批次后才开始判断,默认5个
+         */
+        private int minSamples = 5;
+
+        /**
+         * 批次运行时间低于该值时不做判断,单位毫秒,默认10秒
+         */
+        private long minElapsedMs = 10_000;
+
+    }
+
+    /**
+     * 内部静态类，用于映射 claim-check 配置
+     */
+    @Data
+    public static class ClaimCheck {
+
+        /**
+         * 消息内容: none(完整数据列表)、reread(只携带范围,消费者重新查询)、frozen(数据冻结到文件存储),默认none
+         */
+        private ClaimCheckMode mode = ClaimCheckMode.NONE;
+
+        /**
+         * frozen 模式下的批次数据以及查询条件持久副本在文件存储中的根目录
+         */
+        private String blobDirectory = "claim-check";
+
+    }
+
+    /**
+     * 内部静态类，用于映射 codec 配置
+     */
+    @Data
+    public static class Codec {
+
+        /**
+         * 发送消息和写入 Redis 时使用的编码: binary(按列编码的二进制)、json,默认binary。
+         * 接收方总能识别两种格式，与旧版本节点混合部署期间请先设置为 json。
+         * 各编码器在每次写入时读取该值，通过配置刷新修改后立即生效
+         */
+        private MessageCodecFormat format = MessageCodecFormat.BINARY;
+
+    }
+
+    /**
+     * 内部静态类，用于映射 message-split 配置
+     */
+    @Data
+    public static class MessageSplit {
+
+        /**
+         * 单条 Kafka 消息序列化后的字节上限,超过时按字节拆分为多个分片,默认5MB。
+         * 需小于生产者的 max.request.size 和 broker/topic 的 message.max.bytes
+         */
+        private long maxMessageBytes = 5L * 1024 * 1024;
+
+    }
+
+    /**
+     * 内部静态类，用于映射 kafka-batch 配置
+     */
+    @Data
+    public static class KafkaBatch {
+
+        /**
+         * 是否以批量方式消费附件任务,开启后逐条消费的监听器不再启动,默认false
+         */
+        private boolean enabled = false;
+
+        /**
+         * 并行处理的工作线程数,同一子任务的记录总在同一线程上顺序处理,默认8
+         */
+        private int workers = 8;
+
+        /**
+         * 单次拉取的最大记录数,默认50
+         */
+        private int maxPollRecords = 50;
+
+        /**
+         * 单次拉取等待处理完成的最长时间,单位毫秒,默认60秒。需小于 max.poll.interval.ms,
+         * 到时未完成的记录留在工作线程上继续处理,偏移量只提交到连续完成的位置
+         */
+        private long maxWaitMs = 60_000;
+
+        /**
+         * 单条记录的最大尝试次数,超过后投递到死信主题并提交,默认3次
+         */
+        private int maxAttempts = 3;
+
+        /**
+         * 重试前的退避时间基数,第n次重试等待 (n-1) 倍,单位毫秒,默认1秒
+         */
+        private long retryBackoffMs = 1000;
+
+    }
+
+    /**
+     * 内部静态类，用于映射 kafka-retry 配置
+     */
+    @Data
+    public static class KafkaRetry {
+
+        /**
+         * 总尝试次数(含首次消费),首次失败后依次进入 -retry-0、-retry-1 ... 主题,全部失败后进入 -dlt 主题,默认4次
+         */
+        private int attempts = 4;
+
+        /**
+         * 第一级重试的延迟,单位毫秒,默认5秒
+         */
+        private long delayMs = 5000;
+
+        /**
+         * 每一级重试延迟的倍数,默认3
+         */
+        private double multiplier = 3;
+
+        /**
+         * 重试延迟的上限,单位毫秒,默认5分钟
+         */
+        private long maxDelayMs = 300_000;
+
+        /**
+         * 自动创建的重试主题和死信主题的分区数,默认3
+         */
+        private int numPartitions = 3;
+
+    }
+
+    /**
+     * 内部静态类，用于映射 kafka-autoscale 配置
+     */
+    @Data
+    public static class KafkaAutoscale {
+
+        /**
+         * 是否按消费积压自动调整附件监听容器的并发数,关闭时仍采样积压供查询,默认false
+         */
+        private boolean enabled = false;
+
+        /**
+         * 采样间隔,单位毫秒,默认15秒
+         */
+        private long checkMs = 15_000;
+
+        /**
+         * 本节点并发数下限,默认1
+         */
+        private int minConcurrency = 1;
+
+        /**
+         * 本节点并发数上限,默认12
+         */
+        private int maxConcurrency = 12;
+
+        /**
+         * 每个 CPU 核最多承担的消费者数,与 maxConcurrency 取较小值,默认2
+         */
+        private int maxConcurrencyPerCpu = 2;
+
+        /**
+         * 单个消费者可以承担的积压消息数,积压超过时增加消费者,默认20
+         */
+        private long lagPerConsumer = 20;
+
+        /**
+         * 堆内存使用率超过该百分比时不再扩容,默认85
+         */
+        private int maxHeapUsagePercent = 85;
+
+        /**
+         * 两次调整之间的最小间隔,单位毫秒,默认60秒
+         */
+        private long cooldownMs = 60_000;
+
+        /**
+         * 积压持续偏低多久后才缩容,单位毫秒,默认2分钟
+         */
+        private long scaleDownDelayMs = 120_000;
+
+        /**
+         * 调整并发时等待监听容器停止并重新启动的最长时间,超过后清除重启标记并恢复检查,单位毫秒,默认2分钟
+         */
+        private long restartTimeoutMs = 120_000;
+
+    }
+
+    /**
+     * 内部静态类，用于映射 outbox 配置
+     */
+    @Data
+    public static class Outbox {
+
+        /**
+         * Kafka/RabbitMQ 发送失败时是否写入本地 outbox 并在恢复后重新投递,默认开启
+         */
+        private boolean enabled = true;
+
+        /**
+         * outbox 目录名,位于 fileTempDirectory 之下
+         */
+        private String directoryName = "outbox";
+
+        /**
+         * 段文件大小,单位字节,默认64MB。超过的单条消息独占一个段
+         */
+        private int segmentBytes = 64 * 1024 * 1024;
+
+        /**
+         * 刷盘间隔,单位毫秒,默认200毫秒。操作系统崩溃时最多丢失这段时间内写入的消息
+         */
+        private long flushIntervalMs = 200;
+
+        /**
+         * 每次投递的最大消息数,默认100
+         */
+        private int relayBatchSize = 100;
+
+        /**
+         * 投递失败后的首次重试间隔,单位毫秒,默认1秒,之后逐次翻倍
+         */
+        private long retryBackoffMs = 1000;
+
+        /**
+         * 重试间隔上限,单位毫秒,默认30秒
+         */
+        private long maxRetryBackoffMs = 30_000;
+
+        /**
+         * 等待单条 Kafka 消息发送结果的超时时间,单位毫秒,默认10秒
+         */
+        private long sendTimeoutMs = 10_000;
+
+        /**
+         * 被中间件明确拒绝(RabbitMQ 否认、Kafka 不可重试的错误)的消息最多尝试的次数,超过后移入死信目录,默认5次。
+         * 中间件不可用时不受该限制,一直重试
+         */
+        private int maxRejectAttempts = 5;
+
+    }
+
+    /**
+     * 内部静态类，用于映射 idempotency 配置
+     */
+    @Data
+    public static class Idempotency {
+
+        /**
+         * 是否开启附件批次的幂等保护,重复投递的批次直接跳过,默认开启
+         */
+        private boolean enabled = true;
+
+        /**
+         * 处理中批次的租约时长,单位毫秒,节点宕机后超过该时间批次可被重新处理,默认5分钟
+         */
+        private long leaseMs = 300_000;
+
+        /**
+         * 处理期间续约的间隔,也是检查待接手批次租约的间隔,单位毫秒,应明显小于租约时长,默认1分钟
+         */
+        private long renewIntervalMs = 60_000;
+
+        /**
+         * 重复投递的批次在原执行租约到期后由本节点接手处理,接手失败时最多尝试的次数,默认3
+         */
+        private int takeoverAttempts = 3;
+
+    }
+
+    /**
+     * 内部静态类，用于映射 rabbit 配置
+     */
+    @Data
+    public static class Rabbit {
+
+        /**
+         * 同时等待 broker 确认的消息数上限,达到上限时发送线程等待,默认256
+         */
+        private int confirmWindow = 256;
+
+        /**
+         * 等待确认窗口的超时时间,单位毫秒,超时按发送失败处理,默认10秒
+         */
+        private long confirmTimeoutMs = 10_000;
+
+        /**
+         * 每个节点的初始消费者数,默认2
+         */
+        private int concurrency = 2;
+
+        /**
+         * 积压时每个节点可扩展到的消费者数,默认8
+         */
+        private int maxConcurrency = 8;
+
+        /**
+         * 每个消费者预取的未确认消息数,附件批次处理耗时较长,默认2
+         */
+        private int prefetch = 2;
+
+        /**
+         * 是否开启批量消费,默认关闭
+         */
+        private boolean batchEnabled = false;
+
+        /**
+         * 批量消费时每批的最大消息数,默认10
+         */
+        private int batchSize = 10;
+
+        /**
+         * 批量消费时凑批的最长等待时间,单位毫秒,默认1秒
+         */
+        private long batchReceiveTimeoutMs = 1000;
+
+        /**
+         * 批量消费时并行处理的工作线程数,默认4
+         */
+        private int batchWorkers = 4;
+
+    }
+}
@@ -5,14 +5,18 @@ import com.alibaba.ageiport.ext.file.store.aliyunoss.AliyunOssFileStoreOptions;
 import com.aliyun.oss.ClientConfiguration;
 import com.aliyun.oss.common.auth.DefaultCredentialProvider;
 import com.aliyun.oss.common.auth.DefaultCredentials;
+import com.jackasher.ageiport.config.local.LocalFileStoreOptions;
 import com.jackasher.ageiport.constant.FileStoreFactoryOptions;
 import com.jackasher.ageiport.config.minio.MinioFileStoreOptions;
+import com.jackasher.ageiport.config.minio.MultipartMinioClient;
+import com.jackasher.ageiport.config.tiered.TieredFileStoreOptions;
 import io.minio.MinioClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.nio.file.Paths;
 import java.util.Optional;
 
 /**
@@ -27,14 +31,18 @@ public class FileStoreOptionsFactory {
     // 使用Optional来处理条件性注入的MinioClient
     private final Optional<MinioClient> minioClient;
 
+    private final Optional<MultipartMinioClient> multipartMinioClient;
+
     private static final Logger log = LoggerFactory.getLogger(FileStoreOptionsFactory.class);
 
     // 构造函数注入，使用Optional处理可能不存在的MinioClient
     @Autowired
     public FileStoreOptionsFactory(FileStoreProperties properties,
-                                   @Autowired(required = false) MinioClient minioClient) {
+                                   @Autowired(required = false) MinioClient minioClient,
+                                   @Autowired(required = false) MultipartMinioClient multipartMinioClient) {
         this.properties = properties;
         this.minioClient = Optional.ofNullable(minioClient);
+        this.multipartMinioClient = Optional.ofNullable(multipartMinioClient);
     }
 
     /**
@@ -46,14 +54,24 @@ public class FileStoreOptionsFactory {
 
         log.info("正在创建文件存储，类型: {}", type);
 
+        FileStoreOptions options;
         switch (type.toLowerCase()) {
             case FileStoreFactoryOptions.MINIO:
-                return createMinioFileStoreOptions(properties.getMinio());
+                options = createMinioFileStoreOptions(properties.getMinio());
+                break;
             case FileStoreFactoryOptions.OSS:
-                return createOssFileStoreOptions(properties.getOss());
+                options = createOssFileStoreOptions(properties.getOss());
+                break;
+            case FileStoreFactoryOptions.LOCAL:
+                // 本地存储本身就在磁盘上，不需要再加一层缓存
+                return createLocalFileStoreOptions(properties.getLocal());
             default:
                 throw new IllegalArgumentException("不支持的文件存储类型: " + type);
         }
+        if (properties.getTiered().isEnabled()) {
+            return createTieredFileStoreOptions(options, properties.getTiered());
+        }
+        return options;
     }
 
     /**
@@ -74,7 +92,49 @@ public class FileStoreOptionsFactory {
         options.setSecretKey(config.getSecretKey());
         options.setBucketName(config.getBucketName());
         options.setMinioClient(minioClient.get());
+        options.setMultipartClient(multipartMinioClient.orElse(null));
+        options.setPartSize(config.getPartSize());
+        options.setMaxBufferedParts(config.getMaxBufferedParts());
+
+        return options;
+    }
+
+    /**
+     * 创建本地文件存储选项
+     */
+    private LocalFileStoreOptions createLocalFileStoreOptions(FileStoreProperties.LocalConfig config) {
+        String rootDirectory = config.getRootDirectory();
+        if (rootDirectory == null || rootDirectory.trim().isEmpty()) {
+            rootDirectory = Paths.get(System.getProperty("java.io.tmpdir"), "ageiport-file-store").toString();
+        }
+        log.info("创建本地文件存储配置 - rootDirectory: {}, shardDepth: {}", rootDirectory, config.getShardDepth());
+
+        LocalFileStoreOptions options = new LocalFileStoreOptions();
+        options.setRootDirectory(rootDirectory);
+        options.setShardDepth(config.getShardDepth());
+        options.setFsync(config.isFsync());
+        return options;
+    }
 
+    /**
+     * 创建分层文件存储选项，本地磁盘缓存在前，remoteOptions 对应的对象存储在后
+     */
+    private TieredFileStoreOptions createTieredFileStoreOptions(FileStoreOptions remoteOptions,
+                                                                FileStoreProperties.TieredConfig config) {
+        String cacheDirectory = config.getCacheDirectory();
+        if (cacheDirectory == null || cacheDirectory.trim().isEmpty()) {
+            cacheDirectory = Paths.get(System.getProperty("java.io.tmpdir"), "ageiport-file-cache").toString();
+        }
+        log.info("创建分层文件存储配置 - cacheDirectory: {}, maxSizeMb: {}, uploadThreads: {}",
+                cacheDirectory, config.getMaxSizeMb(), config.getUploadThreads());
+
+        TieredFileStoreOptions options = new TieredFileStoreOptions();
+        options.setRemoteOptions(remoteOptions);
+        options.setCacheDirectory(cacheDirectory);
+        options.setMaxCacheBytes(config.getMaxSizeMb() * 1024 * 1024);
+        options.setUploadThreads(config.getUploadThreads());
+        options.setReadWaitMs(config.getReadWaitMs());
+        options.setShutdownWaitMs(config.getShutdownWaitMs());
         return options;
     }
 
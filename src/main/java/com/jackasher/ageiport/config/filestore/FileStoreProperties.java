@@ -14,7 +14,7 @@ import org.springframework.stereotype.Component;
 public class FileStoreProperties {
     
     /**
-     * 文件存储类型：minio、oss、local等
+     * 文件存储类型：minio、oss、local
      */
     private String type = "minio";
     
@@ -28,6 +28,16 @@ public class FileStoreProperties {
      */
     private OssConfig oss = new OssConfig();
 
+    /**
+     * 本地文件系统配置
+     */
+    private LocalConfig local = new LocalConfig();
+
+    /**
+     * 分层存储配置,开启后在minio/oss之前加一层本地磁盘热缓存
+     */
+    private TieredConfig tiered = new TieredConfig();
+
 
     @Data
     public static class MinioConfig {
@@ -36,6 +46,16 @@ public class FileStoreProperties {
         private String secretKey;
         private String bucketName;
 
+        /**
+         * 分片大小,单位字节,最小5MB,默认16MB
+         */
+        private int partSize = 16 * 1024 * 1024;
+
+        /**
+         * 同时缓冲（上传中）的分片数上限,即并发上传的分片数,默认8
+         */
+        private int maxBufferedParts = 8;
+
     }
 
     @Data
@@ -46,4 +66,59 @@ public class FileStoreProperties {
         private String bucketName;
 
     }
-} 
\ No newline at end of file
+
+    @Data
+    public static class LocalConfig {
+
+        /**
+         * 存储根目录,多节点部署时应为共享挂载目录,为空时使用 {java.io.tmpdir}/ageiport-file-store
+         */
+        private String rootDirectory;
+
+        /**
+         * 按路径哈希分目录的层数,每层256个目录,为0时不分目录,默认2
+         */
+        private int shardDepth = 2;
+
+        /**
+         * 重命名为正式文件前是否强制刷盘,默认关闭
+         */
+        private boolean fsync = false;
+
+    }
+
+    @Data
+    public static class TieredConfig {
+
+        /**
+         * 是否开启分层存储,type为local时不生效,默认关闭
+         */
+        private boolean enabled = false;
+
+        /**
+         * 本地缓存目录,专用目录,启动时重新上传其中尚未上传的文件,为空时使用 {java.io.tmpdir}/ageiport-file-cache
+         */
+        private String cacheDirectory;
+
+        /**
+         * 本地缓存容量上限(MB),按LRU淘汰,默认10240
+         */
+        private long maxSizeMb = 10240;
+
+        /**
+         * 异步上传到后端存储的线程数,默认4
+         */
+        private int uploadThreads = 4;
+
+        /**
+         * 本地未命中且后端不存在时等待其他节点上传完成的时间(毫秒),读取方通过 runtimeParams 的 skipAwaitUpload 跳过等待,默认30000
+         */
+        private long readWaitMs = 30000;
+
+        /**
+         * 进程退出时等待未完成上传的时间(毫秒),默认60000
+         */
+        private long shutdownWaitMs = 60000;
+
+    }
+}
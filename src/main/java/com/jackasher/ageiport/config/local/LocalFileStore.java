@@ -0,0 +1,196 @@
+package com.jackasher.ageiport.config.local;
+
+import com.alibaba.ageiport.ext.file.store.FileStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * 本地文件系统存储插件，用于单机部署、多节点共享挂载（NFS 等）和测试环境。
+ * <pre>
+ *   {rootDirectory}/{a1}/{b2}/{path}           按路径哈希分目录，避免单个目录下文件过多
+ *   {rootDirectory}/{a1}/{b2}/.{name}.{uuid}.tmp 写入中的临时文件
+ * </pre>
+ * 写入先写到同目录下的临时文件，完成后原子重命名为正式文件，读取方不会看到写了一半的文件；
+ * 来源是本地文件时用 {@link FileChannel#transferTo} 直接在内核中拷贝，其他来源用 {@link FileChannel#transferFrom} 写入。
+ * 读取返回 {@link FileInputStream}，调用方可以通过 getChannel() 继续零拷贝传输。
+ */
+public class LocalFileStore implements FileStore {
+
+    private static final Logger log = LoggerFactory.getLogger(LocalFileStore.class);
+
+    // 单次 transferFrom 的字节数上限
+    private static final long TRANSFER_CHUNK = 8L * 1024 * 1024;
+
+    private final Path rootDirectory;
+
+    private final int shardDepth;
+
+    private final boolean fsync;
+
+    public LocalFileStore(Path rootDirectory, int shardDepth, boolean fsync) {
+        this.rootDirectory = rootDirectory.toAbsolutePath().normalize();
+        this.shardDepth = Math.max(0, Math.min(shardDepth, 4));
+        this.fsync = fsync;
+        try {
+            Files.createDirectories(this.rootDirectory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create local file store directory: " + this.rootDirectory, e);
+        }
+        log.info("本地文件存储根目录: {}, 分目录层数: {}", this.rootDirectory, this.shardDepth);
+    }
+
+    @Override
+    public void save(String path, InputStream inputStream, Map<String, Object> runtimeParams) {
+        Path target = resolve(path);
+        Path temp = null;
+        try {
+            Files.createDirectories(target.getParent());
+            temp = target.resolveSibling("." + target.getFileName() + "." + UUID.randomUUID() + LocalFileStoreConstants.TEMP_SUFFIX);
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                transfer(inputStream, out);
+                if (fsync) {
+                    out.force(true);
+                }
+            }
+            commit(temp, target);
+        } catch (IOException e) {
+            deleteQuietly(temp);
+            throw new RuntimeException("Failed to save file to local store: " + path, e);
+        }
+    }
+
+    @Override
+    public InputStream get(String path, Map<String, Object> runtimeParams) {
+        try {
+            return new FileInputStream(resolve(path).toFile());
+        } catch (IOException e) {
+            // 与其他存储一致，文件不存在时返回null
+            if (!Files.exists(resolve(path))) {
+                return null;
+            }
+            throw new RuntimeException("Failed to get file from local store: " + path, e);
+        }
+    }
+
+    @Override
+    public void remove(String path, Map<String, Object> runtimeParams) {
+        try {
+            Files.deleteIfExists(resolve(path));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to remove file from local store: " + path, e);
+        }
+    }
+
+    @Override
+    public boolean exists(String path, Map<String, Object> runtimeParams) {
+        return Files.isRegularFile(resolve(path));
+    }
+
+    /**
+     * 文件大小，文件不存在时返回 -1
+     */
+    public long sizeOf(String path) {
+        try {
+            return Files.size(resolve(path));
+        } catch (NoSuchFileException e) {
+            return -1;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to stat file in local store: " + path, e);
+        }
+    }
+
+    /**
+     * 把 source 原子重命名为 target，target 已存在时替换
+     */
+    public void rename(String source, String target) {
+        Path to = resolve(target);
+        try {
+            Files.createDirectories(to.getParent());
+            commit(resolve(source), to);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to rename file in local store: " + source + " -> " + target, e);
+        }
+    }
+
+    /**
+     * 存储路径对应的本地文件，不允许通过 .. 跳出根目录
+     */
+    Path resolve(String path) {
+        String relative = path.startsWith("/") ? path.substring(1) : path;
+        Path directory = rootDirectory;
+        if (shardDepth > 0) {
+            CRC32 crc = new CRC32();
+            crc.update(relative.getBytes(StandardCharsets.UTF_8));
+            String hash = String.format("%08x", crc.getValue());
+            for (int i = 0; i < shardDepth; i++) {
+                directory = directory.resolve(hash.substring(i * 2, i * 2 + 2));
+            }
+        }
+        Path resolved = directory.resolve(relative).normalize();
+        if (!resolved.startsWith(directory) || resolved.equals(directory)) {
+            throw new IllegalArgumentException("Invalid file store path: " + path);
+        }
+        return resolved;
+    }
+
+    private static void transfer(InputStream inputStream, FileChannel out) throws IOException {
+        if (inputStream instanceof FileInputStream) {
+            // 本地文件之间由内核直接拷贝
+            FileChannel in = ((FileInputStream) inputStream).getChannel();
+            long position = in.position();
+            long size = in.size();
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+            in.position(position);
+            return;
+        }
+        ReadableByteChannel in = Channels.newChannel(inputStream);
+        long position = 0;
+        long transferred;
+        // 阻塞流的 transferFrom 返回 0 表示已读到末尾
+        while ((transferred = out.transferFrom(in, position, TRANSFER_CHUNK)) > 0) {
+            position += transferred;
+        }
+    }
+
+    /**
+     * 临时文件原子重命名为正式文件，不支持原子重命名的文件系统退化为普通替换
+     */
+    private static void commit(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("删除临时文件失败: {}", file, e);
+        }
+    }
+}
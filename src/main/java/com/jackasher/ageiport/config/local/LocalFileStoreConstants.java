@@ -0,0 +1,7 @@
+package com.jackasher.ageiport.config.local;
+
+public interface LocalFileStoreConstants {
+    String TYPE = "LocalFileStore";
+    // 临时文件后缀，写完后原子重命名为正式文件
+    String TEMP_SUFFIX = ".tmp";
+}
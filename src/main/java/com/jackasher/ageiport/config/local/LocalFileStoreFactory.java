@@ -0,0 +1,16 @@
+package com.jackasher.ageiport.config.local;
+
+import com.alibaba.ageiport.ext.file.store.FileStore;
+import com.alibaba.ageiport.ext.file.store.FileStoreFactory;
+import com.alibaba.ageiport.ext.file.store.FileStoreOptions;
+
+import java.nio.file.Paths;
+
+public class LocalFileStoreFactory implements FileStoreFactory {
+    @Override
+    public FileStore create(FileStoreOptions fileStoreOptions) {
+        LocalFileStoreOptions options = (LocalFileStoreOptions) fileStoreOptions;
+
+        return new LocalFileStore(Paths.get(options.getRootDirectory()), options.getShardDepth(), options.isFsync());
+    }
+}
@@ -0,0 +1,21 @@
+package com.jackasher.ageiport.config.local;
+
+import com.alibaba.ageiport.ext.file.store.FileStoreOptions;
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class LocalFileStoreOptions implements FileStoreOptions {
+
+    public static final String TYPE = LocalFileStoreConstants.TYPE;
+
+    private String rootDirectory;
+    private int shardDepth;
+    private boolean fsync;
+
+    @Override
+    public String type() {
+        return TYPE;
+    }
+}
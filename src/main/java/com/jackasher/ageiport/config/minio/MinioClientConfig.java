@@ -1,12 +1,17 @@
 package com.jackasher.ageiport.config.minio;
 
 import com.jackasher.ageiport.config.filestore.FileStoreProperties;
+import io.minio.MinioAsyncClient;
 import io.minio.MinioClient;
+import io.minio.http.HttpUtils;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 import javax.annotation.Resource;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Jackasher
@@ -29,6 +34,38 @@ public class MinioClientConfig {
         return MinioClient.builder()
                 .endpoint(minioConfig.getEndpoint())
                 .credentials(minioConfig.getAccessKey(), minioConfig.getSecretKey())
+                .httpClient(minioHttpClient())
+                .build();
+    }
+
+    /**
+     * 并发上传分片使用的异步客户端，与 minioClient 共用连接池
+     */
+    @Bean
+    @ConditionalOnProperty(name = "ageiport.file-store.type", havingValue = "minio", matchIfMissing = false)
+    public MultipartMinioClient multipartMinioClient() {
+        FileStoreProperties.MinioConfig minioConfig = fileStoreProperties.getMinio();
+
+        return new MultipartMinioClient(MinioAsyncClient.builder()
+                .endpoint(minioConfig.getEndpoint())
+                .credentials(minioConfig.getAccessKey(), minioConfig.getSecretKey())
+                .httpClient(minioHttpClient())
+                .build());
+    }
+
+    /**
+     * SDK 默认的 OkHttp 客户端对同一主机最多并发 5 个请求，并发上传分片时放宽到分片缓冲数以上
+     */
+    @Bean
+    @ConditionalOnProperty(name = "ageiport.file-store.type", havingValue = "minio", matchIfMissing = false)
+    public OkHttpClient minioHttpClient() {
+        long timeout = TimeUnit.MINUTES.toMillis(5);
+        Dispatcher dispatcher = new Dispatcher();
+        int maxRequests = Math.max(16, fileStoreProperties.getMinio().getMaxBufferedParts() * 2);
+        dispatcher.setMaxRequests(maxRequests);
+        dispatcher.setMaxRequestsPerHost(maxRequests);
+        return HttpUtils.newDefaultHttpClient(timeout, timeout, timeout).newBuilder()
+                .dispatcher(dispatcher)
                 .build();
     }
 }
@@ -3,4 +3,9 @@ package com.jackasher.ageiport.config.minio;
 public interface MinioConstants {
     String TYPE = "MinioFileStore";
     String BUCKET_NAME_KEY = "bucketName";
+    // runtimeParams 中的内容长度，已知时传入可省去按未知长度切分
+    String CONTENT_LENGTH_KEY = "contentLength";
+    // runtimeParams 中的读取范围
+    String RANGE_OFFSET_KEY = "rangeOffset";
+    String RANGE_LENGTH_KEY = "rangeLength";
 }
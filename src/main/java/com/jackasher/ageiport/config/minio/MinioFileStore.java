@@ -4,40 +4,97 @@ package com.jackasher.ageiport.config.minio;
 import com.alibaba.ageiport.ext.file.store.FileStore;
 import io.minio.*;
 import io.minio.errors.ErrorResponseException;
+import io.minio.messages.Part;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
 
 /**
  * Minio文件存储插件
+ * <p>
+ * 大文件按 partSize 切分，各分片从有界的缓冲池中取缓冲区读入后并发上传，缓冲池取空时读取线程等待，
+ * 内存占用不超过 partSize * maxBufferedParts；不超过一个分片的文件直接以已知长度上传。
+ * 长度未知时先读入一个小的暂存区，小文件不占用分片缓冲区；空闲的缓冲区一段时间后释放。
+ * bucket 是否存在只在第一次写入时检查。
  */
 public class MinioFileStore implements FileStore {
 
+    private static final Logger log = LoggerFactory.getLogger(MinioFileStore.class);
+
+    private static final String CONTENT_TYPE = "application/octet-stream";
+
+    // S3 要求除最后一个分片外每个分片至少 5MB
+    private static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private static final int DEFAULT_PART_SIZE = 10 * 1024 * 1024;
+
+    private static final int DEFAULT_MAX_BUFFERED_PARTS = 4;
+
+    // 长度未知时先读入的暂存区大小，读完即结束的小文件不占用分片缓冲区
+    private static final int STAGING_SIZE = 256 * 1024;
+
+    // 缓冲区空闲超过该时间后释放
+    private static final long BUFFER_IDLE_MS = 60_000;
+
     private final MinioClient minioClient;
     private final String defaultBucketName;
 
+    // 为 null 时按 SDK 的方式逐个上传分片
+    private final MultipartMinioClient multipartClient;
+
+    private final int partSize;
+
+    private final PartBufferPool bufferPool;
+
+    // 已确认存在的 bucket
+    private final Set<String> readyBuckets = ConcurrentHashMap.newKeySet();
+
     public MinioFileStore(MinioClient minioClient, String defaultBucketName) {
+        this(minioClient, null, defaultBucketName, DEFAULT_PART_SIZE, DEFAULT_MAX_BUFFERED_PARTS);
+    }
+
+    public MinioFileStore(MinioClient minioClient, MultipartMinioClient multipartClient, String defaultBucketName,
+                          int partSize, int maxBufferedParts) {
         this.minioClient = minioClient;
+        this.multipartClient = multipartClient;
         this.defaultBucketName = defaultBucketName;
+        this.partSize = Math.max(MIN_PART_SIZE, partSize);
+        this.bufferPool = new PartBufferPool(this.partSize, Math.max(1, maxBufferedParts));
     }
 
     @Override
     public void save(String path, InputStream inputStream, Map<String, Object> runtimeParams) {
         try {
             // 检查bucket是否存在，如果不存在则创建
-            boolean found = minioClient.bucketExists(BucketExistsArgs.builder().bucket(defaultBucketName).build());
-            if (!found) {
-                minioClient.makeBucket(MakeBucketArgs.builder().bucket(defaultBucketName).build());
-            }
+            ensureBucket(defaultBucketName);
 
-            // 上传文件
-            minioClient.putObject(
-                    PutObjectArgs.builder()
-                            .bucket(defaultBucketName)
-                            .object(path)
-                            // -1表示未知大小, 10MB part size
-                            .stream(inputStream, -1, 10485760)
-                            .build());
+            long contentLength = contentLengthOf(inputStream, runtimeParams);
+            if (multipartClient == null || (contentLength >= 0 && contentLength <= partSize)) {
+                // 上传文件，长度未知时由 SDK 按 partSize 逐个上传分片
+                minioClient.putObject(
+                        PutObjectArgs.builder()
+                                .bucket(defaultBucketName)
+                                .object(path)
+                                .stream(inputStream, contentLength, contentLength >= 0 ? -1 : partSize)
+                                .contentType(CONTENT_TYPE)
+                                .build());
+                return;
+            }
+            uploadMultipart(path, inputStream);
         } catch (Exception e) {
             throw new RuntimeException("Failed to save file to MinIO", e);
         }
@@ -45,12 +102,28 @@ public class MinioFileStore implements FileStore {
 
     @Override
     public InputStream get(String path, Map<String, Object> runtimeParams) {
+        return get(path, longParam(runtimeParams, MinioConstants.RANGE_OFFSET_KEY),
+                longParam(runtimeParams, MinioConstants.RANGE_LENGTH_KEY));
+    }
+
+    /**
+     * 读取对象的一段
+     *
+     * @param offset 起始位置，为 null 时从头读取
+     * @param length 读取长度，为 null 时读到末尾
+     */
+    public InputStream get(String path, Long offset, Long length) {
         try {
-            return minioClient.getObject(
-                    GetObjectArgs.builder()
-                            .bucket(defaultBucketName)
-                            .object(path)
-                            .build());
+            GetObjectArgs.Builder args = GetObjectArgs.builder()
+                    .bucket(defaultBucketName)
+                    .object(path);
+            if (offset != null) {
+                args.offset(offset);
+            }
+            if (length != null) {
+                args.length(length);
+            }
+            return minioClient.getObject(args.build());
         } catch (Exception e) {
             // 如果文件不存在，MinIO会抛出异常，这里我们选择返回null，符合接口预期
             if (e instanceof ErrorResponseException && "NoSuchKey".equals(((ErrorResponseException) e).errorResponse().code())) {
@@ -73,6 +146,26 @@ public class MinioFileStore implements FileStore {
         }
     }
 
+    /**
+     * 在服务端把 source 复制为 target，数据不经过本节点。
+     * 超过单次复制上限（5GB）时由 SDK 按分片复制
+     */
+    public void copy(String source, String target) {
+        try {
+            minioClient.composeObject(
+                    ComposeObjectArgs.builder()
+                            .bucket(defaultBucketName)
+                            .object(target)
+                            .sources(Collections.singletonList(ComposeSource.builder()
+                                    .bucket(defaultBucketName)
+                                    .object(source)
+                                    .build()))
+                            .build());
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to copy file in MinIO: " + source + " -> " + target, e);
+        }
+    }
+
     @Override
     public boolean exists(String path, Map<String, Object> runtimeParams) {
         try {
@@ -91,4 +184,222 @@ public class MinioFileStore implements FileStore {
             throw new RuntimeException("Failed to check if file exists in MinIO", e);
         }
     }
-}
\ No newline at end of file
+
+    private void ensureBucket(String bucket) throws Exception {
+        if (readyBuckets.contains(bucket)) {
+            return;
+        }
+        synchronized (readyBuckets) {
+            if (readyBuckets.contains(bucket)) {
+                return;
+            }
+            boolean found = minioClient.bucketExists(BucketExistsArgs.builder().bucket(bucket).build());
+            if (!found) {
+                minioClient.makeBucket(MakeBucketArgs.builder().bucket(bucket).build());
+                log.info("已创建 MinIO bucket: {}", bucket);
+            }
+            readyBuckets.add(bucket);
+        }
+    }
+
+    /**
+     * 切分并发上传。读取线程只负责把数据读入缓冲区，分片上传完成后缓冲区归还缓冲池；
+     * 任一分片失败时停止读取并放弃本次上传，已上传的分片由 MinIO 删除
+     */
+    private void uploadMultipart(String path, InputStream inputStream) throws Exception {
+        byte[] staging = new byte[STAGING_SIZE];
+        int staged = readFully(inputStream, staging, 0);
+        if (staged < staging.length) {
+            // 小文件，直接以已知长度上传
+            putObject(path, staging, staged);
+            return;
+        }
+
+        byte[] buffer = bufferPool.acquire();
+        int length;
+        try {
+            System.arraycopy(staging, 0, buffer, 0, staged);
+            length = readFully(inputStream, buffer, staged);
+        } catch (IOException e) {
+            bufferPool.release(buffer);
+            throw e;
+        }
+        if (length < partSize) {
+            // 不足一个分片，直接以已知长度上传
+            try {
+                putObject(path, buffer, length);
+            } finally {
+                bufferPool.release(buffer);
+            }
+            return;
+        }
+
+        String uploadId;
+        try {
+            uploadId = multipartClient.createUpload(defaultBucketName, path, CONTENT_TYPE);
+        } catch (Exception e) {
+            bufferPool.release(buffer);
+            throw e;
+        }
+        List<CompletableFuture<Part>> parts = new ArrayList<>();
+        try {
+            int partNumber = 1;
+            while (true) {
+                parts.add(uploadPart(path, uploadId, partNumber++, buffer, length));
+                if (length < partSize) {
+                    break;
+                }
+                for (CompletableFuture<Part> part : parts) {
+                    if (part.isCompletedExceptionally()) {
+                        part.join();
+                    }
+                }
+                // 缓冲池取空时在这里等待已发出的分片上传完成
+                buffer = bufferPool.acquire();
+                try {
+                    length = readFully(inputStream, buffer, 0);
+                } catch (IOException e) {
+                    bufferPool.release(buffer);
+                    throw e;
+                }
+                if (length == 0) {
+                    bufferPool.release(buffer);
+                    break;
+                }
+            }
+
+            Part[] uploaded = new Part[parts.size()];
+            for (int i = 0; i < uploaded.length; i++) {
+                uploaded[i] = parts.get(i).join();
+            }
+            multipartClient.completeUpload(defaultBucketName, path, uploadId, uploaded);
+            log.debug("分片上传完成: {}, 分片数: {}", path, uploaded.length);
+        } catch (Exception e) {
+            abortQuietly(path, uploadId, parts);
+            throw e;
+        }
+    }
+
+    private void putObject(String path, byte[] buffer, int length) throws Exception {
+        minioClient.putObject(PutObjectArgs.builder()
+                .bucket(defaultBucketName)
+                .object(path)
+                .stream(new ByteArrayInputStream(buffer, 0, length), length, -1)
+                .contentType(CONTENT_TYPE)
+                .build());
+    }
+
+    private CompletableFuture<Part> uploadPart(String path, String uploadId, int partNumber, byte[] buffer, int length) throws Exception {
+        try {
+            return multipartClient.uploadPart(defaultBucketName, path, uploadId, partNumber, buffer, length)
+                    .whenComplete((part, e) -> bufferPool.release(buffer));
+        } catch (Exception e) {
+            bufferPool.release(buffer);
+            throw e;
+        }
+    }
+
+    private void abortQuietly(String path, String uploadId, List<CompletableFuture<Part>> parts) {
+        // 等待已发出的分片结束后再放弃，避免放弃后仍有分片写入
+        for (CompletableFuture<Part> part : parts) {
+            try {
+                part.join();
+            } catch (Exception ignored) {
+                // 只等待结束
+            }
+        }
+        try {
+            multipartClient.abortUpload(defaultBucketName, path, uploadId);
+        } catch (Exception e) {
+            log.warn("放弃分片上传失败: {}, uploadId: {}, 原因: {}", path, uploadId, e.getMessage());
+        }
+    }
+
+    /**
+     * 已知的内容长度：调用方通过 runtimeParams 传入，或可以直接得到长度的内存流；未知时返回 -1
+     */
+    private static long contentLengthOf(InputStream inputStream, Map<String, Object> runtimeParams) {
+        Long contentLength = longParam(runtimeParams, MinioConstants.CONTENT_LENGTH_KEY);
+        if (contentLength != null) {
+            return contentLength;
+        }
+        return inputStream instanceof ByteArrayInputStream ? ((ByteArrayInputStream) inputStream).available() : -1;
+    }
+
+    private static Long longParam(Map<String, Object> runtimeParams, String key) {
+        Object value = runtimeParams == null ? null : runtimeParams.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : null;
+    }
+
+    /**
+     * 从 offset 开始填满缓冲区，返回缓冲区中的总字节数
+     */
+    private static int readFully(InputStream inputStream, byte[] buffer, int offset) throws IOException {
+        int total = offset;
+        while (total < buffer.length) {
+            int read = inputStream.read(buffer, total, buffer.length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * 分片缓冲池，缓冲区按需创建，数量不超过上限，用完归还复用。
+     * 优先复用最近归还的缓冲区，空闲超过 BUFFER_IDLE_MS 的在取用或归还时丢弃；
+     * 空闲缓冲区以软引用保存，长时间没有上传时也可以被 GC 回收
+     */
+    private static final class PartBufferPool {
+
+        private final int bufferSize;
+
+        private final Semaphore permits;
+
+        // 头部是最近归还的缓冲区
+        private final Deque<IdleBuffer> free = new ConcurrentLinkedDeque<>();
+
+        PartBufferPool(int bufferSize, int maxBuffers) {
+            this.bufferSize = bufferSize;
+            this.permits = new Semaphore(maxBuffers);
+        }
+
+        byte[] acquire() throws InterruptedException {
+            permits.acquire();
+            trimIdle();
+            for (IdleBuffer idle = free.pollFirst(); idle != null; idle = free.pollFirst()) {
+                byte[] buffer = idle.buffer.get();
+                if (buffer != null) {
+                    return buffer;
+                }
+            }
+            return new byte[bufferSize];
+        }
+
+        void release(byte[] buffer) {
+            free.offerFirst(new IdleBuffer(buffer));
+            permits.release();
+            trimIdle();
+        }
+
+        private void trimIdle() {
+            long expireBefore = System.currentTimeMillis() - BUFFER_IDLE_MS;
+            for (IdleBuffer idle = free.peekLast(); idle != null
+                    && (idle.releasedAt < expireBefore || idle.buffer.get() == null); idle = free.peekLast()) {
+                free.removeLastOccurrence(idle);
+            }
+        }
+    }
+
+    private static final class IdleBuffer {
+
+        private final SoftReference<byte[]> buffer;
+
+        private final long releasedAt = System.currentTimeMillis();
+
+        IdleBuffer(byte[] buffer) {
+            this.buffer = new SoftReference<>(buffer);
+        }
+    }
+}
@@ -13,6 +13,7 @@ public class MinioFileStoreFactory implements FileStoreFactory {
 
         MinioClient minioClient = SpringContextUtil.minioClient();
 
-        return new MinioFileStore(minioClient, options.getBucketName());
+        return new MinioFileStore(minioClient, options.getMultipartClient(), options.getBucketName(),
+                options.getPartSize(), options.getMaxBufferedParts());
     }
 }
\ No newline at end of file
@@ -17,6 +17,9 @@ public class MinioFileStoreOptions implements FileStoreOptions {
     private String secretKey;
     private String bucketName;
     private MinioClient minioClient;
+    private MultipartMinioClient multipartClient;
+    private int partSize;
+    private int maxBufferedParts;
 
     @Override
     public String type() {
@@ -0,0 +1,55 @@
+package com.jackasher.ageiport.config.minio;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+
+import io.minio.MinioAsyncClient;
+import io.minio.ObjectWriteResponse;
+import io.minio.messages.Part;
+
+/**
+ * 开放 MinIO SDK 中受保护的分片上传接口。
+ * SDK 的 putObject 逐个上传分片，这里由 {@link MinioFileStore} 自行切分并发上传各分片，最后合并。
+ *
+ * @author Jackasher
+ */
+public class MultipartMinioClient extends MinioAsyncClient {
+
+    public MultipartMinioClient(MinioAsyncClient client) {
+        super(client);
+    }
+
+    /**
+     * 创建分片上传，返回 uploadId
+     */
+    public String createUpload(String bucket, String object, String contentType) throws Exception {
+        Multimap<String, String> headers = HashMultimap.create();
+        headers.put("Content-Type", contentType);
+        return createMultipartUploadAsync(bucket, null, object, headers, null).get().result().uploadId();
+    }
+
+    /**
+     * 异步上传一个分片，完成时返回分片的 ETag
+     */
+    public CompletableFuture<Part> uploadPart(String bucket, String object, String uploadId, int partNumber,
+                                              byte[] data, int length) throws Exception {
+        return uploadPartAsync(bucket, null, object, data, length, uploadId, partNumber, null, null)
+                .thenApply(response -> new Part(partNumber, response.etag()));
+    }
+
+    /**
+     * 按分片序号合并已上传的分片
+     */
+    public ObjectWriteResponse completeUpload(String bucket, String object, String uploadId, Part[] parts) throws Exception {
+        return completeMultipartUploadAsync(bucket, null, object, uploadId, parts, null, null).get();
+    }
+
+    /**
+     * 放弃分片上传，删除已上传的分片
+     */
+    public void abortUpload(String bucket, String object, String uploadId) throws Exception {
+        abortMultipartUploadAsync(bucket, null, object, uploadId, null, null).get();
+    }
+}
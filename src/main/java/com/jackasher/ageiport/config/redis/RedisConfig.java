@@ -3,16 +3,24 @@ package com.jackasher.ageiport.config.redis;
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jackasher.ageiport.config.export.ExportProperties;
+import com.jackasher.ageiport.mq.codec.BinaryRedisSerializer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 
+import javax.annotation.Resource;
+
 @Configuration
 public class RedisConfig {
 
+    @Resource
+    private ExportProperties exportProperties;
+
     @Bean
     public RedisTemplate<String, Object> redisTemplate(RedisConnectionFactory redisConnectionFactory) {
         RedisTemplate<String, Object> template = new RedisTemplate<>();
@@ -31,8 +39,11 @@ public class RedisConfig {
         om.activateDefaultTyping(om.getPolymorphicTypeValidator(), ObjectMapper.DefaultTyping.NON_FINAL);
         jsonSerializer.setObjectMapper(om);
 
-        template.setValueSerializer(jsonSerializer);
-        template.setHashValueSerializer(jsonSerializer);
+        // 附件批次和进度对象按 codec 配置使用二进制编码，其余值以及已有的 JSON 值仍由 JSON 序列化器处理；
+        // exportProperties 支持刷新，编码格式在每次写入时读取
+        RedisSerializer<Object> valueSerializer = new BinaryRedisSerializer(jsonSerializer, () -> exportProperties.getCodec().getFormat());
+        template.setValueSerializer(valueSerializer);
+        template.setHashValueSerializer(valueSerializer);
 
         template.afterPropertiesSet();
         return template;
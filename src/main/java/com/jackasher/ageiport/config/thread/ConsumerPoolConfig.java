@@ -6,7 +6,7 @@ import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
-import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 /**
@@ -22,7 +22,7 @@ public class ConsumerPoolConfig {
      * 基于消费者的处理线程池,默认是串行化的
      */
     @Bean("serialAttachmentTaskExecutor")
-    public Executor serialAttachmentTaskExecutor() {
+    public ExecutorService serialAttachmentTaskExecutor() {
         log.info("串行附件处理线程池初始化完成。");
         // Executors.newSingleThreadExecutor() 会创建一个队列无界的单线程池
         return Executors.newSingleThreadExecutor(r -> {
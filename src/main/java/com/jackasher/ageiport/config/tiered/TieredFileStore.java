@@ -0,0 +1,516 @@
+package com.jackasher.ageiport.config.tiered;
+
+import com.alibaba.ageiport.ext.file.store.FileStore;
+import com.jackasher.ageiport.config.local.LocalFileStore;
+import com.jackasher.ageiport.config.local.LocalFileStoreConstants;
+import com.jackasher.ageiport.config.minio.MinioConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * 分层文件存储：本地磁盘作为热缓存，放在 MinIO、OSS 等对象存储之前。
+ * <ul>
+ *   <li>写入先落到本地磁盘后立即返回，再由上传线程异步写入后端存储</li>
+ *   <li>读取优先使用本地缓存，未命中时从后端读取并放入缓存；主节点合并时读取的是本节点刚写入的文件，大多直接命中本地</li>
+ *   <li>本地缓存按 LRU 淘汰，尚未上传完成的条目不会被淘汰，因此容量上限是软上限</li>
+ *   <li>上传失败时按指数退避（上限 MAX_UPLOAD_RETRY_BACKOFF_MS）一直重试，直到成功或文件被删除</li>
+ *   <li>删除时先作废本地条目并取消未开始的上传，再删除后端文件</li>
+ * </ul>
+ * 其他节点写入的文件可能还在上传中（如主节点合并其他节点写入的子任务文件），未命中且后端不存在的文件
+ * 默认在 readWaitMs 内等待上传完成；只是探测文件是否存在的读取方在 runtimeParams 中传入
+ * {@link TieredFileStoreConstants#SKIP_AWAIT_UPLOAD_KEY} 时直接返回 null。
+ * 缓存目录为专用目录，布局与 {@link LocalFileStore} 相同（两层哈希目录），缓存文件重命名为正式文件前强制刷盘，
+ * 操作系统崩溃后不会把截断的文件当作完整文件重新上传或读取；启动时重新登记其中的文件，
+ * 后端不存在的重新上传（上次退出前未上传完成），写了一半的临时文件删除。进程退出时最多等待 shutdownWaitMs 让未完成的上传结束。
+ *
+ * @author Jackasher
+ */
+public class TieredFileStore implements FileStore {
+
+    private static final Logger log = LoggerFactory.getLogger(TieredFileStore.class);
+
+    private static final int SHARD_DEPTH = 2;
+
+    private static final long UPLOAD_RETRY_BACKOFF_MS = 1000;
+
+    private static final long MAX_UPLOAD_RETRY_BACKOFF_MS = 60_000;
+
+    private static final long READ_WAIT_INTERVAL_MS = 200;
+
+    private final FileStore remote;
+
+    private final LocalFileStore local;
+
+    private final long maxBytes;
+
+    private final long readWaitMs;
+
+    // 失败的上传按退避时间重新调度，不占用上传线程等待
+    private final ScheduledExecutorService uploadExecutor;
+
+    // accessOrder = true，迭代顺序即最近最少使用顺序
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(256, 0.75f, true);
+
+    private long currentBytes = 0;
+
+    // 正在写入本地的路径及并发写入数，从后端填充缓存时不能覆盖
+    private final Map<String, Integer> saving = new HashMap<>();
+
+    private static final class Entry {
+        private final long size;
+        // 尚未上传到后端，不参与淘汰
+        private boolean pending;
+        // 已被删除或被同一路径的新写入替换
+        private boolean invalidated;
+        private Future<?> upload;
+
+        private Entry(long size, boolean pending) {
+            this.size = size;
+            this.pending = pending;
+        }
+    }
+
+    public TieredFileStore(FileStore remote, Path cacheDirectory, long maxBytes, int uploadThreads,
+                           long readWaitMs, long shutdownWaitMs) {
+        this.remote = remote;
+        this.maxBytes = Math.max(0, maxBytes);
+        this.readWaitMs = Math.max(0, readWaitMs);
+        // 启动恢复会把缓存目录中的正式文件当作完整文件上传和读取，写入时必须刷盘
+        this.local = new LocalFileStore(cacheDirectory, SHARD_DEPTH, true);
+
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.uploadExecutor = Executors.newScheduledThreadPool(Math.max(1, uploadThreads), r -> {
+            Thread thread = new Thread(r, "tiered-file-store-upload-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        recover(cacheDirectory.toAbsolutePath().normalize());
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> drain(shutdownWaitMs), "tiered-file-store-drain"));
+        log.info("分层文件存储已启用，本地缓存目录: {}, 容量上限: {} 字节, 上传线程: {}", cacheDirectory, this.maxBytes, uploadThreads);
+    }
+
+    @Override
+    public void save(String path, InputStream inputStream, Map<String, Object> runtimeParams) {
+        synchronized (this) {
+            saving.merge(path, 1, Integer::sum);
+        }
+        Entry entry;
+        try {
+            local.save(path, inputStream, runtimeParams);
+            entry = new Entry(local.sizeOf(path), true);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                doneSaving(path);
+            }
+            throw e;
+        }
+        synchronized (this) {
+            // 与登记在同一个同步块内结束写入标记，填充缓存不会在两者之间覆盖新文件
+            doneSaving(path);
+            Entry previous = index.put(path, entry);
+            if (previous != null) {
+                currentBytes -= previous.size;
+                previous.invalidated = true;
+            }
+            currentBytes += entry.size;
+            evictIfNeeded();
+        }
+
+        Map<String, Object> uploadParams = runtimeParams == null ? new HashMap<>() : new HashMap<>(runtimeParams);
+        uploadParams.put(MinioConstants.CONTENT_LENGTH_KEY, entry.size);
+        scheduleUpload(path, entry, uploadParams, 1, 0);
+    }
+
+    @Override
+    public InputStream get(String path, Map<String, Object> runtimeParams) {
+        Long offset = longParam(runtimeParams, MinioConstants.RANGE_OFFSET_KEY);
+        Long length = longParam(runtimeParams, MinioConstants.RANGE_LENGTH_KEY);
+
+        InputStream cached = getCached(path);
+        if (cached != null) {
+            return range(cached, offset, length);
+        }
+        InputStream remoteStream = awaitRemote(path, runtimeParams);
+        if (remoteStream == null || offset != null || length != null) {
+            // 只读取一段时不放入缓存
+            return remoteStream;
+        }
+        return populate(path, remoteStream, runtimeParams);
+    }
+
+    @Override
+    public void remove(String path, Map<String, Object> runtimeParams) {
+        Future<?> upload = null;
+        synchronized (this) {
+            Entry entry = index.remove(path);
+            if (entry != null) {
+                currentBytes -= entry.size;
+                entry.invalidated = true;
+                upload = entry.upload;
+            }
+        }
+        if (upload != null) {
+            // 未开始的上传直接取消，正在进行的上传结束后由上传线程再次删除后端文件
+            upload.cancel(false);
+        }
+        local.remove(path, runtimeParams);
+        remote.remove(path, runtimeParams);
+    }
+
+    @Override
+    public boolean exists(String path, Map<String, Object> runtimeParams) {
+        synchronized (this) {
+            if (index.containsKey(path) && local.exists(path, runtimeParams)) {
+                return true;
+            }
+        }
+        return remote.exists(path, runtimeParams);
+    }
+
+    private void doneSaving(String path) {
+        saving.computeIfPresent(path, (key, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * 调度一次上传，记录到条目上以便删除时取消
+     */
+    private synchronized void scheduleUpload(String path, Entry entry, Map<String, Object> uploadParams,
+                                             int attempt, long delayMs) {
+        if (entry.invalidated) {
+            return;
+        }
+        try {
+            entry.upload = uploadExecutor.schedule(() -> upload(path, entry, uploadParams, attempt),
+                    delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // 进程正在退出，文件保留在本地缓存，下次启动后重新上传
+            log.warn("上传线程已停止, 文件未上传到后端存储: {}", path);
+        }
+    }
+
+    private void upload(String path, Entry entry, Map<String, Object> uploadParams, int attempt) {
+        synchronized (this) {
+            if (entry.invalidated) {
+                return;
+            }
+        }
+        try (InputStream in = local.get(path, null)) {
+            if (in == null) {
+                log.warn("待上传的本地文件已不存在: {}", path);
+                return;
+            }
+            remote.save(path, in, uploadParams);
+        } catch (Exception e) {
+            // 保留本地条目且不参与淘汰，本节点仍可读取，退避后重试
+            long backoff = Math.min(UPLOAD_RETRY_BACKOFF_MS << Math.min(attempt - 1, 16), MAX_UPLOAD_RETRY_BACKOFF_MS);
+            log.warn("上传文件到后端存储失败: {}, 第 {} 次, {}ms 后重试, 原因: {}", path, attempt, backoff, e.getMessage());
+            scheduleUpload(path, entry, uploadParams, attempt + 1, backoff);
+            return;
+        }
+        uploaded(path, entry);
+    }
+
+    /**
+     * 上传完成，条目可以参与淘汰
+     */
+    private void uploaded(String path, Entry entry) {
+        boolean removed;
+        synchronized (this) {
+            entry.pending = false;
+            removed = entry.invalidated && !index.containsKey(path);
+            evictIfNeeded();
+        }
+        if (removed) {
+            // 上传期间文件已被删除
+            try {
+                remote.remove(path, null);
+            } catch (Exception e) {
+                log.warn("删除上传期间被删除的文件失败: {}, 原因: {}", path, e.getMessage());
+            }
+        }
+    }
+
+    private synchronized InputStream getCached(String path) {
+        Entry entry = index.get(path);
+        if (entry == null) {
+            return null;
+        }
+        InputStream in = local.get(path, null);
+        if (in == null) {
+            // 文件被外部清理，索引作废
+            index.remove(path);
+            currentBytes -= entry.size;
+        }
+        return in;
+    }
+
+    /**
+     * 从后端读取，文件不存在时在 readWaitMs 内等待其他节点上传完成，读取方要求跳过时立即返回
+     */
+    private InputStream awaitRemote(String path, Map<String, Object> runtimeParams) {
+        boolean skip = runtimeParams != null && Boolean.TRUE.equals(runtimeParams.get(TieredFileStoreConstants.SKIP_AWAIT_UPLOAD_KEY));
+        long deadline = skip ? 0 : System.currentTimeMillis() + readWaitMs;
+        while (true) {
+            InputStream in = remote.get(path, runtimeParams);
+            if (in != null || System.currentTimeMillis() >= deadline || !sleepQuietly(READ_WAIT_INTERVAL_MS)) {
+                return in;
+            }
+        }
+    }
+
+    /**
+     * 后端读取的文件先写入临时文件，确认期间本节点没有写入同一路径后再重命名为缓存文件并从本地返回；
+     * 期间有新的写入时后端读到的可能是旧数据，放弃临时文件改读新写入的文件。写入缓存失败时重新从后端读取
+     */
+    private InputStream populate(String path, InputStream remoteStream, Map<String, Object> runtimeParams) {
+        String tempPath = path + "." + UUID.randomUUID() + LocalFileStoreConstants.TEMP_SUFFIX;
+        try (InputStream source = remoteStream) {
+            local.save(tempPath, source, null);
+        } catch (Exception e) {
+            log.warn("写入本地缓存失败: {}, 原因: {}", path, e.getMessage());
+            removeQuietly(tempPath);
+            return remote.get(path, runtimeParams);
+        }
+        long size = local.sizeOf(tempPath);
+        InputStream in = null;
+        synchronized (this) {
+            if (!index.containsKey(path) && !saving.containsKey(path)) {
+                try {
+                    local.rename(tempPath, path);
+                    // 先打开再登记，超过容量上限时即使立即被淘汰也能读完
+                    in = local.get(path, null);
+                } catch (Exception e) {
+                    log.warn("写入本地缓存失败: {}, 原因: {}", path, e.getMessage());
+                }
+                if (in != null) {
+                    index.put(path, new Entry(size, false));
+                    currentBytes += size;
+                    evictIfNeeded();
+                    return in;
+                }
+            }
+        }
+        removeQuietly(tempPath);
+        InputStream cached = getCached(path);
+        return cached != null ? cached : remote.get(path, runtimeParams);
+    }
+
+    /**
+     * 重新登记缓存目录中的文件：按修改时间排列 LRU 顺序，先作为未上传条目不参与淘汰，
+     * 再由上传线程检查后端，已存在的直接标记为已上传，不存在的重新上传
+     */
+    private void recover(Path root) {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to scan tiered file store cache directory: " + root, e);
+        }
+        files.sort(Comparator.comparingLong(TieredFileStore::lastModified));
+        int recovered = 0;
+        for (Path file : files) {
+            Path relative = root.relativize(file);
+            if (file.getFileName().toString().endsWith(LocalFileStoreConstants.TEMP_SUFFIX)
+                    || relative.getNameCount() <= SHARD_DEPTH) {
+                // 上次退出时写了一半的文件，或不属于缓存布局的文件
+                deleteQuietly(file);
+                continue;
+            }
+            String path = StreamSupport.stream(relative.subpath(SHARD_DEPTH, relative.getNameCount()).spliterator(), false)
+                    .map(Path::toString)
+                    .collect(Collectors.joining("/"));
+            if (!local.exists(path, null)) {
+                // 哈希目录与路径不符
+                deleteQuietly(file);
+                continue;
+            }
+            Entry entry = new Entry(local.sizeOf(path), true);
+            Map<String, Object> uploadParams = new HashMap<>();
+            uploadParams.put(MinioConstants.CONTENT_LENGTH_KEY, entry.size);
+            synchronized (this) {
+                index.put(path, entry);
+                currentBytes += entry.size;
+                entry.upload = uploadExecutor.submit(() -> {
+                    boolean exists;
+                    try {
+                        exists = remote.exists(path, null);
+                    } catch (Exception e) {
+                        exists = false;
+                    }
+                    if (exists) {
+                        uploaded(path, entry);
+                    } else {
+                        upload(path, entry, uploadParams, 1);
+                    }
+                });
+            }
+            recovered++;
+        }
+        log.info("本地缓存目录中已有 {} 个文件，已重新登记并检查是否需要上传", recovered);
+    }
+
+    private void evictIfNeeded() {
+        Iterator<Map.Entry<String, Entry>> it = index.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Entry> next = it.next();
+            Entry entry = next.getValue();
+            if (entry.pending) {
+                continue;
+            }
+            it.remove();
+            currentBytes -= entry.size;
+            try {
+                local.remove(next.getKey(), null);
+            } catch (Exception e) {
+                log.warn("删除本地缓存文件 {} 失败: {}", next.getKey(), e.getMessage());
+            }
+        }
+    }
+
+    private void drain(long shutdownWaitMs) {
+        uploadExecutor.shutdown();
+        try {
+            if (!uploadExecutor.awaitTermination(shutdownWaitMs, TimeUnit.MILLISECONDS)) {
+                log.warn("退出前仍有文件未上传到后端存储");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static InputStream range(InputStream in, Long offset, Long length) {
+        if (offset == null && length == null) {
+            return in;
+        }
+        try {
+            if (offset != null) {
+                ((FileInputStream) in).getChannel().position(offset);
+            }
+        } catch (IOException e) {
+            closeQuietly(in);
+            throw new UncheckedIOException(e);
+        }
+        return length == null ? in : new RangeInputStream(in, length);
+    }
+
+    private void removeQuietly(String path) {
+        try {
+            local.remove(path, null);
+        } catch (Exception e) {
+            log.warn("删除本地缓存临时文件 {} 失败: {}", path, e.getMessage());
+        }
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("清理本地缓存文件 {} 失败: {}", file, e.getMessage());
+        }
+    }
+
+    private static Long longParam(Map<String, Object> runtimeParams, String key) {
+        Object value = runtimeParams == null ? null : runtimeParams.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : null;
+    }
+
+    private static boolean sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException ignored) {
+            // 只释放文件句柄
+        }
+    }
+
+    /**
+     * 只读取指定长度的流
+     */
+    private static final class RangeInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        RangeInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = super.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+    }
+}
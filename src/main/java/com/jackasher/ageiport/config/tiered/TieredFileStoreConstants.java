@@ -0,0 +1,7 @@
+package com.jackasher.ageiport.config.tiered;
+
+public interface TieredFileStoreConstants {
+    String TYPE = "TieredFileStore";
+    // 本地未命中且后端不存在的文件默认在 readWaitMs 内等待其他节点上传完成，runtimeParams 中为 true 时立即返回 null
+    String SKIP_AWAIT_UPLOAD_KEY = "skipAwaitUpload";
+}
@@ -0,0 +1,39 @@
+package com.jackasher.ageiport.config.tiered;
+
+import com.alibaba.ageiport.ext.file.store.FileStore;
+import com.alibaba.ageiport.ext.file.store.FileStoreFactory;
+import com.alibaba.ageiport.ext.file.store.FileStoreOptions;
+import com.alibaba.ageiport.ext.file.store.aliyunoss.AliyunOssFileStoreFactory;
+import com.alibaba.ageiport.ext.file.store.aliyunoss.AliyunOssFileStoreOptions;
+import com.jackasher.ageiport.config.local.LocalFileStoreFactory;
+import com.jackasher.ageiport.config.local.LocalFileStoreOptions;
+import com.jackasher.ageiport.config.minio.MinioFileStoreFactory;
+import com.jackasher.ageiport.config.minio.MinioFileStoreOptions;
+
+import java.nio.file.Paths;
+
+public class TieredFileStoreFactory implements FileStoreFactory {
+    @Override
+    public FileStore create(FileStoreOptions fileStoreOptions) {
+        TieredFileStoreOptions options = (TieredFileStoreOptions) fileStoreOptions;
+
+        FileStore remote = createRemote(options.getRemoteOptions());
+
+        return new TieredFileStore(remote, Paths.get(options.getCacheDirectory()), options.getMaxCacheBytes(),
+                options.getUploadThreads(), options.getReadWaitMs(), options.getShutdownWaitMs());
+    }
+
+    private static FileStore createRemote(FileStoreOptions remoteOptions) {
+        if (remoteOptions instanceof MinioFileStoreOptions) {
+            return new MinioFileStoreFactory().create(remoteOptions);
+        }
+        if (remoteOptions instanceof AliyunOssFileStoreOptions) {
+            return new AliyunOssFileStoreFactory().create(remoteOptions);
+        }
+        if (remoteOptions instanceof LocalFileStoreOptions) {
+            return new LocalFileStoreFactory().create(remoteOptions);
+        }
+        throw new IllegalArgumentException("不支持的后端文件存储类型: "
+                + (remoteOptions == null ? null : remoteOptions.type()));
+    }
+}
@@ -0,0 +1,25 @@
+package com.jackasher.ageiport.config.tiered;
+
+import com.alibaba.ageiport.ext.file.store.FileStoreOptions;
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class TieredFileStoreOptions implements FileStoreOptions {
+
+    public static final String TYPE = TieredFileStoreConstants.TYPE;
+
+    // 后端对象存储（MinIO、OSS）的选项
+    private FileStoreOptions remoteOptions;
+    private String cacheDirectory;
+    private long maxCacheBytes;
+    private int uploadThreads;
+    private long readWaitMs;
+    private long shutdownWaitMs;
+
+    @Override
+    public String type() {
+        return TYPE;
+    }
+}
@@ -33,6 +33,11 @@ public enum BatchDataProcessMode implements Serializable {
      * Kafka处理 - 通过Kafka进行异步处理
      */
     KAFKA,
+
+    /**
+     * 共享队列处理 - 批次写入集群共享的工作队列，由空闲节点领取处理
+     */
+    WORK_QUEUE,
     
     /**
      * 不处理
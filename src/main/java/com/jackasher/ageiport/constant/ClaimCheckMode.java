@@ -0,0 +1,10 @@
+package com.jackasher.ageiport.constant;
+
+/**
+ * MQ/Kafka 模式下附件批次的消息内容
+ */
+public enum ClaimCheckMode {
+    NONE, // 消息中携带完整的数据列表
+    REREAD, // 消息只携带数据范围，消费者按范围重新查询
+    FROZEN // 数据列表写入文件存储，消息只携带其路径，消费者读取的是投递时的数据
+}
@@ -9,5 +9,6 @@ package com.jackasher.ageiport.constant;
 public interface DeferredBroadcast {
     String HTTP = "http";
     String REDIS = "redis";
+    String STREAM = "stream";
 
 }
@@ -9,4 +9,5 @@ package com.jackasher.ageiport.constant;
 public interface FileStoreFactoryOptions {
     String MINIO = "minio";
     String OSS = "oss";
+    String LOCAL = "local";
 }
@@ -0,0 +1,9 @@
+package com.jackasher.ageiport.constant;
+
+/**
+ * Kafka/RabbitMQ/Redis 中附件批次和进度对象的编码格式
+ */
+public enum MessageCodecFormat {
+    JSON, // Jackson JSON，与旧版本节点兼容
+    BINARY // 按列编码的二进制格式，见 BinaryCodec
+}
@@ -0,0 +1,9 @@
+package com.jackasher.ageiport.constant;
+
+/**
+ * outbox 中的消息最终投递到的消息中间件
+ */
+public enum OutboxChannel {
+    KAFKA, // 目标为 topic，键为消息键
+    RABBITMQ // 目标为 exchange，键为 routing key
+}
@@ -0,0 +1,9 @@
+package com.jackasher.ageiport.constant;
+
+/**
+ * 吞吐量统计的处理阶段
+ */
+public enum ThroughputPhase {
+    DATA_EXPORT, // 核心数据导出，单位为行
+    ATTACHMENT // 附件处理，单位为附件条目
+}
@@ -0,0 +1,36 @@
+package com.jackasher.ageiport.controller.monitor;
+
+import com.jackasher.ageiport.mq.kafka.KafkaLagAutoscaler;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Kafka 消费积压与监听并发调整查询控制器
+ *
+ * @author Jackasher
+ */
+@RestController
+@RequestMapping("/api/monitor/kafka")
+@ConditionalOnProperty(name = "ageiport.export.attachment-process-mode", havingValue = "kafka")
+public class KafkaLagController {
+
+    @Resource
+    private KafkaLagAutoscaler kafkaLagAutoscaler;
+
+    /**
+     * 最近一次积压采样和最近的并发调整记录
+     */
+    @GetMapping("/lag")
+    public Map<String, Object> getLag() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("current", kafkaLagAutoscaler.getLastSnapshot());
+        response.put("scalingHistory", kafkaLagAutoscaler.getHistory());
+        return response;
+    }
+}
@@ -0,0 +1,41 @@
+package com.jackasher.ageiport.controller.monitor;
+
+import com.jackasher.ageiport.mq.outbox.OutboxService;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * 本地 outbox 积压查询和死信重新投递控制器
+ *
+ * @author Jackasher
+ */
+@RestController
+@RequestMapping("/api/monitor/outbox")
+public class OutboxController {
+
+    @Resource
+    private OutboxService outboxService;
+
+    /**
+     * 待投递的消息数、字节数、最早一条的等待时间和投递统计
+     */
+    @GetMapping("/stats")
+    public Map<String, Object> getStats() {
+        return outboxService.getStats();
+    }
+
+    /**
+     * 排查原因后，把死信目录中的消息放回 outbox 重新投递
+     */
+    @PostMapping("/dead-letter/replay")
+    public Map<String, Object> replayParked() throws IOException {
+        return Collections.singletonMap("replayed", outboxService.replayParked());
+    }
+}
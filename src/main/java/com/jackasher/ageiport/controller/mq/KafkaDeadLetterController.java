@@ -0,0 +1,54 @@
+package com.jackasher.ageiport.controller.mq;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Resource;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.jackasher.ageiport.mq.kafka.KafkaDeadLetterService;
+
+/**
+ * Kafka 死信重放控制器
+ * @author Jackasher
+ */
+@RestController
+@RequestMapping("/api/kafka/dlt")
+public class KafkaDeadLetterController {
+
+    private static final int MAX_REPLAY = 10_000;
+
+    private static final List<String> DLT_TOPICS = Arrays.asList(
+            KafkaDeadLetterService.ATTACHMENT_DLT_TOPIC, KafkaDeadLetterService.CLAIM_CHECK_DLT_TOPIC);
+
+    @Resource
+    private KafkaDeadLetterService kafkaDeadLetterService;
+
+    /**
+     * 将死信主题中尚未重放的消息重新投递到原主题
+     *
+     * @param topic 死信主题，默认附件处理的死信主题
+     * @param max   本次最多重放的消息数
+     */
+    @PostMapping("/replay")
+    public ResponseEntity<Map<String, Object>> replay(
+            @RequestParam(value = "topic", defaultValue = KafkaDeadLetterService.ATTACHMENT_DLT_TOPIC) String topic,
+            @RequestParam(value = "max", defaultValue = "100") int max) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("topic", topic);
+        if (!DLT_TOPICS.contains(topic)) {
+            response.put("error", "Unsupported DLT topic, expected one of " + DLT_TOPICS);
+            return new ResponseEntity<>(response, HttpStatus.BAD_REQUEST);
+        }
+        response.put("replayed", kafkaDeadLetterService.replay(topic, Math.max(1, Math.min(max, MAX_REPLAY))));
+        return ResponseEntity.ok(response);
+    }
+}
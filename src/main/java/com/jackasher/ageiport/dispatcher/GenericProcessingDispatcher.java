@@ -1,12 +1,19 @@
 package com.jackasher.ageiport.dispatcher;
 
 import com.jackasher.ageiport.constant.BatchDataProcessMode;
+import com.jackasher.ageiport.constant.ClaimCheckMode;
+import com.jackasher.ageiport.model.dto.AttachmentWorkItem;
+import com.jackasher.ageiport.model.dto.BatchClaimCheck;
 import com.jackasher.ageiport.model.dto.ProcessContext;
 import com.jackasher.ageiport.model.export.GenericExportQuery;
 import com.jackasher.ageiport.model.ir_message.IrMessageData;
 import com.jackasher.ageiport.model.ir_message.IrMessageQuery;
+import com.jackasher.ageiport.mq.claimcheck.ClaimCheckService;
+import com.jackasher.ageiport.mq.claimcheck.DataSliceRegistry;
 import com.jackasher.ageiport.mq.kafka.KafkaProducerService;
 import com.jackasher.ageiport.mq.rabbitmq.MqProducerService;
+import com.jackasher.ageiport.mq.workqueue.AttachmentWorkQueue;
+import com.jackasher.ageiport.publisher.DeferredWorkRegistry;
 import com.jackasher.ageiport.service.data_processing_service.GenericDataProcessingService;
 import com.jackasher.ageiport.service.monitor.ProgressTrackerService;
 import com.jackasher.ageiport.utils.business.IrMessageUtils;
@@ -18,7 +25,6 @@ import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
 
 /**
  * @author Jackasher
@@ -51,6 +57,7 @@ public class GenericProcessingDispatcher<DATA, QUERY extends GenericExportQuery>
         handlers.put(BatchDataProcessMode.NONE, this::processNoneMode);
         handlers.put(BatchDataProcessMode.RABBITMQ, this::processMqMode);
         handlers.put(BatchDataProcessMode.KAFKA, this::processKafkaMode);
+        handlers.put(BatchDataProcessMode.WORK_QUEUE, this::processWorkQueueMode);
     }
 
 
@@ -95,6 +102,13 @@ public class GenericProcessingDispatcher<DATA, QUERY extends GenericExportQuery>
 
     // ==================== 延迟队列的处理策略 ====================
 
+    /**
+     * 本节点是否还持有该主任务尚未触发的延迟任务
+     */
+    public static boolean hasDeferredTasks(String mainTaskId) {
+        return deferredTasks.containsKey(mainTaskId);
+    }
+
     /**
      * 主任务完成后触发延迟处理
      */
@@ -112,52 +126,41 @@ public class GenericProcessingDispatcher<DATA, QUERY extends GenericExportQuery>
 
     /**
      * 【新方法】以严格串行且失败即停止的方式触发延迟任务。
+     * 所有任务在同一个执行器任务中依次执行，不再向单线程执行器重复提交后阻塞等待（那样会等待排在自己后面的任务）
      *
      * @param mainTaskId      主任务ID
      * @param executorService 必须是单线程的 ExecutorService
+     * @return 全部任务执行完毕或链路中断时完成，本节点没有延迟任务时立即完成
      */
-    public static void triggerDeferredTasksSerially(String mainTaskId, ExecutorService executorService) {
+    public static CompletableFuture<Void> triggerDeferredTasksSerially(String mainTaskId, ExecutorService executorService) {
         List<Runnable> tasks = deferredTasks.remove(mainTaskId);
         if (tasks == null || tasks.isEmpty()) {
             log.info("主任务 {} 在本节点上没有需要延迟处理的附件任务", mainTaskId);
-            return;
+            return CompletableFuture.completedFuture(null);
         }
 
         log.info("主任务 {} 完成，准备以【严格串行】方式执行 {} 个附件任务", mainTaskId, tasks.size());
 
-        // 使用迭代器来手动控制流程
-        final Iterator<Runnable> iterator = tasks.iterator();
-
-        // 提交一个“引导”任务，它负责启动整个链式调用
-        executorService.submit(() -> processNextTask(iterator, executorService, mainTaskId));
+        return CompletableFuture.runAsync(() -> runSerially(tasks, mainTaskId), executorService);
     }
 
-    private static void processNextTask(Iterator<Runnable> iterator, ExecutorService executorService, String mainTaskId) {
-        if (!iterator.hasNext()) {
-            log.info("主任务 {} 的所有附件任务已全部执行完毕。", mainTaskId);
-            return;
-        }
-
-        Runnable nextTask = iterator.next();
-        Future<?> future = executorService.submit(nextTask);
-
-        try {
-            // 阻塞等待当前任务完成
-            future.get();
-            log.info("一个附件任务成功完成，准备执行下一个...");
-
-            // 当前任务成功后，递归地提交下一个任务
-            processNextTask(iterator, executorService, mainTaskId);
-
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt(); // 恢复中断状态
-            log.error("附件处理链中有一个任务被中断，后续所有任务将不再执行。MainTaskID: {}", mainTaskId, e);
-        } catch (Exception e) {
-            // ExecutionException, CancellationException 等都会被捕获
-            log.error("附件处理链中有一个任务失败，后续所有任务将不再执行。MainTaskID: {}, 失败原因: {}",
-                    mainTaskId, e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
-            // 出现异常，递归链中断，不再提交新任务。
+    private static void runSerially(List<Runnable> tasks, String mainTaskId) {
+        for (Runnable task : tasks) {
+            if (Thread.currentThread().isInterrupted()) {
+                log.error("附件处理链被中断，后续所有任务将不再执行。MainTaskID: {}", mainTaskId);
+                return;
+            }
+            try {
+                task.run();
+                log.info("一个附件任务成功完成，准备执行下一个...");
+            } catch (Exception e) {
+                log.error("附件处理链中有一个任务失败，后续所有任务将不再执行。MainTaskID: {}, 失败原因: {}",
+                        mainTaskId, e.getMessage());
+                // 出现异常，链路中断，不再执行后续任务。
+                return;
+            }
         }
+        log.info("主任务 {} 的所有附件任务已全部执行完毕。", mainTaskId);
     }
 
 
@@ -189,8 +192,13 @@ public class GenericProcessingDispatcher<DATA, QUERY extends GenericExportQuery>
             // 1. 获取MQ生产者服务
             MqProducerService producerService = SpringContextUtil.getBean(MqProducerService.class);
 
-            // 2. 直接发送 ProcessContext，不需要额外创建消息体
-            producerService.sendAttachmentTask(ctx);
+            // 2. 开启取件凭证时只发送数据范围，否则直接发送 ProcessContext
+            BatchClaimCheck claimCheck = toClaimCheck(ctx);
+            if (claimCheck != null) {
+                producerService.sendClaimCheck(claimCheck);
+            } else {
+                producerService.sendAttachmentTask(ctx);
+            }
 
             log.info("【MQ模式】成功提交子任务 {} 的附件处理消息到RabbitMQ", ctx.subTaskId);
 
@@ -212,8 +220,13 @@ public class GenericProcessingDispatcher<DATA, QUERY extends GenericExportQuery>
             KafkaProducerService producerService =
                     SpringContextUtil.getBean(KafkaProducerService.class);
 
-            // 2. 直接发送 ProcessContext
-            producerService.sendAttachmentTask(ctx);
+            // 2. 开启取件凭证时只发送数据范围，否则直接发送 ProcessContext
+            BatchClaimCheck claimCheck = toClaimCheck(ctx);
+            if (claimCheck != null) {
+                producerService.sendClaimCheck(claimCheck);
+            } else {
+                producerService.sendAttachmentTask(ctx);
+            }
 
             log.info("【Kafka模式】成功提交子任务 {} 的附件处理消息到Kafka", ctx.subTaskId);
 
@@ -224,6 +237,62 @@ public class GenericProcessingDispatcher<DATA, QUERY extends GenericExportQuery>
         }
     }
 
+    /**
+     * 生成批次的取件凭证；未开启取件凭证、没有登记查询范围或数据类型不支持时返回 null，按完整消息发送
+     */
+    @SuppressWarnings("unchecked")
+    private BatchClaimCheck toClaimCheck(ProcessContext<DATA, QUERY> ctx) throws Exception {
+        ClaimCheckService claimCheckService = SpringContextUtil.getBean(ClaimCheckService.class);
+        ClaimCheckMode mode = claimCheckService.getMode();
+        if (mode == ClaimCheckMode.NONE || ctx.messages.isEmpty()
+                || !(ctx.messages.get(0) instanceof IrMessageData) || !(ctx.query instanceof IrMessageQuery)) {
+            return null;
+        }
+        DataSliceRegistry.Slice slice = DataSliceRegistry.get(ctx.subTaskId);
+        if (slice == null) {
+            log.warn("子任务 {} 没有登记查询范围，按完整消息发送", ctx.subTaskId);
+            return null;
+        }
+        return claimCheckService.checkIn((ProcessContext<IrMessageData, IrMessageQuery>) ctx, slice, mode);
+    }
+
+    /**
+     * 共享队列模式 - 批次写入集群共享的工作队列，由空闲节点领取处理，
+     * 附件处理不再固定在执行子任务的节点上
+     */
+    private void processWorkQueueMode(ProcessContext<DATA, QUERY> ctx) {
+        try {
+            log.info("【共享队列模式】开始处理子任务 {} 的数据（投递到共享工作队列）", ctx.subTaskId);
+
+            if (!ctx.messages.isEmpty() &&
+                    ctx.messages.get(0) instanceof IrMessageData && ctx.query instanceof IrMessageQuery) {
+                AttachmentWorkItem item = toWorkItem(ctx);
+                SpringContextUtil.getBean(AttachmentWorkQueue.class).offer(item);
+                log.info("【共享队列模式】子任务 {} 的附件批次已投递, ItemID: {}", ctx.subTaskId, item.getItemId());
+            } else {
+                log.warn("【共享队列模式】不支持的数据类型，跳过处理: {}", ctx.messages.getClass().getSimpleName());
+            }
+        } catch (Exception e) {
+            log.error("【共享队列模式】处理子任务 {} 的数据失败（投递批次时异常）: {}", ctx.subTaskId, e.getMessage(), e);
+            // 降级逻辑
+            handleFailure(ctx, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private AttachmentWorkItem toWorkItem(ProcessContext<DATA, QUERY> ctx) {
+        AttachmentWorkItem item = new AttachmentWorkItem();
+        item.setItemId(ctx.subTaskId + ":" + UUID.randomUUID());
+        item.setMainTaskId(ctx.mainTaskId);
+        item.setSubTaskId(ctx.subTaskId);
+        item.setSubTaskNo(ctx.subTaskNo);
+        item.setMessages((List<IrMessageData>) ctx.messages);
+        item.setQuery((IrMessageQuery) ctx.query);
+        item.setSourceNode(SpringContextUtil.getBean(DeferredWorkRegistry.class).getNodeId());
+        item.setEnqueueTime(System.currentTimeMillis());
+        return item;
+    }
+
     /**
      * 处理失败的降级逻辑
      */
@@ -285,8 +354,21 @@ public class GenericProcessingDispatcher<DATA, QUERY extends GenericExportQuery>
         };
 
         // 使用computeIfAbsent确保线程安全地添加任务到列表
-        deferredTasks.computeIfAbsent(ctx.mainTaskId, k -> new ArrayList<>()).add(task);
+        boolean[] firstForMainTask = {false};
+        deferredTasks.computeIfAbsent(ctx.mainTaskId, k -> {
+            firstForMainTask[0] = true;
+            return new ArrayList<>();
+        }).add(task);
         log.info("【延迟模式】子任务 {} 的数据处理已添加到延迟队列，等待主任务完成", ctx.subTaskId);
+
+        // 本节点第一次持有该主任务的延迟批次时登记，主任务完成后只有登记过的节点会收到定向触发指令
+        if (firstForMainTask[0]) {
+            try {
+                SpringContextUtil.getBean(DeferredWorkRegistry.class).register(ctx.mainTaskId);
+            } catch (Exception e) {
+                log.error("【延迟模式】登记主任务 {} 的延迟批次失败，将在后台定时重试", ctx.mainTaskId, e);
+            }
+        }
     }
 
     private void processNoneMode(ProcessContext<DATA, QUERY> ctx) {
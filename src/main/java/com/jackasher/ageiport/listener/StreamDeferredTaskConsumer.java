@@ -0,0 +1,189 @@
+package com.jackasher.ageiport.listener;
+
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.stream.StreamListener;
+import org.springframework.data.redis.stream.StreamMessageListenerContainer;
+import org.springframework.data.redis.stream.StreamMessageListenerContainer.StreamMessageListenerContainerOptions;
+import org.springframework.data.redis.stream.StreamMessageListenerContainer.StreamReadRequest;
+import org.springframework.stereotype.Component;
+
+import com.jackasher.ageiport.dispatcher.GenericProcessingDispatcher;
+import com.jackasher.ageiport.publisher.DeferredWorkRegistry;
+import com.jackasher.ageiport.publisher.StreamDeferredTaskTriggerStrategy;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Redis Stream 消费者，读取本节点专属 Stream 中的延迟任务触发指令。
+ * 指令对应的延迟任务执行完毕后才确认 (XACK)，启动时先重放本消费者名下尚未确认的指令，
+ * 与 Redis 断开期间投递的指令在重连后继续读取。
+ * 只在 deferred-trigger-strategy 为 stream 时启动，运行期间切换到 stream 需要重启节点。
+ */
+@Component
+@ConditionalOnProperty(prefix = "ageiport.export", name = "deferred-trigger-strategy", havingValue = "stream")
+@Slf4j
+public class StreamDeferredTaskConsumer implements StreamListener<String, MapRecord<String, String, String>> {
+
+    private static final String GROUP = "deferred-trigger";
+    private static final int REPLAY_BATCH_SIZE = 100;
+
+    @Resource
+    private RedisConnectionFactory redisConnectionFactory;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private DeferredWorkRegistry deferredWorkRegistry;
+
+    @Resource
+    @Qualifier("serialAttachmentTaskExecutor")
+    private ExecutorService serialExecutor;
+
+    private StreamMessageListenerContainer<String, MapRecord<String, String, String>> container;
+
+    private String stream;
+
+    private Consumer consumer;
+
+    @PostConstruct
+    public void init() {
+        stream = DeferredWorkRegistry.triggerStreamOf(deferredWorkRegistry.getNodeId());
+        consumer = Consumer.from(GROUP, deferredWorkRegistry.getNodeId());
+        try {
+            ensureGroup();
+            replayPending();
+        } catch (Exception e) {
+            // Redis 暂不可用时不阻塞启动，由容器在恢复后继续读取
+            log.error("[Stream-Consumer] 初始化触发指令 Stream {} 失败: {}", stream, e.getMessage());
+        }
+
+        StreamMessageListenerContainerOptions<String, MapRecord<String, String, String>> options =
+                StreamMessageListenerContainerOptions.builder()
+                        .pollTimeout(Duration.ofSeconds(2))
+                        .batchSize(10)
+                        .errorHandler(this::onReadError)
+                        .build();
+        container = StreamMessageListenerContainer.create(redisConnectionFactory, options);
+        container.register(StreamReadRequest.builder(StreamOffset.create(stream, ReadOffset.lastConsumed()))
+                .consumer(consumer)
+                .autoAcknowledge(false)
+                .cancelOnError(e -> false)
+                .build(), this);
+        container.start();
+        log.info("[Stream-Consumer] 节点 {} 开始监听触发指令 Stream: {}", deferredWorkRegistry.getNodeId(), stream);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (container != null) {
+            container.stop();
+        }
+    }
+
+    @Override
+    public void onMessage(MapRecord<String, String, String> record) {
+        handle(record);
+    }
+
+    /**
+     * 处理一条触发指令，返回的 Future 在延迟任务执行完毕并确认后完成
+     */
+    private CompletableFuture<Void> handle(MapRecord<String, String, String> record) {
+        String mainTaskId = record.getValue().get(StreamDeferredTaskTriggerStrategy.FIELD_MAIN_TASK_ID);
+        log.info("[Stream-Consumer] 节点 {} 收到触发指令, MainTaskID: {}, RecordId: {}",
+                deferredWorkRegistry.getNodeId(), mainTaskId, record.getId());
+        if (mainTaskId == null) {
+            acknowledge(record);
+            return CompletableFuture.completedFuture(null);
+        }
+        // 与 Pub/Sub 订阅者一致，使用单线程执行器保证本节点内任务的串行执行
+        return GenericProcessingDispatcher.triggerDeferredTasksSerially(mainTaskId, serialExecutor)
+                .handle((ignored, e) -> {
+                    // 延迟批次已从本地取走，失败的批次不会因重新投递而重跑，同样确认
+                    acknowledge(record);
+                    deferredWorkRegistry.unregister(mainTaskId);
+                    return null;
+                });
+    }
+
+    private void acknowledge(MapRecord<String, String, String> record) {
+        try {
+            stringRedisTemplate.opsForStream().acknowledge(GROUP, record);
+        } catch (Exception e) {
+            // 未确认的指令会在下次启动时重放，本地已没有对应的延迟批次，重放无副作用
+            log.warn("[Stream-Consumer] 确认触发指令 {} 失败: {}", record.getId(), e.getMessage());
+        }
+    }
+
+    /**
+     * 重放本消费者已读取但尚未确认的指令，例如上次处理过程中节点被停止
+     */
+    private void replayPending() {
+        while (true) {
+            List<MapRecord<String, Object, Object>> pending = stringRedisTemplate.opsForStream().read(consumer,
+                    StreamReadOptions.empty().count(REPLAY_BATCH_SIZE), StreamOffset.create(stream, ReadOffset.from("0")));
+            if (pending == null || pending.isEmpty()) {
+                return;
+            }
+            log.info("[Stream-Consumer] 重放 {} 条未确认的触发指令", pending.size());
+            for (MapRecord<String, Object, Object> record : pending) {
+                // 等待每条都被确认，下一轮读取到的是剩余的未确认指令
+                handle(record.mapEntries(entry -> new AbstractMap.SimpleEntry<>(
+                        String.valueOf(entry.getKey()), String.valueOf(entry.getValue())))).join();
+            }
+        }
+    }
+
+    /**
+     * 创建消费组，Stream 不存在时一并创建；消费组已存在时忽略
+     */
+    private void ensureGroup() {
+        try {
+            stringRedisTemplate.opsForStream().createGroup(stream, ReadOffset.from("0"), GROUP);
+        } catch (Exception e) {
+            if (!String.valueOf(rootMessage(e)).contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    private void onReadError(Throwable t) {
+        String message = rootMessage(t);
+        log.warn("[Stream-Consumer] 读取触发指令失败, 将自动重试: {}", message);
+        // Stream 或消费组被删除（如 Redis 数据被清空）时重新创建
+        if (message != null && message.contains("NOGROUP")) {
+            try {
+                ensureGroup();
+            } catch (Exception e) {
+                log.warn("[Stream-Consumer] 重新创建消费组失败: {}", e.getMessage());
+            }
+        }
+    }
+
+    private static String rootMessage(Throwable t) {
+        Throwable cause = t;
+        while (cause.getCause() != null && cause.getCause() != cause) {
+            cause = cause.getCause();
+        }
+        return cause.getMessage();
+    }
+}
@@ -0,0 +1,62 @@
+package com.jackasher.ageiport.model.dto;
+
+import com.jackasher.ageiport.model.ir_message.IrMessageData;
+import com.jackasher.ageiport.model.ir_message.IrMessageQuery;
+import lombok.Data;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * 共享工作队列中的附件批次描述，包含任意节点独立处理该批次所需的全部信息。
+ *
+ * @author Jackasher
+ */
+@Data
+public class AttachmentWorkItem implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 批次唯一标识，租约、续约和确认都以它为准。
+     */
+    private String itemId;
+
+    private String mainTaskId;
+
+    private String subTaskId;
+
+    private int subTaskNo;
+
+    /**
+     * 本批次需要处理附件的消息。
+     */
+    private List<IrMessageData> messages;
+
+    private IrMessageQuery query;
+
+    /**
+     * 投递该批次的节点标识。
+     */
+    private String sourceNode;
+
+    /**
+     * 投递时间戳。
+     */
+    private long enqueueTime;
+
+    /**
+     * 推测执行副本对应的原始批次ID，原始批次为 null。
+     */
+    private String speculativeOf;
+
+    /**
+     * 不应领取该批次的节点。推测执行的副本要在原始执行以外的节点上运行。
+     */
+    private String excludeNode;
+
+    /**
+     * 已被领取的次数(含本次)，由队列在领取时填写。
+     */
+    private int attempts;
+}
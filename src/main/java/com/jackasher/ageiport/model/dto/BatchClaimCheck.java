@@ -0,0 +1,55 @@
+package com.jackasher.ageiport.model.dto;
+
+import lombok.Data;
+
+import java.io.Serializable;
+
+/**
+ * 附件批次的取件凭证。
+ * 消息中只携带定位批次数据所需的信息，消费者凭它重新查询数据或从文件存储读取冻结的数据。
+ *
+ * @author Jackasher
+ */
+@Data
+public class BatchClaimCheck implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private String mainTaskId;
+
+    private String subTaskId;
+
+    private int subTaskNo;
+
+    /**
+     * 批次数据在查询结果中的起始偏移量。
+     */
+    private long offset;
+
+    /**
+     * 批次的分页大小。
+     */
+    private int size;
+
+    /**
+     * 投递时批次的实际条数，用于发现重新查询时数据已变化。
+     */
+    private int itemCount;
+
+    /**
+     * 批次第一条和最后一条数据的主键。
+     */
+    private String firstKey;
+
+    private String lastKey;
+
+    /**
+     * 查询条件的哈希，查询条件本身按哈希存放在 Redis 中。
+     */
+    private String queryHash;
+
+    /**
+     * 冻结数据在文件存储中的路径，只按范围重新查询时为 null。
+     */
+    private String blobPath;
+}
@@ -0,0 +1,87 @@
+package com.jackasher.ageiport.model.dto;
+
+import lombok.Data;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * 附件主题的一次消费积压采样及据此做出的并发调整决策。
+ *
+ * @author Jackasher
+ */
+@Data
+public class KafkaLagSnapshot implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 主题
+     */
+    private String topic;
+
+    /**
+     * 消费组
+     */
+    private String groupId;
+
+    /**
+     * 主题分区数，也是整个消费组有效并发的上限
+     */
+    private int partitions;
+
+    /**
+     * 各分区积压之和(末尾偏移量 - 已提交偏移量)
+     */
+    private long totalLag;
+
+    /**
+     * 积压最多的分区的积压量
+     */
+    private long maxPartitionLag;
+
+    /**
+     * 分区 -> 积压量
+     */
+    private Map<Integer, Long> partitionLag;
+
+    /**
+     * 消费组内的消费者数量
+     */
+    private int groupMembers;
+
+    /**
+     * 消费组内的节点数量(按消费者 client.id 中的实例标识去重，同一主机上的多个实例分别计数)
+     */
+    private int groupNodes;
+
+    /**
+     * 被调整的监听容器ID
+     */
+    private String listenerId;
+
+    /**
+     * 本节点调整前的并发数
+     */
+    private int currentConcurrency;
+
+    /**
+     * 本节点期望的并发数
+     */
+    private int desiredConcurrency;
+
+    /**
+     * 决策: SCALE_UP、SCALE_DOWN、HOLD
+     */
+    private String decision;
+
+    /**
+     * 决策原因
+     */
+    private String reason;
+
+    /**
+     * 采样时间戳
+     */
+    private long timestamp;
+}
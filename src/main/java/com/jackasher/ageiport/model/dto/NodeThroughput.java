@@ -0,0 +1,40 @@
+package com.jackasher.ageiport.model.dto;
+
+import lombok.Data;
+import java.io.Serializable;
+
+/**
+ * 单个节点在某个处理阶段的吞吐量，用于发现处理偏慢的节点。
+ *
+ * @author Jackasher
+ */
+@Data
+public class NodeThroughput implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 节点标识，格式为 IP:端口。
+     */
+    private String nodeId;
+
+    /**
+     * 处理阶段，见 ThroughputPhase。
+     */
+    private String phase;
+
+    /**
+     * 滑动窗口内的速率(每秒)。
+     */
+    private double ratePerSecond;
+
+    /**
+     * 节点启动以来在该阶段处理的总量。
+     */
+    private long processed;
+
+    /**
+     * 节点最近一次上报的时间戳。
+     */
+    private long updateTime;
+}
@@ -0,0 +1,56 @@
+package com.jackasher.ageiport.model.dto;
+
+import lombok.Data;
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * 主任务在某个处理阶段的吞吐量和预计剩余时间，汇总自所有参与处理的节点。
+ *
+ * @author Jackasher
+ */
+@Data
+public class PhaseThroughput implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 处理阶段，见 ThroughputPhase。
+     */
+    private String phase;
+
+    /**
+     * 滑动窗口内的整体速率(每秒)，数据导出为行/秒，附件处理为条目/秒。
+     */
+    private double ratePerSecond;
+
+    /**
+     * 已处理的数量。
+     */
+    private long processed;
+
+    /**
+     * 该阶段首次上报速率的时间戳，尚未开始时为 null。
+     */
+    private Long startTime;
+
+    /**
+     * 预计需要处理的总量，未知时为 null。
+     */
+    private Long expected;
+
+    /**
+     * 按当前速率估算的剩余秒数，总量或速率未知时为 null。
+     */
+    private Long etaSeconds;
+
+    /**
+     * 各节点的速率(每秒)，key 为节点标识。
+     */
+    private Map<String, Double> nodes;
+
+    /**
+     * 各子任务的速率(每秒)，key 为子任务ID，精简视图中不返回。
+     */
+    private Map<String, Double> subTasks;
+}
@@ -17,6 +17,16 @@ public class ProcessContext<DATA, QUERY extends GenericExportQuery> implements S
     public final QUERY query;
     public final String mainTaskId;
 
+    /**
+     * 分片序号，从 1 开始；未分片的消息为 0
+     */
+    private int chunkIndex;
+
+    /**
+     * 原始批次被拆分成的分片总数；未分片的消息为 0
+     */
+    private int chunkCount;
+
     public ProcessContext(List<DATA> messages, String subTaskId, int subTaskNo,
                    QUERY query, String mainTaskId) {
         this.messages = messages;
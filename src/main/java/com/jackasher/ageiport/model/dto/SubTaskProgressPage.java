@@ -0,0 +1,41 @@
+package com.jackasher.ageiport.model.dto;
+
+import lombok.Data;
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * 子任务进度的一页数据，按 subTaskNo 排序。
+ *
+ * @author Jackasher
+ */
+@Data
+public class SubTaskProgressPage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 过滤的子任务状态，为 null 表示不过滤。
+     */
+    private String status;
+
+    /**
+     * 满足条件的子任务总数。
+     */
+    private long total;
+
+    /**
+     * 本页起始位置，从 0 开始。
+     */
+    private long offset;
+
+    /**
+     * 本页最大条数。
+     */
+    private int limit;
+
+    /**
+     * 本页的子任务进度列表。
+     */
+    private List<SubTaskProgressDetail> subTasks;
+}
@@ -0,0 +1,216 @@
+package com.jackasher.ageiport.mq.claimcheck;
+
+import com.alibaba.ageiport.ext.file.store.FileStore;
+import com.alibaba.ageiport.processor.core.AgeiPort;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jackasher.ageiport.config.export.ExportProperties;
+import com.jackasher.ageiport.constant.ClaimCheckMode;
+import com.jackasher.ageiport.model.dto.BatchClaimCheck;
+import com.jackasher.ageiport.model.dto.ProcessContext;
+import com.jackasher.ageiport.model.ir_message.IrMessageData;
+import com.jackasher.ageiport.model.ir_message.IrMessageQuery;
+import com.jackasher.ageiport.processer.impl.ir_message.IrMessageDataAccessor;
+import com.jackasher.ageiport.utils.ioc.SpringContextUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
+
+import javax.annotation.Resource;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 取件凭证的生成与兑现。
+ * 生产者只把数据范围、查询条件哈希（以及冻结数据的路径）放入消息，
+ * 查询条件以内容哈希为键存放在 Redis 中，同一主任务的所有批次共用一份：
+ * <pre>
+ *   ageiport:claim_check:query:{queryHash}   查询条件 JSON，每次生成和兑现凭证时续期，过期时间与导出任务超时时间一致
+ *   {blobDirectory}/query/{queryHash}.json   查询条件的持久副本，位于文件存储中
+ *   {blobDirectory}/{mainTaskId}/{subTaskId}.json   FROZEN 模式下冻结的批次数据，位于文件存储中
+ * </pre>
+ * 消费者按范围重新查询（REREAD）或读取冻结的数据（FROZEN），还原出与原消息相同的 ProcessContext。
+ * 死信在任务超时之后才重放时 Redis 中的查询条件可能已过期，此时从持久副本读取并重新写回 Redis。
+ *
+ * @author Jackasher
+ */
+@Service
+public class ClaimCheckService {
+
+    private static final Logger log = LoggerFactory.getLogger(ClaimCheckService.class);
+
+    private static final String QUERY_KEY_PREFIX = "ageiport:claim_check:query:";
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private static final TypeReference<List<IrMessageData>> DATA_LIST_TYPE = new TypeReference<List<IrMessageData>>() {
+    };
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IrMessageDataAccessor irMessageDataAccessor;
+
+    @Resource
+    private ExportProperties exportProperties;
+
+    /**
+     * 当前配置的取件凭证模式
+     */
+    public ClaimCheckMode getMode() {
+        ClaimCheckMode mode = exportProperties.getClaimCheck().getMode();
+        return mode == null ? ClaimCheckMode.NONE : mode;
+    }
+
+    /**
+     * 为一个批次生成取件凭证
+     *
+     * @param ctx   批次数据
+     * @param slice 批次在查询结果中的范围
+     * @param mode  REREAD 或 FROZEN
+     */
+    public BatchClaimCheck checkIn(ProcessContext<IrMessageData, IrMessageQuery> ctx,
+                                   DataSliceRegistry.Slice slice, ClaimCheckMode mode) throws IOException {
+        String queryJson = OBJECT_MAPPER.writeValueAsString(ctx.query);
+        String queryHash = sha256(queryJson);
+        // 内容相同的查询条件写入同一个键，已存在时只续期；新写入时同时保存持久副本
+        String queryKey = QUERY_KEY_PREFIX + queryHash;
+        long ttlMillis = exportProperties.getTaskTimeout();
+        if (Boolean.TRUE.equals(stringRedisTemplate.opsForValue().setIfAbsent(queryKey, queryJson, ttlMillis, TimeUnit.MILLISECONDS))) {
+            try {
+                fileStore().save(queryPathOf(queryHash), new ByteArrayInputStream(queryJson.getBytes(StandardCharsets.UTF_8)), new HashMap<>());
+            } catch (RuntimeException e) {
+                // 副本未保存时撤销写入，下一个批次重新写入
+                stringRedisTemplate.delete(queryKey);
+                throw e;
+            }
+        } else {
+            stringRedisTemplate.expire(queryKey, ttlMillis, TimeUnit.MILLISECONDS);
+        }
+
+        BatchClaimCheck claimCheck = new BatchClaimCheck();
+        claimCheck.setMainTaskId(ctx.mainTaskId);
+        claimCheck.setSubTaskId(ctx.subTaskId);
+        claimCheck.setSubTaskNo(ctx.subTaskNo);
+        claimCheck.setOffset(slice.getOffset());
+        claimCheck.setSize(slice.getSize());
+        claimCheck.setItemCount(ctx.messages.size());
+        claimCheck.setFirstKey(ctx.messages.get(0).getUuid());
+        claimCheck.setLastKey(ctx.messages.get(ctx.messages.size() - 1).getUuid());
+        claimCheck.setQueryHash(queryHash);
+
+        if (mode == ClaimCheckMode.FROZEN) {
+            String blobPath = exportProperties.getClaimCheck().getBlobDirectory() + "/" + ctx.mainTaskId + "/" + ctx.subTaskId + ".json";
+            byte[] blob = OBJECT_MAPPER.writeValueAsBytes(ctx.messages);
+            fileStore().save(blobPath, new ByteArrayInputStream(blob), new HashMap<>());
+            claimCheck.setBlobPath(blobPath);
+            log.info("[ClaimCheck] 子任务 {} 的 {} 条数据已冻结到文件存储: {}, {} 字节", ctx.subTaskId, ctx.messages.size(), blobPath, blob.length);
+        }
+        return claimCheck;
+    }
+
+    /**
+     * 凭取件凭证还原批次数据
+     */
+    public ProcessContext<IrMessageData, IrMessageQuery> checkOut(BatchClaimCheck claimCheck) throws IOException {
+        String queryJson = loadQuery(claimCheck);
+        IrMessageQuery query = OBJECT_MAPPER.readValue(queryJson, IrMessageQuery.class);
+
+        List<IrMessageData> messages;
+        if (claimCheck.getBlobPath() != null) {
+            try (InputStream in = fileStore().get(claimCheck.getBlobPath(), new HashMap<>())) {
+                messages = OBJECT_MAPPER.readValue(in, DATA_LIST_TYPE);
+            }
+        } else {
+            messages = irMessageDataAccessor.queryByPage(query, claimCheck.getOffset(), claimCheck.getSize());
+            warnIfChanged(claimCheck, messages);
+        }
+        return new ProcessContext<>(messages, claimCheck.getSubTaskId(), claimCheck.getSubTaskNo(), query, claimCheck.getMainTaskId());
+    }
+
+    /**
+     * 批次处理成功后删除冻结的数据；处理失败需要重试时不要调用
+     */
+    public void release(BatchClaimCheck claimCheck) {
+        if (claimCheck.getBlobPath() == null) {
+            return;
+        }
+        try {
+            fileStore().remove(claimCheck.getBlobPath(), new HashMap<>());
+        } catch (Exception e) {
+            log.warn("[ClaimCheck] 删除冻结数据 {} 失败: {}", claimCheck.getBlobPath(), e.getMessage());
+        }
+    }
+
+    /**
+     * 读取查询条件并续期；Redis 中已过期时从持久副本读取并写回
+     */
+    private String loadQuery(BatchClaimCheck claimCheck) throws IOException {
+        String queryKey = QUERY_KEY_PREFIX + claimCheck.getQueryHash();
+        long ttlMillis = exportProperties.getTaskTimeout();
+        String queryJson = stringRedisTemplate.opsForValue().get(queryKey);
+        if (queryJson != null) {
+            stringRedisTemplate.expire(queryKey, ttlMillis, TimeUnit.MILLISECONDS);
+            return queryJson;
+        }
+        try (InputStream in = fileStore().get(queryPathOf(claimCheck.getQueryHash()), new HashMap<>())) {
+            if (in == null) {
+                throw new IllegalStateException("查询条件已过期或不存在, QueryHash: " + claimCheck.getQueryHash()
+                        + ", SubTaskID: " + claimCheck.getSubTaskId());
+            }
+            queryJson = new String(StreamUtils.copyToByteArray(in), StandardCharsets.UTF_8);
+        }
+        stringRedisTemplate.opsForValue().setIfAbsent(queryKey, queryJson, ttlMillis, TimeUnit.MILLISECONDS);
+        log.info("[ClaimCheck] 查询条件 {} 已从持久副本恢复, SubTaskID: {}", claimCheck.getQueryHash(), claimCheck.getSubTaskId());
+        return queryJson;
+    }
+
+    private String queryPathOf(String queryHash) {
+        return exportProperties.getClaimCheck().getBlobDirectory() + "/query/" + queryHash + ".json";
+    }
+
+    /**
+     * 重新查询得到的数据与投递时不一致（数据在导出后被修改）时记录告警，按重新查询的结果继续处理
+     */
+    private void warnIfChanged(BatchClaimCheck claimCheck, List<IrMessageData> messages) {
+        boolean same = messages.size() == claimCheck.getItemCount()
+                && !messages.isEmpty()
+                && Objects.equals(messages.get(0).getUuid(), claimCheck.getFirstKey())
+                && Objects.equals(messages.get(messages.size() - 1).getUuid(), claimCheck.getLastKey());
+        if (!same) {
+            log.warn("[ClaimCheck] 子任务 {} 重新查询的数据与投递时不一致: 投递时 {} 条 [{} .. {}], 现在 {} 条。需要固定数据时请使用 FROZEN 模式",
+                    claimCheck.getSubTaskId(), claimCheck.getItemCount(), claimCheck.getFirstKey(), claimCheck.getLastKey(), messages.size());
+        }
+    }
+
+    private static FileStore fileStore() {
+        return SpringContextUtil.getBean(AgeiPort.class).getFileStore();
+    }
+
+    private static String sha256(String content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(content.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("JVM 不支持 SHA-256", e);
+        }
+    }
+}
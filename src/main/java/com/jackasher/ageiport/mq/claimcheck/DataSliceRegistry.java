@@ -0,0 +1,55 @@
+package com.jackasher.ageiport.mq.claimcheck;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 记录子任务查询的数据范围。
+ * 子任务在 queryData 中登记本次查询的偏移量和大小，convert 结束后移除，
+ * 分发器在两者之间按子任务ID取出，生成只包含范围的取件凭证。
+ *
+ * @author Jackasher
+ */
+public final class DataSliceRegistry {
+
+    private static final Map<String, Slice> SLICES = new ConcurrentHashMap<>();
+
+    private DataSliceRegistry() {
+    }
+
+    /**
+     * 一次分页查询的范围
+     */
+    public static final class Slice {
+        private final long offset;
+        private final int size;
+
+        Slice(long offset, int size) {
+            this.offset = offset;
+            this.size = size;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getSize() {
+            return size;
+        }
+    }
+
+    public static void record(String subTaskId, long offset, int size) {
+        SLICES.put(subTaskId, new Slice(offset, size));
+    }
+
+    /**
+     * 子任务当前登记的范围，未登记时返回 null
+     */
+    public static Slice get(String subTaskId) {
+        return SLICES.get(subTaskId);
+    }
+
+    public static void remove(String subTaskId) {
+        SLICES.remove(subTaskId);
+    }
+}
@@ -0,0 +1,583 @@
+package com.jackasher.ageiport.mq.codec;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jackasher.ageiport.model.dto.ProcessContext;
+import com.jackasher.ageiport.model.dto.ProgressSummary;
+import com.jackasher.ageiport.model.dto.SubTaskProgressDetail;
+import com.jackasher.ageiport.model.ir_message.IrMessageData;
+import com.jackasher.ageiport.model.ir_message.IrMessageQuery;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * 附件批次和进度对象的二进制编码，Kafka、RabbitMQ、Redis 共用。
+ * <pre>
+ *   头部: 魔数(2字节) 版本(1字节) 类型(1字节)
+ *   ProcessContext: mainTaskId subTaskId subTaskNo [分片序号 分片总数](版本2起) 查询条件(JSON) 行数 按列编码的 IrMessageData
+ * </pre>
+ * IrMessageData 按列写入：字符串列在字典编码更小时使用字典编码，每行只写字典下标；
+ * 时间列写与上一行的毫秒差，整数列写 zigzag 变长整数，空值由每列的位图标记。
+ * 所有长度和整数均为变长编码。调整列布局时递增 {@link #VERSION} 并保留旧版本的读取逻辑，
+ * 混合部署期间旧节点发出的消息仍能解码。
+ * 魔数的首字节不是合法的 JSON 起始字符，接收方据此区分二进制消息和 JSON 消息。
+ *
+ * @author Jackasher
+ */
+public final class BinaryCodec {
+
+    private static final byte MAGIC_0 = (byte) 0xA6;
+    private static final byte MAGIC_1 = (byte) 0xE1;
+
+    /**
+     * 当前写入的格式版本。版本 2 在 ProcessContext 头部增加了分片序号和分片总数
+     */
+    public static final byte VERSION = 2;
+
+    private static final int HEADER_LENGTH = 4;
+
+    private static final byte TYPE_PROCESS_CONTEXT = 1;
+    private static final byte TYPE_PROGRESS_SUMMARY = 2;
+    private static final byte TYPE_SUBTASK_PROGRESS = 3;
+
+    private static final byte ENCODING_PLAIN = 0;
+    private static final byte ENCODING_DICTIONARY = 1;
+
+    private static final ObjectMapper QUERY_MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    /**
+     * IrMessageData 的字符串列，顺序即为版本 1 的列布局，不能调整
+     */
+    private static final List<StringColumn> STRING_COLUMNS = Arrays.asList(
+            new StringColumn(IrMessageData::getUuid, IrMessageData::setUuid),
+            new StringColumn(IrMessageData::getDeviceType, IrMessageData::setDeviceType),
+            new StringColumn(IrMessageData::getDeviceNumber, IrMessageData::setDeviceNumber),
+            new StringColumn(IrMessageData::getArchiveName, IrMessageData::setArchiveName),
+            new StringColumn(IrMessageData::getBucketName, IrMessageData::setBucketName),
+            new StringColumn(IrMessageData::getAreaNumber, IrMessageData::setAreaNumber),
+            new StringColumn(IrMessageData::getAreaName, IrMessageData::setAreaName),
+            new StringColumn(IrMessageData::getFileName, IrMessageData::setFileName),
+            new StringColumn(IrMessageData::getDiePickingFileName, IrMessageData::setDiePickingFileName),
+            new StringColumn(IrMessageData::getDdcFileName, IrMessageData::setDdcFileName),
+            new StringColumn(IrMessageData::getDemodulationFileName, IrMessageData::setDemodulationFileName),
+            new StringColumn(IrMessageData::getDecodeFileName, IrMessageData::setDecodeFileName),
+            new StringColumn(IrMessageData::getBeforeDecodeFileName, IrMessageData::setBeforeDecodeFileName),
+            new StringColumn(IrMessageData::getObtUlFileName, IrMessageData::setObtUlFileName),
+            new StringColumn(IrMessageData::getObtDlFileName, IrMessageData::setObtDlFileName),
+            new StringColumn(IrMessageData::getDataSourceType, IrMessageData::setDataSourceType));
+
+    private BinaryCodec() {
+    }
+
+    private static final class StringColumn {
+        private final Function<IrMessageData, String> getter;
+        private final BiConsumer<IrMessageData, String> setter;
+
+        StringColumn(Function<IrMessageData, String> getter, BiConsumer<IrMessageData, String> setter) {
+            this.getter = getter;
+            this.setter = setter;
+        }
+    }
+
+    /**
+     * 是否能以二进制格式编码该对象，不支持的对象由调用方按 JSON 处理
+     */
+    public static boolean supports(Object value) {
+        if (value instanceof ProcessContext) {
+            ProcessContext<?, ?> ctx = (ProcessContext<?, ?>) value;
+            if (!(ctx.query instanceof IrMessageQuery)) {
+                return false;
+            }
+            if (ctx.messages != null) {
+                for (Object message : ctx.messages) {
+                    if (!(message instanceof IrMessageData)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return value instanceof ProgressSummary || value instanceof SubTaskProgressDetail;
+    }
+
+    /**
+     * 内容是否为二进制编码（而不是 JSON）
+     */
+    public static boolean isBinary(byte[] bytes) {
+        return bytes != null && bytes.length >= HEADER_LENGTH && bytes[0] == MAGIC_0 && bytes[1] == MAGIC_1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static byte[] encode(Object value) {
+        if (!supports(value)) {
+            throw new IllegalArgumentException("不支持二进制编码的类型: " + (value == null ? "null" : value.getClass().getName()));
+        }
+        Writer out = new Writer(256);
+        out.writeByte(MAGIC_0);
+        out.writeByte(MAGIC_1);
+        out.writeByte(VERSION);
+        if (value instanceof ProcessContext) {
+            out.writeByte(TYPE_PROCESS_CONTEXT);
+            writeProcessContext(out, (ProcessContext<IrMessageData, IrMessageQuery>) value);
+        } else if (value instanceof ProgressSummary) {
+            out.writeByte(TYPE_PROGRESS_SUMMARY);
+            writeProgressSummary(out, (ProgressSummary) value);
+        } else {
+            out.writeByte(TYPE_SUBTASK_PROGRESS);
+            writeSubTaskProgress(out, (SubTaskProgressDetail) value);
+        }
+        return out.toByteArray();
+    }
+
+    public static Object decode(byte[] bytes) {
+        if (!isBinary(bytes)) {
+            throw new IllegalArgumentException("不是二进制编码的内容");
+        }
+        int version = bytes[2];
+        if (version < 1 || version > VERSION) {
+            throw new IllegalArgumentException("不支持的编码版本: " + version + ", 当前节点最高支持版本 " + VERSION);
+        }
+        Reader in = new Reader(bytes, HEADER_LENGTH);
+        switch (bytes[3]) {
+            case TYPE_PROCESS_CONTEXT:
+                return readProcessContext(in, version);
+            case TYPE_PROGRESS_SUMMARY:
+                return readProgressSummary(in);
+            case TYPE_SUBTASK_PROGRESS:
+                return readSubTaskProgress(in);
+            default:
+                throw new IllegalArgumentException("未知的编码类型: " + bytes[3]);
+        }
+    }
+
+    // ==================== ProcessContext ====================
+
+    private static void writeProcessContext(Writer out, ProcessContext<IrMessageData, IrMessageQuery> ctx) {
+        out.writeNullableString(ctx.mainTaskId);
+        out.writeNullableString(ctx.subTaskId);
+        out.writeVarLong(zigzag(ctx.subTaskNo));
+        out.writeVarInt(ctx.getChunkIndex());
+        out.writeVarInt(ctx.getChunkCount());
+        try {
+            out.writeBytes(QUERY_MAPPER.writeValueAsBytes(ctx.query));
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("查询条件序列化失败, SubTaskID: " + ctx.subTaskId, e);
+        }
+
+        List<IrMessageData> rows = ctx.messages;
+        if (rows == null) {
+            out.writeVarInt(0);
+            return;
+        }
+        out.writeVarInt(rows.size() + 1);
+        for (StringColumn column : STRING_COLUMNS) {
+            writeStringColumn(out, rows, column.getter);
+        }
+        // createdTime: 与上一个非空值的毫秒差
+        writeNullBitmap(out, rows, IrMessageData::getCreatedTime);
+        long previous = 0;
+        for (IrMessageData row : rows) {
+            if (row.getCreatedTime() != null) {
+                long time = row.getCreatedTime().getTime();
+                out.writeVarLong(zigzag(time - previous));
+                previous = time;
+            }
+        }
+        // fileLength
+        writeNullBitmap(out, rows, IrMessageData::getFileLength);
+        for (IrMessageData row : rows) {
+            if (row.getFileLength() != null) {
+                out.writeVarLong(zigzag(row.getFileLength()));
+            }
+        }
+    }
+
+    private static ProcessContext<IrMessageData, IrMessageQuery> readProcessContext(Reader in, int version) {
+        String mainTaskId = in.readNullableString();
+        String subTaskId = in.readNullableString();
+        int subTaskNo = (int) unzigzag(in.readVarLong());
+        int chunkIndex = 0;
+        int chunkCount = 0;
+        if (version >= 2) {
+            chunkIndex = in.readVarInt();
+            chunkCount = in.readVarInt();
+        }
+        IrMessageQuery query;
+        try {
+            query = QUERY_MAPPER.readValue(in.readBytes(), IrMessageQuery.class);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("查询条件反序列化失败, SubTaskID: " + subTaskId, e);
+        }
+
+        int rowCount = in.readVarInt() - 1;
+        List<IrMessageData> rows = null;
+        if (rowCount >= 0) {
+            rows = new ArrayList<>(rowCount);
+            for (int i = 0; i < rowCount; i++) {
+                rows.add(new IrMessageData());
+            }
+            for (StringColumn column : STRING_COLUMNS) {
+                readStringColumn(in, rows, column.setter);
+            }
+            boolean[] present = readNullBitmap(in, rowCount);
+            long previous = 0;
+            for (int i = 0; i < rowCount; i++) {
+                if (present[i]) {
+                    previous += unzigzag(in.readVarLong());
+                    rows.get(i).setCreatedTime(new Date(previous));
+                }
+            }
+            present = readNullBitmap(in, rowCount);
+            for (int i = 0; i < rowCount; i++) {
+                if (present[i]) {
+                    rows.get(i).setFileLength((int) unzigzag(in.readVarLong()));
+                }
+            }
+        }
+        ProcessContext<IrMessageData, IrMessageQuery> ctx = new ProcessContext<>(rows, subTaskId, subTaskNo, query, mainTaskId);
+        ctx.setChunkIndex(chunkIndex);
+        ctx.setChunkCount(chunkCount);
+        return ctx;
+    }
+
+    /**
+     * 一行数据编码后最多占用的字节数，不含消息头部。
+     * 字符串列只在字典编码更小时才使用字典编码，因此按逐行写入计算得到的是上限，供按字节预算分片时使用
+     */
+    public static int rowSizeUpperBound(IrMessageData row) {
+        // 两个空值位图各占 1 位，按 1 字节计；createdTime 差值最多 10 字节；fileLength 最多 5 字节
+        int size = 1 + 10 + 5;
+        for (StringColumn column : STRING_COLUMNS) {
+            String value = column.getter.apply(row);
+            if (value == null) {
+                size += 1;
+            } else {
+                int length = utf8Length(value);
+                size += varIntLength(length + 1) + length;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 分别计算字典编码和逐行写入的大小，字典编码更小时使用字典编码
+     */
+    private static void writeStringColumn(Writer out, List<IrMessageData> rows, Function<IrMessageData, String> getter) {
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        long plainSize = 0;
+        long dictionarySize = 0;
+        for (IrMessageData row : rows) {
+            String value = getter.apply(row);
+            if (value == null) {
+                plainSize += 1;
+                dictionarySize += 1;
+                continue;
+            }
+            int length = utf8Length(value);
+            plainSize += varIntLength(length + 1) + length;
+            Integer index = dictionary.get(value);
+            if (index == null) {
+                index = dictionary.size();
+                dictionary.put(value, index);
+                dictionarySize += varIntLength(length) + length;
+            }
+            dictionarySize += varIntLength(index + 1);
+        }
+        dictionarySize += varIntLength(dictionary.size());
+        if (dictionarySize < plainSize) {
+            out.writeByte(ENCODING_DICTIONARY);
+            out.writeVarInt(dictionary.size());
+            for (String value : dictionary.keySet()) {
+                out.writeString(value);
+            }
+            for (IrMessageData row : rows) {
+                String value = getter.apply(row);
+                out.writeVarInt(value == null ? 0 : dictionary.get(value) + 1);
+            }
+        } else {
+            out.writeByte(ENCODING_PLAIN);
+            for (IrMessageData row : rows) {
+                out.writeNullableString(getter.apply(row));
+            }
+        }
+    }
+
+    private static void readStringColumn(Reader in, List<IrMessageData> rows, BiConsumer<IrMessageData, String> setter) {
+        byte encoding = in.readByte();
+        if (encoding == ENCODING_DICTIONARY) {
+            String[] dictionary = new String[in.readVarInt()];
+            for (int i = 0; i < dictionary.length; i++) {
+                dictionary[i] = in.readString();
+            }
+            for (IrMessageData row : rows) {
+                int code = in.readVarInt();
+                if (code > dictionary.length) {
+                    throw new IllegalArgumentException("字典下标越界: " + code);
+                }
+                setter.accept(row, code == 0 ? null : dictionary[code - 1]);
+            }
+        } else if (encoding == ENCODING_PLAIN) {
+            for (IrMessageData row : rows) {
+                setter.accept(row, in.readNullableString());
+            }
+        } else {
+            throw new IllegalArgumentException("未知的列编码: " + encoding);
+        }
+    }
+
+    private static void writeNullBitmap(Writer out, List<IrMessageData> rows, Function<IrMessageData, ?> getter) {
+        byte[] bitmap = new byte[(rows.size() + 7) / 8];
+        for (int i = 0; i < rows.size(); i++) {
+            if (getter.apply(rows.get(i)) != null) {
+                bitmap[i >> 3] |= (byte) (1 << (i & 7));
+            }
+        }
+        out.writeRaw(bitmap);
+    }
+
+    private static boolean[] readNullBitmap(Reader in, int rowCount) {
+        byte[] bitmap = in.readRaw((rowCount + 7) / 8);
+        boolean[] present = new boolean[rowCount];
+        for (int i = 0; i < rowCount; i++) {
+            present[i] = (bitmap[i >> 3] & (1 << (i & 7))) != 0;
+        }
+        return present;
+    }
+
+    // ==================== 进度对象 ====================
+
+    private static void writeProgressSummary(Writer out, ProgressSummary summary) {
+        out.writeVarLong(zigzag(summary.getTotalSubTasks()));
+        out.writeVarLong(zigzag(summary.getCompletedSubTasks()));
+        out.writeVarLong(zigzag(summary.getTotalItems()));
+        out.writeVarLong(zigzag(summary.getProcessedItems()));
+        out.writeVarLong(zigzag(summary.getFailedItems()));
+        out.writeNullableString(summary.getStatus());
+    }
+
+    private static ProgressSummary readProgressSummary(Reader in) {
+        ProgressSummary summary = new ProgressSummary();
+        summary.setTotalSubTasks(unzigzag(in.readVarLong()));
+        summary.setCompletedSubTasks(unzigzag(in.readVarLong()));
+        summary.setTotalItems(unzigzag(in.readVarLong()));
+        summary.setProcessedItems(unzigzag(in.readVarLong()));
+        summary.setFailedItems(unzigzag(in.readVarLong()));
+        summary.setStatus(in.readNullableString());
+        return summary;
+    }
+
+    private static void writeSubTaskProgress(Writer out, SubTaskProgressDetail detail) {
+        out.writeNullableString(detail.getMainTaskId());
+        out.writeVarLong(zigzag(detail.getSubTaskNo()));
+        out.writeNullableString(detail.getSubTaskId());
+        out.writeNullableString(detail.getStatus());
+        out.writeVarLong(zigzag(detail.getTotalItems()));
+        out.writeVarLong(zigzag(detail.getProcessedItems()));
+        out.writeVarLong(zigzag(detail.getFailedItems()));
+        out.writeVarLong(zigzag(detail.getStartTime()));
+        out.writeVarLong(zigzag(detail.getFinishTime()));
+        out.writeNullableString(detail.getResultMessage());
+    }
+
+    private static SubTaskProgressDetail readSubTaskProgress(Reader in) {
+        SubTaskProgressDetail detail = new SubTaskProgressDetail();
+        detail.setMainTaskId(in.readNullableString());
+        detail.setSubTaskNo((int) unzigzag(in.readVarLong()));
+        detail.setSubTaskId(in.readNullableString());
+        detail.setStatus(in.readNullableString());
+        detail.setTotalItems(unzigzag(in.readVarLong()));
+        detail.setProcessedItems(unzigzag(in.readVarLong()));
+        detail.setFailedItems(unzigzag(in.readVarLong()));
+        detail.setStartTime(unzigzag(in.readVarLong()));
+        detail.setFinishTime(unzigzag(in.readVarLong()));
+        detail.setResultMessage(in.readNullableString());
+        return detail;
+    }
+
+    // ==================== 基础编码 ====================
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int varIntLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * 字符串的 UTF-8 字节数，不产生中间数组
+     */
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static final class Writer {
+        private byte[] buffer;
+        private int position;
+
+        Writer(int initialCapacity) {
+            buffer = new byte[initialCapacity];
+        }
+
+        private void ensure(int extra) {
+            if (position + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+            }
+        }
+
+        void writeByte(byte value) {
+            ensure(1);
+            buffer[position++] = value;
+        }
+
+        void writeVarInt(int value) {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeRaw(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarInt(bytes.length);
+            writeRaw(bytes);
+        }
+
+        void writeString(String value) {
+            writeBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * 长度加一写入，0 表示 null
+         */
+        void writeNullableString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length + 1);
+            writeRaw(bytes);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] buffer;
+        private int position;
+
+        Reader(byte[] buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        private void require(int length) {
+            if (length < 0 || position + length > buffer.length) {
+                throw new IllegalArgumentException("内容不完整, 位置 " + position + " 处需要 " + length + " 字节, 总长度 " + buffer.length);
+            }
+        }
+
+        byte readByte() {
+            require(1);
+            return buffer[position++];
+        }
+
+        int readVarInt() {
+            long value = readVarLong();
+            if (value > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("长度超出范围: " + value);
+            }
+            return (int) value;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("变长整数格式错误, 位置 " + position);
+        }
+
+        byte[] readRaw(int length) {
+            require(length);
+            byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+            position += length;
+            return bytes;
+        }
+
+        byte[] readBytes() {
+            return readRaw(readVarInt());
+        }
+
+        String readString() {
+            int length = readVarInt();
+            require(length);
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        String readNullableString() {
+            int length = readVarInt() - 1;
+            if (length < 0) {
+                return null;
+            }
+            require(length);
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.jackasher.ageiport.mq.codec;
+
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.springframework.kafka.support.serializer.JsonDeserializer;
+
+import java.util.Map;
+
+/**
+ * Kafka 消息值的反序列化器。
+ * 按魔数识别二进制编码的消息，其余消息交给 JsonDeserializer，因此可以同时消费新旧两种格式；
+ * 监听器上覆盖的 JSON 默认类型等配置原样传给 JsonDeserializer
+ *
+ * @author Jackasher
+ */
+public class BinaryKafkaDeserializer implements Deserializer<Object> {
+
+    private final JsonDeserializer<Object> jsonDeserializer = new JsonDeserializer<>();
+
+    @Override
+    public void configure(Map<String, ?> configs, boolean isKey) {
+        jsonDeserializer.configure(configs, isKey);
+    }
+
+    @Override
+    public Object deserialize(String topic, byte[] data) {
+        if (BinaryCodec.isBinary(data)) {
+            return BinaryCodec.decode(data);
+        }
+        return jsonDeserializer.deserialize(topic, data);
+    }
+
+    @Override
+    public Object deserialize(String topic, Headers headers, byte[] data) {
+        if (BinaryCodec.isBinary(data)) {
+            return BinaryCodec.decode(data);
+        }
+        return jsonDeserializer.deserialize(topic, headers, data);
+    }
+
+    @Override
+    public void close() {
+        jsonDeserializer.close();
+    }
+}
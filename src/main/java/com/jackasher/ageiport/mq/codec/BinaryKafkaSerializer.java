@@ -0,0 +1,60 @@
+package com.jackasher.ageiport.mq.codec;
+
+import com.jackasher.ageiport.constant.MessageCodecFormat;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.Serializer;
+import org.springframework.kafka.support.serializer.JsonSerializer;
+
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Kafka 消息值的序列化器。
+ * 配置为 binary 时，{@link BinaryCodec} 支持的对象按二进制编码，其余对象（如取件凭证）仍交给 JsonSerializer。
+ * 编码格式在每次序列化时读取，配置刷新后新发送的消息立即使用新格式
+ *
+ * @author Jackasher
+ */
+public class BinaryKafkaSerializer implements Serializer<Object> {
+
+    private final JsonSerializer<Object> jsonSerializer = new JsonSerializer<>();
+
+    private final Supplier<MessageCodecFormat> format;
+
+    public BinaryKafkaSerializer(Supplier<MessageCodecFormat> format) {
+        this.format = format;
+    }
+
+    @Override
+    public void configure(Map<String, ?> configs, boolean isKey) {
+        jsonSerializer.configure(configs, isKey);
+    }
+
+    @Override
+    public byte[] serialize(String topic, Object data) {
+        if (data instanceof byte[]) {
+            return (byte[]) data;
+        }
+        if (format.get() == MessageCodecFormat.BINARY && BinaryCodec.supports(data)) {
+            return BinaryCodec.encode(data);
+        }
+        return jsonSerializer.serialize(topic, data);
+    }
+
+    @Override
+    public byte[] serialize(String topic, Headers headers, Object data) {
+        if (data instanceof byte[]) {
+            // 无法解码的记录转入死信主题时携带的是原始字节，原样写出
+            return (byte[]) data;
+        }
+        if (format.get() == MessageCodecFormat.BINARY && BinaryCodec.supports(data)) {
+            return BinaryCodec.encode(data);
+        }
+        return jsonSerializer.serialize(topic, headers, data);
+    }
+
+    @Override
+    public void close() {
+        jsonSerializer.close();
+    }
+}
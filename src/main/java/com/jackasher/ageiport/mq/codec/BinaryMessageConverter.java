@@ -0,0 +1,53 @@
+package com.jackasher.ageiport.mq.codec;
+
+import com.jackasher.ageiport.constant.MessageCodecFormat;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.MessageConverter;
+
+import java.util.function.Supplier;
+
+/**
+ * RabbitMQ 消息转换器。
+ * 配置为 binary 时，{@link BinaryCodec} 支持的对象按二进制编码并标记 {@link #CONTENT_TYPE}，
+ * 其余对象以及收到的 JSON 消息交给原来的 JSON 转换器处理。编码格式在每次发送时读取，配置刷新后立即生效
+ *
+ * @author Jackasher
+ */
+public class BinaryMessageConverter implements MessageConverter {
+
+    public static final String CONTENT_TYPE = "application/x-ageiport-binary";
+
+    private final MessageConverter jsonConverter;
+
+    private final Supplier<MessageCodecFormat> format;
+
+    public BinaryMessageConverter(MessageConverter jsonConverter, Supplier<MessageCodecFormat> format) {
+        this.jsonConverter = jsonConverter;
+        this.format = format;
+    }
+
+    @Override
+    public Message toMessage(Object object, MessageProperties messageProperties) throws MessageConversionException {
+        if (format.get() != MessageCodecFormat.BINARY || !BinaryCodec.supports(object)) {
+            return jsonConverter.toMessage(object, messageProperties);
+        }
+        byte[] body = BinaryCodec.encode(object);
+        messageProperties.setContentType(CONTENT_TYPE);
+        messageProperties.setContentLength(body.length);
+        return new Message(body, messageProperties);
+    }
+
+    @Override
+    public Object fromMessage(Message message) throws MessageConversionException {
+        if (CONTENT_TYPE.equals(message.getMessageProperties().getContentType()) || BinaryCodec.isBinary(message.getBody())) {
+            try {
+                return BinaryCodec.decode(message.getBody());
+            } catch (IllegalArgumentException e) {
+                throw new MessageConversionException("二进制消息解码失败", e);
+            }
+        }
+        return jsonConverter.fromMessage(message);
+    }
+}
@@ -0,0 +1,46 @@
+package com.jackasher.ageiport.mq.codec;
+
+import com.jackasher.ageiport.constant.MessageCodecFormat;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.util.function.Supplier;
+
+/**
+ * RedisTemplate 的值序列化器。
+ * 配置为 binary 时，{@link BinaryCodec} 支持的对象按二进制编码，其余对象以及已有的 JSON 值交给原来的 JSON 序列化器。
+ * 编码格式在每次写入时读取，配置刷新后立即生效
+ *
+ * @author Jackasher
+ */
+public class BinaryRedisSerializer implements RedisSerializer<Object> {
+
+    private final RedisSerializer<Object> jsonSerializer;
+
+    private final Supplier<MessageCodecFormat> format;
+
+    public BinaryRedisSerializer(RedisSerializer<Object> jsonSerializer, Supplier<MessageCodecFormat> format) {
+        this.jsonSerializer = jsonSerializer;
+        this.format = format;
+    }
+
+    @Override
+    public byte[] serialize(Object value) throws SerializationException {
+        if (format.get() == MessageCodecFormat.BINARY && BinaryCodec.supports(value)) {
+            return BinaryCodec.encode(value);
+        }
+        return jsonSerializer.serialize(value);
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) throws SerializationException {
+        if (BinaryCodec.isBinary(bytes)) {
+            try {
+                return BinaryCodec.decode(bytes);
+            } catch (IllegalArgumentException e) {
+                throw new SerializationException("二进制内容解码失败", e);
+            }
+        }
+        return jsonSerializer.deserialize(bytes);
+    }
+}
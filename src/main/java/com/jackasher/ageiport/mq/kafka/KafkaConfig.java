@@ -18,8 +18,15 @@ import org.springframework.kafka.core.DefaultKafkaProducerFactory;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.kafka.core.ProducerFactory;
 import org.springframework.kafka.listener.ContainerProperties;
+import org.springframework.kafka.support.serializer.ErrorHandlingDeserializer;
 import org.springframework.kafka.support.serializer.JsonDeserializer;
-import org.springframework.kafka.support.serializer.JsonSerializer;
+
+import com.jackasher.ageiport.config.export.ExportProperties;
+
+import com.jackasher.ageiport.mq.codec.BinaryKafkaDeserializer;
+import com.jackasher.ageiport.mq.codec.BinaryKafkaSerializer;
+
+import javax.annotation.Resource;
 
 /**
  * Kafka 配置类
@@ -36,6 +43,9 @@ public class KafkaConfig {
     @Value("${spring.kafka.consumer.group-id:attachment-processing-group}")
     private String groupId;
 
+    @Resource
+    private ExportProperties exportProperties;
+
     /**
      * 生产者配置
      */
@@ -44,12 +54,12 @@ public class KafkaConfig {
         Map<String, Object> configProps = new HashMap<>();
         configProps.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
         configProps.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
-        configProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, JsonSerializer.class);
         
         // 可靠性配置
         configProps.put(ProducerConfig.ACKS_CONFIG, "all"); // 等待所有副本确认
         configProps.put(ProducerConfig.RETRIES_CONFIG, 3); // 重试次数
         configProps.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true); // 幂等性
+        configProps.put(ProducerConfig.MAX_BLOCK_MS_CONFIG, 10000); // broker 不可用时 send() 最多阻塞10秒，随后转入本地 outbox
         
         // 性能配置
         configProps.put(ProducerConfig.BATCH_SIZE_CONFIG, 16384); // 批次大小
@@ -60,7 +70,9 @@ public class KafkaConfig {
         configProps.put(ProducerConfig.MAX_REQUEST_SIZE_CONFIG, 10 * 1024 * 1024); // 10MB
         configProps.put(ProducerConfig.BUFFER_MEMORY_CONFIG, 64 * 1024 * 1024); // 64MB缓冲区
 
-        return new DefaultKafkaProducerFactory<>(configProps);
+        // 附件批次按 codec 配置使用二进制编码，其余消息仍为 JSON；编码格式在每次发送时读取，配置刷新后立即生效
+        return new DefaultKafkaProducerFactory<>(configProps, StringSerializer::new,
+                () -> new BinaryKafkaSerializer(() -> exportProperties.getCodec().getFormat()));
     }
 
     @Bean
@@ -77,7 +89,9 @@ public class KafkaConfig {
         props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
         props.put(ConsumerConfig.GROUP_ID_CONFIG, groupId);
         props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
-        props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, JsonDeserializer.class);
+        // 同时识别二进制和 JSON 消息；无法解码的记录由 ErrorHandlingDeserializer 转为异常交给错误处理，不会阻塞分区
+        props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ErrorHandlingDeserializer.class);
+        props.put(ErrorHandlingDeserializer.VALUE_DESERIALIZER_CLASS, BinaryKafkaDeserializer.class);
         
         // 配置JSON反序列化器信任的包
         props.put(JsonDeserializer.TRUSTED_PACKAGES, "com.jackasher.ageiport.model.dto");
@@ -111,4 +125,21 @@ public class KafkaConfig {
         
         return factory;
     }
+
+    /**
+     * 批量消费的监听容器：一次拉取多条记录交给监听器，偏移量由监听器按连续完成的位置自行提交
+     */
+    @Bean
+    public ConcurrentKafkaListenerContainerFactory<String, Object> kafkaBatchListenerContainerFactory() {
+        ConcurrentKafkaListenerContainerFactory<String, Object> factory =
+            new ConcurrentKafkaListenerContainerFactory<>();
+        factory.setConsumerFactory(consumerFactory());
+        factory.setConcurrency(3);
+        factory.setBatchListener(true);
+
+        // 不使用 Acknowledgment，由 OrderedOffsetBatchProcessor 调用 commitSync 提交
+        factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.MANUAL);
+
+        return factory;
+    }
 }
@@ -1,20 +1,36 @@
 package com.jackasher.ageiport.mq.kafka;
 
+import com.jackasher.ageiport.config.export.ExportProperties;
+import com.jackasher.ageiport.model.dto.BatchClaimCheck;
 import com.jackasher.ageiport.model.dto.ProcessContext;
 import com.jackasher.ageiport.model.ir_message.IrMessageData;
 import com.jackasher.ageiport.model.ir_message.IrMessageQuery;
+import com.jackasher.ageiport.mq.claimcheck.ClaimCheckService;
+import com.jackasher.ageiport.service.data_processing_service.BatchIdempotencyGuard;
 import com.jackasher.ageiport.service.data_processing_service.GenericDataProcessingService;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.annotation.DltHandler;
 import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.annotation.RetryableTopic;
+import org.springframework.kafka.retrytopic.TopicSuffixingStrategy;
 import org.springframework.kafka.support.Acknowledgment;
 import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.kafka.support.serializer.ErrorHandlingDeserializer;
 import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.messaging.handler.annotation.Payload;
+import org.springframework.retry.annotation.Backoff;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
 
 /**
  * Kafka 消费者服务
@@ -27,54 +43,211 @@ public class KafkaConsumerService {
 
     private static final Logger log = LoggerFactory.getLogger(KafkaConsumerService.class);
 
+    // 附件监听容器ID，KafkaLagAutoscaler 按ID调整并发
+    public static final String ATTACHMENT_LISTENER_ID = "attachment-listener";
+    public static final String ATTACHMENT_BATCH_LISTENER_ID = "attachment-batch-listener";
+
+    // 附件消费者 client.id 的公共前缀，后接本进程的实例标识，KafkaLagAutoscaler 据此统计消费组内的节点数
+    public static final String ATTACHMENT_CLIENT_ID_BASE = "attachment@";
+    public static final String ATTACHMENT_CLIENT_ID_PREFIX = ATTACHMENT_CLIENT_ID_BASE + UUID.randomUUID().toString().replace("-", "").substring(0, 12);
+
     @Resource(name = "attachmentProcessingServiceImpl")
     private GenericDataProcessingService<IrMessageData, IrMessageQuery> batchDataProcessingService;
 
+    @Resource
+    private ClaimCheckService claimCheckService;
+
+    @Resource
+    private ExportProperties exportProperties;
+
+    @Resource
+    private KafkaDeadLetterService kafkaDeadLetterService;
+
+    @Resource
+    private BatchIdempotencyGuard idempotencyGuard;
+
     /**
-     * 监听附件处理任务
+     * 批量消费模式下的并行处理器，未开启批量消费时为 null
+     */
+    private OrderedOffsetBatchProcessor batchProcessor;
+
+    @PostConstruct
+    public void initBatchProcessor() {
+        ExportProperties.KafkaBatch config = exportProperties.getKafkaBatch();
+        if (!config.isEnabled()) {
+            return;
+        }
+        batchProcessor = new OrderedOffsetBatchProcessor(
+                new KeyedWorkerPool("kafka-batch-worker-", config.getWorkers()),
+                this::processRecord,
+                kafkaDeadLetterService::publish,
+                config.getMaxWaitMs(), config.getMaxAttempts(), config.getRetryBackoffMs());
+        log.info("Kafka 批量消费已开启，工作线程: {}, 单次拉取: {} 条", config.getWorkers(), config.getMaxPollRecords());
+    }
+
+    @PreDestroy
+    public void shutdownBatchProcessor() {
+        if (batchProcessor != null) {
+            batchProcessor.shutdown();
+        }
+    }
+
+    /**
+     * 监听附件处理任务。
+     * 处理失败时抛出异常，记录被转发到重试主题（attachment-processing-topic-retry-0/1/...，延迟逐级增加），
+     * 原分区不会被阻塞；重试次数用尽或属于数据问题（不可重试）的记录进入死信主题 attachment-processing-topic-dlt
      *
      * @param message   附件任务消息
+     * @param topic     主题，重试时为重试主题
      * @param partition 分区
      * @param offset    偏移量
      * @param ack       手动确认
      */
-    @KafkaListener(topics = KafkaProducerService.ATTACHMENT_TOPIC, groupId = "attachment-processing-group")
+    @RetryableTopic(attempts = "${ageiport.export.kafka-retry.attempts:4}",
+            backoff = @Backoff(delayExpression = "${ageiport.export.kafka-retry.delay-ms:5000}",
+                    multiplierExpression = "${ageiport.export.kafka-retry.multiplier:3}",
+                    maxDelayExpression = "${ageiport.export.kafka-retry.max-delay-ms:300000}"),
+            topicSuffixingStrategy = TopicSuffixingStrategy.SUFFIX_WITH_INDEX_VALUE,
+            dltTopicSuffix = KafkaDeadLetterService.DLT_SUFFIX,
+            exclude = {IllegalArgumentException.class, NullPointerException.class},
+            traversingCauses = "true",
+            numPartitions = "${ageiport.export.kafka-retry.num-partitions:3}",
+            kafkaTemplate = "kafkaTemplate")
+    @KafkaListener(id = ATTACHMENT_LISTENER_ID, topics = KafkaProducerService.ATTACHMENT_TOPIC, groupId = "attachment-processing-group",
+            clientIdPrefix = "#{T(com.jackasher.ageiport.mq.kafka.KafkaConsumerService).ATTACHMENT_CLIENT_ID_PREFIX}",
+            autoStartup = "#{!${ageiport.export.kafka-batch.enabled:false}}")
     public void handleAttachmentTask(@Payload ProcessContext<IrMessageData, IrMessageQuery> message,
+                                     @Header(KafkaHeaders.RECEIVED_TOPIC) String topic,
                                      @Header(KafkaHeaders.RECEIVED_PARTITION_ID) int partition,
                                      @Header(KafkaHeaders.OFFSET) long offset,
                                      Acknowledgment ack) {
-        try {
-            log.info("接收到附件处理任务，SubTaskID: {}, Partition: {}, Offset: {}, 消息数量: {}",
-                    message.subTaskId, partition, offset,
-                    message.messages != null ? message.messages.size() : 0);
+        log.info("接收到附件处理任务，SubTaskID: {}, Topic: {}, Partition: {}, Offset: {}, 消息数量: {}",
+                message.subTaskId, topic, partition, offset,
+                message.messages != null ? message.messages.size() : 0);
 
-            // 处理附件任务
-            processAttachmentTask(message);
+        // 处理附件任务，失败时异常交给重试主题处理
+        processAttachmentTask(message);
+
+        // 手动确认消息处理完成
+        ack.acknowledge();
+
+        log.info("附件处理任务完成，SubTaskID: {}", message.subTaskId);
+    }
+
+    /**
+     * 批量监听附件处理任务，与 handleAttachmentTask 二选一启动。
+     * 记录按子任务并行处理，每个分区只提交到连续完成的位置
+     *
+     * @param records  本次拉取到的记录
+     * @param consumer 当前消费者，用于提交偏移量和重新定位
+     */
+    @KafkaListener(id = ATTACHMENT_BATCH_LISTENER_ID, topics = KafkaProducerService.ATTACHMENT_TOPIC, groupId = "attachment-processing-group",
+            containerFactory = "kafkaBatchListenerContainerFactory",
+            clientIdPrefix = "#{T(com.jackasher.ageiport.mq.kafka.KafkaConsumerService).ATTACHMENT_CLIENT_ID_PREFIX}",
+            autoStartup = "${ageiport.export.kafka-batch.enabled:false}",
+            properties = "max.poll.records=${ageiport.export.kafka-batch.max-poll-records:50}")
+    public void handleAttachmentBatch(List<ConsumerRecord<String, Object>> records, Consumer<?, ?> consumer) {
+        log.info("接收到附件处理任务批次，记录数: {}", records.size());
+        batchProcessor.process(records, consumer);
+    }
 
-            // 手动确认消息处理完成
+    /**
+     * 监听附件处理取件凭证，凭证中只有数据范围，先还原出批次数据再处理。
+     * 失败时的重试与死信处理与 handleAttachmentTask 相同，冻结的数据在处理成功后才删除，死信重放时仍可读取
+     *
+     * @param claimCheck 取件凭证
+     * @param topic      主题，重试时为重试主题
+     * @param partition  分区
+     * @param offset     偏移量
+     * @param ack        手动确认
+     */
+    @RetryableTopic(attempts = "${ageiport.export.kafka-retry.attempts:4}",
+            backoff = @Backoff(delayExpression = "${ageiport.export.kafka-retry.delay-ms:5000}",
+                    multiplierExpression = "${ageiport.export.kafka-retry.multiplier:3}",
+                    maxDelayExpression = "${ageiport.export.kafka-retry.max-delay-ms:300000}"),
+            topicSuffixingStrategy = TopicSuffixingStrategy.SUFFIX_WITH_INDEX_VALUE,
+            dltTopicSuffix = KafkaDeadLetterService.DLT_SUFFIX,
+            exclude = {IllegalArgumentException.class, NullPointerException.class},
+            traversingCauses = "true",
+            numPartitions = "${ageiport.export.kafka-retry.num-partitions:3}",
+            kafkaTemplate = "kafkaTemplate")
+    @KafkaListener(topics = KafkaProducerService.CLAIM_CHECK_TOPIC, groupId = "attachment-processing-group",
+            properties = "spring.json.value.default.type=com.jackasher.ageiport.model.dto.BatchClaimCheck")
+    public void handleClaimCheck(@Payload BatchClaimCheck claimCheck,
+                                 @Header(KafkaHeaders.RECEIVED_TOPIC) String topic,
+                                 @Header(KafkaHeaders.RECEIVED_PARTITION_ID) int partition,
+                                 @Header(KafkaHeaders.OFFSET) long offset,
+                                 Acknowledgment ack) throws IOException {
+        log.info("接收到附件处理取件凭证，SubTaskID: {}, Topic: {}, Partition: {}, Offset: {}, 范围: [{}, +{})",
+                claimCheck.getSubTaskId(), topic, partition, offset, claimCheck.getOffset(), claimCheck.getSize());
+
+        if (idempotencyGuard.isCompleted(claimCheck.getSubTaskId())) {
+            // 重复投递的凭证：批次已处理完成，冻结的数据已删除，无需还原
+            log.info("附件批次已处理完成，跳过重复的取件凭证，SubTaskID: {}", claimCheck.getSubTaskId());
             ack.acknowledge();
+            return;
+        }
+        processAttachmentTask(claimCheckService.checkOut(claimCheck));
+        ack.acknowledge();
+        // 批次正由其他执行处理时保留冻结的数据，它失败后的重试还需要
+        if (idempotencyGuard.isReleasable(claimCheck.getSubTaskId())) {
+            claimCheckService.release(claimCheck);
+        }
 
-            log.info("附件处理任务完成，SubTaskID: {}", message.subTaskId);
+        log.info("附件处理任务完成，SubTaskID: {}", claimCheck.getSubTaskId());
+    }
 
-        } catch (Exception e) {
-            log.error("处理附件任务失败，SubTaskID: {}, Partition: {}, Offset: {}",
-                    message.subTaskId, partition, offset, e);
-
-            // 这里可以实现错误处理策略：
-            // 1. 重试机制
-            // 2. 发送到死信队列
-            // 3. 记录错误日志
-            // 
-            // 注意：如果不调用 ack.acknowledge()，消息将不会被确认
-            // 可以根据业务需求决定是否确认消息
-
-            // 根据错误类型决定是否确认消息
-            if (shouldAcknowledgeOnError(e)) {
-                ack.acknowledge();
-                log.warn("虽然处理失败，但已确认消息以避免重复处理，SubTaskID: {}", message.subTaskId);
-            } else {
-                log.warn("处理失败，消息将保持未确认状态以便重试，SubTaskID: {}", message.subTaskId);
+    /**
+     * 死信主题监听：记录失败信息后确认，消息保留在死信主题中，
+     * 排查原因后通过 /api/kafka/dlt/replay 重新投递到原主题
+     *
+     * @param record 死信记录
+     * @param ack    手动确认
+     */
+    @DltHandler
+    public void handleDeadLetter(ConsumerRecord<String, Object> record, Acknowledgment ack) {
+        log.error("[DLT] 附件消息处理失败，已进入死信主题 {}, Key: {}, 原主题: {}, 原分区: {}, 原偏移量: {}, 异常: {}: {}",
+                record.topic(), record.key(),
+                KafkaDeadLetterService.headerAsString(record.headers(), KafkaHeaders.DLT_ORIGINAL_TOPIC),
+                KafkaDeadLetterService.headerAsInt(record.headers(), KafkaHeaders.DLT_ORIGINAL_PARTITION),
+                KafkaDeadLetterService.headerAsLong(record.headers(), KafkaHeaders.DLT_ORIGINAL_OFFSET),
+                KafkaDeadLetterService.headerAsString(record.headers(), KafkaHeaders.DLT_EXCEPTION_FQCN),
+                KafkaDeadLetterService.headerAsString(record.headers(), KafkaHeaders.DLT_EXCEPTION_MESSAGE));
+        ack.acknowledge();
+    }
+
+    /**
+     * 在工作线程上处理批量消费的一条记录，可重试的失败抛出异常，由 OrderedOffsetBatchProcessor 退避重试，
+     * 数据问题直接投递到死信主题
+     *
+     * @return true 表示可以提交偏移量
+     */
+    @SuppressWarnings("unchecked")
+    private boolean processRecord(ConsumerRecord<String, Object> record) {
+        if (record.value() == null
+                && record.headers().lastHeader(ErrorHandlingDeserializer.VALUE_DESERIALIZER_EXCEPTION_HEADER) != null) {
+            // 无法解码的记录重试也不会成功，原始字节随异常头一起投递到死信主题
+            log.warn("附件任务消息无法解码，投递到死信主题，Partition: {}, Offset: {}", record.partition(), record.offset());
+            kafkaDeadLetterService.publish(record, new IllegalArgumentException("附件任务消息无法解码"));
+            return true;
+        }
+        if (!(record.value() instanceof ProcessContext)) {
+            log.warn("无法识别的附件任务消息，跳过，Partition: {}, Offset: {}, 类型: {}", record.partition(), record.offset(),
+                    record.value() == null ? null : record.value().getClass().getName());
+            return true;
+        }
+        ProcessContext<IrMessageData, IrMessageQuery> message = (ProcessContext<IrMessageData, IrMessageQuery>) record.value();
+        try {
+            processAttachmentTask(message);
+            log.info("附件处理任务完成，SubTaskID: {}, Partition: {}, Offset: {}", message.subTaskId, record.partition(), record.offset());
+            return true;
+        } catch (RuntimeException e) {
+            if (!shouldAcknowledgeOnError(e)) {
+                throw e;
             }
+            log.warn("数据问题不再重试，投递到死信主题，SubTaskID: {}", message.subTaskId);
+            kafkaDeadLetterService.publish(record, e);
+            return true;
         }
     }
 
@@ -120,12 +293,15 @@ public class KafkaConsumerService {
     private boolean shouldAcknowledgeOnError(Exception e) {
         // 根据异常类型判断是否应该重试
         // 例如：网络错误可以重试，数据格式错误则不应该重试
-
-        // 数据问题，不应该重试
-        return e instanceof IllegalArgumentException ||
-                e instanceof NullPointerException;
-
+        // processData 会把业务异常包装为 RuntimeException，需要沿 cause 链判断，与 @RetryableTopic 的 exclude 一致
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            // 数据问题，不应该重试
+            if (t instanceof IllegalArgumentException || t instanceof NullPointerException) {
+                return true;
+            }
+        }
         // 其他异常可能是临时性问题，可以重试
+        return false;
     }
 
     /**
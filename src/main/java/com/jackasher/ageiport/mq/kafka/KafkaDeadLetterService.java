@@ -0,0 +1,194 @@
+package com.jackasher.ageiport.mq.kafka;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.annotation.Resource;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.core.ProducerFactory;
+import org.springframework.kafka.listener.DeadLetterPublishingRecoverer;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.stereotype.Service;
+
+/**
+ * 附件消息的死信主题投递与重放。
+ * 死信主题为 {原主题}-dlt，与 @RetryableTopic 的命名一致，消息头中带有原主题、分区、偏移量和异常信息（kafka_dlt-*）。
+ * 重放时以独立的消费组读取死信主题，按原始字节重新发送到原主题，并去掉死信和重试相关的消息头，
+ * 重放过的消息其偏移量已提交，不会被再次重放。
+ *
+ * @author Jackasher
+ */
+@Service
+public class KafkaDeadLetterService {
+
+    private static final Logger log = LoggerFactory.getLogger(KafkaDeadLetterService.class);
+
+    public static final String DLT_SUFFIX = "-dlt";
+
+    public static final String ATTACHMENT_DLT_TOPIC = KafkaProducerService.ATTACHMENT_TOPIC + DLT_SUFFIX;
+
+    public static final String CLAIM_CHECK_DLT_TOPIC = KafkaProducerService.CLAIM_CHECK_TOPIC + DLT_SUFFIX;
+
+    private static final String REPLAY_GROUP_ID = "attachment-dlt-replay-group";
+
+    // 重放时需要去掉的消息头前缀：死信信息和重试主题的退避信息
+    private static final String[] STRIPPED_HEADER_PREFIXES = {"kafka_dlt-", "retry_topic-"};
+
+    private static final Duration POLL_TIMEOUT = Duration.ofSeconds(2);
+
+    @Resource
+    private KafkaTemplate<String, Object> kafkaTemplate;
+
+    @Resource
+    private ConsumerFactory<String, Object> consumerFactory;
+
+    @Resource
+    private ProducerFactory<String, Object> producerFactory;
+
+    private volatile DeadLetterPublishingRecoverer recoverer;
+
+    /**
+     * 将处理失败的记录投递到死信主题，用于不经过重试主题的批量消费模式
+     */
+    public void publish(ConsumerRecord<?, ?> record, Exception cause) {
+        if (recoverer == null) {
+            synchronized (this) {
+                if (recoverer == null) {
+                    recoverer = new DeadLetterPublishingRecoverer(kafkaTemplate,
+                            (r, e) -> new TopicPartition(r.topic() + DLT_SUFFIX, -1));
+                }
+            }
+        }
+        recoverer.accept(record, cause);
+        log.warn("[DLT] 记录已投递到死信主题 {}, Partition: {}, Offset: {}, Key: {}, 原因: {}",
+                record.topic() + DLT_SUFFIX, record.partition(), record.offset(), record.key(), cause.getMessage());
+    }
+
+    /**
+     * 将死信主题中尚未重放的消息重新发送到原主题
+     *
+     * @param dltTopic    死信主题
+     * @param maxMessages 本次最多重放的消息数
+     * @return 实际重放的消息数
+     */
+    public synchronized int replay(String dltTopic, int maxMessages) {
+        Properties overrides = new Properties();
+        overrides.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class);
+        overrides.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, Math.max(1, Math.min(maxMessages, 500)));
+        overrides.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+
+        Map<String, Object> producerConfig = new HashMap<>(producerFactory.getConfigurationProperties());
+        DefaultKafkaProducerFactory<String, byte[]> rawProducerFactory =
+                new DefaultKafkaProducerFactory<>(producerConfig, new StringSerializer(), new ByteArraySerializer());
+
+        int replayed = 0;
+        try (Consumer<String, Object> consumer = consumerFactory.createConsumer(REPLAY_GROUP_ID, null, null, overrides);
+             Producer<String, byte[]> producer = rawProducerFactory.createProducer()) {
+            consumer.subscribe(Collections.singletonList(dltTopic));
+            while (replayed < maxMessages) {
+                ConsumerRecords<String, Object> records = consumer.poll(POLL_TIMEOUT);
+                if (records.isEmpty()) {
+                    break;
+                }
+                // 只提交实际重放过的位置，超出本次数量的消息（可能分布在多个分区）仍为未消费状态，下次重放
+                Map<TopicPartition, OffsetAndMetadata> replayedOffsets = new HashMap<>();
+                for (ConsumerRecord<String, Object> record : records) {
+                    if (replayed >= maxMessages) {
+                        break;
+                    }
+                    producer.send(toReplayRecord(record, dltTopic)).get();
+                    replayedOffsets.put(new TopicPartition(record.topic(), record.partition()),
+                            new OffsetAndMetadata(record.offset() + 1));
+                    replayed++;
+                }
+                consumer.commitSync(replayedOffsets);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("重放死信消息被中断, 已重放 " + replayed + " 条", e);
+        } catch (Exception e) {
+            throw new IllegalStateException("重放死信消息失败, 已重放 " + replayed + " 条: " + e.getMessage(), e);
+        } finally {
+            rawProducerFactory.destroy();
+        }
+        log.info("[DLT] 死信主题 {} 重放完成，共 {} 条", dltTopic, replayed);
+        return replayed;
+    }
+
+    private static ProducerRecord<String, byte[]> toReplayRecord(ConsumerRecord<String, Object> record, String dltTopic) {
+        Header originalTopic = record.headers().lastHeader(KafkaHeaders.DLT_ORIGINAL_TOPIC);
+        String targetTopic = originalTopic != null
+                ? new String(originalTopic.value(), StandardCharsets.UTF_8)
+                : dltTopic.substring(0, dltTopic.length() - DLT_SUFFIX.length());
+        // 原始记录可能来自重试主题，重放到主主题
+        int retryIndex = targetTopic.indexOf("-retry");
+        if (retryIndex > 0) {
+            targetTopic = targetTopic.substring(0, retryIndex);
+        }
+        List<Header> headers = new ArrayList<>();
+        for (Header header : record.headers()) {
+            if (!isStripped(header.key())) {
+                headers.add(header);
+            }
+        }
+        return new ProducerRecord<>(targetTopic, null, record.key(), (byte[]) record.value(), headers);
+    }
+
+    private static boolean isStripped(String headerKey) {
+        for (String prefix : STRIPPED_HEADER_PREFIXES) {
+            if (headerKey.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 读取字符串类型的消息头
+     */
+    public static String headerAsString(Headers headers, String key) {
+        Header header = headers.lastHeader(key);
+        return header == null ? null : new String(header.value(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 读取 int 类型的消息头，如原分区
+     */
+    public static Integer headerAsInt(Headers headers, String key) {
+        Header header = headers.lastHeader(key);
+        return header == null || header.value().length != Integer.BYTES ? null : ByteBuffer.wrap(header.value()).getInt();
+    }
+
+    /**
+     * 读取 long 类型的消息头，如原偏移量
+     */
+    public static Long headerAsLong(Headers headers, String key) {
+        Header header = headers.lastHeader(key);
+        return header == null || header.value().length != Long.BYTES ? null : ByteBuffer.wrap(header.value()).getLong();
+    }
+}
@@ -0,0 +1,379 @@
+package com.jackasher.ageiport.mq.kafka;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.ConsumerGroupDescription;
+import org.apache.kafka.clients.admin.ListOffsetsResult;
+import org.apache.kafka.clients.admin.MemberDescription;
+import org.apache.kafka.clients.admin.OffsetSpec;
+import org.apache.kafka.clients.admin.TopicDescription;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.core.KafkaAdmin;
+import org.springframework.kafka.listener.ConcurrentMessageListenerContainer;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.jackasher.ageiport.config.export.ExportProperties;
+import com.jackasher.ageiport.model.dto.KafkaLagSnapshot;
+
+/**
+ * 按消费积压调整附件监听容器的并发数。
+ * 定时读取 attachment-processing-topic 各分区的末尾偏移量和消费组已提交的偏移量，
+ * 按 “积压 / 单个消费者可承担的积压” 估算整个消费组需要的消费者数，不超过分区数，
+ * 再按消费组内的节点数平分到本节点，并受配置的上下限、CPU 核数和堆内存使用率限制：
+ * <pre>
+ *   集群需要 = min(ceil(积压 / lagPerConsumer), 分区数)
+ *   本节点   = clamp(ceil(集群需要 / 节点数), minConcurrency, min(maxConcurrency, CPU核数 * maxConcurrencyPerCpu))
+ * </pre>
+ * 扩容立即生效，缩容需要积压持续偏低 scaleDownDelayMs 后才执行，两次调整之间至少间隔 cooldownMs。
+ * 调整并发需要重启监听容器（引发一次再均衡），容器完全停止后才以新的并发数启动，已提交的偏移量不受影响。
+ * 最近的采样和调整记录通过 /api/monitor/kafka 查询。
+ *
+ * @author Jackasher
+ */
+@Component
+@ConditionalOnProperty(name = "ageiport.export.attachment-process-mode", havingValue = "kafka")
+public class KafkaLagAutoscaler {
+
+    private static final Logger log = LoggerFactory.getLogger(KafkaLagAutoscaler.class);
+
+    private static final String GROUP_ID = "attachment-processing-group";
+
+    private static final long ADMIN_TIMEOUT_MS = 10_000;
+
+    private static final int HISTORY_SIZE = 50;
+
+    public static final String SCALE_UP = "SCALE_UP";
+    public static final String SCALE_DOWN = "SCALE_DOWN";
+    public static final String HOLD = "HOLD";
+
+    @Resource
+    private KafkaAdmin kafkaAdmin;
+
+    @Resource
+    private KafkaListenerEndpointRegistry kafkaListenerEndpointRegistry;
+
+    @Resource
+    private ExportProperties exportProperties;
+
+    private volatile AdminClient adminClient;
+
+    private volatile KafkaLagSnapshot lastSnapshot;
+
+    // 最近的扩缩容记录，新的在前
+    private final Deque<KafkaLagSnapshot> history = new ArrayDeque<>();
+
+    // 正在重启时为开始重启的时间，0 表示没有
+    private final AtomicLong restartingSince = new AtomicLong();
+
+    private volatile ConcurrentMessageListenerContainer<?, ?> restartingContainer;
+
+    private volatile int restartingConcurrency;
+
+    // 容器的停止回调在消费者线程上执行，在独立线程上重新启动容器
+    private final ExecutorService restartExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "kafka-autoscale-restart");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile long lastScaleTime;
+
+    // 期望并发开始低于当前并发的时间，-1 表示没有
+    private volatile long scaleDownSince = -1;
+
+    @Scheduled(fixedDelayString = "${ageiport.export.kafka-autoscale.check-ms:15000}")
+    public void check() {
+        long since = restartingSince.get();
+        if (since > 0) {
+            if (System.currentTimeMillis() - since < exportProperties.getKafkaAutoscale().getRestartTimeoutMs()) {
+                log.debug("[KafkaAutoscale] 监听容器正在重启，跳过本次检查");
+                return;
+            }
+            abandonRestart(since);
+            return;
+        }
+        ConcurrentMessageListenerContainer<?, ?> container = activeContainer();
+        if (container == null) {
+            return;
+        }
+        try {
+            KafkaLagSnapshot snapshot = sample();
+            snapshot.setListenerId(container.getListenerId());
+            snapshot.setCurrentConcurrency(container.getConcurrency());
+            decide(snapshot, exportProperties.getKafkaAutoscale(), System.currentTimeMillis());
+            lastSnapshot = snapshot;
+
+            if (HOLD.equals(snapshot.getDecision())) {
+                log.debug("[KafkaAutoscale] 积压 {}, 并发保持 {}: {}", snapshot.getTotalLag(), snapshot.getCurrentConcurrency(), snapshot.getReason());
+                return;
+            }
+            synchronized (history) {
+                history.addFirst(snapshot);
+                while (history.size() > HISTORY_SIZE) {
+                    history.removeLast();
+                }
+            }
+            log.info("[KafkaAutoscale] {} {} -> {}, 积压: {}, 分区: {}, 节点: {}, 原因: {}", snapshot.getDecision(),
+                    snapshot.getCurrentConcurrency(), snapshot.getDesiredConcurrency(), snapshot.getTotalLag(),
+                    snapshot.getPartitions(), snapshot.getGroupNodes(), snapshot.getReason());
+            resize(container, snapshot.getDesiredConcurrency());
+        } catch (Exception e) {
+            log.warn("[KafkaAutoscale] 采样消费积压失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 最近一次采样
+     */
+    public KafkaLagSnapshot getLastSnapshot() {
+        return lastSnapshot;
+    }
+
+    /**
+     * 最近的扩缩容记录，新的在前
+     */
+    public List<KafkaLagSnapshot> getHistory() {
+        synchronized (history) {
+            return new ArrayList<>(history);
+        }
+    }
+
+    /**
+     * 当前正在运行的附件监听容器：逐条消费或批量消费，二者只会启动一个
+     */
+    private ConcurrentMessageListenerContainer<?, ?> activeContainer() {
+        for (String id : new String[]{KafkaConsumerService.ATTACHMENT_LISTENER_ID, KafkaConsumerService.ATTACHMENT_BATCH_LISTENER_ID}) {
+            MessageListenerContainer container = kafkaListenerEndpointRegistry.getListenerContainer(id);
+            if (container instanceof ConcurrentMessageListenerContainer && container.isRunning()) {
+                return (ConcurrentMessageListenerContainer<?, ?>) container;
+            }
+        }
+        return null;
+    }
+
+    private KafkaLagSnapshot sample() throws Exception {
+        AdminClient admin = admin();
+        String topic = KafkaProducerService.ATTACHMENT_TOPIC;
+
+        TopicDescription description = admin.describeTopics(Collections.singleton(topic)).all()
+                .get(ADMIN_TIMEOUT_MS, TimeUnit.MILLISECONDS).get(topic);
+        Map<TopicPartition, OffsetSpec> latest = new HashMap<>();
+        description.partitions().forEach(p -> latest.put(new TopicPartition(topic, p.partition()), OffsetSpec.latest()));
+
+        Map<TopicPartition, OffsetAndMetadata> committed = admin.listConsumerGroupOffsets(GROUP_ID)
+                .partitionsToOffsetAndMetadata().get(ADMIN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        Map<TopicPartition, ListOffsetsResult.ListOffsetsResultInfo> endOffsets = admin.listOffsets(latest).all()
+                .get(ADMIN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        // 尚未提交过偏移量的分区从最早的偏移量开始消费（auto.offset.reset=earliest）
+        Map<TopicPartition, OffsetSpec> earliest = new HashMap<>();
+        for (TopicPartition tp : latest.keySet()) {
+            if (committed.get(tp) == null) {
+                earliest.put(tp, OffsetSpec.earliest());
+            }
+        }
+        Map<TopicPartition, ListOffsetsResult.ListOffsetsResultInfo> startOffsets = earliest.isEmpty()
+                ? Collections.emptyMap()
+                : admin.listOffsets(earliest).all().get(ADMIN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        Map<Integer, Long> partitionLag = new TreeMap<>();
+        long totalLag = 0;
+        long maxLag = 0;
+        for (Map.Entry<TopicPartition, ListOffsetsResult.ListOffsetsResultInfo> entry : endOffsets.entrySet()) {
+            TopicPartition tp = entry.getKey();
+            OffsetAndMetadata offset = committed.get(tp);
+            long position = offset != null ? offset.offset() : startOffsets.get(tp).offset();
+            long lag = Math.max(0, entry.getValue().offset() - position);
+            partitionLag.put(tp.partition(), lag);
+            totalLag += lag;
+            maxLag = Math.max(maxLag, lag);
+        }
+
+        // 同一消费组中还有取件凭证主题的消费者，只统计附件监听容器的（按 client.id 前缀识别，包括暂未分到分区的）；
+        // 同一主机上可能运行多个实例，按 client.id 中的实例标识而不是主机去重
+        ConsumerGroupDescription group = admin.describeConsumerGroups(Collections.singleton(GROUP_ID)).all()
+                .get(ADMIN_TIMEOUT_MS, TimeUnit.MILLISECONDS).get(GROUP_ID);
+        List<MemberDescription> members = group.members().stream()
+                .filter(m -> m.clientId().startsWith(KafkaConsumerService.ATTACHMENT_CLIENT_ID_BASE)
+                        || m.assignment().topicPartitions().stream().anyMatch(tp -> tp.topic().equals(topic)))
+                .collect(Collectors.toList());
+        Set<String> nodes = members.stream().map(KafkaLagAutoscaler::nodeOf).collect(Collectors.toSet());
+
+        KafkaLagSnapshot snapshot = new KafkaLagSnapshot();
+        snapshot.setTopic(topic);
+        snapshot.setGroupId(GROUP_ID);
+        snapshot.setPartitions(description.partitions().size());
+        snapshot.setTotalLag(totalLag);
+        snapshot.setMaxPartitionLag(maxLag);
+        snapshot.setPartitionLag(partitionLag);
+        snapshot.setGroupMembers(members.size());
+        snapshot.setGroupNodes(nodes.size());
+        snapshot.setTimestamp(System.currentTimeMillis());
+        return snapshot;
+    }
+
+    /**
+     * 消费者所属的实例：附件监听容器的 client.id 为 {前缀}-{序号}，去掉序号即为实例；
+     * 未设置前缀的旧版本节点无法归并，每个消费者单独计数
+     */
+    private static String nodeOf(MemberDescription member) {
+        String clientId = member.clientId();
+        if (!clientId.startsWith(KafkaConsumerService.ATTACHMENT_CLIENT_ID_BASE)) {
+            return member.consumerId();
+        }
+        int dash = clientId.lastIndexOf('-');
+        return dash > 0 ? clientId.substring(0, dash) : clientId;
+    }
+
+    /**
+     * 计算本节点的期望并发数并给出决策
+     */
+    private void decide(KafkaLagSnapshot snapshot, ExportProperties.KafkaAutoscale config, long now) {
+        int current = snapshot.getCurrentConcurrency();
+        long lagPerConsumer = Math.max(1, config.getLagPerConsumer());
+        long clusterWanted = Math.min((snapshot.getTotalLag() + lagPerConsumer - 1) / lagPerConsumer, snapshot.getPartitions());
+        int nodes = Math.max(1, snapshot.getGroupNodes());
+        int cpuCap = Runtime.getRuntime().availableProcessors() * Math.max(1, config.getMaxConcurrencyPerCpu());
+        int upper = Math.max(config.getMinConcurrency(), Math.min(config.getMaxConcurrency(), cpuCap));
+        int desired = (int) Math.max(config.getMinConcurrency(), Math.min(upper, (clusterWanted + nodes - 1) / nodes));
+
+        String reason = String.format("积压 %d, 集群需要 %d 个消费者, %d 个节点, 本节点上限 %d",
+                snapshot.getTotalLag(), clusterWanted, nodes, upper);
+        if (desired > current && heapUsagePercent() > config.getMaxHeapUsagePercent()) {
+            reason += String.format(", 堆内存使用率超过 %d%%，不扩容", config.getMaxHeapUsagePercent());
+            desired = current;
+        }
+        snapshot.setDesiredConcurrency(desired);
+
+        if (desired >= current) {
+            scaleDownSince = -1;
+        } else if (scaleDownSince < 0) {
+            scaleDownSince = now;
+        }
+
+        if (desired == current) {
+            snapshot.setDecision(HOLD);
+        } else if (!config.isEnabled()) {
+            snapshot.setDecision(HOLD);
+            reason += ", 未开启自动调整";
+        } else if (now - lastScaleTime < config.getCooldownMs()) {
+            snapshot.setDecision(HOLD);
+            reason += ", 距上次调整不足 " + config.getCooldownMs() + "ms";
+        } else if (desired > current) {
+            snapshot.setDecision(SCALE_UP);
+        } else if (now - scaleDownSince < config.getScaleDownDelayMs()) {
+            snapshot.setDecision(HOLD);
+            reason += ", 等待积压持续偏低 " + config.getScaleDownDelayMs() + "ms 后缩容";
+        } else {
+            snapshot.setDecision(SCALE_DOWN);
+            scaleDownSince = -1;
+        }
+        snapshot.setReason(reason);
+    }
+
+    /**
+     * 停止容器，待所有消费者线程退出后以新的并发数重新启动
+     */
+    private void resize(ConcurrentMessageListenerContainer<?, ?> container, int concurrency) {
+        long startedAt = System.currentTimeMillis();
+        if (!restartingSince.compareAndSet(0, startedAt)) {
+            return;
+        }
+        restartingContainer = container;
+        restartingConcurrency = concurrency;
+        lastScaleTime = startedAt;
+        try {
+            container.stop(() -> restartExecutor.execute(() -> {
+                try {
+                    restart(container, concurrency);
+                } finally {
+                    restartingSince.compareAndSet(startedAt, 0);
+                }
+            }));
+        } catch (Exception e) {
+            restartingSince.compareAndSet(startedAt, 0);
+            log.error("[KafkaAutoscale] 监听容器 {} 停止失败", container.getListenerId(), e);
+        }
+    }
+
+    /**
+     * 重启超过 restartTimeoutMs 仍未完成（停止回调未被调用）时清除重启标记，恢复检查。
+     * 容器已停止时补一次启动，之后迟到的停止回调遇到运行中的容器不会重复启动
+     */
+    private void abandonRestart(long since) {
+        if (!restartingSince.compareAndSet(since, 0)) {
+            return;
+        }
+        ConcurrentMessageListenerContainer<?, ?> container = restartingContainer;
+        log.warn("[KafkaAutoscale] 监听容器 {} 超过 {}ms 未完成重启，清除重启标记",
+                container == null ? null : container.getListenerId(), System.currentTimeMillis() - since);
+        if (container != null && !container.isRunning()) {
+            int concurrency = restartingConcurrency;
+            restartExecutor.execute(() -> restart(container, concurrency));
+        }
+    }
+
+    private void restart(ConcurrentMessageListenerContainer<?, ?> container, int concurrency) {
+        try {
+            if (container.isRunning()) {
+                return;
+            }
+            container.setConcurrency(concurrency);
+            container.start();
+            log.info("[KafkaAutoscale] 监听容器 {} 已以并发 {} 重新启动", container.getListenerId(), concurrency);
+        } catch (Exception e) {
+            log.error("[KafkaAutoscale] 监听容器 {} 重新启动失败", container.getListenerId(), e);
+        }
+    }
+
+    private static int heapUsagePercent() {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        long max = heap.getMax() > 0 ? heap.getMax() : heap.getCommitted();
+        return max <= 0 ? 0 : (int) (heap.getUsed() * 100 / max);
+    }
+
+    private AdminClient admin() {
+        if (adminClient == null) {
+            synchronized (this) {
+                if (adminClient == null) {
+                    adminClient = AdminClient.create(kafkaAdmin.getConfigurationProperties());
+                }
+            }
+        }
+        return adminClient;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        restartExecutor.shutdownNow();
+        if (adminClient != null) {
+            adminClient.close();
+        }
+    }
+}
@@ -13,7 +13,14 @@ import org.springframework.stereotype.Service;
 import org.springframework.util.concurrent.ListenableFuture;
 import org.springframework.util.concurrent.ListenableFutureCallback;
 
+import com.jackasher.ageiport.config.export.ExportProperties;
+import com.jackasher.ageiport.constant.OutboxChannel;
+import com.jackasher.ageiport.model.dto.BatchClaimCheck;
 import com.jackasher.ageiport.model.dto.ProcessContext;
+import com.jackasher.ageiport.mq.outbox.OutboxService;
+import com.jackasher.ageiport.service.data_processing_service.GenericDataProcessingService;
+import com.jackasher.ageiport.service.monitor.ProgressTrackerService;
+import com.jackasher.ageiport.utils.ioc.SpringContextUtil;
 
 /**
  * Kafka 生产者服务
@@ -27,8 +34,20 @@ public class KafkaProducerService {
     // 定义主题名称
     public static final String ATTACHMENT_TOPIC = "attachment-processing-topic";
 
+    // 取件凭证主题，消息只携带数据范围
+    public static final String CLAIM_CHECK_TOPIC = "attachment-claim-check-topic";
+
     @Resource
     private KafkaTemplate<String, Object> kafkaTemplate;
+
+    @Resource
+    private ExportProperties exportProperties;
+
+    @Resource
+    private ProgressTrackerService progressTracker;
+
+    @Resource
+    private OutboxService outboxService;
     
     /**
      * 发送附件处理任务消息到 Kafka
@@ -40,10 +59,12 @@ public class KafkaProducerService {
                 message.subTaskId, 
                 message.messages != null ? message.messages.size() : 0);
             
-            // 检查消息是否需要分片（5MB 限制）
-            if (MessageSplitter.needsSplit(message, 5 * 1024 * 1024)) {
+            // 按实际编码后的字节数检查是否需要分片
+            List<ProcessContext<DATA, QUERY>> chunks = MessageSplitter.splitMessage(message,
+                    exportProperties.getMessageSplit().getMaxMessageBytes(), exportProperties.getCodec().getFormat());
+            if (chunks.size() > 1) {
                 log.info("消息过大，进行分片处理，SubTaskID: {}", message.subTaskId);
-                sendMessageWithSplit(message);
+                sendMessageWithSplit(message, chunks);
             } else {
                 log.debug("消息大小适中，直接发送，SubTaskID: {}", message.subTaskId);
                 sendSingleMessage(message);
@@ -55,13 +76,52 @@ public class KafkaProducerService {
         }
     }
     
+    /**
+     * 发送取件凭证，消费者凭它重新读取批次数据。
+     * 发送失败时写入本地 outbox 等待重新投递，未开启 outbox 时抛出异常，由调用方降级处理
+     * @param claimCheck 取件凭证
+     */
+    public void sendClaimCheck(BatchClaimCheck claimCheck) throws Exception {
+        if (outboxService.hasBacklog(OutboxChannel.KAFKA)) {
+            outboxService.appendKafka(CLAIM_CHECK_TOPIC, claimCheck.getSubTaskId(), claimCheck);
+            log.info("outbox 中有待投递的消息，取件凭证排队写入 outbox，SubTaskID: {}", claimCheck.getSubTaskId());
+            return;
+        }
+        try {
+            SendResult<String, Object> result = kafkaTemplate.send(CLAIM_CHECK_TOPIC, claimCheck.getSubTaskId(), claimCheck).get();
+            log.info("成功发送附件处理取件凭证到Kafka，SubTaskID: {}, Partition: {}, Offset: {}",
+                    claimCheck.getSubTaskId(),
+                    result.getRecordMetadata().partition(),
+                    result.getRecordMetadata().offset());
+        } catch (Exception e) {
+            if (!outboxService.isEnabled()) {
+                throw e;
+            }
+            outboxService.appendKafka(CLAIM_CHECK_TOPIC, claimCheck.getSubTaskId(), claimCheck);
+            log.warn("发送取件凭证到Kafka失败，已写入本地 outbox 等待重新投递，SubTaskID: {}, 原因: {}",
+                    claimCheck.getSubTaskId(), e.getMessage());
+        }
+    }
+
     /**
      * 发送单个消息
      */
     private <DATA, QUERY extends GenericExportQuery> void sendSingleMessage(ProcessContext<DATA, QUERY> message) {
+        if (outboxService.hasBacklog(OutboxChannel.KAFKA)) {
+            // 排在 outbox 中积压的消息之后，由 outbox 按顺序投递
+            handleSendFailure(message, new IllegalStateException("outbox 中有待投递的消息"));
+            return;
+        }
         // 使用 subTaskId 作为分区键，确保同一子任务的消息发送到同一分区
-        ListenableFuture<SendResult<String, Object>> future = 
-            kafkaTemplate.send(ATTACHMENT_TOPIC, message.subTaskId, message);
+        ListenableFuture<SendResult<String, Object>> future;
+        try {
+            future = kafkaTemplate.send(ATTACHMENT_TOPIC, message.subTaskId, message);
+        } catch (Exception e) {
+            // 获取元数据超时等同步异常，只影响这一条消息（分片时其余分片照常发送）
+            log.error("发送附件处理任务到Kafka失败，SubTaskID: {}", message.subTaskId, e);
+            handleSendFailure(message, e);
+            return;
+        }
         
         // 添加回调处理发送结果
         future.addCallback(new ListenableFutureCallback<SendResult<String, Object>>() {
@@ -82,11 +142,13 @@ public class KafkaProducerService {
     }
     
     /**
-     * 分片发送消息
+     * 分片发送消息。先登记分片数，所有分片完成后原始子任务才会被汇总为完成；
+     * 各分片以自己的分片ID作为分区键，可以分散到不同分区由多个消费者并行处理
      */
-    private <DATA, QUERY extends GenericExportQuery> void sendMessageWithSplit(ProcessContext<DATA, QUERY> message) {
-        List<ProcessContext<DATA, QUERY>> chunks = MessageSplitter.splitMessage(message);
-        
+    private <DATA, QUERY extends GenericExportQuery> void sendMessageWithSplit(ProcessContext<DATA, QUERY> message,
+                                                                              List<ProcessContext<DATA, QUERY>> chunks) {
+        progressTracker.registerSubTaskChunks(message.mainTaskId, message.subTaskId, chunks.size());
+
         log.info("开始分片发送，总分片数: {}, 原始SubTaskID: {}", chunks.size(), message.subTaskId);
         
         for (ProcessContext<DATA, QUERY> chunk : chunks) {
@@ -101,17 +163,35 @@ public class KafkaProducerService {
      * @param message 失败的消息
      * @param ex 异常信息
      */
+    @SuppressWarnings("unchecked")
     private <DATA, QUERY extends com.jackasher.ageiport.model.export.GenericExportQuery> void handleSendFailure(ProcessContext<DATA, QUERY> message, Throwable ex) {
-        // 可以实现以下策略：
-        // 1. 重试机制
-        // 2. 降级为同步处理
-        // 3. 写入死信队列
-        // 4. 记录到数据库等待后续处理
-        
-        log.warn("附件处理任务发送失败，SubTaskID: {}，可以考虑降级为同步处理", message.subTaskId);
-        
-        // 这里可以调用同步处理的备用方案
-        // fallbackToSyncProcessing(message);
+        // 生产者自身的重试（retries）已经用尽，Kafka 此时多半不可用，死信主题同样写不进去。
+        // 优先写入本地 outbox，Kafka 恢复后按顺序重新投递
+        if (outboxService.isEnabled()) {
+            try {
+                outboxService.appendKafka(ATTACHMENT_TOPIC, message.subTaskId, message);
+                log.warn("附件处理任务已写入本地 outbox 等待重新投递，SubTaskID: {}, 原因: {}", message.subTaskId, ex.getMessage());
+                return;
+            } catch (Exception outboxException) {
+                log.error("写入 outbox 失败，SubTaskID: {}", message.subTaskId, outboxException);
+            }
+        }
+        // 未开启 outbox 或写入失败时降级为在本节点异步处理，与 GenericProcessingDispatcher 发送失败时的降级方式一致
+        log.warn("附件处理任务发送失败，降级为本节点异步处理，SubTaskID: {}, 原因: {}", message.subTaskId, ex.getMessage());
+        try {
+            GenericDataProcessingService<DATA, QUERY> service =
+                    SpringContextUtil.getBean("attachmentProcessingServiceImpl", GenericDataProcessingService.class);
+            service.processDataAsync(message.messages, message.subTaskId, message.subTaskNo, message.query)
+                    .whenComplete((result, throwable) -> {
+                        if (throwable != null) {
+                            log.error("降级处理附件任务失败，SubTaskID: {}", message.subTaskId, throwable);
+                        } else {
+                            log.info("降级处理附件任务完成，SubTaskID: {}", message.subTaskId);
+                        }
+                    });
+        } catch (Exception fallbackException) {
+            log.error("降级处理也失败了，SubTaskID: {}", message.subTaskId, fallbackException);
+        }
     }
     
     /**
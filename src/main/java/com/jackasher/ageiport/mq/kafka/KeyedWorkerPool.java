@@ -0,0 +1,48 @@
+package com.jackasher.ageiport.mq.kafka;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * 按键分道的固定大小线程池。
+ * 每个通道是一个单线程执行器，同一个键的任务总是进入同一个通道按提交顺序执行，
+ * 不同键的任务分散到各通道并行执行，线程数固定为通道数。
+ *
+ * @author Jackasher
+ */
+public class KeyedWorkerPool {
+
+    private final ExecutorService[] lanes;
+
+    public KeyedWorkerPool(String threadNamePrefix, int size) {
+        lanes = new ExecutorService[Math.max(1, size)];
+        for (int i = 0; i < lanes.length; i++) {
+            String threadName = threadNamePrefix + (i + 1);
+            lanes[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, threadName);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * 在键对应的通道上执行任务
+     */
+    public <T> CompletableFuture<T> submit(String key, Supplier<T> task) {
+        int lane = key == null ? 0 : (key.hashCode() & Integer.MAX_VALUE) % lanes.length;
+        return CompletableFuture.supplyAsync(task, lanes[lane]);
+    }
+
+    public int size() {
+        return lanes.length;
+    }
+
+    public void shutdown() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdownNow();
+        }
+    }
+}
@@ -1,114 +1,148 @@
 package com.jackasher.ageiport.mq.kafka;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jackasher.ageiport.constant.MessageCodecFormat;
 import com.jackasher.ageiport.model.dto.ProcessContext;
 import com.jackasher.ageiport.model.export.GenericExportQuery;
+import com.jackasher.ageiport.model.ir_message.IrMessageData;
+import com.jackasher.ageiport.mq.codec.BinaryCodec;
+import com.jackasher.ageiport.utils.business.SubTaskChunkUtils;
 
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * 消息分片器 - 用于处理大消息（通用版本）
+ * 按发送时实际使用的编码逐条计算记录序列化后的字节数，累计达到单条消息的字节预算时切分，
+ * 文件名很长的记录不会使分片超过上限，字段很短的记录也不会被无谓地切分。
+ * 分片的子任务ID为 {原始子任务ID}_chunk_{序号}，并带有分片序号和分片总数，
+ * 各分片可以由不同的消费者并行处理，进度由 ProgressTrackerService 汇总回原始子任务。
  * @author Jackasher
  */
 @Slf4j
 public class MessageSplitter {
-    
-    // 单个消息片段的最大记录数（可调节）
-    private static final int MAX_RECORDS_PER_CHUNK = 1000;
-    
+
+    // 实际序列化结果与逐条计算的结果可能有少量偏差（如 JSON 日期格式、数组分隔符），只使用上限的这一比例
+    private static final double BUDGET_RATIO = 0.95;
+
+    // 二进制格式中行数、空值位图按整字节对齐等与行数无关的开销
+    private static final int BINARY_ENVELOPE_SLACK = 16;
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    /**
+     * 逐条计算记录序列化后的字节数
+     */
+    private interface RowSizer<DATA> {
+        int sizeOf(DATA row) throws IOException;
+    }
+
     /**
-     * 将大的任务消息分片为多个较小的消息
+     * 将大的任务消息按字节预算分片为多个较小的消息
      * @param originalMessage 原始消息
-     * @return 分片后的消息列表
+     * @param maxMessageBytes 单条消息序列化后的字节上限
+     * @param format          发送时使用的编码格式
+     * @return 分片后的消息列表，不需要分片时只包含原始消息
      */
-    public static <DATA, QUERY extends GenericExportQuery> List<ProcessContext<DATA, QUERY>> splitMessage(ProcessContext<DATA, QUERY> originalMessage) {
-        List<ProcessContext<DATA, QUERY>> chunks = new ArrayList<>();
-        
-        if (originalMessage.messages == null || originalMessage.messages.isEmpty()) {
-            log.warn("消息为空，无需分片，SubTaskID: {}", originalMessage.subTaskId);
-            chunks.add(originalMessage);
-            return chunks;
-        }
-        
+    public static <DATA, QUERY extends GenericExportQuery> List<ProcessContext<DATA, QUERY>> splitMessage(
+            ProcessContext<DATA, QUERY> originalMessage, long maxMessageBytes, MessageCodecFormat format) throws IOException {
         List<DATA> allMessages = originalMessage.messages;
-        int totalSize = allMessages.size();
-        
-        // 如果消息数量较小，不需要分片
-        if (totalSize <= MAX_RECORDS_PER_CHUNK) {
-            log.debug("消息数量较小({})，无需分片，SubTaskID: {}", totalSize, originalMessage.subTaskId);
-            chunks.add(originalMessage);
-            return chunks;
+        if (allMessages == null || allMessages.isEmpty()) {
+            log.debug("消息为空，无需分片，SubTaskID: {}", originalMessage.subTaskId);
+            return Collections.singletonList(originalMessage);
         }
-        
-        log.info("开始分片处理，总记录数: {}, 子任务ID: {}", totalSize, originalMessage.subTaskId);
-        
-        // 计算分片数量
-        int chunkCount = (totalSize + MAX_RECORDS_PER_CHUNK - 1) / MAX_RECORDS_PER_CHUNK;
-        
+
+        boolean binary = format == MessageCodecFormat.BINARY && BinaryCodec.supports(originalMessage);
+        long budget = (long) (maxMessageBytes * BUDGET_RATIO) - envelopeSize(originalMessage, binary);
+        if (budget <= 0) {
+            throw new IllegalArgumentException("单条消息上限 " + maxMessageBytes + " 字节不足以容纳消息头部，SubTaskID: " + originalMessage.subTaskId);
+        }
+        RowSizer<DATA> sizer = binary ? binaryRowSizer() : jsonRowSizer();
+
+        // 每个分片的结束下标（不含）
+        List<Integer> cuts = new ArrayList<>();
+        long chunkBytes = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < allMessages.size(); i++) {
+            int rowBytes = sizer.sizeOf(allMessages.get(i));
+            if (rowBytes > budget) {
+                throw new IllegalArgumentException("第 " + (i + 1) + " 条记录序列化后 " + rowBytes + " 字节，超过单条消息的字节预算 "
+                        + budget + "，SubTaskID: " + originalMessage.subTaskId);
+            }
+            if (chunkBytes + rowBytes > budget) {
+                cuts.add(i);
+                chunkBytes = 0;
+            }
+            chunkBytes += rowBytes;
+            totalBytes += rowBytes;
+        }
+        cuts.add(allMessages.size());
+
+        if (cuts.size() == 1) {
+            log.debug("消息约 {} 字节，未超过预算 {} 字节，无需分片，SubTaskID: {}", totalBytes, budget, originalMessage.subTaskId);
+            return Collections.singletonList(originalMessage);
+        }
+
+        int chunkCount = cuts.size();
+        List<ProcessContext<DATA, QUERY>> chunks = new ArrayList<>(chunkCount);
+        int startIndex = 0;
         for (int i = 0; i < chunkCount; i++) {
-            int startIndex = i * MAX_RECORDS_PER_CHUNK;
-            int endIndex = Math.min(startIndex + MAX_RECORDS_PER_CHUNK, totalSize);
-            
-            // 创建分片消息
-            List<DATA> chunkMessages = allMessages.subList(startIndex, endIndex);
-            
+            int endIndex = cuts.get(i);
             ProcessContext<DATA, QUERY> chunkMessage = new ProcessContext<>(
-                chunkMessages,
-                originalMessage.subTaskId + "_chunk_" + (i + 1), // 添加分片标识
+                new ArrayList<>(allMessages.subList(startIndex, endIndex)),
+                SubTaskChunkUtils.chunkId(originalMessage.subTaskId, i + 1),
                 originalMessage.subTaskNo,
                 originalMessage.query,
                 originalMessage.mainTaskId
             );
-            
+            chunkMessage.setChunkIndex(i + 1);
+            chunkMessage.setChunkCount(chunkCount);
             chunks.add(chunkMessage);
-            
-            log.debug("创建分片 {}/{}, 记录数: {}, 分片ID: {}", 
-                i + 1, chunkCount, chunkMessages.size(), chunkMessage.subTaskId);
+
+            log.debug("创建分片 {}/{}, 记录数: {}, 分片ID: {}",
+                i + 1, chunkCount, endIndex - startIndex, chunkMessage.subTaskId);
+            startIndex = endIndex;
         }
-        
-        log.info("分片完成，总分片数: {}, 原始记录数: {}, SubTaskID: {}", 
-            chunks.size(), totalSize, originalMessage.subTaskId);
-        
+
+        log.info("分片完成，总分片数: {}, 原始记录数: {}, 序列化约 {} 字节, 单片预算 {} 字节, 编码: {}, SubTaskID: {}",
+            chunkCount, allMessages.size(), totalBytes, budget, binary ? MessageCodecFormat.BINARY : MessageCodecFormat.JSON,
+            originalMessage.subTaskId);
         return chunks;
     }
-    
+
     /**
-     * 估算消息的大致大小（字节）
-     * @param message 消息
-     * @return 估算的字节大小
+     * 不含记录时消息本身的字节数：子任务信息、查询条件等
      */
-    public static <DATA, QUERY extends GenericExportQuery> long estimateMessageSize(ProcessContext<DATA, QUERY> message) {
-        if (message.messages == null) {
-            return 1000; // 基础开销
+    private static <DATA, QUERY extends GenericExportQuery> long envelopeSize(ProcessContext<DATA, QUERY> message, boolean binary)
+            throws IOException {
+        ProcessContext<DATA, QUERY> empty = new ProcessContext<>(Collections.emptyList(),
+                SubTaskChunkUtils.chunkId(message.subTaskId, Integer.MAX_VALUE), message.subTaskNo, message.query, message.mainTaskId);
+        empty.setChunkIndex(Integer.MAX_VALUE);
+        empty.setChunkCount(Integer.MAX_VALUE);
+        if (binary) {
+            return BinaryCodec.encode(empty).length + BINARY_ENVELOPE_SLACK;
         }
-        
-        // 粗略估算：每条记录约 500-1000 字节（根据实际数据调整）
-        int recordCount = message.messages.size();
-        long estimatedSize = recordCount * 800L; // 平均每条记录 800 字节
-        
-        // 加上基础开销（JSON 序列化、元数据等）
-        estimatedSize += 2000;
-        
-        return estimatedSize;
+        return OBJECT_MAPPER.writeValueAsBytes(empty).length;
+    }
+
+    private static <DATA> RowSizer<DATA> binaryRowSizer() {
+        return row -> BinaryCodec.rowSizeUpperBound((IrMessageData) row);
     }
-    
+
     /**
-     * 检查消息是否需要分片
-     * @param message 消息
-     * @param maxSizeBytes 最大大小（字节）
-     * @return true 如果需要分片
+     * 每条记录编码到同一个复用的缓冲区中计算长度，另加数组分隔符的 1 字节
      */
-    public static <DATA, QUERY extends GenericExportQuery> boolean needsSplit(ProcessContext<DATA, QUERY> message, long maxSizeBytes) {
-        long estimatedSize = estimateMessageSize(message);
-        boolean needsSplit = estimatedSize > maxSizeBytes;
-        
-        if (needsSplit) {
-            log.info("消息需要分片，估算大小: {} bytes, 最大限制: {} bytes, SubTaskID: {}", 
-                estimatedSize, maxSizeBytes, message.subTaskId);
-        }
-        
-        return needsSplit;
+    private static <DATA> RowSizer<DATA> jsonRowSizer() {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+        return row -> {
+            buffer.reset();
+            OBJECT_MAPPER.writeValue(buffer, row);
+            return buffer.size() + 1;
+        };
     }
 }
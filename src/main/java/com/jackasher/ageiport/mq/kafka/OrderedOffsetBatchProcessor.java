@@ -0,0 +1,218 @@
+package com.jackasher.ageiport.mq.kafka;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 批量消费的并行处理与有序提交。
+ * 一次拉取到的记录按消息键（子任务ID）分配到 {@link KeyedWorkerPool} 的通道上并行处理，
+ * 同一分区内的记录可以乱序完成，但每个分区只提交到“从头开始连续完成”的最后一条记录，
+ * 第一条未完成的记录及其后的记录会在下次拉取时重新投递：
+ * <pre>
+ *   offset   100  101  102  103  104
+ *   状态     完成 完成 处理中 完成 完成   -> 提交 102，seek 到 102
+ * </pre>
+ * 重新投递的记录如果已经完成或仍在处理中，不会再次提交给工作线程，因此不会重复处理。
+ * 失败的记录在工作线程上退避后重试，尝试次数用尽后交给死信处理，不会一直卡住所在分区。
+ * 单个批次的等待时间需小于 max.poll.interval.ms，否则消费者会被踢出消费组。
+ *
+ * @author Jackasher
+ */
+public class OrderedOffsetBatchProcessor {
+
+    private static final Logger log = LoggerFactory.getLogger(OrderedOffsetBatchProcessor.class);
+
+    // 分区内所有记录都已完成且超过该时间没有新记录时清理跟踪信息（分区已被分配给其他消费者）
+    private static final long IDLE_PARTITION_EVICT_MS = 10 * 60 * 1000L;
+
+    private final KeyedWorkerPool workers;
+
+    /**
+     * 处理一条记录，返回 true 表示可以提交（成功或不需要重试的失败），返回 false 或抛出异常表示需要重试
+     */
+    private final Predicate<ConsumerRecord<String, Object>> handler;
+
+    /**
+     * 尝试次数用尽的记录，投递失败时抛出异常，记录会再次重试
+     */
+    private final BiConsumer<ConsumerRecord<String, Object>, Exception> deadLetter;
+
+    private final long maxWaitMs;
+
+    private final int maxAttempts;
+
+    private final long retryBackoffMs;
+
+    private final Map<TopicPartition, PartitionState> partitions = new ConcurrentHashMap<>();
+
+    public OrderedOffsetBatchProcessor(KeyedWorkerPool workers, Predicate<ConsumerRecord<String, Object>> handler,
+                                       BiConsumer<ConsumerRecord<String, Object>, Exception> deadLetter,
+                                       long maxWaitMs, int maxAttempts, long retryBackoffMs) {
+        this.workers = workers;
+        this.handler = handler;
+        this.deadLetter = deadLetter;
+        this.maxWaitMs = maxWaitMs;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryBackoffMs = retryBackoffMs;
+    }
+
+    /**
+     * 跟踪单个分区内已提交给工作线程的记录
+     */
+    private static class PartitionState {
+
+        // offset -> 处理结果
+        final NavigableMap<Long, CompletableFuture<Boolean>> inFlight = new ConcurrentSkipListMap<>();
+
+        // offset -> 已尝试次数
+        final Map<Long, Integer> attempts = new ConcurrentHashMap<>();
+
+        volatile long lastSeen;
+    }
+
+    /**
+     * 处理一次拉取到的记录，在消费者线程上调用
+     */
+    public void process(List<ConsumerRecord<String, Object>> records, Consumer<?, ?> consumer) {
+        if (records.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Map<TopicPartition, List<ConsumerRecord<String, Object>>> byPartition = new LinkedHashMap<>();
+        List<CompletableFuture<Boolean>> pending = new ArrayList<>();
+        for (ConsumerRecord<String, Object> record : records) {
+            TopicPartition tp = new TopicPartition(record.topic(), record.partition());
+            byPartition.computeIfAbsent(tp, k -> new ArrayList<>()).add(record);
+            PartitionState state = partitions.computeIfAbsent(tp, k -> new PartitionState());
+            state.lastSeen = now;
+            CompletableFuture<Boolean> future = state.inFlight.computeIfAbsent(record.offset(), offset -> submit(state, record));
+            if (!future.isDone()) {
+                pending.add(future);
+            }
+        }
+
+        awaitUntil(pending, now + maxWaitMs);
+
+        Map<TopicPartition, OffsetAndMetadata> commits = new HashMap<>();
+        for (Map.Entry<TopicPartition, List<ConsumerRecord<String, Object>>> entry : byPartition.entrySet()) {
+            TopicPartition tp = entry.getKey();
+            PartitionState state = partitions.get(tp);
+            long committable = -1;
+            long firstIncomplete = -1;
+            for (ConsumerRecord<String, Object> record : entry.getValue()) {
+                CompletableFuture<Boolean> future = state.inFlight.get(record.offset());
+                if (future == null || !future.isDone()) {
+                    firstIncomplete = record.offset();
+                    break;
+                }
+                if (!future.join()) {
+                    // 需要重试：移除结果，重新投递时再次提交给工作线程
+                    state.inFlight.remove(record.offset());
+                    firstIncomplete = record.offset();
+                    break;
+                }
+                committable = record.offset() + 1;
+            }
+            if (committable > 0) {
+                long committed = committable;
+                commits.put(tp, new OffsetAndMetadata(committed));
+                state.inFlight.headMap(committed).clear();
+                state.attempts.keySet().removeIf(offset -> offset < committed);
+            }
+            if (firstIncomplete >= 0) {
+                consumer.seek(tp, firstIncomplete);
+                log.debug("分区 {} 的 offset {} 尚未完成，提交到 {}，下次从 {} 重新拉取", tp, firstIncomplete, committable, firstIncomplete);
+            }
+        }
+
+        if (!commits.isEmpty()) {
+            consumer.commitSync(commits);
+            log.info("批量消费提交偏移量: {}, 本批 {} 条记录", commits, records.size());
+        }
+        evictIdlePartitions(now);
+    }
+
+    private CompletableFuture<Boolean> submit(PartitionState state, ConsumerRecord<String, Object> record) {
+        int attempt = state.attempts.merge(record.offset(), 1, Integer::sum);
+        return workers.submit(record.key(), () -> {
+            if (attempt > 1 && retryBackoffMs > 0) {
+                // 在工作线程上退避，不阻塞消费者线程；同一子任务的后续记录本来就要排在它后面
+                try {
+                    Thread.sleep(retryBackoffMs * (attempt - 1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            Exception failure = null;
+            try {
+                if (handler.test(record)) {
+                    return true;
+                }
+            } catch (Exception e) {
+                failure = e;
+                log.error("批量消费处理记录异常, Partition: {}, Offset: {}, Key: {}", record.partition(), record.offset(), record.key(), e);
+            }
+            if (attempt < maxAttempts) {
+                return false;
+            }
+            try {
+                deadLetter.accept(record, failure != null ? failure : new IllegalStateException("记录处理失败"));
+                log.error("记录已尝试 {} 次仍失败，已转入死信处理, Partition: {}, Offset: {}, Key: {}",
+                        attempt, record.partition(), record.offset(), record.key());
+                return true;
+            } catch (Exception e) {
+                log.error("记录转入死信处理失败，稍后重试, Partition: {}, Offset: {}, Key: {}",
+                        record.partition(), record.offset(), record.key(), e);
+                return false;
+            }
+        });
+    }
+
+    private static void awaitUntil(List<CompletableFuture<Boolean>> futures, long deadline) {
+        for (CompletableFuture<Boolean> future : futures) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return;
+            }
+            try {
+                future.get(remaining, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // 处理结果在提交阶段判断
+            }
+        }
+    }
+
+    private void evictIdlePartitions(long now) {
+        partitions.entrySet().removeIf(entry -> now - entry.getValue().lastSeen > IDLE_PARTITION_EVICT_MS
+                && entry.getValue().inFlight.values().stream().allMatch(CompletableFuture::isDone));
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+    }
+}
@@ -0,0 +1,361 @@
+package com.jackasher.ageiport.mq.outbox;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * 本地磁盘上只追加的 outbox 日志，按固定大小的段文件内存映射（mmap）读写。
+ * <pre>
+ *   {directory}/00000000000000000000.log   段文件，文件名为段起始的逻辑偏移量
+ *   {directory}/00000000000067108864.log
+ *   {directory}/checkpoint                  8 字节，已确认投递的逻辑偏移量
+ *
+ *   记录: [int 长度][int CRC32][payload]，长度为 0 表示段内数据结束，-1 表示本段已写满、后续记录在下一段
+ * </pre>
+ * 追加只是写入映射内存，不产生系统调用；数据由 {@link #flush()} 定期批量刷盘（组提交），
+ * 进程崩溃时已写入页缓存的数据不会丢失，操作系统崩溃时最多丢失一个刷盘间隔内的记录。
+ * 记录的长度字段最后写入，写了一半的记录在重启时因长度为 0 或 CRC 不匹配而被丢弃。
+ * 按顺序确认投递后推进 checkpoint，起始偏移量之前的段解除映射后整段删除（压缩）。
+ * 追加可以在多个线程上进行，读取和确认只能由一个线程（投递线程）进行；刷盘与解除段映射互斥，不会访问已解除映射的段。
+ *
+ * @author Jackasher
+ */
+public class OutboxJournal implements Closeable {
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    private static final int HEADER_BYTES = 8;
+
+    private static final int ROLL_MARKER = -1;
+
+    private final Path directory;
+
+    private final int segmentBytes;
+
+    // 段起始偏移量 -> 段文件映射
+    private final NavigableMap<Long, MappedByteBuffer> segments = new ConcurrentSkipListMap<>();
+
+    private final MappedByteBuffer checkpoint;
+
+    private MappedByteBuffer writeSegment;
+
+    private volatile long writeBase;
+
+    // 已写入数据的末尾，之前的记录对读取方可见
+    private volatile long writeOffset;
+
+    private volatile long ackOffset;
+
+    private final AtomicLong pendingEntries = new AtomicLong();
+
+    private volatile boolean dirty;
+
+    // 刷盘线程对段调用 force() 与压缩时解除段映射互斥
+    private final Object mappingLock = new Object();
+
+    /**
+     * 读取到的一条记录
+     */
+    public static final class Entry {
+
+        private final long offset;
+
+        private final long nextOffset;
+
+        private final byte[] payload;
+
+        Entry(long offset, long nextOffset, byte[] payload) {
+            this.offset = offset;
+            this.nextOffset = nextOffset;
+            this.payload = payload;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getNextOffset() {
+            return nextOffset;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    public OutboxJournal(Path directory, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+
+        checkpoint = map(directory.resolve(CHECKPOINT_FILE), Long.BYTES);
+        long acked = checkpoint.getLong(0);
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long base = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                long size = Files.size(file);
+                if (base + size <= acked) {
+                    // 上次确认后尚未删除的段
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                segments.put(base, map(file, (int) size));
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.put(acked, map(segmentPath(acked), segmentBytes));
+        }
+        ackOffset = Math.max(acked, segments.firstKey());
+
+        writeBase = segments.lastKey();
+        writeSegment = segments.get(writeBase);
+        writeOffset = writeBase + scanEnd(writeSegment);
+
+        long count = 0;
+        for (Entry entry = read(ackOffset); entry != null; entry = read(entry.nextOffset)) {
+            count++;
+        }
+        pendingEntries.set(count);
+    }
+
+    /**
+     * 追加一条记录，返回它的逻辑偏移量
+     */
+    public synchronized long append(byte[] payload) throws IOException {
+        int need = HEADER_BYTES + payload.length;
+        if (writeOffset - writeBase + need > writeSegment.capacity()) {
+            roll(need);
+        }
+        int pos = (int) (writeOffset - writeBase);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        ByteBuffer buffer = writeSegment.duplicate();
+        buffer.position(pos + HEADER_BYTES);
+        buffer.put(payload);
+        if (pos + need + Integer.BYTES <= buffer.capacity()) {
+            buffer.putInt(pos + need, 0);
+        }
+        buffer.putInt(pos + Integer.BYTES, (int) crc.getValue());
+        // 长度最后写入，记录完整后才对读取方和重启恢复可见
+        buffer.putInt(pos, payload.length);
+
+        long offset = writeOffset;
+        writeOffset = offset + need;
+        pendingEntries.incrementAndGet();
+        dirty = true;
+        return offset;
+    }
+
+    /**
+     * 从 offset 开始按顺序读取最多 maxEntries 条记录
+     */
+    public List<Entry> read(long offset, int maxEntries) {
+        List<Entry> entries = new ArrayList<>(Math.min(maxEntries, 64));
+        for (Entry entry = read(offset); entry != null && entries.size() < maxEntries; entry = read(entry.nextOffset)) {
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * 确认一条记录已投递，必须按读取顺序确认
+     */
+    public void ack(Entry entry) throws IOException {
+        ackOffset = entry.nextOffset;
+        checkpoint.putLong(0, ackOffset);
+        pendingEntries.decrementAndGet();
+        dirty = true;
+        compact();
+    }
+
+    /**
+     * 已追加的记录和 checkpoint 刷盘
+     */
+    public void flush() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        long base;
+        MappedByteBuffer segment;
+        synchronized (this) {
+            base = writeBase;
+            segment = writeSegment;
+        }
+        synchronized (mappingLock) {
+            // 取得段之后发生了切换且该段已被压缩时，它在切换时已经刷过盘
+            if (segments.get(base) == segment) {
+                segment.force();
+            }
+        }
+        checkpoint.force();
+    }
+
+    public long getAckOffset() {
+        return ackOffset;
+    }
+
+    /**
+     * 尚未确认投递的记录数
+     */
+    public long getPendingEntries() {
+        return pendingEntries.get();
+    }
+
+    /**
+     * 尚未确认投递的字节数（含段末尾的空闲空间）
+     */
+    public long getPendingBytes() {
+        return writeOffset - ackOffset;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void close() {
+        dirty = true;
+        flush();
+    }
+
+    private Entry read(long offset) {
+        while (offset < writeOffset) {
+            Map.Entry<Long, MappedByteBuffer> segment = segments.floorEntry(offset);
+            if (segment == null) {
+                return null;
+            }
+            ByteBuffer buffer = segment.getValue().duplicate();
+            int pos = (int) (offset - segment.getKey());
+            int length = pos + HEADER_BYTES <= buffer.capacity() ? buffer.getInt(pos) : ROLL_MARKER;
+            if (length <= 0) {
+                // 本段已写满，后续记录在下一段
+                offset = segment.getKey() + buffer.capacity();
+                continue;
+            }
+            byte[] payload = new byte[length];
+            buffer.position(pos + HEADER_BYTES);
+            buffer.get(payload);
+            return new Entry(offset, offset + HEADER_BYTES + length, payload);
+        }
+        return null;
+    }
+
+    /**
+     * 打开段文件时找到已写入数据的末尾，写了一半的记录视为不存在
+     */
+    private static int scanEnd(MappedByteBuffer segment) {
+        ByteBuffer buffer = segment.duplicate();
+        int pos = 0;
+        while (pos + HEADER_BYTES <= buffer.capacity()) {
+            int length = buffer.getInt(pos);
+            if (length == ROLL_MARKER) {
+                return buffer.capacity();
+            }
+            if (length <= 0 || pos + HEADER_BYTES + length > buffer.capacity()) {
+                return pos;
+            }
+            byte[] payload = new byte[length];
+            buffer.position(pos + HEADER_BYTES);
+            buffer.get(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, payload.length);
+            if ((int) crc.getValue() != buffer.getInt(pos + Integer.BYTES)) {
+                return pos;
+            }
+            pos += HEADER_BYTES + length;
+        }
+        return pos;
+    }
+
+    private void roll(int need) throws IOException {
+        int pos = (int) (writeOffset - writeBase);
+        if (pos + Integer.BYTES <= writeSegment.capacity()) {
+            writeSegment.putInt(pos, ROLL_MARKER);
+        }
+        writeSegment.force();
+        long base = writeBase + writeSegment.capacity();
+        // 超过段大小的单条记录独占一个更大的段
+        MappedByteBuffer segment = map(segmentPath(base), Math.max(segmentBytes, need + Integer.BYTES));
+        segments.put(base, segment);
+        writeBase = base;
+        writeSegment = segment;
+        writeOffset = base;
+    }
+
+    /**
+     * 删除已全部确认投递的段，正在写入的段保留
+     */
+    private void compact() throws IOException {
+        while (segments.size() > 1) {
+            Map.Entry<Long, MappedByteBuffer> first = segments.firstEntry();
+            if (first.getKey() == writeBase || first.getKey() + first.getValue().capacity() > ackOffset) {
+                return;
+            }
+            // 只有投递线程读取已写满的段，从索引中移除后不会再被访问；刷盘线程持有同一把锁检查段是否仍在索引中
+            synchronized (mappingLock) {
+                segments.remove(first.getKey());
+                unmap(first.getValue());
+            }
+            Files.deleteIfExists(segmentPath(first.getKey()));
+        }
+    }
+
+    /**
+     * 立即释放段文件的内存映射，不等待 GC 回收；无法解除时（如 JVM 不允许访问）交给 GC
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                // JDK 8
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (Exception | LinkageError ignored) {
+            // 解除失败时映射随 buffer 被 GC 回收
+        }
+    }
+
+    private Path segmentPath(long base) {
+        return directory.resolve(String.format("%020d%s", base, SEGMENT_SUFFIX));
+    }
+
+    private static MappedByteBuffer map(Path file, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.jackasher.ageiport.mq.outbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.jackasher.ageiport.constant.OutboxChannel;
+
+/**
+ * outbox 中的一条待投递消息。
+ * 消息体是发送时已经序列化好的字节（与直接发送时使用同一个序列化器/消息转换器），
+ * 重新投递时原样发送，不需要知道消息的类型。
+ *
+ * @author Jackasher
+ */
+public final class OutboxRecord {
+
+    private static final int VERSION = 1;
+
+    private final OutboxChannel channel;
+
+    /**
+     * Kafka 的 topic 或 RabbitMQ 的 exchange
+     */
+    private final String destination;
+
+    /**
+     * Kafka 的消息键或 RabbitMQ 的 routing key
+     */
+    private final String key;
+
+    /**
+     * RabbitMQ 消息的 content type，Kafka 消息为 null
+     */
+    private final String contentType;
+
+    private final Map<String, byte[]> headers;
+
+    private final byte[] body;
+
+    private final long createdTime;
+
+    public OutboxRecord(OutboxChannel channel, String destination, String key, String contentType,
+                        Map<String, byte[]> headers, byte[] body, long createdTime) {
+        this.channel = channel;
+        this.destination = destination;
+        this.key = key;
+        this.contentType = contentType;
+        this.headers = headers == null ? Collections.emptyMap() : headers;
+        this.body = body;
+        this.createdTime = createdTime;
+    }
+
+    public OutboxChannel getChannel() {
+        return channel;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public Map<String, byte[]> getHeaders() {
+        return headers;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public long getCreatedTime() {
+        return createdTime;
+    }
+
+    public byte[] encode() {
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(body.length + 128);
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeByte(VERSION);
+            out.writeByte(channel.ordinal());
+            writeNullableString(out, destination);
+            writeNullableString(out, key);
+            writeNullableString(out, contentType);
+            out.writeLong(createdTime);
+            out.writeShort(headers.size());
+            for (Map.Entry<String, byte[]> header : headers.entrySet()) {
+                out.writeUTF(header.getKey());
+                out.writeInt(header.getValue().length);
+                out.write(header.getValue());
+            }
+            out.writeInt(body.length);
+            out.write(body);
+            out.flush();
+            return buffer.toByteArray();
+        } catch (IOException e) {
+            // 写入内存缓冲区不会失败
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static OutboxRecord decode(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("不支持的 outbox 记录版本: " + version);
+        }
+        OutboxChannel channel = OutboxChannel.values()[in.readUnsignedByte()];
+        String destination = readNullableString(in);
+        String key = readNullableString(in);
+        String contentType = readNullableString(in);
+        long createdTime = in.readLong();
+        int headerCount = in.readUnsignedShort();
+        Map<String, byte[]> headers = new LinkedHashMap<>(headerCount * 2);
+        for (int i = 0; i < headerCount; i++) {
+            String name = in.readUTF();
+            byte[] value = new byte[in.readInt()];
+            in.readFully(value);
+            headers.put(name, value);
+        }
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        return new OutboxRecord(channel, destination, key, contentType, headers, body, createdTime);
+    }
+
+    private static void writeNullableString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,468 @@
+package com.jackasher.ageiport.mq.outbox;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.errors.RecordTooLargeException;
+import org.apache.kafka.common.errors.RetriableException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
+import org.springframework.kafka.core.ProducerFactory;
+import org.springframework.stereotype.Service;
+
+import com.jackasher.ageiport.config.export.ExportProperties;
+import com.jackasher.ageiport.constant.OutboxChannel;
+import com.jackasher.ageiport.mq.codec.BinaryKafkaSerializer;
+
+/**
+ * 消息中间件发送的本地 outbox。
+ * Kafka/RabbitMQ 发送失败的消息按发送时的字节写入 {@link OutboxJournal}，由后台投递线程按写入顺序重新投递，
+ * 中间件恢复后自动清空；某个通道在 outbox 中还有积压时，该通道的新消息也写入 outbox 排在后面，保证通道内的投递顺序。
+ * 导出线程只做一次内存拷贝，不会因为中间件不可用而阻塞或改为在本线程处理附件。
+ * 投递失败时按指数退避重试同一条记录，不会跳过；投递成功后确认，已确认的段文件被删除。
+ * 中间件不可用时一直重试；被中间件明确拒绝的记录（RabbitMQ 否认或退回、Kafka 不可重试的错误）
+ * 重试 max-reject-attempts 次后移入死信目录 {outbox}/dead-letter，不再阻塞后续记录，排查后可重新放回 outbox。
+ *
+ * @author Jackasher
+ */
+@Service
+public class OutboxService {
+
+    private static final Logger log = LoggerFactory.getLogger(OutboxService.class);
+
+    private static final String DEAD_LETTER_DIRECTORY = "dead-letter";
+
+    @Resource
+    private ExportProperties exportProperties;
+
+    @Resource
+    private ProducerFactory<String, Object> producerFactory;
+
+    @Resource
+    private RabbitTemplate rabbitTemplate;
+
+    private OutboxJournal journal;
+
+    // 被拒绝的记录，只追加，由 replayParked 放回 outbox
+    private OutboxJournal parked;
+
+    // 投递线程上正在被拒绝的记录及其被拒绝次数
+    private long rejectedOffset = -1;
+
+    private int rejectedAttempts;
+
+    private final BinaryKafkaSerializer kafkaSerializer = new BinaryKafkaSerializer(() -> exportProperties.getCodec().getFormat());
+
+    private DefaultKafkaProducerFactory<String, byte[]> rawProducerFactory;
+
+    private ScheduledExecutorService flusher;
+
+    private Thread relayThread;
+
+    private volatile boolean running;
+
+    private final Object signal = new Object();
+
+    private final AtomicLong relayed = new AtomicLong();
+
+    // 各通道尚未确认投递的记录数
+    private final Map<OutboxChannel, AtomicLong> pendingByChannel = new EnumMap<>(OutboxChannel.class);
+
+    private volatile String lastError;
+
+    private volatile long lastErrorTime;
+
+    // 投递线程最近读到的队首记录的写入时间，0 表示没有待投递的记录，-1 表示队首记录无法解析；
+    // 统计接口只读这个字段，不读取日志，避免与投递线程解除段映射并发
+    private volatile long oldestPendingCreatedTime;
+
+    @PostConstruct
+    public void init() throws IOException {
+        for (OutboxChannel channel : OutboxChannel.values()) {
+            pendingByChannel.put(channel, new AtomicLong());
+        }
+        ExportProperties.Outbox config = exportProperties.getOutbox();
+        if (!config.isEnabled()) {
+            return;
+        }
+        Path directory = Paths.get(exportProperties.getFileTempDirectory(), config.getDirectoryName());
+        journal = new OutboxJournal(directory, config.getSegmentBytes());
+        countPendingByChannel();
+        parked = new OutboxJournal(directory.resolve(DEAD_LETTER_DIRECTORY), config.getSegmentBytes());
+
+        Map<String, Object> producerConfig = new HashMap<>(producerFactory.getConfigurationProperties());
+        kafkaSerializer.configure(producerConfig, false);
+        rawProducerFactory = new DefaultKafkaProducerFactory<>(producerConfig, new StringSerializer(), new ByteArraySerializer());
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "outbox-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, config.getFlushIntervalMs(), config.getFlushIntervalMs(), TimeUnit.MILLISECONDS);
+
+        running = true;
+        relayThread = new Thread(this::relayLoop, "outbox-relay");
+        relayThread.setDaemon(true);
+        relayThread.start();
+        log.info("[Outbox] 已启动, 目录: {}, 待投递: {} 条, 死信: {} 条", directory.toAbsolutePath(),
+                journal.getPendingEntries(), parked.getPendingEntries());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (journal == null) {
+            return;
+        }
+        running = false;
+        relayThread.interrupt();
+        flusher.shutdownNow();
+        journal.close();
+        parked.close();
+        rawProducerFactory.destroy();
+        log.info("[Outbox] 已停止, 剩余待投递: {} 条，下次启动后继续投递", journal.getPendingEntries());
+    }
+
+    public boolean isEnabled() {
+        return journal != null;
+    }
+
+    /**
+     * outbox 中还有该通道未投递的消息，此时该通道的新消息也应写入 outbox，避免越过积压的消息先到达。
+     * 顺序只在同一通道内有意义，一个通道积压时另一个通道的消息仍直接发送
+     */
+    public boolean hasBacklog(OutboxChannel channel) {
+        return journal != null && pendingByChannel.get(channel).get() > 0;
+    }
+
+    /**
+     * 按 Kafka 生产者的序列化方式写入一条待投递的消息
+     */
+    public void appendKafka(String topic, String key, Object value) {
+        RecordHeaders headers = new RecordHeaders();
+        byte[] body = kafkaSerializer.serialize(topic, headers, value);
+        Map<String, byte[]> headerMap = new LinkedHashMap<>();
+        for (Header header : headers) {
+            headerMap.put(header.key(), header.value());
+        }
+        append(new OutboxRecord(OutboxChannel.KAFKA, topic, key, null, headerMap, body, System.currentTimeMillis()));
+    }
+
+    /**
+     * 按 RabbitTemplate 的消息转换器写入一条待投递的消息
+     */
+    public void appendRabbit(String exchange, String routingKey, Object payload) {
+        Message message = rabbitTemplate.getMessageConverter().toMessage(payload, new MessageProperties());
+        Map<String, byte[]> headerMap = new LinkedHashMap<>();
+        message.getMessageProperties().getHeaders().forEach((name, value) -> {
+            if (value != null) {
+                headerMap.put(name, value.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        append(new OutboxRecord(OutboxChannel.RABBITMQ, exchange, routingKey, message.getMessageProperties().getContentType(),
+                headerMap, message.getBody(), System.currentTimeMillis()));
+    }
+
+    /**
+     * outbox 的积压情况和投递统计
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", isEnabled());
+        if (journal == null) {
+            return stats;
+        }
+        stats.put("pendingEntries", journal.getPendingEntries());
+        Map<String, Long> byChannel = new LinkedHashMap<>();
+        pendingByChannel.forEach((channel, count) -> byChannel.put(channel.name(), count.get()));
+        stats.put("pendingByChannel", byChannel);
+        stats.put("pendingBytes", journal.getPendingBytes());
+        stats.put("segments", journal.getSegmentCount());
+        stats.put("oldestPendingAgeMs", oldestPendingAgeMs());
+        stats.put("relayed", relayed.get());
+        stats.put("parkedEntries", parked.getPendingEntries());
+        stats.put("lastError", lastError);
+        stats.put("lastErrorTime", lastErrorTime);
+        return stats;
+    }
+
+    /**
+     * 把死信目录中的记录按原顺序放回 outbox 末尾重新投递，返回放回的记录数
+     */
+    public synchronized int replayParked() throws IOException {
+        if (journal == null) {
+            throw new IllegalStateException("outbox 未开启");
+        }
+        int count = 0;
+        for (List<OutboxJournal.Entry> batch = parked.read(parked.getAckOffset(), 256); !batch.isEmpty();
+             batch = parked.read(parked.getAckOffset(), 256)) {
+            for (OutboxJournal.Entry entry : batch) {
+                try {
+                    append(OutboxRecord.decode(entry.getPayload()));
+                    count++;
+                } catch (IOException e) {
+                    log.error("[Outbox] 无法解析的死信记录, 丢弃, Offset: {}", entry.getOffset(), e);
+                }
+                parked.ack(entry);
+            }
+        }
+        log.info("[Outbox] 已将 {} 条死信记录放回 outbox", count);
+        return count;
+    }
+
+    private void append(OutboxRecord record) {
+        if (journal == null) {
+            throw new IllegalStateException("outbox 未开启");
+        }
+        // 先计数再写入，投递线程确认这条记录时计数已经包含它
+        AtomicLong pending = pendingByChannel.get(record.getChannel());
+        pending.incrementAndGet();
+        try {
+            journal.append(record.encode());
+        } catch (IOException | RuntimeException e) {
+            pending.decrementAndGet();
+            throw new IllegalStateException("写入 outbox 失败: " + e.getMessage(), e);
+        }
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+    }
+
+    private void relayLoop() {
+        ExportProperties.Outbox config = exportProperties.getOutbox();
+        long backoff = config.getRetryBackoffMs();
+        while (running) {
+            try {
+                List<OutboxJournal.Entry> batch = journal.read(journal.getAckOffset(), config.getRelayBatchSize());
+                oldestPendingCreatedTime = batch.isEmpty() ? 0 : createdTimeOf(batch.get(0));
+                if (batch.isEmpty()) {
+                    synchronized (signal) {
+                        if (journal.getPendingEntries() == 0) {
+                            signal.wait(1000);
+                        }
+                    }
+                    continue;
+                }
+                relay(batch, config);
+                backoff = config.getRetryBackoffMs();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                lastError = e.getClass().getSimpleName() + ": " + e.getMessage();
+                lastErrorTime = System.currentTimeMillis();
+                log.warn("[Outbox] 投递失败, {}ms 后重试, 待投递: {} 条, 原因: {}", backoff, journal.getPendingEntries(), lastError);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                backoff = Math.min(backoff * 2, config.getMaxRetryBackoffMs());
+            }
+        }
+    }
+
+    /**
+     * 按顺序投递一批记录。连续的 Kafka 记录先全部发出再依次等待结果（幂等生产者保证分区内顺序），
+     * 遇到失败时只确认它之前的记录，从失败的记录开始重试（它之后已发送成功的记录会再投递一次）
+     */
+    private void relay(List<OutboxJournal.Entry> batch, ExportProperties.Outbox config) throws Exception {
+        List<OutboxJournal.Entry> kafkaEntries = new ArrayList<>();
+        List<Future<RecordMetadata>> kafkaResults = new ArrayList<>();
+        Producer<String, byte[]> producer = rawProducerFactory.createProducer();
+        try {
+            for (OutboxJournal.Entry entry : batch) {
+                OutboxRecord record;
+                try {
+                    record = OutboxRecord.decode(entry.getPayload());
+                } catch (IOException e) {
+                    awaitKafka(kafkaEntries, kafkaResults, config);
+                    log.error("[Outbox] 无法解析的记录, 跳过, Offset: {}", entry.getOffset(), e);
+                    journal.ack(entry);
+                    continue;
+                }
+                if (record.getChannel() == OutboxChannel.KAFKA) {
+                    kafkaEntries.add(entry);
+                    kafkaResults.add(producer.send(toKafkaRecord(record)));
+                } else {
+                    awaitKafka(kafkaEntries, kafkaResults, config);
+                    try {
+                        sendRabbit(record, entry, config);
+                    } catch (RejectedException e) {
+                        reject(entry, OutboxChannel.RABBITMQ, e, e.permanent, config);
+                        continue;
+                    }
+                    ack(entry, OutboxChannel.RABBITMQ);
+                }
+            }
+            awaitKafka(kafkaEntries, kafkaResults, config);
+        } finally {
+            producer.close();
+        }
+        log.info("[Outbox] 已投递 {} 条, 待投递: {} 条", batch.size(), journal.getPendingEntries());
+    }
+
+    private void awaitKafka(List<OutboxJournal.Entry> entries, List<Future<RecordMetadata>> results,
+                            ExportProperties.Outbox config) throws Exception {
+        for (int i = 0; i < entries.size(); i++) {
+            try {
+                results.get(i).get(config.getSendTimeoutMs(), TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RetriableException) {
+                    // broker 暂时不可用等情况，从这条记录开始重试
+                    throw e;
+                }
+                // 消息过大、主题不合法、无权限等错误：消息过大重试也不会成功，直接移入死信目录
+                reject(entries.get(i), OutboxChannel.KAFKA, e.getCause(), e.getCause() instanceof RecordTooLargeException, config);
+                continue;
+            }
+            ack(entries.get(i), OutboxChannel.KAFKA);
+        }
+        entries.clear();
+        results.clear();
+    }
+
+    /**
+     * 记录被中间件拒绝。permanent 为 true（重试也不会成功）或同一条记录被拒绝达到 max-reject-attempts 次时
+     * 移入死信目录并确认，继续投递后续记录；否则抛出异常，退避后从这条记录开始重试
+     */
+    private void reject(OutboxJournal.Entry entry, OutboxChannel channel, Throwable cause, boolean permanent,
+                        ExportProperties.Outbox config) throws Exception {
+        if (entry.getOffset() != rejectedOffset) {
+            rejectedOffset = entry.getOffset();
+            rejectedAttempts = 0;
+        }
+        rejectedAttempts++;
+        if (!permanent && rejectedAttempts < config.getMaxRejectAttempts()) {
+            throw new IllegalStateException("第 " + rejectedAttempts + " 次被拒绝: " + cause.getMessage(), cause);
+        }
+        parked.append(entry.getPayload());
+        journal.ack(entry);
+        pendingByChannel.get(channel).decrementAndGet();
+        log.error("[Outbox] {} 消息被拒绝 {} 次, 已移入死信目录, Offset: {}, 原因: {}",
+                channel, rejectedAttempts, entry.getOffset(), cause.getMessage());
+        rejectedOffset = -1;
+    }
+
+    /**
+     * 开启发布确认时等待 broker 确认，否认或无法路由时抛出 {@link RejectedException}
+     */
+    private void sendRabbit(OutboxRecord record, OutboxJournal.Entry entry, ExportProperties.Outbox config) throws Exception {
+        CorrelationData correlation = new CorrelationData("outbox:" + entry.getOffset());
+        rabbitTemplate.send(record.getDestination(), record.getKey(), toRabbitMessage(record), correlation);
+        if (!rabbitTemplate.getConnectionFactory().isPublisherConfirms()) {
+            return;
+        }
+        CorrelationData.Confirm confirm = correlation.getFuture().get(config.getSendTimeoutMs(), TimeUnit.MILLISECONDS);
+        if (correlation.getReturned() != null) {
+            // 交换机或绑定不存在，重试也不会成功
+            throw new RejectedException("RabbitMQ 消息无法路由: " + correlation.getReturned().getReplyText(), true);
+        }
+        if (!confirm.isAck()) {
+            throw new RejectedException("RabbitMQ 否认消息: " + confirm.getReason(), false);
+        }
+    }
+
+    /**
+     * 消息被中间件明确拒绝（而不是中间件不可用）
+     */
+    private static final class RejectedException extends Exception {
+
+        private final boolean permanent;
+
+        RejectedException(String message, boolean permanent) {
+            super(message);
+            this.permanent = permanent;
+        }
+    }
+
+    private void ack(OutboxJournal.Entry entry, OutboxChannel channel) throws IOException {
+        journal.ack(entry);
+        pendingByChannel.get(channel).decrementAndGet();
+        relayed.incrementAndGet();
+    }
+
+    /**
+     * 启动时按通道统计 outbox 中剩余的记录，无法解析的记录不计入任何通道
+     */
+    private void countPendingByChannel() {
+        long offset = journal.getAckOffset();
+        for (List<OutboxJournal.Entry> batch = journal.read(offset, 256); !batch.isEmpty(); batch = journal.read(offset, 256)) {
+            for (OutboxJournal.Entry entry : batch) {
+                try {
+                    pendingByChannel.get(OutboxRecord.decode(entry.getPayload()).getChannel()).incrementAndGet();
+                } catch (IOException e) {
+                    log.warn("[Outbox] 无法解析的记录, Offset: {}", entry.getOffset());
+                }
+            }
+            offset = batch.get(batch.size() - 1).getNextOffset();
+        }
+    }
+
+    private static ProducerRecord<String, byte[]> toKafkaRecord(OutboxRecord record) {
+        List<Header> headers = new ArrayList<>(record.getHeaders().size());
+        record.getHeaders().forEach((name, value) -> headers.add(new RecordHeader(name, value)));
+        return new ProducerRecord<>(record.getDestination(), null, record.getKey(), record.getBody(), headers);
+    }
+
+    private static Message toRabbitMessage(OutboxRecord record) {
+        MessageProperties properties = new MessageProperties();
+        properties.setContentType(record.getContentType());
+        record.getHeaders().forEach((name, value) -> properties.setHeader(name, new String(value, StandardCharsets.UTF_8)));
+        return new Message(record.getBody(), properties);
+    }
+
+    private long oldestPendingAgeMs() {
+        long createdTime = oldestPendingCreatedTime;
+        return createdTime <= 0 ? createdTime : System.currentTimeMillis() - createdTime;
+    }
+
+    private static long createdTimeOf(OutboxJournal.Entry entry) {
+        try {
+            return OutboxRecord.decode(entry.getPayload()).getCreatedTime();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            journal.flush();
+            parked.flush();
+        } catch (Exception e) {
+            log.warn("[Outbox] 刷盘失败: {}", e.getMessage());
+        }
+    }
+}
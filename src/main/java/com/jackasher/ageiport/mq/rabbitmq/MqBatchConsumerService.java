@@ -0,0 +1,125 @@
+package com.jackasher.ageiport.mq.rabbitmq;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.jackasher.ageiport.config.export.ExportProperties;
+import com.jackasher.ageiport.model.dto.BatchClaimCheck;
+import com.jackasher.ageiport.model.dto.ProcessContext;
+import com.jackasher.ageiport.mq.kafka.KeyedWorkerPool;
+import com.rabbitmq.client.Channel;
+
+/**
+ * RabbitMQ 附件任务的批量消费，与 {@link MqConsumerService} 二选一启动。
+ * 一次收取的消息按子任务ID分配到 {@link KeyedWorkerPool} 的通道上并行处理，全部结束后在监听线程上统一确认：
+ * 全部成功时只发送一次累积确认（multiple），有失败时逐条确认或拒绝，拒绝规则与单条消费相同
+ *
+ * @author Jackasher
+ */
+@Component
+@ConditionalOnProperty(name = "ageiport.export.attachment-process-mode", havingValue = "rabbitmq")
+public class MqBatchConsumerService {
+
+    private static final Logger log = LoggerFactory.getLogger(MqBatchConsumerService.class);
+
+    public static final String ATTACHMENT_BATCH_LISTENER_ID = "rabbit-attachment-batch-listener";
+
+    @Resource
+    private MqConsumerService mqConsumerService;
+
+    @Resource
+    private MessageConverter jsonMessageConverter;
+
+    @Resource
+    private ExportProperties exportProperties;
+
+    private KeyedWorkerPool workers;
+
+    @PostConstruct
+    public void init() {
+        ExportProperties.Rabbit config = exportProperties.getRabbit();
+        if (config.isBatchEnabled()) {
+            workers = new KeyedWorkerPool("rabbit-batch-worker-", config.getBatchWorkers());
+            log.info("RabbitMQ 批量消费已开启，批大小: {}, 工作线程: {}", config.getBatchSize(), config.getBatchWorkers());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (workers != null) {
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * 批量监听附件处理任务
+     *
+     * @param messages 本次收取的消息
+     * @param channel  收取消息的通道，用于确认
+     */
+    @RabbitListener(id = ATTACHMENT_BATCH_LISTENER_ID, queues = RabbitMqConfig.ATTACHMENT_QUEUE,
+            containerFactory = "attachmentBatchListenerContainerFactory",
+            autoStartup = "${ageiport.export.rabbit.batch-enabled:false}")
+    public void processBatch(List<Message> messages, Channel channel) throws IOException {
+        log.info("从MQ接收到附件处理任务批次，消息数: {}", messages.size());
+        List<String> subTaskIds = new ArrayList<>(messages.size());
+        List<CompletableFuture<Exception>> results = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            Object payload;
+            try {
+                payload = jsonMessageConverter.fromMessage(message);
+            } catch (Exception e) {
+                subTaskIds.add(null);
+                results.add(CompletableFuture.completedFuture(new IllegalArgumentException("无法解析的附件任务消息", e)));
+                continue;
+            }
+            String subTaskId = subTaskIdOf(payload);
+            subTaskIds.add(subTaskId);
+            results.add(workers.submit(subTaskId, () -> mqConsumerService.handle(payload)));
+        }
+
+        List<Exception> failures = new ArrayList<>(results.size());
+        for (CompletableFuture<Exception> result : results) {
+            Exception failure;
+            try {
+                failure = result.join();
+            } catch (Exception e) {
+                failure = e;
+            }
+            failures.add(failure);
+        }
+
+        if (failures.stream().allMatch(failure -> failure == null)) {
+            long lastTag = messages.get(messages.size() - 1).getMessageProperties().getDeliveryTag();
+            channel.basicAck(lastTag, true);
+            log.info("附件处理任务批次完成，已确认 {} 条消息", messages.size());
+            return;
+        }
+        for (int i = 0; i < messages.size(); i++) {
+            Message message = messages.get(i);
+            mqConsumerService.settle(channel, message.getMessageProperties().getDeliveryTag(),
+                    Boolean.TRUE.equals(message.getMessageProperties().isRedelivered()), subTaskIds.get(i), failures.get(i));
+        }
+    }
+
+    private static String subTaskIdOf(Object payload) {
+        if (payload instanceof BatchClaimCheck) {
+            return ((BatchClaimCheck) payload).getSubTaskId();
+        }
+        return payload instanceof ProcessContext ? ((ProcessContext<?, ?>) payload).subTaskId : null;
+    }
+}
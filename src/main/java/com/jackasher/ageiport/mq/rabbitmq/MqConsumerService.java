@@ -1,46 +1,147 @@
 // src/main/java/com/jackasher/ageiport/service/mq/MqConsumerService.java
 package com.jackasher.ageiport.mq.rabbitmq;
 
+import java.io.IOException;
+
 import javax.annotation.Resource;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.rabbit.annotation.RabbitHandler;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.support.AmqpHeaders;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.stereotype.Component;
 
+import com.jackasher.ageiport.model.dto.BatchClaimCheck;
 import com.jackasher.ageiport.model.dto.ProcessContext;
 import com.jackasher.ageiport.model.ir_message.IrMessageData;
 import com.jackasher.ageiport.model.ir_message.IrMessageQuery;
+import com.jackasher.ageiport.mq.claimcheck.ClaimCheckService;
+import com.jackasher.ageiport.service.data_processing_service.BatchIdempotencyGuard;
 import com.jackasher.ageiport.service.data_processing_service.GenericDataProcessingService;
+import com.rabbitmq.client.Channel;
 
+/**
+ * RabbitMQ 附件任务消费者，处理完成后手动确认。
+ * 处理失败的消息第一次重新入队重试，重新投递后仍失败或属于数据问题（不可重试）的消息
+ * 拒绝且不重新入队，经死信交换机进入死信队列 attachment_process_queue.dlq。
+ * 开启批量消费（ageiport.export.rabbit.batch-enabled）时由 {@link MqBatchConsumerService} 代替本监听器
+ */
 @Component
-@RabbitListener(queues = "attachment_process_queue") // 监听指定的队列
+@RabbitListener(id = MqConsumerService.ATTACHMENT_LISTENER_ID, queues = RabbitMqConfig.ATTACHMENT_QUEUE,
+        containerFactory = "attachmentListenerContainerFactory",
+        autoStartup = "#{!${ageiport.export.rabbit.batch-enabled:false}}") // 监听指定的队列
 @ConditionalOnProperty(name = "ageiport.export.attachment-process-mode", havingValue = "rabbitmq")
 public class MqConsumerService {
 
     private static final Logger log = LoggerFactory.getLogger(MqConsumerService.class);
 
+    public static final String ATTACHMENT_LISTENER_ID = "rabbit-attachment-listener";
+
     @Resource(name = "attachmentProcessingServiceImpl")
     private GenericDataProcessingService<IrMessageData, IrMessageQuery> batchDataProcessingService;
 
+    @Resource
+    private ClaimCheckService claimCheckService;
+
+    @Resource
+    private BatchIdempotencyGuard idempotencyGuard;
+
     @RabbitHandler
-    public void process(ProcessContext<IrMessageData, IrMessageQuery> message) {
-        String subTaskId = message.subTaskId;
-        log.info("从MQ接收到附件处理任务，SubTaskID: {}", subTaskId);
+    public void process(ProcessContext<IrMessageData, IrMessageQuery> message, Channel channel,
+                        @Header(AmqpHeaders.DELIVERY_TAG) long deliveryTag,
+                        @Header(AmqpHeaders.REDELIVERED) boolean redelivered) throws IOException {
+        log.info("从MQ接收到附件处理任务，SubTaskID: {}, 重新投递: {}", message.subTaskId, redelivered);
+        settle(channel, deliveryTag, redelivered, message.subTaskId, handle(message));
+    }
+
+    /**
+     * 处理取件凭证：先按凭证还原批次数据，再走与完整消息相同的处理逻辑
+     */
+    @RabbitHandler
+    public void processClaimCheck(BatchClaimCheck claimCheck, Channel channel,
+                                  @Header(AmqpHeaders.DELIVERY_TAG) long deliveryTag,
+                                  @Header(AmqpHeaders.REDELIVERED) boolean redelivered) throws IOException {
+        log.info("从MQ接收到附件处理取件凭证，SubTaskID: {}, 范围: [{}, +{})", claimCheck.getSubTaskId(), claimCheck.getOffset(), claimCheck.getSize());
+        settle(channel, deliveryTag, redelivered, claimCheck.getSubTaskId(), handle(claimCheck));
+    }
+
+    /**
+     * 处理一条消息，批量消费时在工作线程上调用
+     *
+     * @return 处理失败的异常，成功时为 null
+     */
+    @SuppressWarnings("unchecked")
+    Exception handle(Object payload) {
+        if (payload instanceof BatchClaimCheck) {
+            BatchClaimCheck claimCheck = (BatchClaimCheck) payload;
+            if (idempotencyGuard.isCompleted(claimCheck.getSubTaskId())) {
+                log.info("附件批次已处理完成，跳过重复的取件凭证，SubTaskID: {}", claimCheck.getSubTaskId());
+                return null;
+            }
+            try {
+                ProcessContext<IrMessageData, IrMessageQuery> message = claimCheckService.checkOut(claimCheck);
+                batchDataProcessingService.processData(message.messages, claimCheck.getSubTaskId(), message.subTaskNo, message.query);
+                // 批次正由其他执行处理时保留冻结的数据，它失败后的重试还需要
+                if (idempotencyGuard.isReleasable(claimCheck.getSubTaskId())) {
+                    claimCheckService.release(claimCheck);
+                }
+                log.info("成功处理了来自MQ的附件任务，SubTaskID: {}", claimCheck.getSubTaskId());
+                return null;
+            } catch (Exception e) {
+                log.error("处理来自MQ的附件取件凭证失败, SubTaskID: {}", claimCheck.getSubTaskId(), e);
+                return e;
+            }
+        }
+        if (!(payload instanceof ProcessContext)) {
+            return new IllegalArgumentException("无法识别的附件任务消息: " + (payload == null ? null : payload.getClass().getName()));
+        }
+        ProcessContext<IrMessageData, IrMessageQuery> message = (ProcessContext<IrMessageData, IrMessageQuery>) payload;
         try {
             // 调用核心业务逻辑执行附件处理
             batchDataProcessingService.processData(
                     message.messages,
-                    subTaskId,
+                    message.subTaskId,
                     message.subTaskNo,
                     message.query
             );
-            log.info("成功处理了来自MQ的附件任务，SubTaskID: {}", subTaskId);
+            log.info("成功处理了来自MQ的附件任务，SubTaskID: {}", message.subTaskId);
+            return null;
         } catch (Exception e) {
-            log.error("处理来自MQ的附件任务失败, SubTaskID: {}", subTaskId, e);
-            // 这里需要有重试或死信队列机制来处理失败的任务
+            log.error("处理来自MQ的附件任务失败, SubTaskID: {}", message.subTaskId, e);
+            return e;
+        }
+    }
+
+    /**
+     * 按处理结果确认或拒绝消息，必须在收到消息的监听线程上调用（Channel 不是线程安全的）
+     */
+    void settle(Channel channel, long deliveryTag, boolean redelivered, String subTaskId, Exception failure) throws IOException {
+        if (failure == null) {
+            channel.basicAck(deliveryTag, false);
+            return;
+        }
+        boolean requeue = !redelivered && !isDataProblem(failure);
+        channel.basicNack(deliveryTag, false, requeue);
+        if (requeue) {
+            log.warn("附件任务处理失败，重新入队重试，SubTaskID: {}", subTaskId);
+        } else {
+            log.error("附件任务处理失败，已转入死信队列 {}，SubTaskID: {}, 原因: {}",
+                    RabbitMqConfig.ATTACHMENT_DLQ, subTaskId, failure.getMessage());
+        }
+    }
+
+    /**
+     * 数据问题重试也不会成功，与 KafkaConsumerService 的判断一致，沿 cause 链查找
+     */
+    private static boolean isDataProblem(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof IllegalArgumentException || t instanceof NullPointerException) {
+                return true;
+            }
         }
+        return false;
     }
-}
\ No newline at end of file
+}
@@ -1,16 +1,39 @@
 // src/main/java/com/jackasher/ageiport/service/mq/MqProducerService.java
 package com.jackasher.ageiport.mq.rabbitmq;
 
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
+import com.jackasher.ageiport.config.export.ExportProperties;
+import com.jackasher.ageiport.constant.OutboxChannel;
 import com.jackasher.ageiport.model.export.GenericExportQuery;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.ReturnedMessage;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.stereotype.Service;
 
+import com.jackasher.ageiport.model.dto.BatchClaimCheck;
 import com.jackasher.ageiport.model.dto.ProcessContext;
+import com.jackasher.ageiport.model.ir_message.IrMessageData;
+import com.jackasher.ageiport.model.ir_message.IrMessageQuery;
+import com.jackasher.ageiport.mq.claimcheck.ClaimCheckService;
+import com.jackasher.ageiport.mq.outbox.OutboxService;
+import com.jackasher.ageiport.service.data_processing_service.GenericDataProcessingService;
+import com.jackasher.ageiport.utils.ioc.SpringContextUtil;
 
+/**
+ * RabbitMQ 生产者。
+ * 消息以异步发布确认（correlated publisher confirms）发送：发送线程不等待 broker 确认，
+ * 同一时刻未确认的消息数不超过 confirm-window，达到上限时发送线程等待，避免 broker 变慢时无限堆积。
+ * broker 否认（nack）时消息写入本地 outbox 重新投递，未开启 outbox 时降级为本节点异步处理；
+ * 消息无法路由被退回时重试也不会成功，直接降级为本节点异步处理。
+ */
 @Service
 public class MqProducerService {
     
@@ -22,15 +45,135 @@ public class MqProducerService {
     
     @Resource
     private RabbitTemplate rabbitTemplate;
+
+    @Resource
+    private OutboxService outboxService;
+
+    @Resource
+    private ExportProperties exportProperties;
+
+    // 未确认消息的窗口
+    private Semaphore inFlight;
+
+    // 连接工厂未开启 correlated 发布确认时按原方式直接发送
+    private boolean confirms;
+
+    @PostConstruct
+    public void init() {
+        inFlight = new Semaphore(Math.max(1, exportProperties.getRabbit().getConfirmWindow()));
+        confirms = rabbitTemplate.getConnectionFactory().isPublisherConfirms();
+        if (!confirms) {
+            log.warn("RabbitMQ 未开启发布确认（spring.rabbitmq.publisher-confirm-type=correlated），broker 未接收的消息无法感知");
+        }
+    }
     
+    /**
+     * 发送附件处理任务。发送失败时写入本地 outbox 等待重新投递，未开启 outbox 时抛出异常，由调用方降级处理
+     */
     public <DATA, QUERY extends GenericExportQuery> void sendAttachmentTask(ProcessContext<DATA, QUERY> message) {
+        log.info("准备发送附件处理任务到MQ，SubTaskID: {}", message.subTaskId);
+        send(message, message.subTaskId);
+    }
+
+    /**
+     * 发送取件凭证，与完整消息使用同一个队列，消费者按消息类型区分。发送失败时的处理与完整消息相同
+     */
+    public void sendClaimCheck(BatchClaimCheck claimCheck) {
+        send(claimCheck, claimCheck.getSubTaskId());
+    }
+
+    private void send(Object payload, String subTaskId) {
+        if (outboxService.hasBacklog(OutboxChannel.RABBITMQ)) {
+            // 排在 outbox 中积压的消息之后，由 outbox 按顺序投递
+            outboxService.appendRabbit(ATTACHMENT_EXCHANGE, ATTACHMENT_ROUTING_KEY, payload);
+            log.info("outbox 中有待投递的消息，排队写入 outbox，SubTaskID: {}", subTaskId);
+            return;
+        }
+        try {
+            publish(payload, subTaskId);
+        } catch (RuntimeException e) {
+            log.error("发送到MQ失败, SubTaskID: {}", subTaskId, e);
+            if (!outboxService.isEnabled()) {
+                throw e;
+            }
+            outboxService.appendRabbit(ATTACHMENT_EXCHANGE, ATTACHMENT_ROUTING_KEY, payload);
+            log.warn("已写入本地 outbox 等待重新投递，SubTaskID: {}", subTaskId);
+        }
+    }
+
+    private void publish(Object payload, String subTaskId) {
+        if (!confirms) {
+            rabbitTemplate.convertAndSend(ATTACHMENT_EXCHANGE, ATTACHMENT_ROUTING_KEY, payload);
+            log.info("成功发送到MQ，SubTaskID: {}, 类型: {}", subTaskId, payload.getClass().getSimpleName());
+            return;
+        }
+        long confirmTimeoutMs = exportProperties.getRabbit().getConfirmTimeoutMs();
+        try {
+            if (!inFlight.tryAcquire(confirmTimeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("等待发布确认的消息已达上限，" + confirmTimeoutMs + "ms 内未收到确认");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待发布确认窗口时被中断", e);
+        }
+
+        CorrelationData correlation = new CorrelationData(subTaskId + ":" + UUID.randomUUID());
+        try {
+            rabbitTemplate.convertAndSend(ATTACHMENT_EXCHANGE, ATTACHMENT_ROUTING_KEY, payload, correlation);
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+        // 连接断开时未确认的消息会收到 nack，窗口不会泄漏
+        correlation.getFuture().addCallback(confirm -> {
+            inFlight.release();
+            ReturnedMessage returned = correlation.getReturned();
+            if (returned != null) {
+                handleUnconfirmed(payload, subTaskId, "无法路由: " + returned.getReplyText(), false);
+            } else if (confirm != null && confirm.isAck()) {
+                log.info("MQ已确认，SubTaskID: {}, 类型: {}", subTaskId, payload.getClass().getSimpleName());
+            } else {
+                handleUnconfirmed(payload, subTaskId, "broker 否认: " + (confirm == null ? null : confirm.getReason()), true);
+            }
+        }, ex -> {
+            inFlight.release();
+            handleUnconfirmed(payload, subTaskId, ex.getMessage(), true);
+        });
+    }
+
+    /**
+     * 发送时未抛出异常但 broker 没有接收消息，调用方已经返回，只能在这里补救。
+     * retryable 为 false（消息被退回）时不写入 outbox，避免重复投递不可路由的消息并阻塞后续消息
+     */
+    @SuppressWarnings("unchecked")
+    private void handleUnconfirmed(Object payload, String subTaskId, String reason, boolean retryable) {
+        if (retryable && outboxService.isEnabled()) {
+            try {
+                outboxService.appendRabbit(ATTACHMENT_EXCHANGE, ATTACHMENT_ROUTING_KEY, payload);
+                log.warn("MQ未确认消息，已写入本地 outbox 等待重新投递，SubTaskID: {}, 原因: {}", subTaskId, reason);
+                return;
+            } catch (Exception e) {
+                log.error("写入 outbox 失败，SubTaskID: {}", subTaskId, e);
+            }
+        }
+        // 与 KafkaProducerService 发送失败时的降级方式一致
+        log.warn("MQ未确认消息，降级为本节点异步处理，SubTaskID: {}, 原因: {}", subTaskId, reason);
         try {
-            log.info("准备发送附件处理任务到MQ，SubTaskID: {}", message.subTaskId);
-            rabbitTemplate.convertAndSend(ATTACHMENT_EXCHANGE, ATTACHMENT_ROUTING_KEY, message);
-            log.info("成功发送附件处理任务到MQ，SubTaskID: {}", message.subTaskId);
-        } catch (Exception e) {
-            log.error("发送附件处理任务到MQ失败, SubTaskID: {}", message.subTaskId, e);
-            // 这里可以增加失败处理逻辑，例如降级为异步执行或记录失败
+            GenericDataProcessingService<IrMessageData, IrMessageQuery> service =
+                    SpringContextUtil.getBean("attachmentProcessingServiceImpl", GenericDataProcessingService.class);
+            ProcessContext<IrMessageData, IrMessageQuery> message = payload instanceof BatchClaimCheck
+                    ? SpringContextUtil.getBean(ClaimCheckService.class).checkOut((BatchClaimCheck) payload)
+                    : (ProcessContext<IrMessageData, IrMessageQuery>) payload;
+            service.processDataAsync(message.messages, message.subTaskId, message.subTaskNo, message.query)
+                    .whenComplete((result, throwable) -> {
+                        if (throwable != null) {
+                            log.error("降级处理附件任务失败，SubTaskID: {}", subTaskId, throwable);
+                        } else {
+                            log.info("降级处理附件任务完成，SubTaskID: {}", subTaskId);
+                        }
+                    });
+        } catch (Exception fallbackException) {
+            log.error("降级处理也失败了，SubTaskID: {}", subTaskId, fallbackException);
         }
     }
-}
\ No newline at end of file
+}
@@ -1,10 +1,16 @@
 // src/main/java/com/jackasher/ageiport/config/mq/RabbitMqConfig.java
 package com.jackasher.ageiport.mq.rabbitmq;
 
+import com.jackasher.ageiport.config.export.ExportProperties;
+import com.jackasher.ageiport.mq.codec.BinaryMessageConverter;
+import org.springframework.amqp.core.AcknowledgeMode;
 import org.springframework.amqp.core.Binding;
 import org.springframework.amqp.core.BindingBuilder;
+import org.springframework.amqp.core.DirectExchange;
 import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.core.QueueBuilder;
 import org.springframework.amqp.core.TopicExchange;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
@@ -12,13 +18,45 @@ import org.springframework.amqp.support.converter.MessageConverter;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import javax.annotation.Resource;
+
 @Configuration
 //@ConditionalOnProperty(name = "ageiport.export.attachment-process-mode", havingValue = "rabbitmq")
 public class RabbitMqConfig {
 
+    public static final String ATTACHMENT_QUEUE = "attachment_process_queue";
+
+    // 处理失败且不再重试的消息经死信交换机进入死信队列，排查后可手动移回原队列
+    public static final String ATTACHMENT_DLX = "attachment_dlx";
+    public static final String ATTACHMENT_DLQ = "attachment_process_queue.dlq";
+
+    @Resource
+    private ExportProperties exportProperties;
+
+    /**
+     * 附件队列。已存在且没有死信参数的同名队列需要先删除，否则声明时参数不一致会失败
+     */
     @Bean
     public Queue attachmentQueue() {
-        return new Queue("attachment_process_queue", true);
+        return QueueBuilder.durable(ATTACHMENT_QUEUE)
+                .deadLetterExchange(ATTACHMENT_DLX)
+                .deadLetterRoutingKey(MqProducerService.ATTACHMENT_ROUTING_KEY)
+                .build();
+    }
+
+    @Bean
+    public DirectExchange attachmentDeadLetterExchange() {
+        return new DirectExchange(ATTACHMENT_DLX);
+    }
+
+    @Bean
+    public Queue attachmentDeadLetterQueue() {
+        return QueueBuilder.durable(ATTACHMENT_DLQ).build();
+    }
+
+    @Bean
+    public Binding deadLetterBinding(Queue attachmentDeadLetterQueue, DirectExchange attachmentDeadLetterExchange) {
+        return BindingBuilder.bind(attachmentDeadLetterQueue).to(attachmentDeadLetterExchange).with(MqProducerService.ATTACHMENT_ROUTING_KEY);
     }
 
     @Bean
@@ -33,11 +71,12 @@ public class RabbitMqConfig {
 
     /**
      * 配置JSON消息转换器，替代默认的Java序列化
-     * 这样可以避免Java序列化的问题，并且消息更加可读
+     * 这样可以避免Java序列化的问题，并且消息更加可读。
+     * 附件批次按 codec 配置使用二进制编码，收到的 JSON 消息仍由 JSON 转换器处理
      */
     @Bean
     public MessageConverter jsonMessageConverter() {
-        return new Jackson2JsonMessageConverter();
+        return new BinaryMessageConverter(new Jackson2JsonMessageConverter(), () -> exportProperties.getCodec().getFormat());
     }
 
     /**
@@ -47,6 +86,46 @@ public class RabbitMqConfig {
     public RabbitTemplate rabbitTemplate(ConnectionFactory connectionFactory) {
         RabbitTemplate template = new RabbitTemplate(connectionFactory);
         template.setMessageConverter(jsonMessageConverter());
+        // 无法路由的消息退回给生产者，而不是被 broker 静默丢弃
+        template.setMandatory(true);
         return template;
     }
+
+    /**
+     * 附件队列的监听容器：处理完成后手动确认，并发消费者数随积压在 concurrency 和 max-concurrency 之间伸缩。
+     * 附件批次处理耗时较长，预取数较小，避免消息积压在繁忙的消费者上而空闲的消费者拿不到
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory attachmentListenerContainerFactory(ConnectionFactory connectionFactory) {
+        return createListenerContainerFactory(connectionFactory);
+    }
+
+    /**
+     * 批量消费的监听容器：每个消费者一次收取最多 batch-size 条消息（或等待 batch-receive-timeout-ms）后整批交给监听方法
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory attachmentBatchListenerContainerFactory(ConnectionFactory connectionFactory) {
+        ExportProperties.Rabbit config = exportProperties.getRabbit();
+        SimpleRabbitListenerContainerFactory factory = createListenerContainerFactory(connectionFactory);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(config.getBatchSize());
+        factory.setReceiveTimeout(config.getBatchReceiveTimeoutMs());
+        // 预取数不能小于批大小，否则凑不满一批
+        factory.setPrefetchCount(Math.max(config.getPrefetch(), config.getBatchSize()));
+        return factory;
+    }
+
+    private SimpleRabbitListenerContainerFactory createListenerContainerFactory(ConnectionFactory connectionFactory) {
+        ExportProperties.Rabbit config = exportProperties.getRabbit();
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(connectionFactory);
+        factory.setMessageConverter(jsonMessageConverter());
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        factory.setConcurrentConsumers(config.getConcurrency());
+        factory.setMaxConcurrentConsumers(Math.max(config.getConcurrency(), config.getMaxConcurrency()));
+        factory.setPrefetchCount(config.getPrefetch());
+        factory.setDefaultRequeueRejected(false);
+        return factory;
+    }
 }
\ No newline at end of file
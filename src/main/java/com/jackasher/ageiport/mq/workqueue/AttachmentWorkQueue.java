@@ -0,0 +1,68 @@
+package com.jackasher.ageiport.mq.workqueue;
+
+import com.jackasher.ageiport.model.dto.AttachmentWorkItem;
+
+/**
+ * 附件批次共享工作队列。
+ * 节点把批次描述投递到队列中，各节点按自身空闲处理能力领取批次，
+ * 领取即获得一个有期限的租约，处理期间定时续约，处理完成后确认删除。
+ * 节点宕机或处理卡住导致租约过期时，批次重新回到队列，由其他节点领取。
+ *
+ * @author Jackasher
+ */
+public interface AttachmentWorkQueue {
+
+    /**
+     * 投递一个批次
+     */
+    void offer(AttachmentWorkItem item);
+
+    /**
+     * 领取一个批次
+     *
+     * @param workerId 领取者标识，续约和确认时需要使用同一个标识
+     * @param leaseMs  租约时长(毫秒)
+     * @return 领取到的批次，队列为空时返回 null
+     */
+    AttachmentWorkItem claim(String workerId, long leaseMs);
+
+    /**
+     * 续约
+     *
+     * @return 租约仍归该领取者所有时返回 true；租约已过期并被回收时返回 false
+     */
+    boolean renew(String itemId, String workerId, long leaseMs);
+
+    /**
+     * 批次处理完成（或已放弃），从队列中删除
+     *
+     * @return 租约仍归该领取者所有时返回 true
+     */
+    boolean complete(String itemId, String workerId);
+
+    /**
+     * 释放租约并把批次放回队列尾部，排在已经等待的批次之后
+     *
+     * @param delayMs 批次重新可被领取前的等待时间(毫秒)，不大于 0 时立即放回
+     * @return 租约仍归该领取者所有时返回 true
+     */
+    boolean release(String itemId, String workerId, long delayMs);
+
+    /**
+     * 把租约已过期的批次放回队列
+     *
+     * @param limit 单次最多回收的数量
+     * @return 实际回收的数量
+     */
+    int requeueExpired(int limit);
+
+    /**
+     * 等待领取的批次数，包含重试前等待中的批次
+     */
+    long readyCount();
+
+    /**
+     * 已被领取、正在处理的批次数
+     */
+    long leasedCount();
+}
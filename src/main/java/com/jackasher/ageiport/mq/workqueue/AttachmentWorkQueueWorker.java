@@ -0,0 +1,237 @@
+package com.jackasher.ageiport.mq.workqueue;
+
+import com.jackasher.ageiport.config.export.ExportProperties;
+import com.jackasher.ageiport.constant.PostProcessingTaskStatus;
+import com.jackasher.ageiport.model.dto.AttachmentWorkItem;
+import com.jackasher.ageiport.model.ir_message.IrMessageData;
+import com.jackasher.ageiport.model.ir_message.IrMessageQuery;
+import com.jackasher.ageiport.service.data_processing_service.BatchAttempt;
+import com.jackasher.ageiport.service.data_processing_service.GenericDataProcessingService;
+import com.jackasher.ageiport.service.monitor.ProgressTrackerService;
+import com.jackasher.ageiport.utils.network.NetworkUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 共享工作队列的领取者。
+ * 每个节点启动 concurrency 个领取线程，线程空闲时才从队列领取下一个批次，
+ * 处理快的节点自然领取得多，附件处理的总耗时取决于集群整体处理能力而不是分配最多的节点。
+ * 处理期间定时续约；处理失败时按次数退避后放回队列由其他领取者重试；节点宕机时租约过期后由定时任务放回队列。
+ * 运行过慢的批次由 {@link StragglerDetector} 在其他节点上推测执行，先提交者生效。
+ *
+ * @author Jackasher
+ */
+@Component
+public class AttachmentWorkQueueWorker {
+
+    private static final Logger log = LoggerFactory.getLogger(AttachmentWorkQueueWorker.class);
+
+    private static final int REQUEUE_BATCH_SIZE = 100;
+
+    @Resource
+    private AttachmentWorkQueue workQueue;
+
+    @Resource(name = "attachmentProcessingServiceImpl")
+    private GenericDataProcessingService<IrMessageData, IrMessageQuery> processingService;
+
+    @Resource
+    private ExportProperties exportProperties;
+
+    @Resource
+    private StragglerDetector stragglerDetector;
+
+    @Resource
+    private ProgressTrackerService progressTracker;
+
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    private String nodeId;
+
+    private ExecutorService workers;
+
+    private ScheduledExecutorService heartbeats;
+
+    private volatile boolean running;
+
+    @PostConstruct
+    public void start() {
+        nodeId = NetworkUtils.getLocalNodeId(serverPort);
+        int concurrency = exportProperties.getWorkQueue().getConcurrency();
+        if (concurrency <= 0) {
+            log.info("[WorkQueue] 节点 {} 未配置领取线程，只投递不领取附件批次", nodeId);
+            return;
+        }
+
+        AtomicInteger threadIndex = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, "work-queue-worker-" + threadIndex.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "work-queue-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+
+        running = true;
+        for (int i = 1; i <= concurrency; i++) {
+            // 同一节点的多个线程使用不同的领取者标识，本节点回收的租约也能正确区分归属
+            String workerId = nodeId + "#" + i;
+            workers.submit(() -> pollLoop(workerId));
+        }
+        log.info("[WorkQueue] 节点 {} 启动 {} 个附件批次领取线程", nodeId, concurrency);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        if (workers != null) {
+            // 被中断的批次不确认，租约过期后由其他节点重新领取
+            workers.shutdownNow();
+            heartbeats.shutdownNow();
+        }
+    }
+
+    /**
+     * 把租约过期的批次放回队列。每个节点都会执行，脚本保证同一批次只会被放回一次
+     */
+    @Scheduled(fixedDelayString = "${ageiport.export.work-queue.reclaim-ms:5000}")
+    public void reclaimExpired() {
+        try {
+            int count = workQueue.requeueExpired(REQUEUE_BATCH_SIZE);
+            if (count > 0) {
+                log.warn("[WorkQueue] 回收 {} 个租约过期的附件批次，等待重新领取", count);
+            }
+        } catch (Exception e) {
+            log.warn("[WorkQueue] 回收过期租约失败: {}", e.getMessage());
+        }
+    }
+
+    private void pollLoop(String workerId) {
+        while (running && !Thread.currentThread().isInterrupted()) {
+            ExportProperties.WorkQueue config = exportProperties.getWorkQueue();
+            try {
+                AttachmentWorkItem item = workQueue.claim(workerId, config.getLeaseMs());
+                if (item == null || !execute(item, workerId, config)) {
+                    Thread.sleep(config.getPollIntervalMs());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                // Redis 暂不可用等情况，稍后继续领取
+                log.warn("[WorkQueue] 领取者 {} 领取批次失败: {}", workerId, e.getMessage());
+                try {
+                    Thread.sleep(config.getPollIntervalMs());
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * 处理领取到的批次
+     *
+     * @return 没有实际执行（如领取到本节点不应执行的副本）时返回 false，调用方稍后再领取
+     */
+    private boolean execute(AttachmentWorkItem item, String workerId, ExportProperties.WorkQueue config) {
+        String itemId = item.getItemId();
+        boolean speculative = item.getSpeculativeOf() != null;
+        if (progressTracker.isSubTaskFinished(item.getMainTaskId(), item.getSubTaskId())) {
+            log.info("[WorkQueue] 批次 {} 已由其他执行完成，直接确认{}", itemId, speculative ? " (推测执行副本)" : "");
+            workQueue.complete(itemId, workerId);
+            return true;
+        }
+        if (item.getAttempts() > config.getMaxAttempts()) {
+            if (speculative) {
+                // 副本多次未能在其他节点上运行时放弃副本，原始执行不受影响
+                log.warn("[WorkQueue] 推测执行副本 {} 已被领取 {} 次仍未运行，丢弃副本", itemId, item.getAttempts());
+            } else {
+                log.error("[WorkQueue] 批次 {} 已被领取 {} 次仍未完成，放弃处理. MainTaskID: {}, SubTaskID: {}",
+                        itemId, item.getAttempts(), item.getMainTaskId(), item.getSubTaskId());
+                progressTracker.markSubTaskAsFinished(item.getMainTaskId(), item.getSubTaskId(), PostProcessingTaskStatus.FAILED,
+                        "批次已被领取 " + item.getAttempts() + " 次仍未完成");
+            }
+            workQueue.complete(itemId, workerId);
+            return true;
+        }
+        if (speculative && nodeId.equals(item.getExcludeNode())) {
+            // 副本必须在原始执行以外的节点上运行，放回队列尾部等待其他节点领取
+            workQueue.release(itemId, workerId, 0);
+            return false;
+        }
+
+        log.info("[WorkQueue] 领取者 {} 开始处理批次 {}, SubTaskID: {}, 来自节点: {}, 排队 {}ms, 第 {} 次领取{}",
+                workerId, itemId, item.getSubTaskId(), item.getSourceNode(),
+                System.currentTimeMillis() - item.getEnqueueTime(), item.getAttempts(), speculative ? " (推测执行副本)" : "");
+
+        long heartbeatMs = Math.max(1, config.getHeartbeatMs());
+        ScheduledFuture<?> heartbeat = heartbeats.scheduleAtFixedRate(() -> {
+            try {
+                if (!workQueue.renew(itemId, workerId, config.getLeaseMs())) {
+                    log.warn("[WorkQueue] 批次 {} 的租约已失效，可能已被其他节点重新领取", itemId);
+                }
+            } catch (Exception e) {
+                log.warn("[WorkQueue] 批次 {} 续约失败: {}", itemId, e.getMessage());
+            }
+        }, heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+
+        long start = System.currentTimeMillis();
+        StragglerDetector.RunningBatch runningBatch = stragglerDetector.started(item);
+        BatchAttempt.bind(new BatchAttempt(itemId + "#" + item.getAttempts(), speculative));
+        Exception failure = null;
+        try {
+            processingService.processData(item.getMessages(), item.getSubTaskId(), item.getSubTaskNo(), item.getQuery());
+        } catch (Exception e) {
+            failure = e;
+        } finally {
+            BatchAttempt.unbind();
+            heartbeat.cancel(false);
+        }
+        if (stragglerDetector.finished(runningBatch)) {
+            // 清除取消时设置的中断标记，线程继续领取下一个批次
+            Thread.interrupted();
+            log.info("[WorkQueue] 批次 {} 已由其他执行完成，本次执行已取消", itemId);
+            workQueue.complete(itemId, workerId);
+            return true;
+        }
+
+        if (failure == null) {
+            workQueue.complete(itemId, workerId);
+            stragglerDetector.recordCost(item, System.currentTimeMillis() - start);
+            log.info("[WorkQueue] 批次 {} 处理完成, SubTaskID: {}", itemId, item.getSubTaskId());
+        } else if (speculative || progressTracker.isSubTaskFinished(item.getMainTaskId(), item.getSubTaskId())) {
+            // 副本失败时原始执行仍在进行，不再重试副本；批次已由其他执行完成时也无需重试
+            log.warn("[WorkQueue] 批次 {} 处理失败，不再重试. SubTaskID: {}, 原因: {}", itemId, item.getSubTaskId(), failure.getMessage());
+            workQueue.complete(itemId, workerId);
+        } else {
+            long backoffMs = retryBackoffMs(item.getAttempts(), config);
+            log.error("[WorkQueue] 批次 {} 处理失败，{}ms 后重新放回队列. SubTaskID: {}", itemId, backoffMs, item.getSubTaskId(), failure);
+            workQueue.release(itemId, workerId, backoffMs);
+        }
+        return true;
+    }
+
+    /**
+     * 第 attempts 次失败后的重试等待时间，按次数翻倍，不超过配置的上限
+     */
+    private static long retryBackoffMs(int attempts, ExportProperties.WorkQueue config) {
+        int shift = Math.min(Math.max(attempts - 1, 0), 20);
+        return Math.min(config.getRetryBackoffMs() << shift, config.getMaxRetryBackoffMs());
+    }
+}
@@ -0,0 +1,150 @@
+package com.jackasher.ageiport.mq.workqueue;
+
+import com.jackasher.ageiport.model.dto.AttachmentWorkItem;
+import org.springframework.beans.BeanUtils;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * 进程内的附件批次工作队列，语义与 {@link RedisAttachmentWorkQueue} 一致，
+ * 只在本进程的领取者之间分配批次，用于单机部署或不依赖 Redis 的测试环境。
+ *
+ * @author Jackasher
+ */
+@Service
+@ConditionalOnProperty(prefix = "ageiport.export.work-queue", name = "store", havingValue = "local")
+public class LocalAttachmentWorkQueue implements AttachmentWorkQueue {
+
+    private final Deque<String> ready = new ArrayDeque<>();
+    private final Map<String, AttachmentWorkItem> payloads = new HashMap<>();
+    private final Map<String, Lease> leases = new HashMap<>();
+    private final Map<String, Integer> attempts = new HashMap<>();
+    /**
+     * 等待重试的批次 -> 可再次领取的时间
+     */
+    private final Map<String, Long> delayed = new HashMap<>();
+
+    private static class Lease {
+        private final String workerId;
+        private long expireAt;
+
+        Lease(String workerId, long expireAt) {
+            this.workerId = workerId;
+            this.expireAt = expireAt;
+        }
+    }
+
+    @Override
+    public synchronized void offer(AttachmentWorkItem item) {
+        payloads.put(item.getItemId(), copyOf(item));
+        ready.addFirst(item.getItemId());
+    }
+
+    @Override
+    public synchronized AttachmentWorkItem claim(String workerId, long leaseMs) {
+        promoteDue(System.currentTimeMillis());
+        String itemId;
+        while ((itemId = ready.pollLast()) != null) {
+            AttachmentWorkItem payload = payloads.get(itemId);
+            if (payload == null) {
+                continue;
+            }
+            leases.put(itemId, new Lease(workerId, System.currentTimeMillis() + leaseMs));
+            int count = attempts.merge(itemId, 1, Integer::sum);
+            // 返回副本，与 Redis 实现一样，领取者对批次的修改不影响队列中的描述
+            AttachmentWorkItem item = copyOf(payload);
+            item.setAttempts(count);
+            return item;
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized boolean renew(String itemId, String workerId, long leaseMs) {
+        Lease lease = leases.get(itemId);
+        if (lease == null || !lease.workerId.equals(workerId)) {
+            return false;
+        }
+        lease.expireAt = System.currentTimeMillis() + leaseMs;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean complete(String itemId, String workerId) {
+        if (!isOwner(itemId, workerId)) {
+            return false;
+        }
+        leases.remove(itemId);
+        attempts.remove(itemId);
+        payloads.remove(itemId);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean release(String itemId, String workerId, long delayMs) {
+        if (!isOwner(itemId, workerId)) {
+            return false;
+        }
+        leases.remove(itemId);
+        if (delayMs > 0) {
+            delayed.put(itemId, System.currentTimeMillis() + delayMs);
+        } else {
+            ready.addFirst(itemId);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized int requeueExpired(int limit) {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        Iterator<Map.Entry<String, Lease>> iterator = leases.entrySet().iterator();
+        while (iterator.hasNext() && count < limit) {
+            Map.Entry<String, Lease> entry = iterator.next();
+            if (entry.getValue().expireAt <= now) {
+                iterator.remove();
+                ready.addLast(entry.getKey());
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized long readyCount() {
+        return ready.size() + delayed.size();
+    }
+
+    @Override
+    public synchronized long leasedCount() {
+        return leases.size();
+    }
+
+    private void promoteDue(long now) {
+        Iterator<Map.Entry<String, Long>> iterator = delayed.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (entry.getValue() <= now) {
+                iterator.remove();
+                ready.addFirst(entry.getKey());
+            }
+        }
+    }
+
+    private boolean isOwner(String itemId, String workerId) {
+        Lease lease = leases.get(itemId);
+        return lease != null && lease.workerId.equals(workerId);
+    }
+
+    private static AttachmentWorkItem copyOf(AttachmentWorkItem item) {
+        AttachmentWorkItem copy = new AttachmentWorkItem();
+        BeanUtils.copyProperties(item, copy);
+        return copy;
+    }
+}
@@ -0,0 +1,211 @@
+package com.jackasher.ageiport.mq.workqueue;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jackasher.ageiport.model.dto.AttachmentWorkItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 基于 Redis 的附件批次共享工作队列，集群内所有节点共用：
+ * <pre>
+ *   ageiport:work_queue:{attachment}:ready      等待领取的批次ID列表，LPUSH 投递、RPOP 领取
+ *   ageiport:work_queue:{attachment}:payload    批次ID -> 批次描述 JSON
+ *   ageiport:work_queue:{attachment}:lease      已领取批次的租约 ZSet，score 为到期时间
+ *   ageiport:work_queue:{attachment}:owner      批次ID -> 领取者标识
+ *   ageiport:work_queue:{attachment}:attempts   批次ID -> 已领取次数
+ *   ageiport:work_queue:{attachment}:delayed    等待重试的批次 ZSet，score 为可再次领取的时间，领取时移入 ready 尾部
+ * </pre>
+ * 领取、续约、确认和回收都由 Lua 脚本完成，同一批次同一时刻只会有一个有效租约。
+ * 所有 key 使用相同的 hash tag，保证在 Redis 集群中位于同一个 slot。
+ *
+ * @author Jackasher
+ */
+@Service
+@ConditionalOnProperty(prefix = "ageiport.export.work-queue", name = "store", havingValue = "redis", matchIfMissing = true)
+public class RedisAttachmentWorkQueue implements AttachmentWorkQueue {
+
+    private static final Logger log = LoggerFactory.getLogger(RedisAttachmentWorkQueue.class);
+
+    private static final String KEY_PREFIX = "ageiport:work_queue:{attachment}:";
+    private static final String READY_KEY = KEY_PREFIX + "ready";
+    private static final String PAYLOAD_KEY = KEY_PREFIX + "payload";
+    private static final String LEASE_KEY = KEY_PREFIX + "lease";
+    private static final String OWNER_KEY = KEY_PREFIX + "owner";
+    private static final String ATTEMPTS_KEY = KEY_PREFIX + "attempts";
+    private static final String DELAYED_KEY = KEY_PREFIX + "delayed";
+
+    private static final List<String> ALL_KEYS = Arrays.asList(READY_KEY, PAYLOAD_KEY, LEASE_KEY, OWNER_KEY, ATTEMPTS_KEY, DELAYED_KEY);
+
+    /**
+     * 单次领取时最多从等待重试集合移入队列的批次数
+     */
+    private static final int PROMOTE_LIMIT = 100;
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    /**
+     * ARGV: itemId, payload
+     */
+    private static final DefaultRedisScript<Long> OFFER_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('HSET', KEYS[2], ARGV[1], ARGV[2]) " +
+            "redis.call('LPUSH', KEYS[1], ARGV[1]) " +
+            "return 1", Long.class);
+
+    /**
+     * ARGV: workerId, leaseExpireAt, now, promoteLimit
+     * 先把到期的重试批次移入队列尾部，再领取；返回 {itemId, payload, attempts}；跳过已被确认删除的残留ID
+     */
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT = new DefaultRedisScript<>(
+            "local due = redis.call('ZRANGEBYSCORE', KEYS[6], '-inf', ARGV[3], 'LIMIT', 0, tonumber(ARGV[4])) " +
+            "for _, id in ipairs(due) do " +
+            "  redis.call('ZREM', KEYS[6], id) " +
+            "  redis.call('LPUSH', KEYS[1], id) " +
+            "end " +
+            "while true do " +
+            "  local id = redis.call('RPOP', KEYS[1]) " +
+            "  if not id then return nil end " +
+            "  local payload = redis.call('HGET', KEYS[2], id) " +
+            "  if payload then " +
+            "    redis.call('ZADD', KEYS[3], ARGV[2], id) " +
+            "    redis.call('HSET', KEYS[4], id, ARGV[1]) " +
+            "    local attempts = redis.call('HINCRBY', KEYS[5], id, 1) " +
+            "    return {id, payload, tostring(attempts)} " +
+            "  end " +
+            "end", List.class);
+
+    /**
+     * ARGV: itemId, workerId, leaseExpireAt
+     */
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('HGET', KEYS[4], ARGV[1]) ~= ARGV[2] then return 0 end " +
+            "redis.call('ZADD', KEYS[3], ARGV[3], ARGV[1]) " +
+            "return 1", Long.class);
+
+    /**
+     * ARGV: itemId, workerId
+     */
+    private static final DefaultRedisScript<Long> COMPLETE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('HGET', KEYS[4], ARGV[1]) ~= ARGV[2] then return 0 end " +
+            "redis.call('ZREM', KEYS[3], ARGV[1]) " +
+            "redis.call('HDEL', KEYS[4], ARGV[1]) " +
+            "redis.call('HDEL', KEYS[5], ARGV[1]) " +
+            "redis.call('HDEL', KEYS[2], ARGV[1]) " +
+            "return 1", Long.class);
+
+    /**
+     * ARGV: itemId, workerId, availableAt
+     * 放回队列的投递端，排在已有批次之后；availableAt 大于 0 时先进入等待重试集合
+     */
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('HGET', KEYS[4], ARGV[1]) ~= ARGV[2] then return 0 end " +
+            "redis.call('ZREM', KEYS[3], ARGV[1]) " +
+            "redis.call('HDEL', KEYS[4], ARGV[1]) " +
+            "if tonumber(ARGV[3]) > 0 then " +
+            "  redis.call('ZADD', KEYS[6], ARGV[3], ARGV[1]) " +
+            "else " +
+            "  redis.call('LPUSH', KEYS[1], ARGV[1]) " +
+            "end " +
+            "return 1", Long.class);
+
+    /**
+     * ARGV: now, limit
+     */
+    private static final DefaultRedisScript<Long> REQUEUE_EXPIRED_SCRIPT = new DefaultRedisScript<>(
+            "local ids = redis.call('ZRANGEBYSCORE', KEYS[3], '-inf', ARGV[1], 'LIMIT', 0, tonumber(ARGV[2])) " +
+            "for _, id in ipairs(ids) do " +
+            "  redis.call('ZREM', KEYS[3], id) " +
+            "  redis.call('HDEL', KEYS[4], id) " +
+            "  redis.call('RPUSH', KEYS[1], id) " +
+            "end " +
+            "return #ids", Long.class);
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Override
+    public void offer(AttachmentWorkItem item) {
+        String payload;
+        try {
+            payload = OBJECT_MAPPER.writeValueAsString(item);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("附件批次序列化失败, SubTaskID: " + item.getSubTaskId(), e);
+        }
+        stringRedisTemplate.execute(OFFER_SCRIPT, ALL_KEYS, item.getItemId(), payload);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public AttachmentWorkItem claim(String workerId, long leaseMs) {
+        long now = System.currentTimeMillis();
+        List<String> result = stringRedisTemplate.execute(CLAIM_SCRIPT, ALL_KEYS,
+                workerId, String.valueOf(now + leaseMs), String.valueOf(now), String.valueOf(PROMOTE_LIMIT));
+        if (result == null || result.size() < 3) {
+            return null;
+        }
+        String itemId = result.get(0);
+        try {
+            AttachmentWorkItem item = OBJECT_MAPPER.readValue(result.get(1), AttachmentWorkItem.class);
+            item.setItemId(itemId);
+            item.setAttempts(Integer.parseInt(result.get(2)));
+            return item;
+        } catch (Exception e) {
+            // 无法解析的批次重试也不会成功，直接删除，避免反复被领取
+            log.error("[WorkQueue] 批次 {} 的描述无法解析，已丢弃: {}", itemId, e.getMessage());
+            complete(itemId, workerId);
+            return null;
+        }
+    }
+
+    @Override
+    public boolean renew(String itemId, String workerId, long leaseMs) {
+        return isOne(stringRedisTemplate.execute(RENEW_SCRIPT, ALL_KEYS,
+                itemId, workerId, String.valueOf(System.currentTimeMillis() + leaseMs)));
+    }
+
+    @Override
+    public boolean complete(String itemId, String workerId) {
+        return isOne(stringRedisTemplate.execute(COMPLETE_SCRIPT, ALL_KEYS, itemId, workerId));
+    }
+
+    @Override
+    public boolean release(String itemId, String workerId, long delayMs) {
+        long availableAt = delayMs > 0 ? System.currentTimeMillis() + delayMs : 0;
+        return isOne(stringRedisTemplate.execute(RELEASE_SCRIPT, ALL_KEYS, itemId, workerId, String.valueOf(availableAt)));
+    }
+
+    @Override
+    public int requeueExpired(int limit) {
+        Long count = stringRedisTemplate.execute(REQUEUE_EXPIRED_SCRIPT, ALL_KEYS,
+                String.valueOf(System.currentTimeMillis()), String.valueOf(limit));
+        return count == null ? 0 : count.intValue();
+    }
+
+    @Override
+    public long readyCount() {
+        Long size = stringRedisTemplate.opsForList().size(READY_KEY);
+        Long delayed = stringRedisTemplate.opsForZSet().zCard(DELAYED_KEY);
+        return (size == null ? 0 : size) + (delayed == null ? 0 : delayed);
+    }
+
+    @Override
+    public long leasedCount() {
+        Long size = stringRedisTemplate.opsForZSet().zCard(LEASE_KEY);
+        return size == null ? 0 : size;
+    }
+
+    private static boolean isOne(Long result) {
+        return result != null && result == 1L;
+    }
+}
@@ -0,0 +1,212 @@
+package com.jackasher.ageiport.mq.workqueue;
+
+import com.jackasher.ageiport.config.export.ExportProperties;
+import com.jackasher.ageiport.model.dto.AttachmentWorkItem;
+import com.jackasher.ageiport.service.monitor.ProgressTrackerService;
+import com.jackasher.ageiport.utils.network.NetworkUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 慢批次检测与推测执行。
+ * 每个批次完成后把单条耗时写入所属主任务的样本列表：
+ * <pre>
+ *   ageiport:batch_item_cost:{mainTaskId}   最近完成批次的单条耗时(毫秒)，所有节点共享
+ * </pre>
+ * 定时检查本节点运行中的批次，运行时间超过 分位数单条耗时 × 条目数 × slowFactor 的批次
+ * 向共享队列投递一个副本，由其他节点执行。原始执行和副本谁先提交谁生效（见 ProgressTrackerService#commitSubTaskAttempt），
+ * 批次提交后另一方在下一次检查时被中断。
+ *
+ * @author Jackasher
+ */
+@Component
+public class StragglerDetector {
+
+    private static final Logger log = LoggerFactory.getLogger(StragglerDetector.class);
+
+    private static final String COST_KEY_PREFIX = "ageiport:batch_item_cost:";
+    private static final int MAX_SAMPLES = 200;
+    private static final long SAMPLE_TTL_HOURS = 24;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private AttachmentWorkQueue workQueue;
+
+    @Resource
+    private ProgressTrackerService progressTracker;
+
+    @Resource
+    private ExportProperties exportProperties;
+
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    private String nodeId;
+
+    private final Map<String, RunningBatch> running = new ConcurrentHashMap<>();
+
+    /**
+     * 本节点上一个正在执行的批次
+     */
+    public static final class RunningBatch {
+        private final AttachmentWorkItem item;
+        private final Thread thread;
+        private final long startTime = System.currentTimeMillis();
+        private volatile boolean speculated;
+        private boolean active = true;
+        private boolean cancelled;
+
+        RunningBatch(AttachmentWorkItem item, Thread thread) {
+            this.item = item;
+            this.thread = thread;
+        }
+
+        private boolean isRacing() {
+            return speculated || item.getSpeculativeOf() != null;
+        }
+
+        /**
+         * 只中断仍在执行该批次的线程，避免中断已经换到下一个批次的线程
+         */
+        private synchronized void cancel() {
+            if (active && !cancelled) {
+                cancelled = true;
+                thread.interrupt();
+            }
+        }
+
+        private synchronized boolean finish() {
+            active = false;
+            return cancelled;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        nodeId = NetworkUtils.getLocalNodeId(serverPort);
+    }
+
+    /**
+     * 在处理线程上开始执行批次时调用
+     */
+    public RunningBatch started(AttachmentWorkItem item) {
+        RunningBatch batch = new RunningBatch(item, Thread.currentThread());
+        running.put(item.getItemId(), batch);
+        return batch;
+    }
+
+    /**
+     * 批次执行结束时调用
+     *
+     * @return 该执行是否因批次已由其他执行完成而被取消
+     */
+    public boolean finished(RunningBatch batch) {
+        running.remove(batch.item.getItemId(), batch);
+        return batch.finish();
+    }
+
+    /**
+     * 记录一个成功完成的批次的单条耗时，作为同一主任务其他批次的参照
+     */
+    public void recordCost(AttachmentWorkItem item, long elapsedMillis) {
+        int size = item.getMessages() == null ? 0 : item.getMessages().size();
+        if (size == 0) {
+            return;
+        }
+        String key = COST_KEY_PREFIX + item.getMainTaskId();
+        try {
+            stringRedisTemplate.opsForList().leftPush(key, String.valueOf((double) elapsedMillis / size));
+            stringRedisTemplate.opsForList().trim(key, 0, MAX_SAMPLES - 1);
+            stringRedisTemplate.expire(key, SAMPLE_TTL_HOURS, TimeUnit.HOURS);
+        } catch (Exception e) {
+            log.warn("[Speculation] 记录批次耗时失败, MainTaskID: {}: {}", item.getMainTaskId(), e.getMessage());
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${ageiport.export.speculation.check-ms:2000}")
+    public void check() {
+        if (running.isEmpty()) {
+            return;
+        }
+        ExportProperties.Speculation config = exportProperties.getSpeculation();
+        Map<String, double[]> costsByTask = new HashMap<>();
+        long now = System.currentTimeMillis();
+        for (RunningBatch batch : running.values()) {
+            AttachmentWorkItem item = batch.item;
+            try {
+                // 存在另一个执行时，批次被任意一方提交后取消仍在执行的一方
+                if (batch.isRacing()) {
+                    if (progressTracker.isSubTaskFinished(item.getMainTaskId(), item.getSubTaskId())) {
+                        log.info("[Speculation] 批次 {} 已由其他执行完成，取消本节点的执行", item.getItemId());
+                        batch.cancel();
+                    }
+                    continue;
+                }
+                if (!config.isEnabled()) {
+                    continue;
+                }
+                long elapsed = now - batch.startTime;
+                if (elapsed < config.getMinElapsedMs()) {
+                    continue;
+                }
+                double[] costs = costsByTask.computeIfAbsent(item.getMainTaskId(), this::loadCosts);
+                if (costs.length < Math.max(1, config.getMinSamples())) {
+                    continue;
+                }
+                double threshold = percentile(costs, config.getPercentile()) * item.getMessages().size() * config.getSlowFactor();
+                if (elapsed > threshold) {
+                    speculate(batch, elapsed, threshold);
+                }
+            } catch (Exception e) {
+                log.warn("[Speculation] 检查批次 {} 失败: {}", item.getItemId(), e.getMessage());
+            }
+        }
+    }
+
+    private void speculate(RunningBatch batch, long elapsed, double threshold) {
+        AttachmentWorkItem item = batch.item;
+        AttachmentWorkItem copy = new AttachmentWorkItem();
+        BeanUtils.copyProperties(item, copy);
+        // 原始批次被重新领取后可能再次变慢，按领取次数区分副本
+        copy.setItemId(item.getItemId() + ":spec:" + item.getAttempts());
+        copy.setSpeculativeOf(item.getItemId());
+        copy.setExcludeNode(nodeId);
+        copy.setEnqueueTime(System.currentTimeMillis());
+        copy.setAttempts(0);
+        workQueue.offer(copy);
+        batch.speculated = true;
+        log.warn("[Speculation] 批次 {} 已运行 {}ms，超过同任务参照耗时 {}ms，已投递推测执行副本 {}",
+                item.getItemId(), elapsed, (long) threshold, copy.getItemId());
+    }
+
+    private double[] loadCosts(String mainTaskId) {
+        List<String> values = stringRedisTemplate.opsForList().range(COST_KEY_PREFIX + mainTaskId, 0, -1);
+        if (values == null) {
+            return new double[0];
+        }
+        return values.stream().mapToDouble(Double::parseDouble).toArray();
+    }
+
+    private static double percentile(double[] values, double percentile) {
+        double[] sorted = Arrays.copyOf(values, values.length);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(Math.min(1.0, Math.max(0.0, percentile)) * sorted.length) - 1;
+        return sorted[Math.max(0, index)];
+    }
+}
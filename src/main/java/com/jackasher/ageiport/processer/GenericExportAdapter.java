@@ -31,8 +31,11 @@ import com.alibaba.ageiport.processor.core.task.exporter.api.BizExportTaskRuntim
 import com.alibaba.ageiport.processor.core.task.exporter.context.ExportMainTaskContext;
 import com.alibaba.ageiport.processor.core.task.exporter.context.ExportSubTaskContext;
 import com.alibaba.ageiport.processor.core.utils.HeadersUtil;
+import com.jackasher.ageiport.constant.ThroughputPhase;
 import com.jackasher.ageiport.model.export.ExportParams;
 import com.jackasher.ageiport.model.export.GenericExportQuery;
+import com.jackasher.ageiport.mq.claimcheck.DataSliceRegistry;
+import com.jackasher.ageiport.service.monitor.ThroughputTracker;
 import com.jackasher.ageiport.utils.ioc.SpringContextUtil;
 
 /**
@@ -140,6 +143,14 @@ public abstract class GenericExportAdapter<QUERY extends GenericExportQuery, DAT
         int totalCount = context.getExportTaskRuntimeConfig().getTotalCount();
         log.info("[LIFECYCLE-MAIN-3] getHeaders: 获取到任务总数为: {}", totalCount);
 
+        // 记录数据导出阶段的总行数，用于估算剩余时间
+        try {
+            SpringContextUtil.getBean(ThroughputTracker.class)
+                    .setExpected(context.getMainTask().getMainTaskId(), ThroughputPhase.DATA_EXPORT, totalCount);
+        } catch (Exception e) {
+            log.warn("[LIFECYCLE-MAIN-3] getHeaders: 记录导出总行数失败，不影响导出。错误: {}", e.getMessage());
+        }
+
         // 如果 totalCount 为 0，也至少创建一个 Sheet 的表头
         if (totalCount == 0) {
             totalCount = 1;
@@ -213,6 +224,8 @@ public abstract class GenericExportAdapter<QUERY extends GenericExportQuery, DAT
             return Collections.emptyList();
         }
 
+        // 登记本次查询的范围，取件凭证模式下分发器只投递范围而不是数据本身
+        DataSliceRegistry.record(subTaskId, bizExportPage.getOffset(), pageSize);
         try {
             // 使用数据访问器查询数据
             List<DATA> dataList = getDataAccessor().queryByPage(query, bizExportPage.getOffset(), pageSize);
@@ -220,6 +233,7 @@ public abstract class GenericExportAdapter<QUERY extends GenericExportQuery, DAT
             return dataList;
 
         } catch (Exception e) {
+            DataSliceRegistry.remove(subTaskId);
             log.error("[LIFECYCLE-SUB-1] queryData on subTask: {}: 查询{}数据时发生数据库异常", subTaskId, getExportCode(), e);
             throw new BizException("QUERY_DATA_ERROR", "查询" + getExportCode() + "数据失败: " + e.getMessage());
         }
@@ -242,6 +256,8 @@ public abstract class GenericExportAdapter<QUERY extends GenericExportQuery, DAT
         } catch (Exception e) {
             // 只记录日志，不中断导出流程
             log.error("子任务 {} 在处理{}批数据时发生错误，但导出将继续。错误: {}", subTaskId, getExportCode(), e.getMessage(), e);
+        } finally {
+            DataSliceRegistry.remove(subTaskId);
         }
 
         // 2. 执行数据模型转换，生成用于Excel的View列表
@@ -249,6 +265,8 @@ public abstract class GenericExportAdapter<QUERY extends GenericExportQuery, DAT
                 .map(getDataConverter()::convertToView)
                 .collect(Collectors.toList());
 
+        SpringContextUtil.getBean(ThroughputTracker.class)
+                .record(context.getMainTask().getMainTaskId(), subTaskId, ThroughputPhase.DATA_EXPORT, viewList.size());
         log.info("[LIFECYCLE-SUB-2] convert on subTask: {}: {}数据转换完成。", subTaskId, getExportCode());
         return viewList;
     }
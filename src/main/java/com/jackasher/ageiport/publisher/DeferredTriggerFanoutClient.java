@@ -0,0 +1,244 @@
+package com.jackasher.ageiport.publisher;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.springframework.stereotype.Component;
+
+import com.jackasher.ageiport.config.export.ExportProperties;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 并发通知多个节点的 HTTP 客户端。
+ * 1. 使用连接池和长连接，重复通知同一节点时复用连接；
+ * 2. 所有节点并行通知，总耗时取决于最慢的节点而不是节点数量；
+ * 3. 每个节点有独立的截止时间，失败后按指数退避加随机抖动重试，4xx 响应不重试；
+ * 4. 返回汇总结果，列出成功和失败的节点。
+ */
+@Component
+@Slf4j
+public class DeferredTriggerFanoutClient {
+
+    @Resource
+    private ExportProperties exportProperties;
+
+    private PoolingHttpClientConnectionManager connectionManager;
+
+    private CloseableHttpClient httpClient;
+
+    private ThreadPoolExecutor executor;
+
+    /**
+     * 一次并发通知的汇总结果
+     */
+    public static class FanoutResult {
+        private final List<String> succeeded;
+        private final Map<String, String> failed;
+        private final long elapsedMillis;
+
+        FanoutResult(List<String> succeeded, Map<String, String> failed, long elapsedMillis) {
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * 通知成功的节点地址
+         */
+        public List<String> getSucceeded() {
+            return succeeded;
+        }
+
+        /**
+         * 通知失败的节点地址及最后一次失败原因
+         */
+        public Map<String, String> getFailed() {
+            return failed;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public boolean isAllSucceeded() {
+            return failed.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "成功 " + succeeded.size() + " 个, 失败 " + failed.size() + " 个, 耗时 " + elapsedMillis + "ms";
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        int maxConnections = Math.max(1, exportProperties.getDeferredTriggerHttp().getMaxConnections());
+        connectionManager = new PoolingHttpClientConnectionManager(60, TimeUnit.SECONDS);
+        connectionManager.setMaxTotal(maxConnections);
+        // 每个节点只接收少量通知，限制单节点连接数，避免一个节点占满连接池
+        connectionManager.setDefaultMaxPerRoute(Math.min(4, maxConnections));
+        connectionManager.setValidateAfterInactivity(2_000);
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .evictExpiredConnections()
+                .evictIdleConnections(30, TimeUnit.SECONDS)
+                // 重试由本类按截止时间控制
+                .disableAutomaticRetries()
+                .build();
+
+        AtomicInteger threadIndex = new AtomicInteger();
+        executor = new ThreadPoolExecutor(maxConnections, maxConnections, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "deferred-trigger-fanout-" + threadIndex.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            log.warn("[HTTP-Fanout] 关闭 HTTP 客户端失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 并行向所有地址 POST 同一个 JSON 请求体，等待所有节点成功或到达各自的截止时间后返回
+     *
+     * @param urls     各节点的完整请求地址
+     * @param jsonBody 请求体
+     */
+    public FanoutResult postAll(List<String> urls, String jsonBody) {
+        long start = System.currentTimeMillis();
+        ExportProperties.DeferredTriggerHttp config = exportProperties.getDeferredTriggerHttp();
+        long deadline = start + config.getDeadlineMs();
+
+        Map<String, Future<String>> futures = new LinkedHashMap<>();
+        for (String url : urls) {
+            futures.put(url, executor.submit(() -> postWithRetry(url, jsonBody, deadline, config)));
+        }
+
+        List<String> succeeded = new ArrayList<>();
+        Map<String, String> failed = new LinkedHashMap<>();
+        for (Map.Entry<String, Future<String>> entry : futures.entrySet()) {
+            // 线程池排队时也可能超过截止时间，这里再兜底等待一小段时间
+            long remaining = deadline - System.currentTimeMillis() + config.getRequestTimeoutMs();
+            try {
+                String error = entry.getValue().get(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+                if (error == null) {
+                    succeeded.add(entry.getKey());
+                } else {
+                    failed.put(entry.getKey(), error);
+                }
+            } catch (TimeoutException e) {
+                entry.getValue().cancel(true);
+                failed.put(entry.getKey(), "超过截止时间");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed.put(entry.getKey(), "等待结果时被中断");
+            } catch (ExecutionException | CancellationException e) {
+                failed.put(entry.getKey(), String.valueOf(e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+            }
+        }
+        return new FanoutResult(Collections.unmodifiableList(succeeded), Collections.unmodifiableMap(failed),
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 在截止时间内尝试通知一个节点
+     *
+     * @return 成功时返回 null，否则返回最后一次失败的原因
+     */
+    private String postWithRetry(String url, String jsonBody, long deadline, ExportProperties.DeferredTriggerHttp config) {
+        String lastError = "未尝试";
+        int maxAttempts = Math.max(1, config.getMaxAttempts());
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return lastError + " (已到截止时间)";
+            }
+            try {
+                int status = post(url, jsonBody, (int) Math.min(remaining, config.getRequestTimeoutMs()),
+                        (int) Math.min(remaining, config.getConnectTimeoutMs()));
+                if (status >= 200 && status < 300) {
+                    if (attempt > 1) {
+                        log.info("[HTTP-Fanout] 节点 {} 第 {} 次尝试通知成功", url, attempt);
+                    }
+                    return null;
+                }
+                lastError = "HTTP " + status;
+                if (status >= 400 && status < 500) {
+                    // 请求本身有问题，重试也不会成功
+                    return lastError;
+                }
+            } catch (IOException e) {
+                lastError = e.getClass().getSimpleName() + ": " + e.getMessage();
+            }
+            log.warn("[HTTP-Fanout] 通知节点 {} 失败 (第 {} 次尝试): {}", url, attempt, lastError);
+
+            if (attempt < maxAttempts) {
+                // 指数退避，在 [backoff/2, backoff] 之间随机，避免所有失败节点同时重试
+                long backoff = config.getRetryBackoffMs() << (attempt - 1);
+                long sleep = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+                sleep = Math.min(sleep, deadline - System.currentTimeMillis());
+                if (sleep > 0) {
+                    try {
+                        Thread.sleep(sleep);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return lastError + " (重试时被中断)";
+                    }
+                }
+            }
+        }
+        return lastError;
+    }
+
+    private int post(String url, String jsonBody, int requestTimeoutMs, int connectTimeoutMs) throws IOException {
+        HttpPost post = new HttpPost(URI.create(url));
+        post.setConfig(RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutMs)
+                .setConnectionRequestTimeout(connectTimeoutMs)
+                .setSocketTimeout(requestTimeoutMs)
+                .build());
+        post.setEntity(new StringEntity(jsonBody, ContentType.APPLICATION_JSON.withCharset(StandardCharsets.UTF_8)));
+        try (CloseableHttpResponse response = httpClient.execute(post)) {
+            // 读完响应体才能把连接归还连接池复用
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        }
+    }
+}
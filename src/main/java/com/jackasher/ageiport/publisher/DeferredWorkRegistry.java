@@ -0,0 +1,129 @@
+package com.jackasher.ageiport.publisher;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.jackasher.ageiport.config.export.ExportProperties;
+import com.jackasher.ageiport.dispatcher.GenericProcessingDispatcher;
+import com.jackasher.ageiport.utils.network.NetworkUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 延迟任务登记表，记录哪些节点持有某个主任务的延迟批次。
+ * <pre>
+ *   ageiport:deferred_work:{mainTaskId}   持有延迟批次的节点标识集合，过期时间与导出任务超时时间一致
+ *   ageiport:deferred_trigger:{nodeId}    每个节点专属的触发指令 Stream，由该节点的消费组读取
+ * </pre>
+ * 主任务完成时只向集合中的节点投递触发指令，节点取走本地延迟批次后把自己从集合中移除。
+ * 本节点持有延迟批次期间定时重新登记并续期，登记失败的主任务由此重试，运行时间超过过期时间的导出也不会丢失登记。
+ */
+@Service
+@Slf4j
+public class DeferredWorkRegistry {
+
+    private static final String WORK_KEY_PREFIX = "ageiport:deferred_work:";
+    private static final String TRIGGER_STREAM_PREFIX = "ageiport:deferred_trigger:";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ExportProperties exportProperties;
+
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    private String nodeId;
+
+    // 本节点持有延迟批次的主任务，取走后移除
+    private final Set<String> held = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    public void init() {
+        nodeId = NetworkUtils.getLocalNodeId(serverPort);
+    }
+
+    /**
+     * 本节点标识
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * 登记本节点持有该主任务的延迟批次，同一主任务只需登记一次。
+     * 写入 Redis 失败时抛出异常，该主任务仍记为本节点持有，由 {@link #refresh} 重试
+     */
+    public void register(String mainTaskId) {
+        held.add(mainTaskId);
+        String key = workKeyOf(mainTaskId);
+        stringRedisTemplate.opsForSet().add(key, nodeId);
+        stringRedisTemplate.expire(key, exportProperties.getTaskTimeout(), TimeUnit.MILLISECONDS);
+        log.info("[Deferred-Registry] 节点 {} 登记持有主任务 {} 的延迟批次", nodeId, mainTaskId);
+    }
+
+    /**
+     * 本节点的延迟批次已取走，从登记表中移除
+     */
+    public void unregister(String mainTaskId) {
+        held.remove(mainTaskId);
+        stringRedisTemplate.opsForSet().remove(workKeyOf(mainTaskId), nodeId);
+    }
+
+    /**
+     * 定时为本节点仍持有延迟批次的主任务重新登记并续期，一次管道往返
+     */
+    @Scheduled(fixedDelayString = "${ageiport.export.deferred-registry-refresh-ms:30000}")
+    public void refresh() {
+        // 其他触发方式（HTTP、广播）取走的延迟批次不会经过 unregister，在这里剔除
+        held.removeIf(mainTaskId -> !GenericProcessingDispatcher.hasDeferredTasks(mainTaskId));
+        if (held.isEmpty()) {
+            return;
+        }
+        long ttlMillis = exportProperties.getTaskTimeout();
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (String mainTaskId : held) {
+                    conn.sAdd(workKeyOf(mainTaskId), nodeId);
+                    conn.pExpire(workKeyOf(mainTaskId), ttlMillis);
+                }
+                return null;
+            });
+        } catch (RuntimeException e) {
+            log.warn("[Deferred-Registry] 续期节点 {} 的 {} 个延迟批次登记失败，下个周期重试: {}", nodeId, held.size(), e.getMessage());
+        }
+    }
+
+    /**
+     * 持有该主任务延迟批次的所有节点
+     */
+    public Set<String> getHolders(String mainTaskId) {
+        Set<String> holders = stringRedisTemplate.opsForSet().members(workKeyOf(mainTaskId));
+        return holders == null ? Collections.emptySet() : holders;
+    }
+
+    /**
+     * 指定节点的触发指令 Stream
+     */
+    public static String triggerStreamOf(String nodeId) {
+        return TRIGGER_STREAM_PREFIX + nodeId;
+    }
+
+    private static String workKeyOf(String mainTaskId) {
+        return WORK_KEY_PREFIX + mainTaskId;
+    }
+}
@@ -0,0 +1,88 @@
+package com.jackasher.ageiport.publisher;
+
+import java.util.Collections;
+import java.util.Set;
+
+import javax.annotation.Resource;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import com.alibaba.ageiport.processor.core.model.core.impl.MainTask;
+import com.jackasher.ageiport.constant.DeferredBroadcast;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 定向投递的延迟任务触发策略。
+ * 只向登记表中持有该主任务延迟批次的节点投递，指令写入各节点专属的 Redis Stream，
+ * 节点短暂断开期间的指令保留在 Stream 中，重连后由消费组继续读取，不会像 Pub/Sub 一样丢失。
+ * 与 {@link com.jackasher.ageiport.listener.StreamDeferredTaskConsumer} 一样只在启动时配置为 stream 时注册，
+ * 未注册时选择 stream 会回退到 HTTP 策略。
+ */
+@Service
+@ConditionalOnProperty(prefix = "ageiport.export", name = "deferred-trigger-strategy", havingValue = "stream")
+@Slf4j
+public class StreamDeferredTaskTriggerStrategy implements DeferredTaskTriggerStrategy {
+
+    public static final String STRATEGY_NAME = DeferredBroadcast.STREAM;
+
+    public static final String FIELD_MAIN_TASK_ID = "mainTaskId";
+
+    // 每个节点的 Stream 只保留最近的指令，已确认的旧指令没有保留价值
+    private static final long STREAM_MAX_LENGTH = 1_000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private DeferredWorkRegistry deferredWorkRegistry;
+
+    @Resource
+    private HttpDeferredTaskTriggerStrategy httpDeferredTaskTriggerStrategy;
+
+    @Override
+    public String getStrategyName() {
+        return STRATEGY_NAME;
+    }
+
+    @Override
+    public void trigger(MainTask mainTask) {
+        String mainTaskId = mainTask.getMainTaskId();
+        Set<String> holders;
+        try {
+            holders = deferredWorkRegistry.getHolders(mainTaskId);
+        } catch (Exception e) {
+            log.error("[Stream-Trigger] 读取延迟任务登记表失败, 降级到HTTP方案. MainTaskID: {}", mainTaskId, e);
+            httpDeferredTaskTriggerStrategy.trigger(mainTask);
+            return;
+        }
+        if (holders.isEmpty()) {
+            // 登记失败或登记表已过期时无法确定持有节点，退回到广播，没有延迟批次的节点收到通知时直接忽略
+            log.info("[Stream-Trigger] 登记表中没有节点持有主任务 {} 的延迟批次，降级到HTTP方案", mainTaskId);
+            httpDeferredTaskTriggerStrategy.trigger(mainTask);
+            return;
+        }
+
+        log.info("[Stream-Trigger] 主任务 {} 的延迟批次分布在 {} 个节点上: {}", mainTaskId, holders.size(), holders);
+        int failed = 0;
+        for (String nodeId : holders) {
+            String stream = DeferredWorkRegistry.triggerStreamOf(nodeId);
+            try {
+                stringRedisTemplate.opsForStream().add(StreamRecords.string(
+                        Collections.singletonMap(FIELD_MAIN_TASK_ID, mainTaskId)).withStreamKey(stream));
+                stringRedisTemplate.opsForStream().trim(stream, STREAM_MAX_LENGTH, true);
+            } catch (Exception e) {
+                failed++;
+                log.error("[Stream-Trigger] 向节点 {} 投递指令失败. MainTaskID: {}, 错误: {}", nodeId, mainTaskId, e.getMessage());
+            }
+        }
+        if (failed > 0) {
+            // 任一节点投递失败时退回到广播，各节点的延迟批次只会被取走一次，重复通知无副作用
+            log.info("[Stream-Trigger] {} 个节点投递失败，降级到HTTP方案", failed);
+            httpDeferredTaskTriggerStrategy.trigger(mainTask);
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package com.jackasher.ageiport.service.attachment;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import com.alibaba.ageiport.ext.file.store.FileStore;
+import com.alibaba.ageiport.processor.core.AgeiPort;
+import com.jackasher.ageiport.config.export.ExportProperties;
+import com.jackasher.ageiport.config.local.LocalFileStore;
+import com.jackasher.ageiport.config.minio.MinioFileStore;
+import com.jackasher.ageiport.utils.ioc.SpringContextUtil;
+
+/**
+ * 附件流式打包流水线。
+ * 下载 → 压缩 → 上传 三个阶段全部在内存中以流的方式衔接，不落本地临时文件：
+ * 1. 下载：最多 windowSize 个附件同时通过 {@link AttachmentFetchService} 并发读取，先查询大小，
+ *    按大小从本节点共享的字节预算（windowBytesMb）中占用额度后才读入内存，预算不足时不再发起新的下载；
+ *    超过 streamThresholdMb 的附件不读入内存，轮到它时直接以流的方式写入压缩包；
+ * 2. 压缩：单个写线程按原始顺序从有界重排窗口中取出已就绪的附件交给 {@link ParallelZipWriter}，
+ *    条目写入后归还其占用的预算；单个条目内部按块多线程压缩，难以压缩的条目自动改为 STORED；
+ * 3. 上传：zip 字节经管道直接交给当前配置的 FileStore 保存（MinIO 下按分片并发上传）。
+ * 任一阶段失败都会中断上传，不会在 FileStore 中留下截断的压缩包。
+ *
+ * @author Jackasher
+ * @version 1.0
+ * @since 1.0
+ */
+@Service
+public class AttachmentArchivePipeline {
+
+    private static final Logger log = LoggerFactory.getLogger(AttachmentArchivePipeline.class);
+
+    private static final int ZIP_BUFFER_SIZE = 64 * 1024;
+
+    @Resource
+    private ExportProperties exportProperties;
+
+    @Resource
+    private AttachmentFetchService attachmentFetchService;
+
+    private ExecutorService uploadExecutor;
+    private ExecutorService deflateExecutor;
+
+    // 读入内存的附件字节预算，单位KB，所有打包任务共享
+    private Semaphore memoryBudget;
+    private int memoryBudgetKb;
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger uploadThreadNo = new AtomicInteger();
+        this.uploadExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "attachment-archive-upload-" + uploadThreadNo.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        int deflateThreads = exportProperties.getAttachmentArchive().getDeflateThreads();
+        if (deflateThreads <= 0) {
+            deflateThreads = Runtime.getRuntime().availableProcessors();
+        }
+        AtomicInteger deflateThreadNo = new AtomicInteger();
+        this.deflateExecutor = Executors.newFixedThreadPool(deflateThreads, r -> {
+            Thread t = new Thread(r, "attachment-archive-deflate-" + deflateThreadNo.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.memoryBudgetKb = Math.max(1, exportProperties.getAttachmentArchive().getWindowBytesMb()) * 1024;
+        // 公平模式，队首条目的阻塞等待不会被其他任务的试探性占用一直插队
+        this.memoryBudget = new Semaphore(memoryBudgetKb, true);
+        log.info("附件打包流水线初始化完成 - 压缩线程数: {}, 内存预算: {}KB", deflateThreads, memoryBudgetKb);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (uploadExecutor != null) {
+            uploadExecutor.shutdownNow();
+        }
+        if (deflateExecutor != null) {
+            deflateExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 压缩包在 FileStore 中的存储路径：{storeDirectory}/{mainTaskId}/{zipFileName}
+     */
+    public String storePathOf(String mainTaskId, String zipFileName) {
+        return exportProperties.getAttachmentArchive().getStoreDirectory() + "/" + mainTaskId + "/" + zipFileName;
+    }
+
+    /**
+     * 某一次执行独占的压缩包路径。推测执行的副本与原始执行同时运行，副本写入自己的路径，
+     * 提交成功后通过 {@link #publish} 发布到正式路径，落后的副本不会覆盖已发布的压缩包
+     */
+    public String attemptPathOf(String storePath, String attemptId) {
+        return storePath + ".attempt-" + attemptId.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * 把某一次执行写入的压缩包发布到正式路径，成功后删除执行自己的路径。
+     * 本地存储直接重命名，MinIO 在服务端复制，其他存储退化为读出后重新写入
+     */
+    public void publish(String attemptPath, String storePath) throws IOException {
+        FileStore fileStore = SpringContextUtil.getBean(AgeiPort.class).getFileStore();
+        if (fileStore instanceof LocalFileStore) {
+            ((LocalFileStore) fileStore).rename(attemptPath, storePath);
+            log.info("附件压缩包已发布: {} -> {}", attemptPath, storePath);
+            return;
+        }
+        if (fileStore instanceof MinioFileStore) {
+            ((MinioFileStore) fileStore).copy(attemptPath, storePath);
+        } else {
+            try (InputStream in = fileStore.get(attemptPath, new HashMap<>())) {
+                if (in == null) {
+                    throw new IOException("待发布的压缩包不存在: " + attemptPath);
+                }
+                fileStore.save(storePath, in, new HashMap<>());
+            }
+        }
+        discard(attemptPath);
+        log.info("附件压缩包已发布: {} -> {}", attemptPath, storePath);
+    }
+
+    /**
+     * 删除未被采用的压缩包，失败时只记录日志
+     */
+    public void discard(String path) {
+        try {
+            SpringContextUtil.getBean(AgeiPort.class).getFileStore().remove(path, new HashMap<>());
+        } catch (Exception e) {
+            log.warn("删除未采用的压缩包失败: {}, 原因: {}", path, e.getMessage());
+        }
+    }
+
+    /**
+     * 将一批附件打包为一个 zip 并直接写入 FileStore。
+     * 单个附件下载失败只计入失败数并跳过该条目；压缩或上传失败则整体抛出异常。
+     *
+     * @param storePath FileStore 中的目标路径
+     * @param entries   按写入顺序排列的压缩包条目
+     * @param listener  每个条目处理完成后的回调
+     * @return 打包结果统计
+     */
+    public ArchiveResult archive(String storePath, List<Entry> entries, EntryListener listener) throws IOException {
+        ExportProperties.AttachmentArchive config = exportProperties.getAttachmentArchive();
+        int windowSize = Math.max(1, config.getWindowSize());
+        FileStore fileStore = SpringContextUtil.getBean(AgeiPort.class).getFileStore();
+
+        PipedInputStream pipeIn = new PipedInputStream(Math.max(1, config.getPipeBufferKb()) * 1024);
+        PipedOutputStream pipeOut = new PipedOutputStream(pipeIn);
+        Future<?> upload = uploadExecutor.submit(() -> {
+            try {
+                fileStore.save(storePath, pipeIn, new HashMap<>());
+            } finally {
+                closeQuietly(pipeIn);
+            }
+        });
+
+        // 同一对象在窗口内被多行引用时共享一次读取，窗口位置被取出后即释放，窗口外的重复引用由获取层的缓存命中
+        Map<AttachmentKey, CompletableFuture<byte[]>> shared = new HashMap<>();
+        List<Slot> window = new ArrayList<>(entries.size());
+        int streamThresholdKb = Math.min(memoryBudgetKb, Math.max(1, config.getStreamThresholdMb()) * 1024);
+
+        ArchiveResult result = new ArchiveResult(storePath);
+        boolean completed = false;
+        try {
+            ParallelZipWriter zip = new ParallelZipWriter(new BufferedOutputStream(pipeOut, ZIP_BUFFER_SIZE), deflateExecutor,
+                    config.getCompressionLevel(), config.getDeflateBlockKb() * 1024, config.getStoredRatioThreshold());
+            int admitted = 0;
+            for (int i = 0; i < entries.size(); i++) {
+                // 执行被取消（如推测执行中已有其他执行先完成）时尽快停止，未完成的上传在 finally 中取消
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("打包被取消: " + storePath);
+                }
+                // 窗口内保持 windowSize 个条目在查询大小，写线程只等待队首条目
+                while (window.size() < entries.size() && window.size() < i + windowSize) {
+                    AttachmentKey key = entries.get(window.size()).getKey();
+                    window.add(new Slot(attachmentFetchService.sizeOfAsync(key)));
+                }
+                // 按顺序为大小已知的条目占用预算并发起下载，队首条目一定会被放行
+                while (admitted < window.size() && admit(window.get(admitted), entries.get(admitted).getKey(),
+                        admitted == i, streamThresholdKb, shared, storePath)) {
+                    admitted++;
+                }
+
+                Entry entry = entries.get(i);
+                Slot slot = window.set(i, null);
+                try {
+                    long size;
+                    if (slot.failure != null) {
+                        size = -1;
+                    } else if (slot.data == null) {
+                        size = putStream(zip, entry);
+                    } else {
+                        shared.remove(entry.getKey(), slot.data);
+                        byte[] data = await(slot.data, storePath);
+                        zip.putEntry(entry.getEntryName(), data);
+                        size = data.length;
+                    }
+                    if (size < 0) {
+                        if (slot.failure != null) {
+                            log.warn("附件 {} 读取失败，跳过该条目: {}", entry.getKey(), slot.failure.getMessage());
+                        }
+                        result.failureCount++;
+                        listener.onEntryFinished(entry, false);
+                        continue;
+                    }
+                    result.successCount++;
+                    listener.onEntryFinished(entry, true);
+                    result.uncompressedBytes += size;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+                    log.warn("附件 {} 读取失败，跳过该条目: {}", entry.getKey(), cause != null ? cause.getMessage() : e.getMessage());
+                    result.failureCount++;
+                    listener.onEntryFinished(entry, false);
+                } catch (ZipException e) {
+                    log.warn("压缩包条目 {} 重复，跳过该条目: {}", entry.getEntryName(), e.getMessage());
+                    result.failureCount++;
+                    listener.onEntryFinished(entry, false);
+                } finally {
+                    slot.releaseBudget(memoryBudget);
+                }
+            }
+            zip.close();
+            result.storedCount = zip.getStoredCount();
+            awaitUpload(upload, storePath);
+            completed = true;
+        } catch (IOException e) {
+            // 上传端先失败时写端只会看到管道关闭，优先抛出上传端的真实原因
+            if (!completed && upload.isDone() && !upload.isCancelled()) {
+                awaitUpload(upload, storePath);
+            }
+            throw e;
+        } finally {
+            if (!completed) {
+                // 中断上传线程，使 FileStore 以异常结束而不是把截断的数据当作完整文件提交
+                upload.cancel(true);
+                closeQuietly(pipeIn);
+                for (Slot pending : window) {
+                    if (pending != null) {
+                        pending.size.cancel(false);
+                        if (pending.data != null) {
+                            pending.data.cancel(false);
+                        }
+                        pending.releaseBudget(memoryBudget);
+                    }
+                }
+            }
+        }
+
+        log.info("附件压缩包已写入文件存储: {}, 成功: {}, 失败: {}, 其中STORED: {}, 原始字节数: {}",
+                storePath, result.successCount, result.failureCount, result.storedCount, result.uncompressedBytes);
+        return result;
+    }
+
+    /**
+     * 为条目占用预算并发起下载。大小未知（非队首）或预算不足（非队首）时返回 false，等写线程前进后再试；
+     * 队首条目阻塞等待大小和预算，此时本任务没有占用任何预算，其他任务归还后一定能拿到。
+     * 大小查询失败的条目和超过流式阈值的条目不占用预算
+     */
+    private boolean admit(Slot slot, AttachmentKey key, boolean head, int streamThresholdKb,
+                          Map<AttachmentKey, CompletableFuture<byte[]>> shared, String storePath) throws IOException {
+        if (!head && !slot.size.isDone()) {
+            return false;
+        }
+        long size;
+        try {
+            size = await(slot.size, storePath);
+        } catch (ExecutionException e) {
+            slot.failure = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+            return true;
+        }
+        long kb = Math.max(1, (size + 1023) / 1024);
+        if (kb > streamThresholdKb) {
+            return true;
+        }
+        int permits = (int) kb;
+        if (head) {
+            try {
+                memoryBudget.acquire(permits);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("打包被取消: " + storePath);
+            }
+        } else {
+            try {
+                if (!memoryBudget.tryAcquire(permits, 0, TimeUnit.MILLISECONDS)) {
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("打包被取消: " + storePath);
+            }
+        }
+        slot.permits = permits;
+        slot.data = shared.computeIfAbsent(key, attachmentFetchService::readBytesAsync);
+        return true;
+    }
+
+    /**
+     * 大附件直接从对象流写入压缩包，读取失败返回 -1；写入压缩包过程中的失败无法跳过，整体抛出
+     */
+    private long putStream(ParallelZipWriter zip, Entry entry) throws IOException {
+        InputStream in;
+        try {
+            in = attachmentFetchService.openStream(entry.getKey());
+        } catch (IOException e) {
+            log.warn("附件 {} 读取失败，跳过该条目: {}", entry.getKey(), e.getMessage());
+            return -1;
+        }
+        try (InputStream source = in) {
+            long size = zip.putEntry(entry.getEntryName(), source);
+            log.debug("附件 {} 以流的方式写入压缩包, 字节数: {}", entry.getKey(), size);
+            return size;
+        }
+    }
+
+    /**
+     * 可中断的等待，卡在慢对象上时也能响应取消
+     */
+    private static <T> T await(CompletableFuture<T> future, String storePath) throws IOException, ExecutionException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("打包被取消: " + storePath);
+        }
+    }
+
+    private void awaitUpload(Future<?> upload, String storePath) throws IOException {
+        try {
+            upload.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("等待压缩包上传时被中断: " + storePath);
+        } catch (ExecutionException e) {
+            throw new IOException("压缩包上传失败: " + storePath, e.getCause());
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            // 关闭管道失败不影响结果
+        }
+    }
+
+    /**
+     * 窗口中的一个条目：大小查询结果、读入内存的内容（流式条目为 null）和占用的预算
+     */
+    private static final class Slot {
+
+        private final CompletableFuture<Long> size;
+        private CompletableFuture<byte[]> data;
+        private Throwable failure;
+        private int permits;
+
+        private Slot(CompletableFuture<Long> size) {
+            this.size = size;
+        }
+
+        private void releaseBudget(Semaphore budget) {
+            if (permits > 0) {
+                budget.release(permits);
+                permits = 0;
+            }
+        }
+    }
+
+    /**
+     * 条目处理结果回调，在写线程中按条目顺序调用
+     */
+    @FunctionalInterface
+    public interface EntryListener {
+        void onEntryFinished(Entry entry, boolean success);
+    }
+
+    /**
+     * 压缩包中的一个条目：条目名 + 附件内容键
+     */
+    public static final class Entry {
+
+        private final String entryName;
+        private final AttachmentKey key;
+
+        public Entry(String entryName, AttachmentKey key) {
+            this.entryName = entryName;
+            this.key = key;
+        }
+
+        public String getEntryName() {
+            return entryName;
+        }
+
+        public AttachmentKey getKey() {
+            return key;
+        }
+    }
+
+    /**
+     * 一次打包的结果统计
+     */
+    public static final class ArchiveResult {
+
+        private final String storePath;
+        private int successCount;
+        private int failureCount;
+        private int storedCount;
+        private long uncompressedBytes;
+
+        private ArchiveResult(String storePath) {
+            this.storePath = storePath;
+        }
+
+        public String getStorePath() {
+            return storePath;
+        }
+
+        public int getSuccessCount() {
+            return successCount;
+        }
+
+        public int getFailureCount() {
+            return failureCount;
+        }
+
+        /**
+         * 因压缩率过低而以 STORED 方式写入的条目数
+         */
+        public int getStoredCount() {
+            return storedCount;
+        }
+
+        public long getUncompressedBytes() {
+            return uncompressedBytes;
+        }
+    }
+}
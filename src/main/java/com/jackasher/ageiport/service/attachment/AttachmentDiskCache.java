@@ -0,0 +1,184 @@
+package com.jackasher.ageiport.service.attachment;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 有容量上限的本地磁盘 LRU 附件缓存。
+ * 正在被使用 (pin) 的条目不会被淘汰，释放后才参与淘汰，因此容量上限是软上限。
+ * 容量为 0 时退化为"用完即删"的临时目录。
+ *
+ * @author Jackasher
+ * @version 1.0
+ * @since 1.0
+ */
+public class AttachmentDiskCache {
+
+    private static final Logger log = LoggerFactory.getLogger(AttachmentDiskCache.class);
+
+    private static final String TEMP_FILE_PREFIX = "tmp-";
+
+    private final Path directory;
+    private final long maxBytes;
+
+    // accessOrder = true，迭代顺序即最近最少使用顺序
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(256, 0.75f, true);
+    private long currentBytes = 0;
+
+    private static final class Entry {
+        private final Path path;
+        private final long size;
+        private int pins;
+
+        private Entry(Path path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    public AttachmentDiskCache(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = Math.max(0, maxBytes);
+        Files.createDirectories(directory);
+        loadExistingEntries();
+    }
+
+    /**
+     * 命中则 pin 住条目并返回路径，未命中返回 null
+     */
+    public synchronized Path acquire(String fileName) {
+        Entry entry = index.get(fileName);
+        if (entry == null) {
+            return null;
+        }
+        if (!Files.exists(entry.path)) {
+            // 文件被外部清理，索引作废
+            index.remove(fileName);
+            currentBytes -= entry.size;
+            return null;
+        }
+        entry.pins++;
+        return entry.path;
+    }
+
+    /**
+     * 释放一次 pin，并在需要时触发淘汰
+     */
+    public synchronized void release(String fileName) {
+        Entry entry = index.get(fileName);
+        if (entry != null && entry.pins > 0) {
+            entry.pins--;
+        }
+        evictIfNeeded();
+    }
+
+    /**
+     * 分配一个下载用的临时文件，下载完成后通过 {@link #commit} 原子地放入缓存
+     */
+    public Path newTempFile() {
+        return directory.resolve(TEMP_FILE_PREFIX + UUID.randomUUID());
+    }
+
+    /**
+     * 将下载完成的临时文件原子重命名为缓存文件，返回时条目已被 pin 住一次
+     */
+    public synchronized Path commit(String fileName, Path tempFile) throws IOException {
+        Path target = directory.resolve(fileName);
+        long size = Files.size(tempFile);
+        Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        Entry previous = index.remove(fileName);
+        if (previous != null) {
+            currentBytes -= previous.size;
+        }
+        Entry entry = new Entry(target, size);
+        entry.pins = 1 + (previous != null ? previous.pins : 0);
+        index.put(fileName, entry);
+        currentBytes += size;
+        evictIfNeeded();
+        return target;
+    }
+
+    public synchronized boolean contains(String fileName) {
+        return index.containsKey(fileName);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    private void evictIfNeeded() {
+        Iterator<Map.Entry<String, Entry>> it = index.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (entry.pins > 0) {
+                continue;
+            }
+            it.remove();
+            currentBytes -= entry.size;
+            try {
+                Files.deleteIfExists(entry.path);
+            } catch (IOException e) {
+                log.warn("删除附件缓存文件 {} 失败: {}", entry.path, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 重启后恢复上次留下的缓存文件，按最后修改时间近似还原 LRU 顺序，并清理残留的临时文件
+     */
+    private void loadExistingEntries() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                if (!Files.isRegularFile(file)) {
+                    continue;
+                }
+                if (file.getFileName().toString().startsWith(TEMP_FILE_PREFIX)) {
+                    Files.deleteIfExists(file);
+                } else {
+                    files.add(file);
+                }
+            }
+        }
+        files.sort(Comparator.comparingLong(this::lastModifiedQuietly));
+        synchronized (this) {
+            for (Path file : files) {
+                long size = Files.size(file);
+                index.put(file.getFileName().toString(), new Entry(file, size));
+                currentBytes += size;
+            }
+            evictIfNeeded();
+        }
+        log.info("附件缓存目录 {} 已加载 {} 个条目, 共 {} 字节, 上限 {} 字节", directory, index.size(), currentBytes, maxBytes);
+    }
+
+    private long lastModifiedQuietly(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+}
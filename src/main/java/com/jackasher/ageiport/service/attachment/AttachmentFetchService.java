@@ -0,0 +1,305 @@
+package com.jackasher.ageiport.service.attachment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import com.jackasher.ageiport.config.export.ExportProperties;
+
+import io.minio.GetObjectArgs;
+import io.minio.MinioClient;
+import io.minio.StatObjectArgs;
+
+/**
+ * 附件获取层。
+ * 以 (bucket, object) 为键对附件下载去重：
+ * 1. 批次内：同一批次中重复引用的对象只下载一次；
+ * 2. 跨批次/跨主任务：下载结果落入 fileTempDirectory 下的本地 LRU 缓存，后续引用直接命中；
+ * 3. 并发：同一对象的并发请求通过 single-flight 合并为一次 MinIO GET，其余请求等待首个请求的结果。
+ * 无法整体读入内存的大对象通过 {@link #openStream} 以流的方式读取，不经过上述合并和缓存写入。
+ *
+ * @author Jackasher
+ * @version 1.0
+ * @since 1.0
+ */
+@Service
+public class AttachmentFetchService {
+
+    private static final Logger log = LoggerFactory.getLogger(AttachmentFetchService.class);
+
+    // 单个对象超过缓存容量的该比例时不写入缓存，避免一个大对象把缓存中的其他条目全部挤出
+    private static final int MAX_ENTRY_FRACTION = 8;
+
+    private final ExportProperties exportProperties;
+
+    // 与 FileStoreOptionsFactory 一致，MinioClient 只在 file-store.type=minio 时存在
+    private final Optional<MinioClient> minioClient;
+
+    // 正在下载中的对象，value 在下载结束（成功或失败）时完成
+    private final ConcurrentHashMap<AttachmentKey, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong downloads = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private AttachmentDiskCache cache;
+    private ExecutorService downloadExecutor;
+    private boolean cacheEnabled;
+
+    @Autowired
+    public AttachmentFetchService(ExportProperties exportProperties,
+                                  @Autowired(required = false) MinioClient minioClient) {
+        this.exportProperties = exportProperties;
+        this.minioClient = Optional.ofNullable(minioClient);
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        ExportProperties.AttachmentCache config = exportProperties.getAttachmentCache();
+        Path directory = Paths.get(exportProperties.getFileTempDirectory(), config.getDirectoryName());
+        long maxBytes = config.isEnabled() ? config.getMaxSizeMb() * 1024 * 1024 : 0L;
+        this.cache = new AttachmentDiskCache(directory, maxBytes);
+        this.cacheEnabled = config.isEnabled();
+
+        AtomicInteger threadNo = new AtomicInteger();
+        this.downloadExecutor = Executors.newFixedThreadPool(Math.max(1, config.getDownloadThreads()), r -> {
+            Thread t = new Thread(r, "attachment-download-" + threadNo.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        log.info("附件获取层初始化完成 - 缓存目录: {}, 缓存启用: {}, 下载线程数: {}",
+                directory, config.isEnabled(), config.getDownloadThreads());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (downloadExecutor != null) {
+            downloadExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 当前节点是否具备下载附件的能力
+     */
+    public boolean isAvailable() {
+        return minioClient.isPresent();
+    }
+
+    /**
+     * 在下载线程池中异步读取附件内容到内存，见 {@link #readBytes}
+     */
+    public CompletableFuture<byte[]> readBytesAsync(AttachmentKey key) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return readBytes(key);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, downloadExecutor);
+    }
+
+    /**
+     * 在下载线程池中异步查询附件大小：命中缓存时取缓存文件大小，否则向 MinIO 查询对象元数据
+     */
+    public CompletableFuture<Long> sizeOfAsync(AttachmentKey key) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return sizeOf(key);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, downloadExecutor);
+    }
+
+    public long sizeOf(AttachmentKey key) throws IOException {
+        String fileName = key.cacheFileName();
+        Path hit = cache.acquire(fileName);
+        if (hit != null) {
+            try {
+                return Files.size(hit);
+            } finally {
+                cache.release(fileName);
+            }
+        }
+        try {
+            return requireMinioClient().statObject(StatObjectArgs.builder()
+                    .bucket(key.getBucketName())
+                    .object(key.getObjectName())
+                    .build()).size();
+        } catch (Exception e) {
+            throw new IOException("查询附件大小失败: " + key, e);
+        }
+    }
+
+    /**
+     * 以流的方式读取附件，用于无法整体读入内存的大对象。命中缓存时读取缓存文件，关闭流时释放缓存条目；
+     * 未命中时直接返回 MinIO 的对象流，不写入缓存
+     */
+    public InputStream openStream(AttachmentKey key) throws IOException {
+        String fileName = key.cacheFileName();
+        Path hit = cache.acquire(fileName);
+        if (hit != null) {
+            cacheHits.incrementAndGet();
+            try {
+                return new FilterInputStream(Files.newInputStream(hit)) {
+                    private boolean closed;
+
+                    @Override
+                    public void close() throws IOException {
+                        if (closed) {
+                            return;
+                        }
+                        closed = true;
+                        try {
+                            super.close();
+                        } finally {
+                            cache.release(fileName);
+                        }
+                    }
+                };
+            } catch (IOException e) {
+                cache.release(fileName);
+                throw e;
+            }
+        }
+        downloads.incrementAndGet();
+        try {
+            return requireMinioClient().getObject(GetObjectArgs.builder()
+                    .bucket(key.getBucketName())
+                    .object(key.getObjectName())
+                    .build());
+        } catch (Exception e) {
+            throw new IOException("从MinIO读取附件失败: " + key, e);
+        }
+    }
+
+    /**
+     * 将附件内容直接读入内存，不经过临时文件。
+     * 命中缓存时从缓存读取；未命中时同一对象的并发请求只发起一次 MinIO GET，
+     * 启用缓存时下载结果在返回前写入缓存供后续批次复用，超过缓存容量 1/8 的对象不写入。
+     */
+    public byte[] readBytes(AttachmentKey key) throws IOException {
+        String fileName = key.cacheFileName();
+        byte[] cached = readCached(fileName);
+        if (cached != null) {
+            return cached;
+        }
+
+        CompletableFuture<byte[]> mine = new CompletableFuture<>();
+        CompletableFuture<byte[]> leader = inFlight.putIfAbsent(key, mine);
+        if (leader != null) {
+            coalesced.incrementAndGet();
+            try {
+                return leader.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("等待附件下载时被中断: " + key);
+            } catch (ExecutionException e) {
+                throw new IOException("附件下载失败: " + key, e.getCause());
+            }
+        }
+
+        try {
+            // 抢到下载权后再查一次，避免与刚结束的上一轮下载擦肩而过
+            byte[] data = readCached(fileName);
+            if (data == null) {
+                data = downloadBytes(key);
+                log.debug("附件 {} 下载完成, 累计缓存命中: {}, 累计下载: {}, 累计合并请求: {}",
+                        key, cacheHits.get(), downloads.incrementAndGet(), coalesced.get());
+                // 在移出 inFlight 之前写入缓存，之后到达的请求直接命中缓存
+                if (cacheEnabled) {
+                    storeQuietly(fileName, data);
+                }
+            }
+            mine.complete(data);
+            return data;
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    private byte[] readCached(String fileName) throws IOException {
+        Path hit = cache.acquire(fileName);
+        if (hit == null) {
+            return null;
+        }
+        cacheHits.incrementAndGet();
+        try {
+            return Files.readAllBytes(hit);
+        } finally {
+            cache.release(fileName);
+        }
+    }
+
+    private byte[] downloadBytes(AttachmentKey key) throws IOException {
+        MinioClient client = requireMinioClient();
+        try (InputStream in = client.getObject(GetObjectArgs.builder()
+                .bucket(key.getBucketName())
+                .object(key.getObjectName())
+                .build())) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("从MinIO下载附件失败: " + key, e);
+        }
+    }
+
+    /**
+     * 下载结果写入缓存，已在缓存中或超过单条目上限的对象不写入
+     */
+    private void storeQuietly(String fileName, byte[] data) {
+        if (data.length > cache.getMaxBytes() / MAX_ENTRY_FRACTION || cache.contains(fileName)) {
+            return;
+        }
+        Path temp = cache.newTempFile();
+        try {
+            Files.write(temp, data);
+            cache.commit(fileName, temp);
+            cache.release(fileName);
+        } catch (IOException e) {
+            log.warn("写入附件缓存 {} 失败，不影响本次处理: {}", fileName, e.getMessage());
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                // 临时文件会在下次启动时被清理
+            }
+        }
+    }
+
+    private MinioClient requireMinioClient() {
+        return minioClient.orElseThrow(() ->
+                new IllegalStateException("MinioClient未配置，无法下载附件，请检查file-store.type配置是否为minio"));
+    }
+}
@@ -0,0 +1,87 @@
+package com.jackasher.ageiport.service.attachment;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+
+/**
+ * 附件的内容键 (bucket, object)。
+ * 同一个键在任意行、任意批次、任意主任务中都指向同一个 MinIO 对象，是附件去重的依据。
+ *
+ * @author Jackasher
+ * @version 1.0
+ * @since 1.0
+ */
+public final class AttachmentKey {
+
+    private final String bucketName;
+    private final String objectName;
+
+    private AttachmentKey(String bucketName, String objectName) {
+        this.bucketName = bucketName;
+        this.objectName = objectName;
+    }
+
+    public static AttachmentKey of(String bucketName, String objectName) {
+        if (bucketName == null || bucketName.isEmpty() || objectName == null || objectName.isEmpty()) {
+            throw new IllegalArgumentException("bucketName 和 objectName 均不能为空");
+        }
+        return new AttachmentKey(bucketName, objectName);
+    }
+
+    /**
+     * 按业务约定拼接对象名：归档目录/文件名，归档目录为空时直接使用文件名
+     */
+    public static AttachmentKey of(String bucketName, String archiveName, String fileName) {
+        String objectName = (archiveName == null || archiveName.isEmpty()) ? fileName : archiveName + "/" + fileName;
+        return of(bucketName, objectName);
+    }
+
+    public String getBucketName() {
+        return bucketName;
+    }
+
+    public String getObjectName() {
+        return objectName;
+    }
+
+    /**
+     * 缓存文件名，对键做 SHA-256 以规避对象名中的路径分隔符和超长文件名
+     */
+    public String cacheFileName() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((bucketName + "\n" + objectName).getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("JVM 不支持 SHA-256", e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof AttachmentKey)) {
+            return false;
+        }
+        AttachmentKey that = (AttachmentKey) o;
+        return bucketName.equals(that.bucketName) && objectName.equals(that.objectName);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(bucketName, objectName);
+    }
+
+    @Override
+    public String toString() {
+        return bucketName + "/" + objectName;
+    }
+}
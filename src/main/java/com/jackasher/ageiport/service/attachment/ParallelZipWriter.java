@@ -0,0 +1,523 @@
+package com.jackasher.ageiport.service.attachment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * 多线程压缩的 zip 写入器。
+ * 1. 并行 DEFLATE：参照 pigz 的做法，将条目切成固定大小的块并行压缩，每块以前一块末尾 32KB 作为预设字典，
+ *    非末块以 SYNC_FLUSH 结束并按字节对齐，各块输出直接拼接即为一个合法的 DEFLATE 流；
+ * 2. 自适应 STORED：压缩前对条目头、中、尾各抽样一段做快速压缩，压缩率达不到阈值的条目（如已经是
+ *    高熵的 ddc/demodulation 二进制数据）直接以 STORED 方式写入，不再消耗 CPU。
+ * 条目内容在写入前已完整位于内存时，本地文件头中直接写入 CRC 和长度，不使用数据描述符；
+ * 无法整体读入内存的大条目以流的方式写入，边读边分块压缩，长度和 CRC 写在数据之后的数据描述符中（与
+ * {@link java.util.zip.ZipOutputStream} 相同，超过 4GB 时描述符使用 8 字节长度）；流式条目总是 DEFLATED，
+ * 难以压缩时以 NO_COMPRESSION 级别写出，以便 {@link java.util.zip.ZipInputStream} 也能读取。
+ * 压缩包总大小、条目大小或条目数超过 zip 格式上限时自动写出 zip64 结构。
+ * 该类不是线程安全的，同一实例只能由一个线程写入。
+ *
+ * @author Jackasher
+ * @version 1.0
+ * @since 1.0
+ */
+public class ParallelZipWriter implements Closeable {
+
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int DATA_DESCRIPTOR_SIG = 0x08074b50;
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+    // 通用标志位 bit 11：文件名使用 UTF-8 编码
+    private static final int FLAG_UTF8 = 0x0800;
+    // 通用标志位 bit 3：CRC 和长度写在数据之后的数据描述符中
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    private static final long ZIP32_MAX = 0xFFFFFFFFL;
+    private static final int ZIP16_MAX = 0xFFFF;
+
+    // DEFLATE 的回溯窗口大小
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+    // 流式条目同时在途的压缩分块数上限
+    private static final int MAX_PENDING_BLOCKS = 8;
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int level;
+    private final int blockSize;
+    private final double storedRatioThreshold;
+
+    private final List<CentralEntry> entries = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+    private final byte[] scratch = new byte[8];
+    private long written = 0;
+    private boolean finished = false;
+    private int storedCount = 0;
+
+    private static final class CentralEntry {
+        private final byte[] name;
+        private final int method;
+        private final int flags;
+        private final int dosTime;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long offset;
+
+        private CentralEntry(byte[] name, int method, int flags, int dosTime, long crc, long compressedSize, long size, long offset) {
+            this.name = name;
+            this.method = method;
+            this.flags = flags;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * @param out                  目标输出流，由本对象负责关闭
+     * @param executor             执行分块压缩的线程池
+     * @param level                压缩级别 0-9
+     * @param blockSize            并行压缩的分块大小，单位字节
+     * @param storedRatioThreshold 抽样压缩后 压缩大小/原始大小 超过该值时改用 STORED
+     */
+    public ParallelZipWriter(OutputStream out, ExecutorService executor, int level, int blockSize, double storedRatioThreshold) {
+        this.out = out;
+        this.executor = executor;
+        this.level = level;
+        this.blockSize = Math.max(DICTIONARY_SIZE, blockSize);
+        this.storedRatioThreshold = storedRatioThreshold;
+    }
+
+    /**
+     * 写入一个完整条目
+     *
+     * @throws ZipException 条目名重复
+     */
+    public void putEntry(String name, byte[] data) throws IOException {
+        checkEntry(name);
+
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        List<Future<byte[]>> blocks = (data.length > 0 && !looksIncompressible(data, data.length)) ? submitBlocks(data) : null;
+
+        // 分块在其他线程压缩时，当前线程顺便计算 CRC
+        CRC32 crc32 = new CRC32();
+        crc32.update(data, 0, data.length);
+
+        int method = METHOD_STORED;
+        List<byte[]> compressed = null;
+        long compressedSize = data.length;
+        if (blocks != null) {
+            compressed = collect(blocks);
+            long total = 0;
+            for (byte[] block : compressed) {
+                total += block.length;
+            }
+            // 抽样没能识别出的不可压缩数据，压缩后反而变大时仍退回 STORED
+            if (total < data.length) {
+                method = METHOD_DEFLATED;
+                compressedSize = total;
+            }
+        }
+        if (method == METHOD_STORED) {
+            storedCount++;
+        }
+
+        long offset = written;
+        int dosTime = toDosTime(System.currentTimeMillis());
+        writeInt(LOCAL_HEADER_SIG);
+        writeShort(VERSION_DEFAULT);
+        writeShort(FLAG_UTF8);
+        writeShort(method);
+        writeInt(dosTime);
+        writeInt(crc32.getValue());
+        writeInt(compressedSize);
+        writeInt(data.length);
+        writeShort(nameBytes.length);
+        writeShort(0);
+        writeBytes(nameBytes, 0, nameBytes.length);
+        if (method == METHOD_DEFLATED) {
+            for (byte[] block : compressed) {
+                writeBytes(block, 0, block.length);
+            }
+        } else {
+            writeBytes(data, 0, data.length);
+        }
+        entries.add(new CentralEntry(nameBytes, method, FLAG_UTF8, dosTime, crc32.getValue(), compressedSize, data.length, offset));
+    }
+
+    /**
+     * 以流的方式写入一个条目，内存中最多同时存在 MAX_PENDING_BLOCKS 个分块，条目大小不受内存限制。
+     * 是否压缩按第一个分块抽样判断，难以压缩时按 NO_COMPRESSION 写出并计入 STORED 数；输入流由调用方关闭
+     *
+     * @return 条目的原始字节数
+     * @throws ZipException 条目名重复
+     */
+    public long putEntry(String name, InputStream in) throws IOException {
+        checkEntry(name);
+
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] current = new byte[blockSize];
+        int currentLength = readFully(in, current);
+        int blockLevel = level;
+        if (currentLength == 0 || looksIncompressible(current, currentLength)) {
+            blockLevel = Deflater.NO_COMPRESSION;
+            storedCount++;
+        }
+
+        // 长度和 CRC 未知，本地文件头中置 0，真实值写在数据描述符中
+        int flags = FLAG_UTF8 | FLAG_DATA_DESCRIPTOR;
+        long offset = written;
+        int dosTime = toDosTime(System.currentTimeMillis());
+        writeInt(LOCAL_HEADER_SIG);
+        writeShort(VERSION_DEFAULT);
+        writeShort(flags);
+        writeShort(METHOD_DEFLATED);
+        writeInt(dosTime);
+        writeInt(0);
+        writeInt(0);
+        writeInt(0);
+        writeShort(nameBytes.length);
+        writeShort(0);
+        writeBytes(nameBytes, 0, nameBytes.length);
+
+        long dataOffset = written;
+        CRC32 crc32 = new CRC32();
+        long size = 0;
+        Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        try {
+            byte[] dictionary = new byte[0];
+            boolean last = false;
+            while (!last) {
+                byte[] next = new byte[blockSize];
+                int nextLength = currentLength == 0 ? 0 : readFully(in, next);
+                last = nextLength == 0;
+                crc32.update(current, 0, currentLength);
+                size += currentLength;
+                // 每块带上前一块末尾作为预设字典，与整体读入内存时的分块方式相同
+                byte[] input = new byte[dictionary.length + currentLength];
+                System.arraycopy(dictionary, 0, input, 0, dictionary.length);
+                System.arraycopy(current, 0, input, dictionary.length, currentLength);
+                int dictionaryLength = dictionary.length;
+                int length = currentLength;
+                boolean finalBlock = last;
+                int compressionLevel = blockLevel;
+                pending.add(executor.submit(() -> deflateBlock(input, dictionaryLength, length, finalBlock, compressionLevel)));
+                while (pending.size() >= MAX_PENDING_BLOCKS) {
+                    writeBlock(pending.poll().get());
+                }
+                int tail = Math.min(DICTIONARY_SIZE, currentLength);
+                dictionary = new byte[tail];
+                System.arraycopy(current, currentLength - tail, dictionary, 0, tail);
+                current = next;
+                currentLength = nextLength;
+            }
+            while (!pending.isEmpty()) {
+                writeBlock(pending.poll().get());
+            }
+        } catch (InterruptedException e) {
+            pending.forEach(b -> b.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("等待分块压缩时被中断");
+        } catch (ExecutionException e) {
+            pending.forEach(b -> b.cancel(true));
+            throw new IOException("分块压缩失败", e.getCause());
+        }
+
+        long compressedSize = written - dataOffset;
+        writeInt(DATA_DESCRIPTOR_SIG);
+        writeInt(crc32.getValue());
+        if (compressedSize >= ZIP32_MAX || size >= ZIP32_MAX) {
+            writeLong(compressedSize);
+            writeLong(size);
+        } else {
+            writeInt(compressedSize);
+            writeInt(size);
+        }
+        entries.add(new CentralEntry(nameBytes, METHOD_DEFLATED, flags, dosTime, crc32.getValue(), compressedSize, size, offset));
+        return size;
+    }
+
+    /**
+     * 写出中央目录，之后不能再写入条目
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+
+        long centralOffset = written;
+        for (CentralEntry entry : entries) {
+            boolean sizes64 = entry.size >= ZIP32_MAX || entry.compressedSize >= ZIP32_MAX;
+            boolean offset64 = entry.offset >= ZIP32_MAX;
+            int extraLength = (sizes64 ? 16 : 0) + (offset64 ? 8 : 0);
+            boolean zip64 = extraLength > 0;
+            writeInt(CENTRAL_HEADER_SIG);
+            writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+            writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+            writeShort(entry.flags);
+            writeShort(entry.method);
+            writeInt(entry.dosTime);
+            writeInt(entry.crc);
+            writeInt(sizes64 ? ZIP32_MAX : entry.compressedSize);
+            writeInt(sizes64 ? ZIP32_MAX : entry.size);
+            writeShort(entry.name.length);
+            writeShort(extraLength > 0 ? extraLength + 4 : 0);
+            writeShort(0);
+            writeShort(0);
+            writeShort(0);
+            writeInt(0);
+            writeInt(offset64 ? ZIP32_MAX : entry.offset);
+            writeBytes(entry.name, 0, entry.name.length);
+            if (extraLength > 0) {
+                // zip64 扩展字段，只携带溢出的长度和本地文件头偏移量
+                writeShort(0x0001);
+                writeShort(extraLength);
+                if (sizes64) {
+                    writeLong(entry.size);
+                    writeLong(entry.compressedSize);
+                }
+                if (offset64) {
+                    writeLong(entry.offset);
+                }
+            }
+        }
+        long centralSize = written - centralOffset;
+
+        int count = entries.size();
+        boolean zip64 = count >= ZIP16_MAX || centralOffset >= ZIP32_MAX || centralSize >= ZIP32_MAX;
+        if (zip64) {
+            long zip64EndOffset = written;
+            writeInt(ZIP64_END_SIG);
+            writeLong(44);
+            writeShort(VERSION_ZIP64);
+            writeShort(VERSION_ZIP64);
+            writeInt(0);
+            writeInt(0);
+            writeLong(count);
+            writeLong(count);
+            writeLong(centralSize);
+            writeLong(centralOffset);
+
+            writeInt(ZIP64_LOCATOR_SIG);
+            writeInt(0);
+            writeLong(zip64EndOffset);
+            writeInt(1);
+        }
+        writeInt(END_SIG);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(count, ZIP16_MAX));
+        writeShort(Math.min(count, ZIP16_MAX));
+        writeInt(Math.min(centralSize, ZIP32_MAX));
+        writeInt(Math.min(centralOffset, ZIP32_MAX));
+        writeShort(0);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * 以 STORED 方式写入的条目数
+     */
+    public int getStoredCount() {
+        return storedCount;
+    }
+
+    public int getEntryCount() {
+        return entries.size();
+    }
+
+    private void checkEntry(String name) throws IOException {
+        if (finished) {
+            throw new IOException("压缩包已结束写入");
+        }
+        if (!names.add(name)) {
+            throw new ZipException("duplicate entry: " + name);
+        }
+    }
+
+    /**
+     * 对前 length 字节的头、中、尾三段做最快级别的压缩，估算整个条目的压缩率
+     */
+    private boolean looksIncompressible(byte[] data, int length) {
+        if (storedRatioThreshold >= 1.0 || length < SAMPLE_SIZE) {
+            return false;
+        }
+        int[] starts = {0, (length - SAMPLE_SIZE) / 2, length - SAMPLE_SIZE};
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
+        long in = 0;
+        long compressed = 0;
+        try {
+            int previous = -1;
+            for (int start : starts) {
+                if (start == previous) {
+                    continue;
+                }
+                previous = start;
+                deflater.reset();
+                deflater.setInput(data, start, SAMPLE_SIZE);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    compressed += deflater.deflate(buffer);
+                }
+                in += SAMPLE_SIZE;
+            }
+        } finally {
+            deflater.end();
+        }
+        return (double) compressed / in > storedRatioThreshold;
+    }
+
+    private List<Future<byte[]>> submitBlocks(byte[] data) {
+        List<Future<byte[]>> blocks = new ArrayList<>();
+        for (int off = 0; off < data.length; off += blockSize) {
+            int start = off;
+            int len = Math.min(blockSize, data.length - off);
+            boolean last = start + len == data.length;
+            blocks.add(executor.submit(() -> deflateBlock(data, start, len, last, level)));
+        }
+        return blocks;
+    }
+
+    private List<byte[]> collect(List<Future<byte[]>> blocks) throws IOException {
+        List<byte[]> result = new ArrayList<>(blocks.size());
+        try {
+            for (Future<byte[]> block : blocks) {
+                result.add(block.get());
+            }
+            return result;
+        } catch (InterruptedException e) {
+            blocks.forEach(b -> b.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("等待分块压缩时被中断");
+        } catch (ExecutionException e) {
+            blocks.forEach(b -> b.cancel(true));
+            throw new IOException("分块压缩失败", e.getCause());
+        }
+    }
+
+    /**
+     * 压缩单个分块：以前一块末尾作为预设字典，非末块以 SYNC_FLUSH 结束保证字节对齐，末块以 BFINAL 结束
+     */
+    private static byte[] deflateBlock(byte[] data, int off, int len, boolean last, int level) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (off > 0) {
+                int dictionaryLength = Math.min(DICTIONARY_SIZE, off);
+                deflater.setDictionary(data, off - dictionaryLength, dictionaryLength);
+            }
+            deflater.setInput(data, off, len);
+            ByteArrayOutputStream block = new ByteArrayOutputStream(len / 2 + 64);
+            byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    block.write(buffer, 0, n);
+                }
+            } else {
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    block.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+            return block.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static int toDosTime(long millis) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(millis);
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25
+                | (c.get(Calendar.MONTH) + 1) << 21
+                | c.get(Calendar.DAY_OF_MONTH) << 16
+                | c.get(Calendar.HOUR_OF_DAY) << 11
+                | c.get(Calendar.MINUTE) << 5
+                | c.get(Calendar.SECOND) >> 1;
+    }
+
+    private void writeShort(int v) throws IOException {
+        scratch[0] = (byte) v;
+        scratch[1] = (byte) (v >>> 8);
+        writeBytes(scratch, 0, 2);
+    }
+
+    private void writeInt(long v) throws IOException {
+        scratch[0] = (byte) v;
+        scratch[1] = (byte) (v >>> 8);
+        scratch[2] = (byte) (v >>> 16);
+        scratch[3] = (byte) (v >>> 24);
+        writeBytes(scratch, 0, 4);
+    }
+
+    private void writeLong(long v) throws IOException {
+        for (int i = 0; i < 8; i++) {
+            scratch[i] = (byte) (v >>> (8 * i));
+        }
+        writeBytes(scratch, 0, 8);
+    }
+
+    private void writeBlock(byte[] block) throws IOException {
+        writeBytes(block, 0, block.length);
+    }
+
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int n = in.read(buffer, total, buffer.length - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    private void writeBytes(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        written += len;
+    }
+}
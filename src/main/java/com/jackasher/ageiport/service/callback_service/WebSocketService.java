@@ -1,25 +1,49 @@
 package com.jackasher.ageiport.service.callback_service;
 
+import javax.annotation.Resource;
+
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import com.alibaba.ageiport.common.logger.Logger;
 import com.alibaba.ageiport.common.logger.LoggerFactory;
+import com.jackasher.ageiport.service.monitor.ProgressTrackerService;
 
+/**
+ * 任务进度通知。
+ * 消息不直接发送给某个连接，而是发布为该任务的进度变更事件，
+ * 各节点的 ProgressStreamHub 收到后重新读取一次进度并推送给正在观察该任务的客户端。
+ */
 @Service
 public class WebSocketService {
     private static final Logger logger = LoggerFactory.getLogger(WebSocketService.class);
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
     public void sendProgressUpdate(String userId, String message, double progress, String taskId) {
-        // TODO: 实现WebSocket消息推送
         logger.info("【WebSocket】>> To User [{}]: Task [{}], Progress: {}%, Message: {}", userId, taskId, progress, message);
+        publishChange(taskId);
     }
     
     public void sendCompletionMessage(String userId, String message, String taskId, String downloadUrl) {
-        // TODO: 实现WebSocket消息推送
         logger.info("【WebSocket】>> To User [{}]: Task [{}], Status: SUCCESS, Message: {}, Download URL: {}", userId, taskId, message, downloadUrl);
+        publishChange(taskId);
     }
 
     public void sendFailureMessage(String userId, String message, String taskId) {
-        // TODO: 实现WebSocket消息推送
         logger.error("【WebSocket】>> To User [{}]: Task [{}], Status: FAILED, Message: {}", userId, taskId, message);
+        publishChange(taskId);
+    }
+
+    private void publishChange(String taskId) {
+        if (taskId == null) {
+            return;
+        }
+        try {
+            stringRedisTemplate.convertAndSend(ProgressTrackerService.changeChannelOf(taskId), "1");
+        } catch (Exception e) {
+            // 推送只是加速前端感知，失败时观察者会在下一个刷新周期拿到最新状态
+            logger.warn("发布任务 {} 的进度变更事件失败: {}", taskId, e.getMessage());
+        }
     }
-}
\ No newline at end of file
+}
@@ -3,7 +3,9 @@ package com.jackasher.ageiport.service.data_processing_service;
 import java.util.List;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -12,6 +14,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
 import com.jackasher.ageiport.model.export.GenericExportQuery;
@@ -43,6 +46,12 @@ public abstract class AbstractDataProcessingServiceAdapter<DATA, QUERY extends G
     @Qualifier("attachmentTaskExecutor")
     private ThreadPoolTaskExecutor attachmentTaskExecutor;
 
+    @Autowired(required = false)
+    private BatchIdempotencyGuard idempotencyGuard;
+
+    @Value("${ageiport.export.idempotency.takeover-attempts:3}")
+    private int takeoverAttempts;
+
     @Override
     public void processData(List<DATA> data, String subTaskId, int pageNum, QUERY query) {
         log.info("开始处理子任务 {} 的数据，批次号：{}", subTaskId, pageNum);
@@ -54,6 +63,67 @@ public abstract class AbstractDataProcessingServiceAdapter<DATA, QUERY extends G
             return;
         }
 
+        if (idempotencyGuard == null) {
+            doProcessDataOrThrow(data, subTaskId, pageNum, query);
+            return;
+        }
+        if (BatchAttempt.current() != null) {
+            // 共享工作队列领取的批次由队列租约保证单一执行，推测执行的副本需要与原始执行并行，只跳过已完成的批次
+            if (idempotencyGuard.isCompleted(subTaskId)) {
+                log.info("子任务 {} 的批次 {} 已处理完成，跳过重复执行", subTaskId, pageNum);
+                return;
+            }
+            doProcessDataOrThrow(data, subTaskId, pageNum, query);
+            idempotencyGuard.markCompleted(subTaskId);
+            return;
+        }
+
+        BatchIdempotencyGuard.Ticket ticket = idempotencyGuard.tryAcquire(subTaskId);
+        switch (ticket.getStatus()) {
+            case COMPLETED:
+                log.info("子任务 {} 的批次 {} 已处理完成，跳过重复投递", subTaskId, pageNum);
+                return;
+            case IN_PROGRESS:
+                // 不作为失败交给消息中间件重试（重试次数会在租约到期前耗尽而进入死信），正常返回确认消息，
+                // 由本节点在租约到期且批次仍未完成时接手处理
+                log.info("子任务 {} 的批次 {} 正在其他执行中处理，已登记在其租约到期后接手", subTaskId, pageNum);
+                standby(data, subTaskId, pageNum, query, 1);
+                return;
+            default:
+                break;
+        }
+        try {
+            doProcessDataOrThrow(data, subTaskId, pageNum, query);
+        } catch (RuntimeException e) {
+            idempotencyGuard.release(ticket);
+            throw e;
+        }
+        idempotencyGuard.complete(ticket);
+    }
+
+    /**
+     * 登记接手处理。接手时在线程池中重新走一遍 processData（重新领取租约），失败时再次登记，最多尝试 takeoverAttempts 次
+     */
+    private void standby(List<DATA> data, String subTaskId, int pageNum, QUERY query, int attempt) {
+        idempotencyGuard.standby(subTaskId, () -> takeoverExecutor().execute(() -> {
+            try {
+                processData(data, subTaskId, pageNum, query);
+            } catch (RuntimeException e) {
+                if (attempt < takeoverAttempts) {
+                    log.warn("接手处理子任务 {} 的批次 {} 失败（第 {} 次），下次检查租约时重试", subTaskId, pageNum, attempt);
+                    standby(data, subTaskId, pageNum, query, attempt + 1);
+                } else {
+                    log.error("接手处理子任务 {} 的批次 {} 失败 {} 次，放弃处理", subTaskId, pageNum, attempt, e);
+                }
+            }
+        }));
+    }
+
+    private Executor takeoverExecutor() {
+        return attachmentTaskExecutor != null ? attachmentTaskExecutor : ForkJoinPool.commonPool();
+    }
+
+    private void doProcessDataOrThrow(List<DATA> data, String subTaskId, int pageNum, QUERY query) {
         try {
             // 调用子类的具体业务处理逻辑
             doProcessData(data, subTaskId, pageNum, query);
@@ -0,0 +1,49 @@
+package com.jackasher.ageiport.service.data_processing_service;
+
+/**
+ * 一个批次的某一次执行。
+ * 同一批次可能同时存在多个执行（原始执行和推测执行的副本），提交结果时以执行标识区分，
+ * 只有第一个提交的执行生效。由调用方在处理线程上绑定，处理结束后解除绑定；
+ * 未绑定时按普通的单次执行处理。
+ *
+ * @author Jackasher
+ */
+public final class BatchAttempt {
+
+    private static final ThreadLocal<BatchAttempt> CURRENT = new ThreadLocal<>();
+
+    private final String attemptId;
+
+    private final boolean speculative;
+
+    public BatchAttempt(String attemptId, boolean speculative) {
+        this.attemptId = attemptId;
+        this.speculative = speculative;
+    }
+
+    /**
+     * 当前线程绑定的执行，未绑定时返回 null
+     */
+    public static BatchAttempt current() {
+        return CURRENT.get();
+    }
+
+    public static void bind(BatchAttempt attempt) {
+        CURRENT.set(attempt);
+    }
+
+    public static void unbind() {
+        CURRENT.remove();
+    }
+
+    public String getAttemptId() {
+        return attemptId;
+    }
+
+    /**
+     * 是否为推测执行的副本。副本不逐条上报进度，提交时以自己的统计覆盖批次计数
+     */
+    public boolean isSpeculative() {
+        return speculative;
+    }
+}
@@ -0,0 +1,267 @@
+package com.jackasher.ageiport.service.data_processing_service;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Resource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.alibaba.ageiport.common.utils.TaskIdUtil;
+import com.jackasher.ageiport.config.export.ExportProperties;
+import com.jackasher.ageiport.utils.business.SubTaskChunkUtils;
+
+/**
+ * 附件批次的幂等保护，避免同一批次被重复执行（Kafka 再均衡后重新投递、RabbitMQ 未确认消息重新投递、
+ * HTTP 与 Redis 两路延迟触发同时到达等）。
+ * <pre>
+ *   ageiport:batch_guard:{mainTaskId}:{subTaskId}:{chunkIndex}
+ *       {token}   正在处理，带租约，处理期间定期续约，节点宕机后租约到期可被重新领取
+ *       done      已处理完成，过期时间与导出任务超时时间一致
+ * </pre>
+ * 领取由 Lua 脚本一次完成：key 不存在时写入租约，存在时返回当前值，重复投递只需一次往返即可判定跳过。
+ * 收到正在处理中的批次时不作为失败交给消息中间件重试（重试次数会在租约到期前耗尽），而是确认消息并在本节点登记待接手：
+ * 定期检查租约，原执行完成时丢弃，租约到期（原执行失败或所在节点宕机）且批次仍未完成时由本节点接手处理。
+ * Redis 不可用时放行，按未加保护的方式处理，不因幂等保护影响导出。
+ *
+ * @author Jackasher
+ */
+@Service
+public class BatchIdempotencyGuard {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchIdempotencyGuard.class);
+
+    private static final String KEY_PREFIX = "ageiport:batch_guard:";
+
+    private static final String DONE = "done";
+
+    /**
+     * ARGV: token, leaseMs
+     * 返回 key 当前的值，等于 token 表示领取成功
+     */
+    private static final DefaultRedisScript<String> ACQUIRE_SCRIPT = new DefaultRedisScript<>(
+            "local v = redis.call('GET', KEYS[1]) " +
+            "if v then return v end " +
+            "redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[2]) " +
+            "return ARGV[1]", String.class);
+
+    /**
+     * ARGV: token, leaseMs
+     */
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('GET', KEYS[1]) ~= ARGV[1] then return 0 end " +
+            "return redis.call('PEXPIRE', KEYS[1], ARGV[2])", Long.class);
+
+    /**
+     * ARGV: token
+     */
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('GET', KEYS[1]) ~= ARGV[1] then return 0 end " +
+            "return redis.call('DEL', KEYS[1])", Long.class);
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ExportProperties exportProperties;
+
+    // 本节点持有的租约：key -> token，定期续约
+    private final Map<String, String> leases = new ConcurrentHashMap<>();
+
+    // 本节点收到的、正由其他执行处理的批次：key -> 接手处理
+    private final Map<String, Runnable> standbys = new ConcurrentHashMap<>();
+
+    /**
+     * 领取结果
+     */
+    public enum Status {
+        ACQUIRED,    // 领取成功，处理完成后调用 complete，失败时调用 release
+        COMPLETED,   // 已处理完成，直接跳过
+        IN_PROGRESS  // 正在其他执行中处理
+    }
+
+    /**
+     * 一次领取的凭据
+     */
+    public static final class Ticket {
+
+        private final Status status;
+
+        private final String key;
+
+        // 未加保护（未开启或 Redis 不可用）时为 null
+        private final String token;
+
+        Ticket(Status status, String key, String token) {
+            this.status = status;
+            this.key = key;
+            this.token = token;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+    }
+
+    /**
+     * 领取批次的处理权
+     *
+     * @param subTaskId 子任务ID，分片消息带有 _chunk_ 后缀
+     */
+    public Ticket tryAcquire(String subTaskId) {
+        String key = keyOf(subTaskId);
+        ExportProperties.Idempotency config = exportProperties.getIdempotency();
+        if (!config.isEnabled()) {
+            return new Ticket(Status.ACQUIRED, key, null);
+        }
+        String token = UUID.randomUUID().toString();
+        String current;
+        try {
+            current = stringRedisTemplate.execute(ACQUIRE_SCRIPT, Collections.singletonList(key),
+                    token, String.valueOf(config.getLeaseMs()));
+        } catch (Exception e) {
+            log.warn("[Idempotency] 领取批次 {} 失败，按未加保护的方式处理: {}", key, e.getMessage());
+            return new Ticket(Status.ACQUIRED, key, null);
+        }
+        if (token.equals(current)) {
+            leases.put(key, token);
+            return new Ticket(Status.ACQUIRED, key, token);
+        }
+        return new Ticket(DONE.equals(current) ? Status.COMPLETED : Status.IN_PROGRESS, key, null);
+    }
+
+    /**
+     * 批次处理完成，之后的重复投递直接跳过
+     */
+    public void complete(Ticket ticket) {
+        leases.remove(ticket.key);
+        markCompletedKey(ticket.key);
+    }
+
+    /**
+     * 批次处理失败，释放租约，重试时可以立即重新领取
+     */
+    public void release(Ticket ticket) {
+        if (ticket.token == null) {
+            return;
+        }
+        leases.remove(ticket.key);
+        try {
+            stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(ticket.key), ticket.token);
+        } catch (Exception e) {
+            log.warn("[Idempotency] 释放批次 {} 的租约失败，等待租约到期: {}", ticket.key, e.getMessage());
+        }
+    }
+
+    /**
+     * 批次正在其他执行中处理时登记接手处理，同一批次只登记一次。
+     * 租约到期且批次仍未完成时在 {@link #sweepStandbys} 中执行 takeover，takeover 不应阻塞调用线程
+     */
+    public void standby(String subTaskId, Runnable takeover) {
+        standbys.putIfAbsent(keyOf(subTaskId), takeover);
+    }
+
+    /**
+     * 批次的数据（如冻结的取件凭证数据）是否可以删除：未开启保护，或批次已处理完成。
+     * 批次仍由其他执行处理时，它失败后的重试还需要这份数据
+     */
+    public boolean isReleasable(String subTaskId) {
+        return !exportProperties.getIdempotency().isEnabled() || isCompleted(subTaskId);
+    }
+
+    /**
+     * 批次是否已处理完成。取件凭证在还原数据前先判断，已完成的批次数据已被删除
+     */
+    public boolean isCompleted(String subTaskId) {
+        if (!exportProperties.getIdempotency().isEnabled()) {
+            return false;
+        }
+        try {
+            return DONE.equals(stringRedisTemplate.opsForValue().get(keyOf(subTaskId)));
+        } catch (Exception e) {
+            log.warn("[Idempotency] 查询批次 {} 状态失败: {}", subTaskId, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 不经过领取直接标记完成，用于共享工作队列领取的批次（队列自身已有租约，推测执行的副本需要并行运行）
+     */
+    public void markCompleted(String subTaskId) {
+        markCompletedKey(keyOf(subTaskId));
+    }
+
+    @Scheduled(fixedDelayString = "${ageiport.export.idempotency.renew-interval-ms:60000}")
+    public void renewLeases() {
+        if (leases.isEmpty()) {
+            return;
+        }
+        String leaseMs = String.valueOf(exportProperties.getIdempotency().getLeaseMs());
+        for (Map.Entry<String, String> lease : leases.entrySet()) {
+            try {
+                Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(lease.getKey()),
+                        lease.getValue(), leaseMs);
+                if (renewed == null || renewed == 0) {
+                    // 租约已过期并被其他执行领取，本次执行完成后仍会标记完成
+                    leases.remove(lease.getKey(), lease.getValue());
+                    log.warn("[Idempotency] 批次 {} 的租约已失效", lease.getKey());
+                }
+            } catch (Exception e) {
+                log.warn("[Idempotency] 续约批次 {} 失败: {}", lease.getKey(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 检查待接手批次的租约：已完成的丢弃，租约仍在（原执行持续续约）的继续等待，租约已到期的接手处理
+     */
+    @Scheduled(fixedDelayString = "${ageiport.export.idempotency.renew-interval-ms:60000}")
+    public void sweepStandbys() {
+        if (standbys.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, Runnable> standby : standbys.entrySet()) {
+            String current;
+            try {
+                current = stringRedisTemplate.opsForValue().get(standby.getKey());
+            } catch (Exception e) {
+                log.warn("[Idempotency] 查询待接手批次 {} 失败: {}", standby.getKey(), e.getMessage());
+                continue;
+            }
+            if (current != null && !DONE.equals(current)) {
+                continue;
+            }
+            if (!standbys.remove(standby.getKey(), standby.getValue())) {
+                continue;
+            }
+            if (current == null) {
+                log.warn("[Idempotency] 批次 {} 的租约已到期且未完成，由本节点接手处理", standby.getKey());
+                standby.getValue().run();
+            }
+        }
+    }
+
+    private void markCompletedKey(String key) {
+        if (!exportProperties.getIdempotency().isEnabled()) {
+            return;
+        }
+        try {
+            stringRedisTemplate.opsForValue().set(key, DONE, exportProperties.getTaskTimeout(), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.warn("[Idempotency] 标记批次 {} 完成失败: {}", key, e.getMessage());
+        }
+    }
+
+    private static String keyOf(String subTaskId) {
+        String parent = SubTaskChunkUtils.parentOf(subTaskId);
+        return KEY_PREFIX + TaskIdUtil.getMainTaskId(parent) + ":" + parent + ":" + SubTaskChunkUtils.chunkIndexOf(subTaskId);
+    }
+}
@@ -1,5 +1,6 @@
 package com.jackasher.ageiport.service.data_processing_service.impl;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -13,11 +14,17 @@ import com.alibaba.ageiport.common.utils.TaskIdUtil;
 import com.jackasher.ageiport.annotation.Timing;
 import com.jackasher.ageiport.constant.PostProcessingTaskStatus;
 import com.jackasher.ageiport.demo.DownloadFileParamDemo;
+import com.jackasher.ageiport.model.dto.SubTaskProgressDetail;
 import com.jackasher.ageiport.model.export.FilePaths;
 import com.jackasher.ageiport.model.ir_message.IrMessageData;
 import com.jackasher.ageiport.model.ir_message.IrMessageQuery;
+import com.jackasher.ageiport.service.attachment.AttachmentArchivePipeline;
+import com.jackasher.ageiport.service.attachment.AttachmentFetchService;
+import com.jackasher.ageiport.service.attachment.AttachmentKey;
 import com.jackasher.ageiport.service.data_processing_service.AbstractDataProcessingServiceAdapter;
+import com.jackasher.ageiport.service.data_processing_service.BatchAttempt;
 import com.jackasher.ageiport.service.monitor.ProgressTrackerService;
+import com.jackasher.ageiport.utils.business.SubTaskChunkUtils;
 import static com.jackasher.ageiport.utils.business.IrMessageUtils.buildFilePaths;
 import static com.jackasher.ageiport.utils.business.IrMessageUtils.getResolvedParams;
 
@@ -29,10 +36,20 @@ public class AttachmentProcessingServiceImpl extends AbstractDataProcessingServi
     @Resource
     ProgressTrackerService progressTracker;
 
+    @Resource
+    AttachmentFetchService attachmentFetchService;
+
+    @Resource
+    AttachmentArchivePipeline attachmentArchivePipeline;
+
     @Override
     @Timing(value = "附件批量处理", unit = "s")
     protected void doProcessData(List<IrMessageData> messages, String subTaskId, int pageNum, IrMessageQuery irMessageQuery) throws Exception {
-        String mainTaskId = TaskIdUtil.getMainTaskId(subTaskId);
+        // Kafka 大消息的分片ID带有 _chunk_ 后缀，按原始子任务ID解析主任务ID
+        String mainTaskId = TaskIdUtil.getMainTaskId(SubTaskChunkUtils.parentOf(subTaskId));
+        // 由共享队列领取时绑定，推测执行的副本不逐条上报进度，避免与原始执行重复计数
+        BatchAttempt attempt = BatchAttempt.current();
+        boolean speculative = attempt != null && attempt.isSpeculative();
         int totalItemsInThisBatch = (messages != null) ? messages.size() : 0;
 
         // 在处理开始时，更新本批次的附件总数
@@ -81,29 +98,96 @@ public class AttachmentProcessingServiceImpl extends AbstractDataProcessingServi
         log.info("下载参数列表大小: {}", downloadParams.size());
 
 
+        // 只有推测执行的副本写入自己的路径，提交成功后再发布到正式路径；
+        // 原始执行直接写正式路径，即使被推测执行后落后，写入的也是同一批附件的完整压缩包
+        String storePath = attachmentArchivePipeline.storePathOf(mainTaskId, filePaths.outZipFileName);
+        String archivePath = speculative ? attachmentArchivePipeline.attemptPathOf(storePath, attempt.getAttemptId()) : storePath;
+        AttachmentArchivePipeline.ArchiveResult archiveResult = null;
         Boolean processAttachments = getResolvedParams(irMessageQuery).getProcessAttachments();
         if (processAttachments) {
             log.info("开始处理附件...");
-            //模拟事件处理中
-            //MinioUtils.downloadFileInCompressFile(minioClient, excelDirectory, outZipFileName, beforeDecodeZipFileName, downloadParams, true, true);
-            log.info("生成目录: {}", filePaths.excelDirectory);
-            Thread.sleep(5_000);
+            if (attachmentFetchService.isAvailable()) {
+                try {
+                    archiveResult = archiveAttachments(messages, mainTaskId, subTaskId, archivePath, !speculative);
+                } catch (Exception e) {
+                    // 被取消或失败的执行不会再提交，释放本地计数器并清理自己写入的压缩包
+                    progressTracker.abandonSubTaskAttempt(subTaskId);
+                    if (speculative) {
+                        attachmentArchivePipeline.discard(archivePath);
+                    }
+                    throw e;
+                }
+            } else {
+                //模拟事件处理中
+                //MinioUtils.downloadFileInCompressFile(minioClient, excelDirectory, outZipFileName, beforeDecodeZipFileName, downloadParams, true, true);
+                log.info("生成目录: {}", filePaths.excelDirectory);
+                Thread.sleep(5_000);
+            }
         } else {
             log.info("附件处理被禁用，跳过附件处理。");
         }
 
         // 标记处理完成
-        int totalFailed = (int) progressTracker.getSubTaskDetail(mainTaskId, subTaskId).get().getFailedItems();
+        boolean ownCounts = speculative && archiveResult != null;
+        long totalFailed = ownCounts ? archiveResult.getFailureCount() :
+                progressTracker.getLatestSubTaskDetail(mainTaskId, subTaskId)
+                        .map(SubTaskProgressDetail::getFailedItems)
+                        .orElse(0L);
         PostProcessingTaskStatus finalStatus = (totalFailed > 0) ?
                 PostProcessingTaskStatus.PARTIALLY_COMPLETED :
                 PostProcessingTaskStatus.COMPLETED;
         String resultMessage = String.format("处理完成。成功: %d, 失败: %d", downloadParams.size() - totalFailed, totalFailed);
-        progressTracker.markSubTaskAsFinished(mainTaskId, subTaskId, finalStatus, resultMessage);
+        if (attempt == null) {
+            progressTracker.markSubTaskAsFinished(mainTaskId, subTaskId, finalStatus, resultMessage);
+        } else if (!progressTracker.commitSubTaskAttempt(mainTaskId, subTaskId, attempt.getAttemptId(), finalStatus, resultMessage,
+                ownCounts ? (long) archiveResult.getSuccessCount() : null, ownCounts ? totalFailed : null)) {
+            log.info("附件批次 {} 已由其他执行先完成，本次执行 {} 的结果不再提交", subTaskId, attempt.getAttemptId());
+            if (speculative && archiveResult != null) {
+                attachmentArchivePipeline.discard(archivePath);
+            }
+            return;
+        } else if (speculative && archiveResult != null) {
+            attachmentArchivePipeline.publish(archivePath, storePath);
+        }
 
         log.info("附件批次处理完成, SubTaskID: {}. {}", subTaskId, resultMessage);
         log.info("子任务 {} 的批次 {} 附件处理并打包成功。", subTaskId, pageNum);
     }
 
+    /**
+     * 边下载边压缩，压缩包直接写入文件存储的 archivePath，reportProgress 为 true 时每个条目完成后即上报进度
+     */
+    private AttachmentArchivePipeline.ArchiveResult archiveAttachments(List<IrMessageData> messages, String mainTaskId,
+                                                                       String subTaskId, String archivePath,
+                                                                       boolean reportProgress) throws Exception {
+        List<AttachmentArchivePipeline.Entry> entries = new ArrayList<>(messages.size());
+        for (IrMessageData msg : messages) {
+            AttachmentKey key = createAttachmentKey(msg);
+            if (key != null) {
+                // 条目名与 createDownloadParam 中的 writeZipFileName 保持一致
+                entries.add(new AttachmentArchivePipeline.Entry(msg.getUuid() + "_" + msg.getDiePickingFileName(), key));
+            }
+        }
+
+        AttachmentArchivePipeline.ArchiveResult result = attachmentArchivePipeline.archive(archivePath, entries,
+                (entry, success) -> {
+                    if (reportProgress) {
+                        progressTracker.recordItemResult(mainTaskId, subTaskId, success);
+                    }
+                });
+        log.info("子任务 {} 附件打包完成, 压缩包: {}, 条目数: {}, 成功: {}, 失败: {}",
+                subTaskId, result.getStorePath(), entries.size(), result.getSuccessCount(), result.getFailureCount());
+        return result;
+    }
+
+    private AttachmentKey createAttachmentKey(IrMessageData msg) {
+        if (msg.getBucketName() == null || msg.getBucketName().isEmpty()
+                || msg.getDiePickingFileName() == null || msg.getDiePickingFileName().isEmpty()) {
+            return null;
+        }
+        return AttachmentKey.of(msg.getBucketName(), msg.getArchiveName(), msg.getDiePickingFileName());
+    }
+
     private DownloadFileParamDemo createDownloadParam(IrMessageData msg) {
         log.trace("尝试为 IrMessageData (UUID: {}) 创建下载参数。", msg.getUuid());
         // 假设需要处理的文件是 diePickingFileName
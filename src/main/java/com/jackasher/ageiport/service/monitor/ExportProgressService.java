@@ -0,0 +1,291 @@
+package com.jackasher.ageiport.service.monitor;
+
+import com.alibaba.ageiport.common.feature.FeatureUtils;
+import com.alibaba.ageiport.processor.core.AgeiPort;
+import com.alibaba.ageiport.processor.core.constants.MainTaskFeatureKeys;
+import com.alibaba.ageiport.processor.core.constants.TaskStatus;
+import com.alibaba.ageiport.processor.core.model.core.impl.MainTask;
+import com.jackasher.ageiport.constant.ThroughputPhase;
+import com.jackasher.ageiport.model.dto.FullProgress;
+import com.jackasher.ageiport.model.dto.PhaseThroughput;
+import com.jackasher.ageiport.model.dto.ProgressSummary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 导出任务聚合进度视图的组装，供查询接口和进度推送共用。
+ *
+ * @author Jackasher
+ */
+@Service
+public class ExportProgressService {
+
+    private static final Logger log = LoggerFactory.getLogger(ExportProgressService.class);
+
+    @Resource
+    private ProgressTrackerService progressTracker;
+
+    @Resource
+    private ThroughputTracker throughputTracker;
+
+    @Resource
+    private AgeiPort ageiPort;
+
+    /**
+     * 构建包括核心数据导出和异步附件处理在内的完整进度视图。
+     *
+     * @param mainTaskId 主任务ID
+     * @param compact    为 true 时只包含附件宏观进度和各状态子任务数，不读取子任务详情
+     * @return 聚合进度视图，任务不存在时返回 null
+     */
+    public Map<String, Object> buildProgressView(String mainTaskId, boolean compact) {
+
+        // 1. 直接从持久化存储中获取 MainTask 实体作为核心进度的真相来源
+        MainTask mainTask = ageiPort.getTaskServerClient().getMainTask(mainTaskId);
+
+        if (mainTask == null) {
+            log.warn("任务不存在, MainTaskID: {}", mainTaskId);
+            return null;
+        }
+
+        // 2. 构建核心导出进度的前端视图
+        Map<String, Object> coreProgressView = buildCoreProgressView(mainTask);
+
+        // 3. 获取附件处理进度，精简模式下不读取子任务详情
+        Map<String, Object> response = new HashMap<>();
+        FullProgress attachmentProgress;
+        if (compact) {
+            attachmentProgress = null;
+            ProgressSummary summary = progressTracker.getSummary(mainTaskId);
+            if (summary != null) {
+                attachmentProgress = new FullProgress();
+                attachmentProgress.setSummary(summary);
+                response.put("subTaskStatusCounts", progressTracker.getSubTaskStatusCounts(mainTaskId));
+            }
+        } else {
+            attachmentProgress = progressTracker.geFullProgress(mainTaskId);
+        }
+
+        // 4. 获取各阶段吞吐量并估算剩余时间，精简模式下不包含子任务速率
+        Map<String, PhaseThroughput> throughput = throughputTracker.getTaskThroughput(mainTaskId, !compact);
+        applyEstimates(throughput, coreProgressView, attachmentProgress);
+
+        // 5. 构建最终的 API 响应 Map
+        response.put("dataExportProgress", coreProgressView);
+        response.put("attachmentProcessingProgress", attachmentProgress);
+        response.put("throughput", throughput);
+
+        // 6. 计算并添加总体进度和状态
+        calculateAndSetOverallStatus(response, coreProgressView, attachmentProgress, throughput);
+
+        // 7. 根据最终状态决定是否附加下载链接
+        String overallStatus = (String) response.get("overallStatus");
+        if ("COMPLETED".equals(overallStatus) || "PARTIALLY_COMPLETED".equals(overallStatus)) {
+            response.put("downloadUrl", generateDownloadUrl(mainTask));
+        }
+
+        return response;
+    }
+
+    /**
+     * 总体状态是否已经是最终状态，最终状态之后进度不会再变化
+     */
+    public static boolean isFinalOverallStatus(Object overallStatus) {
+        return "COMPLETED".equals(overallStatus) || "PARTIALLY_COMPLETED".equals(overallStatus) || "FAILED".equals(overallStatus);
+    }
+
+    /**
+     * 根据 MainTask 实体构建一个与 TaskProgressResult 结构类似的前端视图。
+     * 解决了内存中 TaskProgressResult 可能被清理的问题。
+     *
+     * @param mainTask 持久化的主任务实体
+     * @return 一个Map，结构与 TaskProgressResult 类似
+     */
+    private Map<String, Object> buildCoreProgressView(MainTask mainTask) {
+        Map<String, Object> view = new HashMap<>();
+        view.put("mainTaskId", mainTask.getMainTaskId());
+        view.put("status", mainTask.getStatus());
+
+        boolean isFinished = TaskStatus.FINISHED.equals(mainTask.getStatus());
+        boolean isError = TaskStatus.ERROR.equals(mainTask.getStatus());
+
+        view.put("isFinished", isFinished);
+        view.put("isError", isError);
+
+        double percent;
+        if (isFinished || isError) {
+            percent = 100.0;
+        } else {
+            // 如果任务还在进行中，可以根据子任务完成比例估算一个进度
+            Integer total = mainTask.getSubTotalCount();
+            Integer finished = mainTask.getSubFinishedCount();
+            if (total != null && total > 0 && finished != null) {
+                percent = ((double) finished / total) * 100.0;
+            } else {
+                percent = 0.0; // 尚未开始或信息不足
+            }
+        }
+        view.put("percent", percent);
+
+        view.put("totalSubTaskCount", mainTask.getSubTotalCount());
+        view.put("finishedSubTaskCount", mainTask.getSubFinishedCount());
+        view.put("successSubTaskCount", mainTask.getSubSuccessCount());
+        view.put("errorSubTaskCount", mainTask.getSubFailedCount());
+
+        return view;
+    }
+
+    /**
+     * 补全各阶段的预计总量并按当前速率估算剩余时间，已结束的阶段剩余时间为 0。
+     * 附件条目总数在处理前未知，按已完成子任务的平均条目数乘以子任务总数估算。
+     */
+    private void applyEstimates(Map<String, PhaseThroughput> throughput, Map<String, Object> coreProgressView, FullProgress attachmentProgress) {
+        PhaseThroughput data = throughput.get(ThroughputPhase.DATA_EXPORT.name());
+        data.setEtaSeconds(isFinalStatus(getCoreStatus(coreProgressView)) ? Long.valueOf(0L) : estimateEtaSeconds(data));
+
+        PhaseThroughput attachment = throughput.get(ThroughputPhase.ATTACHMENT.name());
+        if (isFinalStatus(getAttachmentStatus(attachmentProgress))) {
+            attachment.setEtaSeconds(0L);
+            return;
+        }
+        ProgressSummary summary = attachmentProgress == null ? null : attachmentProgress.getSummary();
+        if (summary != null) {
+            long finishedItems = summary.getProcessedItems() + summary.getFailedItems();
+            attachment.setProcessed(Math.max(attachment.getProcessed(), finishedItems));
+            if (attachment.getExpected() == null && summary.getCompletedSubTasks() > 0) {
+                double itemsPerSubTask = (double) finishedItems / summary.getCompletedSubTasks();
+                attachment.setExpected(Math.round(itemsPerSubTask * summary.getTotalSubTasks()));
+            }
+        }
+        attachment.setEtaSeconds(estimateEtaSeconds(attachment));
+    }
+
+    private Long estimateEtaSeconds(PhaseThroughput phase) {
+        if (phase.getExpected() == null || phase.getRatePerSecond() <= 0) {
+            return null;
+        }
+        long remaining = Math.max(0L, phase.getExpected() - phase.getProcessed());
+        return (long) Math.ceil(remaining / phase.getRatePerSecond());
+    }
+
+    /**
+     * 计算总体状态和百分比，以适应异步解耦的流程。
+     * 各未结束阶段的剩余时间都可估算时，总体进度按 已用时间 / (已用时间 + 剩余时间) 计算，
+     * 否则退回按 40% 核心导出 + 60% 附件处理的固定比例计算。
+     */
+    private void calculateAndSetOverallStatus(Map<String, Object> responseMap, Map<String, Object> coreProgressView,
+                                              FullProgress attachmentProgress, Map<String, PhaseThroughput> throughput) {
+        String coreStatus = getCoreStatus(coreProgressView);
+        String attachmentStatus = getAttachmentStatus(attachmentProgress);
+
+        String overallStatus;
+        if ("FAILED".equals(coreStatus) || "FAILED".equals(attachmentStatus)) {
+            overallStatus = "FAILED";
+        } else if (isFinalStatus(coreStatus) && isFinalStatus(attachmentStatus)) {
+            if ("PARTIALLY_COMPLETED".equals(attachmentStatus)) {
+                overallStatus = "PARTIALLY_COMPLETED";
+            } else {
+                overallStatus = "COMPLETED";
+            }
+        } else {
+            overallStatus = "PROCESSING";
+        }
+        responseMap.put("overallStatus", overallStatus);
+
+        double corePercent = (double) coreProgressView.getOrDefault("percent", 0.0);
+        double attachmentPercent = (attachmentProgress != null && attachmentProgress.getSummary() != null)
+                ? attachmentProgress.getSummary().getPercent() : 0.0;
+
+        double overallPercent;
+        if (isFinalStatus(coreStatus)) {
+            // 核心导出已完成，总进度 = 40% (基础) + 附件进度的60%
+            overallPercent = 40.0 + (attachmentPercent * 0.6);
+        } else {
+            // 核心导出未完成，总进度主要由核心导出决定，不能超过40%
+            overallPercent = corePercent * 0.4;
+        }
+
+        // 阶段之间可能并行，整体剩余时间取各阶段的最大值
+        Long etaSeconds = null;
+        Long startTime = null;
+        if (!isFinalOverallStatus(overallStatus)) {
+            PhaseThroughput data = throughput.get(ThroughputPhase.DATA_EXPORT.name());
+            PhaseThroughput attachment = throughput.get(ThroughputPhase.ATTACHMENT.name());
+            if (data.getEtaSeconds() != null && attachment.getEtaSeconds() != null) {
+                etaSeconds = Math.max(data.getEtaSeconds(), attachment.getEtaSeconds());
+            }
+            for (PhaseThroughput phase : throughput.values()) {
+                if (phase.getStartTime() != null && (startTime == null || phase.getStartTime() < startTime)) {
+                    startTime = phase.getStartTime();
+                }
+            }
+        }
+        if (etaSeconds != null && startTime != null) {
+            double elapsedMillis = Math.max(0L, System.currentTimeMillis() - startTime);
+            double estimatedPercent = elapsedMillis / (elapsedMillis + etaSeconds * 1000.0) * 100.0;
+            // 未结束前不显示 100%
+            overallPercent = Math.min(estimatedPercent, 99.0);
+        }
+        responseMap.put("etaSeconds", etaSeconds);
+        responseMap.put("overallPercent", Math.min(overallPercent, 100.0));
+    }
+
+    /**
+     * 将核心进度的视图 Map 转换为统一的状态字符串。
+     */
+    private String getCoreStatus(Map<String, Object> coreProgressView) {
+        String status = (String) coreProgressView.getOrDefault("status", TaskStatus.NEW);
+        if (TaskStatus.ERROR.equals(status)) {
+            return "FAILED";
+        }
+        if (TaskStatus.FINISHED.equals(status)) {
+            return "COMPLETED";
+        }
+        return "PROCESSING";
+    }
+
+    /**
+     * 安全地从 FullProgress DTO 获取附件处理的状态。
+     */
+    private String getAttachmentStatus(FullProgress attachmentProgress) {
+        if (attachmentProgress == null || attachmentProgress.getSummary() == null) {
+            return "PENDING"; // 附件进度还未初始化
+        }
+        return attachmentProgress.getSummary().getStatus();
+    }
+
+    /**
+     * 判断一个状态是否是最终状态 (已结束)。
+     */
+    private boolean isFinalStatus(String status) {
+        return "COMPLETED".equals(status) || "FAILED".equals(status)
+                || "PARTIALLY_COMPLETED".equals(status) || "SKIPPED".equals(status);
+    }
+
+    /**
+     * 根据 MainTask 对象生成文件的下载链接。
+     */
+    private String generateDownloadUrl(MainTask mainTask) {
+        try {
+            if (mainTask == null) return null;
+
+            String outputFileKey = FeatureUtils.getFeature(mainTask.getFeature(), MainTaskFeatureKeys.OUTPUT_FILE_KEY);
+
+            if (outputFileKey != null && !outputFileKey.isEmpty()) {
+                // TODO: 替换为你的真实文件下载服务的URL
+                return "/api/files/download?fileKey=" + outputFileKey;
+            } else {
+                log.info("任务 {} 已完成，但没有输出文件 (outputFileKey is null)", mainTask.getMainTaskId());
+                return null;
+            }
+        } catch (Exception e) {
+            log.error("为任务 {} 生成下载链接时发生异常", mainTask.getMainTaskId(), e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.jackasher.ageiport.service.monitor;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 子任务条目级进度的本地累加器。
+ * 每条附件的成功/失败只累加到本地的 LongAdder（分段计数，多线程写入无竞争），
+ * 由定时任务、累计条数达到阈值或子任务结束时把增量一次性写入 Redis，
+ * 使细粒度进度上报的网络开销与刷新次数而不是条目数成正比。
+ * 同一子任务的刷新互斥执行，不会出现两个线程同时读改写同一条 Redis 记录的情况。
+ *
+ * @author Jackasher
+ * @version 1.0
+ * @since 1.0
+ */
+public class ProgressAccumulator {
+
+    private static final Logger log = LoggerFactory.getLogger(ProgressAccumulator.class);
+
+    // 长时间没有新增量且已全部刷新的计数器会被回收，防止异常中断的子任务残留
+    private static final long IDLE_EVICT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * 增量的落地方式
+     */
+    @FunctionalInterface
+    public interface DeltaSink {
+        void apply(String mainTaskId, String subTaskId, long successDelta, long failureDelta);
+    }
+
+    private final DeltaSink sink;
+    private final long flushThreshold;
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+
+    private static final class Counter {
+        private final String mainTaskId;
+        private final LongAdder success = new LongAdder();
+        private final LongAdder failure = new LongAdder();
+        private final ReentrantLock flushLock = new ReentrantLock();
+        // 以下字段只在持有 flushLock 时读写
+        private long flushedSuccess;
+        private long flushedFailure;
+        private volatile long lastUpdateTime = System.currentTimeMillis();
+
+        private Counter(String mainTaskId) {
+            this.mainTaskId = mainTaskId;
+        }
+
+        private long pending() {
+            return success.sum() - flushedSuccess + failure.sum() - flushedFailure;
+        }
+    }
+
+    /**
+     * @param sink           增量写入方式
+     * @param flushThreshold 单个子任务未刷新的条目数达到该值时立即刷新，小于等于0表示只按定时和结束刷新
+     */
+    public ProgressAccumulator(DeltaSink sink, long flushThreshold) {
+        this.sink = sink;
+        this.flushThreshold = flushThreshold;
+    }
+
+    /**
+     * 累加一个子任务的条目结果，仅在达到阈值时才会访问 Redis
+     */
+    public void add(String mainTaskId, String subTaskId, long successDelta, long failureDelta) {
+        Counter counter = counters.computeIfAbsent(subTaskId, id -> new Counter(mainTaskId));
+        if (successDelta != 0) {
+            counter.success.add(successDelta);
+        }
+        if (failureDelta != 0) {
+            counter.failure.add(failureDelta);
+        }
+        counter.lastUpdateTime = System.currentTimeMillis();
+
+        // 已有线程在刷新时不再排队，本次增量会被下一次刷新带走
+        if (flushThreshold > 0 && counter.pending() >= flushThreshold && counter.flushLock.tryLock()) {
+            try {
+                flushLocked(subTaskId, counter);
+            } finally {
+                counter.flushLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 同步刷新指定子任务的全部未落地增量
+     */
+    public void flush(String subTaskId) {
+        Counter counter = counters.get(subTaskId);
+        if (counter != null) {
+            flushBlocking(subTaskId, counter);
+        }
+    }
+
+    /**
+     * 同步刷新并移除指定子任务的计数器，子任务结束时调用。
+     * 刷新成功后才移除；刷新失败时计数器保留，由定时刷新继续重试
+     */
+    public void complete(String subTaskId) {
+        Counter counter = counters.get(subTaskId);
+        if (counter == null) {
+            return;
+        }
+        counter.flushLock.lock();
+        try {
+            flushLocked(subTaskId, counter);
+            counters.remove(subTaskId, counter);
+            try {
+                // 移除前已取得计数器的并发累加
+                flushLocked(subTaskId, counter);
+            } catch (RuntimeException e) {
+                restore(subTaskId, counter);
+                throw e;
+            }
+        } finally {
+            counter.flushLock.unlock();
+        }
+    }
+
+    /**
+     * 刷新所有子任务的未落地增量，并回收空闲的计数器，由定时任务调用
+     */
+    public void flushAll() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Counter>> it = counters.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Counter> entry = it.next();
+            Counter counter = entry.getValue();
+            try {
+                flushBlocking(entry.getKey(), counter);
+            } catch (RuntimeException e) {
+                // 单个子任务刷新失败不影响其他子任务，增量保留到下次刷新
+                log.warn("刷新子任务 {} 的进度增量失败: {}", entry.getKey(), e.getMessage());
+                continue;
+            }
+            if (now - counter.lastUpdateTime > IDLE_EVICT_MILLIS && counter.pending() == 0) {
+                counters.remove(entry.getKey(), counter);
+            }
+        }
+    }
+
+    /**
+     * 当前仍在本地累加的子任务数
+     */
+    public int size() {
+        return counters.size();
+    }
+
+    /**
+     * 把已移除计数器的未刷新增量放回，已有新计数器时合并到新计数器上。调用方持有 counter.flushLock
+     */
+    private void restore(String subTaskId, Counter counter) {
+        Counter current = counters.putIfAbsent(subTaskId, counter);
+        if (current != null && current != counter) {
+            current.success.add(counter.success.sum() - counter.flushedSuccess);
+            current.failure.add(counter.failure.sum() - counter.flushedFailure);
+        }
+    }
+
+    private void flushBlocking(String subTaskId, Counter counter) {
+        counter.flushLock.lock();
+        try {
+            flushLocked(subTaskId, counter);
+        } finally {
+            counter.flushLock.unlock();
+        }
+    }
+
+    /**
+     * LongAdder.sum() 不会丢失已完成的累加，通过与上次已刷新值做差得到增量，
+     * 刷新期间新到的累加会被下一次刷新带走；写入失败时不推进已刷新值，增量不会丢失
+     */
+    private void flushLocked(String subTaskId, Counter counter) {
+        long success = counter.success.sum();
+        long failure = counter.failure.sum();
+        long successDelta = success - counter.flushedSuccess;
+        long failureDelta = failure - counter.flushedFailure;
+        if (successDelta == 0 && failureDelta == 0) {
+            return;
+        }
+        sink.apply(counter.mainTaskId, subTaskId, successDelta, failureDelta);
+        counter.flushedSuccess = success;
+        counter.flushedFailure = failure;
+    }
+}
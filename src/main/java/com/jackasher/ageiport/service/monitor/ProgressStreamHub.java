@@ -0,0 +1,260 @@
+package com.jackasher.ageiport.service.monitor;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import com.jackasher.ageiport.config.export.ExportProperties;
+
+/**
+ * 本节点的导出进度推送中心 (SSE)。
+ * 1. 每个主任务无论有多少观察者，只订阅一次 Redis 进度变更频道；
+ * 2. 收到变更只做标记，由单线程按固定间隔合并处理：每次最多读取一次上游（MainTask + Redis 摘要），
+ *    与上次推送的快照比较后只把变化的部分作为增量推送给所有观察者；
+ * 3. 核心导出进度没有变更事件，在有观察者时按 refreshMs 周期性重新读取；
+ * 4. 总体状态进入最终状态后推送最后一次增量并结束所有连接。
+ * 新观察者连接时先收到一份完整快照。
+ *
+ * @author Jackasher
+ */
+@Service
+public class ProgressStreamHub {
+
+    private static final Logger log = LoggerFactory.getLogger(ProgressStreamHub.class);
+
+    private static final String EVENT_SNAPSHOT = "snapshot";
+    private static final String EVENT_DELTA = "delta";
+    private static final String EVENT_ERROR = "error";
+    private static final long HEARTBEAT_MILLIS = 15_000;
+
+    @Resource
+    private RedisMessageListenerContainer container;
+
+    @Resource
+    private ExportProgressService exportProgressService;
+
+    @Resource
+    private ExportProperties exportProperties;
+
+    private final ConcurrentHashMap<String, TaskChannel> channels = new ConcurrentHashMap<>();
+
+    // 快照的读取和推送都在这个线程中完成，TaskChannel 中的快照状态因此无需加锁
+    private ScheduledExecutorService scheduler;
+
+    private final class TaskChannel implements MessageListener {
+        private final String mainTaskId;
+        private final ChannelTopic topic;
+        private final Set<SseEmitter> watchers = new CopyOnWriteArraySet<>();
+        private volatile boolean dirty = true;
+        private Map<String, Object> lastSnapshot;
+        private long lastRefreshTime;
+        private long lastSendTime;
+
+        private TaskChannel(String mainTaskId) {
+            this.mainTaskId = mainTaskId;
+            this.topic = new ChannelTopic(ProgressTrackerService.changeChannelOf(mainTaskId));
+        }
+
+        @Override
+        public void onMessage(Message message, byte[] pattern) {
+            dirty = true;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "progress-stream-hub");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval = Math.max(100, exportProperties.getProgressStream().getIntervalMs());
+        scheduler.scheduleWithFixedDelay(this::tick, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        for (TaskChannel channel : channels.values()) {
+            container.removeMessageListener(channel, channel.topic);
+            channel.watchers.forEach(SseEmitter::complete);
+        }
+        channels.clear();
+    }
+
+    /**
+     * 注册一个观察者，返回的 SseEmitter 由调用方直接作为接口返回值
+     */
+    public SseEmitter subscribe(String mainTaskId) {
+        SseEmitter emitter = new SseEmitter(exportProperties.getProgressStream().getTimeoutMs());
+        TaskChannel channel = channels.compute(mainTaskId, (id, existing) -> {
+            TaskChannel c = existing;
+            if (c == null) {
+                c = new TaskChannel(id);
+                container.addMessageListener(c, c.topic);
+                log.info("开始订阅主任务 {} 的进度变更", id);
+            }
+            c.watchers.add(emitter);
+            return c;
+        });
+
+        emitter.onCompletion(() -> removeWatcher(channel, emitter));
+        emitter.onTimeout(() -> removeWatcher(channel, emitter));
+        emitter.onError(e -> removeWatcher(channel, emitter));
+
+        scheduler.execute(() -> sendInitialSnapshot(channel, emitter));
+        return emitter;
+    }
+
+    /**
+     * 当前节点正在推送的主任务数
+     */
+    public int getActiveTaskCount() {
+        return channels.size();
+    }
+
+    private void removeWatcher(TaskChannel channel, SseEmitter emitter) {
+        channel.watchers.remove(emitter);
+        channels.computeIfPresent(channel.mainTaskId, (id, c) -> {
+            if (c == channel && c.watchers.isEmpty()) {
+                container.removeMessageListener(c, c.topic);
+                log.info("主任务 {} 已无观察者，取消订阅进度变更", id);
+                return null;
+            }
+            return c;
+        });
+    }
+
+    private void sendInitialSnapshot(TaskChannel channel, SseEmitter emitter) {
+        try {
+            if (channel.lastSnapshot == null) {
+                refresh(channel);
+            }
+            if (channel.lastSnapshot != null && channel.watchers.contains(emitter)) {
+                send(channel, emitter, EVENT_SNAPSHOT, channel.lastSnapshot);
+                if (ExportProgressService.isFinalOverallStatus(channel.lastSnapshot.get("overallStatus"))) {
+                    emitter.complete();
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warn("为主任务 {} 推送初始快照失败: {}", channel.mainTaskId, e.getMessage());
+            emitter.completeWithError(e);
+        }
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        for (TaskChannel channel : channels.values()) {
+            if (channel.watchers.isEmpty()) {
+                continue;
+            }
+            try {
+                boolean due = channel.dirty || now - channel.lastRefreshTime >= exportProperties.getProgressStream().getRefreshMs();
+                if (due) {
+                    refresh(channel);
+                } else if (now - channel.lastSendTime >= HEARTBEAT_MILLIS) {
+                    heartbeat(channel);
+                }
+            } catch (RuntimeException e) {
+                // 单个任务刷新失败不影响其他任务，下个周期重试
+                log.warn("刷新主任务 {} 的推送进度失败: {}", channel.mainTaskId, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 读取一次上游，把与上次快照相比变化的部分推送给所有观察者
+     */
+    private void refresh(TaskChannel channel) {
+        channel.dirty = false;
+        channel.lastRefreshTime = System.currentTimeMillis();
+        Map<String, Object> snapshot = exportProgressService.buildProgressView(channel.mainTaskId, true);
+        if (snapshot == null) {
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Task not found.");
+            error.put("mainTaskId", channel.mainTaskId);
+            for (SseEmitter emitter : channel.watchers) {
+                send(channel, emitter, EVENT_ERROR, error);
+                emitter.complete();
+            }
+            return;
+        }
+
+        Map<String, Object> previous = channel.lastSnapshot;
+        channel.lastSnapshot = snapshot;
+        if (previous != null) {
+            Map<String, Object> delta = diff(previous, snapshot);
+            if (!delta.isEmpty()) {
+                delta.put("mainTaskId", channel.mainTaskId);
+                for (SseEmitter emitter : channel.watchers) {
+                    send(channel, emitter, EVENT_DELTA, delta);
+                }
+            }
+        }
+
+        if (ExportProgressService.isFinalOverallStatus(snapshot.get("overallStatus"))) {
+            log.info("主任务 {} 已结束，关闭 {} 个进度推送连接", channel.mainTaskId, channel.watchers.size());
+            channel.watchers.forEach(SseEmitter::complete);
+        }
+    }
+
+    private void heartbeat(TaskChannel channel) {
+        for (SseEmitter emitter : channel.watchers) {
+            try {
+                emitter.send(SseEmitter.event().comment("heartbeat"));
+            } catch (IOException | IllegalStateException e) {
+                removeWatcher(channel, emitter);
+            }
+        }
+        channel.lastSendTime = System.currentTimeMillis();
+    }
+
+    private void send(TaskChannel channel, SseEmitter emitter, String event, Object data) {
+        try {
+            emitter.send(SseEmitter.event().name(event).data(data));
+            channel.lastSendTime = System.currentTimeMillis();
+        } catch (IOException | IllegalStateException e) {
+            // 客户端已断开
+            removeWatcher(channel, emitter);
+        }
+    }
+
+    /**
+     * 顶层字段级别的差异，被删除的字段以 null 表示
+     */
+    private static Map<String, Object> diff(Map<String, Object> previous, Map<String, Object> current) {
+        Map<String, Object> delta = new HashMap<>();
+        for (Map.Entry<String, Object> entry : current.entrySet()) {
+            if (!Objects.equals(previous.get(entry.getKey()), entry.getValue())) {
+                delta.put(entry.getKey(), entry.getValue());
+            }
+        }
+        Set<String> removed = new HashSet<>(previous.keySet());
+        removed.removeAll(current.keySet());
+        for (String key : removed) {
+            delta.put(key, null);
+        }
+        return delta;
+    }
+}
@@ -1,28 +1,341 @@
 package com.jackasher.ageiport.service.monitor;
 
+import com.jackasher.ageiport.config.export.ExportProperties;
 import com.jackasher.ageiport.constant.PostProcessingTaskStatus;
+import com.jackasher.ageiport.constant.ThroughputPhase;
 import com.jackasher.ageiport.model.dto.FullProgress;
 import com.jackasher.ageiport.model.dto.ProgressSummary;
 import com.jackasher.ageiport.model.dto.SubTaskProgressDetail;
-import org.springframework.data.redis.core.RedisTemplate;
+import com.jackasher.ageiport.model.dto.SubTaskProgressPage;
+import com.jackasher.ageiport.utils.business.SubTaskChunkUtils;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+/**
+ * 附件处理进度存储。
+ * 每个主任务对应一个 Redis Hash，所有数值都是独立的字段：
+ * <pre>
+ *   summary:{字段名}              宏观进度，如 summary:completedSubTasks
+ *   subtask:{subTaskId}:{字段名}  子任务进度，如 subtask:xxx_1:processedItems
+ *   chunk:{subTaskId}:{序号}:{字段名}  Kafka 大消息分片的状态和条目数，如 chunk:xxx_1:2:status
+ * </pre>
+ * 分片（子任务ID为 {subTaskId}_chunk_{序号}）的进度直接累加到原始子任务，最后一个分片完成时原始子任务才完成。
+ * 另有按 subTaskNo 排序的 ZSet 索引，用于分页和按状态过滤读取子任务，而不必 HGETALL 整个 Hash：
+ * <pre>
+ *   {hashKey}:subtasks           全部子任务
+ *   {hashKey}:status:{状态}       处于该状态的子任务
+ * </pre>
+ * 同一主任务的所有 key 带有相同的 hash tag，在 Redis 集群中位于同一个 slot。
+ * 计数通过 HINCRBY 在服务端累加，完成、状态推进等多字段变更（含索引维护）由单个 Lua 脚本原子执行，
+ * 过期时间也在同一脚本内续期，多个节点并发更新同一主任务时不会互相覆盖，且每次更新只需一次往返。
+ */
 @Service
 public class ProgressTrackerService {
 
     private static final String REDIS_KEY_PREFIX = "ageiport:attachment_progress:";
-    private static final String SUMMARY_FIELD = "summary";
+    private static final String SUMMARY_FIELD_PREFIX = "summary:";
     private static final String SUBTASK_FIELD_PREFIX = "subtask:";
+    private static final String SUBTASK_INDEX_SUFFIX = ":subtasks";
+    private static final String STATUS_INDEX_SUFFIX = ":status:";
+    private static final PostProcessingTaskStatus[] STATUSES = PostProcessingTaskStatus.values();
     private static final long PROGRESS_TTL_HOURS = 24;
+    private static final String PROGRESS_TTL_MILLIS = String.valueOf(TimeUnit.HOURS.toMillis(PROGRESS_TTL_HOURS));
 
-    // 仍然使用 <String, Object> 因为 Hash 中确实有两种类型的对象
+    private static final String PENDING = PostProcessingTaskStatus.PENDING.name();
+    private static final String PROCESSING = PostProcessingTaskStatus.PROCESSING.name();
+
+    /**
+     * 进度变更通知频道前缀，每次更新后向 {前缀}{mainTaskId} 发布一条消息，供进度推送订阅
+     */
+    private static final String CHANGE_CHANNEL_PREFIX = "ageiport:attachment_progress_changed:";
+
+    /**
+     * 脚本公共部分。KEYS 依次为：Hash、全部子任务索引、各状态索引（按枚举顺序），见 {@link #keysOf}；
+     * ARGV 的最后一个参数固定为变更通知频道，由 {@link #execute} 追加
+     */
+    private static final String LUA_INDEX_FUNCTIONS =
+            "local STATUS_KEYS = {" + statusKeyTable() + "} " +
+            "local function moveStatus(id, score, from, to) " +
+            "  if from and STATUS_KEYS[from] then redis.call('ZREM', STATUS_KEYS[from], id) end " +
+            "  if STATUS_KEYS[to] then redis.call('ZADD', STATUS_KEYS[to], score, id) end " +
+            "end " +
+            "local function touch(ttl) " +
+            "  for i = 1, #KEYS do redis.call('PEXPIRE', KEYS[i], ttl) end " +
+            "end " +
+            "local function notify() " +
+            "  redis.call('PUBLISH', ARGV[#ARGV], '1') " +
+            "end ";
+
+    /**
+     * 所有子任务均已完成时，按是否有失败条目推进宏观状态
+     */
+    private static final String LUA_PROMOTE_FUNCTION =
+            "local function promote(key) " +
+            "  local total = tonumber(redis.call('HGET', key, 'summary:totalSubTasks') or '0') " +
+            "  local completed = tonumber(redis.call('HGET', key, 'summary:completedSubTasks') or '0') " +
+            "  if total > 0 and completed >= total then " +
+            "    local failed = tonumber(redis.call('HGET', key, 'summary:failedItems') or '0') " +
+            "    if failed > 0 then " +
+            "      redis.call('HSET', key, 'summary:status', '" + PostProcessingTaskStatus.PARTIALLY_COMPLETED.name() + "') " +
+            "    else " +
+            "      redis.call('HSET', key, 'summary:status', '" + PostProcessingTaskStatus.COMPLETED.name() + "') " +
+            "    end " +
+            "  end " +
+            "end ";
+
+    /**
+     * 写入子任务的最终状态；first 为 true 时（子任务首次完成）把子任务计数累加到宏观统计并推进宏观状态
+     */
+    private static final String LUA_SETTLE_FUNCTION =
+            "local function settle(key, p, id, no, status, message, finishTime, first) " +
+            "  local old = redis.call('HGET', key, p .. 'status') " +
+            "  redis.call('HMSET', key, p .. 'status', status, p .. 'resultMessage', message, p .. 'finishTime', finishTime) " +
+            "  moveStatus(id, no, old, status) " +
+            "  if first then " +
+            "    redis.call('HINCRBY', key, 'summary:completedSubTasks', 1) " +
+            "    redis.call('HINCRBY', key, 'summary:totalItems', redis.call('HGET', key, p .. 'totalItems') or '0') " +
+            "    redis.call('HINCRBY', key, 'summary:processedItems', redis.call('HGET', key, p .. 'processedItems') or '0') " +
+            "    redis.call('HINCRBY', key, 'summary:failedItems', redis.call('HGET', key, p .. 'failedItems') or '0') " +
+            "    promote(key) " +
+            "  end " +
+            "end ";
+
+    /**
+     * ARGV: totalSubTasks, ttlMillis
+     * 只设置总数，不清零已有计数，初始化晚于子任务完成时也不会丢失统计
+     */
+    private static final DefaultRedisScript<Long> INIT_SUMMARY_SCRIPT = new DefaultRedisScript<>(
+            LUA_INDEX_FUNCTIONS + LUA_PROMOTE_FUNCTION +
+            "redis.call('HSET', KEYS[1], 'summary:totalSubTasks', ARGV[1]) " +
+            "redis.call('HSETNX', KEYS[1], 'summary:status', '" + PENDING + "') " +
+            "promote(KEYS[1]) " +
+            "touch(ARGV[2]) " +
+            "notify() " +
+            "return 1", Long.class);
+
+    /**
+     * ARGV: subTaskId, subTaskNo, mainTaskId, startTime, ttlMillis
+     * 子任务已完成时（如初始化事件重复到达）不做任何修改并返回 0，避免完成被重置后再次累加到宏观统计
+     */
+    private static final DefaultRedisScript<Long> INIT_SUBTASK_SCRIPT = new DefaultRedisScript<>(
+            LUA_INDEX_FUNCTIONS +
+            "local p = 'subtask:' .. ARGV[1] .. ':' " +
+            "if tonumber(redis.call('HGET', KEYS[1], p .. 'finishTime') or '0') > 0 then return 0 end " +
+            "local old = redis.call('HGET', KEYS[1], p .. 'status') " +
+            "redis.call('HMSET', KEYS[1], p .. 'subTaskNo', ARGV[2], p .. 'mainTaskId', ARGV[3], p .. 'startTime', ARGV[4], " +
+            "  p .. 'status', '" + PENDING + "', p .. 'totalItems', '0', p .. 'processedItems', '0', " +
+            "  p .. 'failedItems', '0', p .. 'finishTime', '0') " +
+            "redis.call('HDEL', KEYS[1], p .. 'resultMessage', p .. 'attemptId', p .. 'chunkCount', p .. 'finishedChunks', p .. 'chunkStatus') " +
+            "redis.call('ZADD', KEYS[2], ARGV[2], ARGV[1]) " +
+            "moveStatus(ARGV[1], ARGV[2], old, '" + PENDING + "') " +
+            "if redis.call('HGET', KEYS[1], 'summary:status') == '" + PENDING + "' then " +
+            "  redis.call('HSET', KEYS[1], 'summary:status', '" + PROCESSING + "') " +
+            "end " +
+            "touch(ARGV[5]) " +
+            "notify() " +
+            "return 1", Long.class);
+
+    /**
+     * ARGV: subTaskId, totalItems, ttlMillis
+     */
+    private static final DefaultRedisScript<Long> UPDATE_TOTAL_SCRIPT = new DefaultRedisScript<>(
+            LUA_INDEX_FUNCTIONS +
+            "local p = 'subtask:' .. ARGV[1] .. ':' " +
+            "if redis.call('HEXISTS', KEYS[1], p .. 'subTaskNo') == 0 then return 0 end " +
+            "redis.call('HSET', KEYS[1], p .. 'totalItems', ARGV[2]) " +
+            "touch(ARGV[3]) " +
+            "notify() " +
+            "return 1", Long.class);
+
+    /**
+     * ARGV: subTaskId, chunkIndex, successIncrement, failureIncrement, ttlMillis
+     * 子任务完成后到达的增量（如被取代的重复执行延迟刷新的计数）不再累加。
+     * 分片（chunkIndex 大于 0）的增量同时记在分片自己的计数上，分片已完成后重复投递的增量不再累加
+     */
+    private static final DefaultRedisScript<Long> ADD_PROGRESS_SCRIPT = new DefaultRedisScript<>(
+            LUA_INDEX_FUNCTIONS +
+            "local p = 'subtask:' .. ARGV[1] .. ':' " +
+            "local no = redis.call('HGET', KEYS[1], p .. 'subTaskNo') " +
+            "if not no then return 0 end " +
+            "if tonumber(redis.call('HGET', KEYS[1], p .. 'finishTime') or '0') > 0 then return 0 end " +
+            "if ARGV[2] ~= '0' then " +
+            "  local c = 'chunk:' .. ARGV[1] .. ':' .. ARGV[2] .. ':' " +
+            "  if redis.call('HEXISTS', KEYS[1], c .. 'status') == 1 then return 0 end " +
+            "  redis.call('HINCRBY', KEYS[1], c .. 'processedItems', ARGV[3]) " +
+            "  redis.call('HINCRBY', KEYS[1], c .. 'failedItems', ARGV[4]) " +
+            "end " +
+            "redis.call('HINCRBY', KEYS[1], p .. 'processedItems', ARGV[3]) " +
+            "redis.call('HINCRBY', KEYS[1], p .. 'failedItems', ARGV[4]) " +
+            "local status = redis.call('HGET', KEYS[1], p .. 'status') " +
+            "if status == '" + PENDING + "' then " +
+            "  redis.call('HSET', KEYS[1], p .. 'status', '" + PROCESSING + "') " +
+            "  moveStatus(ARGV[1], no, status, '" + PROCESSING + "') " +
+            "end " +
+            "touch(ARGV[5]) " +
+            "notify() " +
+            "return 1", Long.class);
+
+    /**
+     * ARGV: subTaskId, status, resultMessage, finishTime, ttlMillis, attemptId, processedItems, failedItems
+     * 同一子任务重复完成时只更新状态，不会重复累加到宏观统计。
+     * 带 attemptId 时作为该次执行的提交：子任务已由其他执行完成则不做任何修改并返回 3；
+     * processedItems/failedItems 非空时先以该次执行自己的统计覆盖子任务计数
+     */
+    private static final DefaultRedisScript<Long> FINISH_SUBTASK_SCRIPT = new DefaultRedisScript<>(
+            LUA_INDEX_FUNCTIONS + LUA_PROMOTE_FUNCTION + LUA_SETTLE_FUNCTION +
+            "local p = 'subtask:' .. ARGV[1] .. ':' " +
+            "local no = redis.call('HGET', KEYS[1], p .. 'subTaskNo') " +
+            "if not no then return 0 end " +
+            "local finished = tonumber(redis.call('HGET', KEYS[1], p .. 'finishTime') or '0') > 0 " +
+            "if finished and ARGV[6] ~= '' and redis.call('HGET', KEYS[1], p .. 'attemptId') ~= ARGV[6] then return 3 end " +
+            "if not finished then " +
+            "  if ARGV[6] ~= '' then redis.call('HSET', KEYS[1], p .. 'attemptId', ARGV[6]) end " +
+            "  if ARGV[7] ~= '' then " +
+            "    redis.call('HMSET', KEYS[1], p .. 'processedItems', ARGV[7], p .. 'failedItems', ARGV[8]) " +
+            "  end " +
+            "end " +
+            "settle(KEYS[1], p, ARGV[1], no, ARGV[2], ARGV[3], ARGV[4], not finished) " +
+            "touch(ARGV[5]) " +
+            "notify() " +
+            "if finished then return 2 end " +
+            "return 1", Long.class);
+
+    /**
+     * ARGV: subTaskId, chunkCount, ttlMillis
+     * 登记原始子任务被拆分成的分片数，并清除上一次分片发送留下的分片记录
+     */
+    private static final DefaultRedisScript<Long> REGISTER_CHUNKS_SCRIPT = new DefaultRedisScript<>(
+            LUA_INDEX_FUNCTIONS +
+            "local p = 'subtask:' .. ARGV[1] .. ':' " +
+            "if redis.call('HEXISTS', KEYS[1], p .. 'subTaskNo') == 0 then return 0 end " +
+            "local n = math.max(tonumber(redis.call('HGET', KEYS[1], p .. 'chunkCount') or '0'), tonumber(ARGV[2])) " +
+            "for i = 1, n do " +
+            "  local c = 'chunk:' .. ARGV[1] .. ':' .. i .. ':' " +
+            "  redis.call('HDEL', KEYS[1], c .. 'status', c .. 'totalItems', c .. 'processedItems', c .. 'failedItems') " +
+            "end " +
+            "redis.call('HMSET', KEYS[1], p .. 'chunkCount', ARGV[2], p .. 'finishedChunks', '0', p .. 'totalItems', '0') " +
+            "redis.call('HDEL', KEYS[1], p .. 'chunkStatus') " +
+            "touch(ARGV[3]) " +
+            "return 1", Long.class);
+
+    /**
+     * ARGV: subTaskId, chunkIndex, totalItems, ttlMillis
+     * 分片开始处理时调用：记录分片的条目数，原始子任务的条目数为各分片之和，同一分片重复上报时只计一次。
+     * 未完成的分片重新开始处理（如重复投递）时，先从原始子任务中撤回上一次执行已累加的成功/失败数；
+     * 分片已完成时不做任何修改并返回 2
+     */
+    private static final DefaultRedisScript<Long> UPDATE_CHUNK_TOTAL_SCRIPT = new DefaultRedisScript<>(
+            LUA_INDEX_FUNCTIONS +
+            "local p = 'subtask:' .. ARGV[1] .. ':' " +
+            "if redis.call('HEXISTS', KEYS[1], p .. 'subTaskNo') == 0 then return 0 end " +
+            "local c = 'chunk:' .. ARGV[1] .. ':' .. ARGV[2] .. ':' " +
+            "if redis.call('HEXISTS', KEYS[1], c .. 'status') == 1 then return 2 end " +
+            "local processed = tonumber(redis.call('HGET', KEYS[1], c .. 'processedItems') or '0') " +
+            "local failed = tonumber(redis.call('HGET', KEYS[1], c .. 'failedItems') or '0') " +
+            "if processed ~= 0 or failed ~= 0 then " +
+            "  redis.call('HINCRBY', KEYS[1], p .. 'processedItems', -processed) " +
+            "  redis.call('HINCRBY', KEYS[1], p .. 'failedItems', -failed) " +
+            "  redis.call('HDEL', KEYS[1], c .. 'processedItems', c .. 'failedItems') " +
+            "end " +
+            "local old = tonumber(redis.call('HGET', KEYS[1], c .. 'totalItems') or '0') " +
+            "redis.call('HSET', KEYS[1], c .. 'totalItems', ARGV[3]) " +
+            "redis.call('HINCRBY', KEYS[1], p .. 'totalItems', tonumber(ARGV[3]) - old) " +
+            "touch(ARGV[4]) " +
+            "notify() " +
+            "return 1", Long.class);
+
+    /**
+     * ARGV: subTaskId, chunkIndex, status, finishTime, ttlMillis
+     * 记录一个分片完成，同一分片重复完成时返回 2；分片未全部完成时返回 4；
+     * 最后一个分片完成时按各分片中最差的状态（或是否有失败条目）完成原始子任务并返回 1
+     */
+    private static final DefaultRedisScript<Long> FINISH_CHUNK_SCRIPT = new DefaultRedisScript<>(
+            LUA_INDEX_FUNCTIONS + LUA_PROMOTE_FUNCTION + LUA_SETTLE_FUNCTION +
+            "local p = 'subtask:' .. ARGV[1] .. ':' " +
+            "local no = redis.call('HGET', KEYS[1], p .. 'subTaskNo') " +
+            "if not no then return 0 end " +
+            "local c = 'chunk:' .. ARGV[1] .. ':' .. ARGV[2] .. ':' " +
+            "if redis.call('HEXISTS', KEYS[1], c .. 'status') == 1 then return 2 end " +
+            "redis.call('HSET', KEYS[1], c .. 'status', ARGV[3]) " +
+            "if ARGV[3] == '" + PostProcessingTaskStatus.FAILED.name() + "' then " +
+            "  redis.call('HSET', KEYS[1], p .. 'chunkStatus', ARGV[3]) " +
+            "elseif ARGV[3] == '" + PostProcessingTaskStatus.PARTIALLY_COMPLETED.name() + "' then " +
+            "  redis.call('HSETNX', KEYS[1], p .. 'chunkStatus', ARGV[3]) " +
+            "end " +
+            "local done = redis.call('HINCRBY', KEYS[1], p .. 'finishedChunks', 1) " +
+            "local count = tonumber(redis.call('HGET', KEYS[1], p .. 'chunkCount') or '0') " +
+            "if count == 0 or done < count or tonumber(redis.call('HGET', KEYS[1], p .. 'finishTime') or '0') > 0 then " +
+            "  local status = redis.call('HGET', KEYS[1], p .. 'status') " +
+            "  if status == '" + PENDING + "' then " +
+            "    redis.call('HSET', KEYS[1], p .. 'status', '" + PROCESSING + "') " +
+            "    moveStatus(ARGV[1], no, status, '" + PROCESSING + "') " +
+            "  end " +
+            "  touch(ARGV[5]) " +
+            "  notify() " +
+            "  return 4 " +
+            "end " +
+            "local final = redis.call('HGET', KEYS[1], p .. 'chunkStatus') " +
+            "local failed = redis.call('HGET', KEYS[1], p .. 'failedItems') or '0' " +
+            "if not final then " +
+            "  if tonumber(failed) > 0 then final = '" + PostProcessingTaskStatus.PARTIALLY_COMPLETED.name() + "' " +
+            "  else final = '" + PostProcessingTaskStatus.COMPLETED.name() + "' end " +
+            "end " +
+            "local message = '全部 ' .. count .. ' 个分片处理完成。成功: ' .. " +
+            "  (redis.call('HGET', KEYS[1], p .. 'processedItems') or '0') .. ', 失败: ' .. failed " +
+            "settle(KEYS[1], p, ARGV[1], no, final, message, ARGV[4], true) " +
+            "touch(ARGV[5]) " +
+            "notify() " +
+            "return 1", Long.class);
+
+    private static final List<String> SUMMARY_FIELDS = Arrays.asList(
+            "totalSubTasks", "completedSubTasks", "totalItems", "processedItems", "failedItems", "status");
+
+    private static final List<String> SUBTASK_FIELDS = Arrays.asList(
+            "mainTaskId", "subTaskNo", "status", "totalItems", "processedItems", "failedItems",
+            "startTime", "finishTime", "resultMessage");
+
+    // 所有字段都是纯字符串，数值字段才能被 HINCRBY 直接累加
     @Resource
-    private RedisTemplate<String, Object> redisTemplate;
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ExportProperties exportProperties;
+
+    @Resource
+    private ThroughputTracker throughputTracker;
+
+    // 条目级进度先在本地累加，按时间/条数/子任务结束批量写入 Redis
+    private ProgressAccumulator accumulator;
+
+    @PostConstruct
+    public void init() {
+        accumulator = new ProgressAccumulator(this::updateSubTaskProgress,
+                exportProperties.getProgressFlush().getThreshold());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        accumulator.flushAll();
+    }
+
+    /**
+     * 定时把本地累加的条目进度增量写入 Redis
+     */
+    @Scheduled(fixedDelayString = "${ageiport.export.progress-flush.interval-ms:1000}")
+    public void flushPendingProgress() {
+        accumulator.flushAll();
+    }
 
 
     /**
@@ -33,161 +346,373 @@ public class ProgressTrackerService {
      * @param totalSubTasks 附件处理流程总共包含的子任务（批次）数量
      */
     public void initializeSummary(String mainTaskId, int totalSubTasks) {
-        String redisKey = REDIS_KEY_PREFIX + mainTaskId;
-
-        ProgressSummary summary = new ProgressSummary();
-        summary.setTotalSubTasks(totalSubTasks);
-        summary.setStatus(PostProcessingTaskStatus.PENDING.name()); // 初始状态为等待中
-
-        putSummary(redisKey, summary);
-        redisTemplate.expire(redisKey, PROGRESS_TTL_HOURS, TimeUnit.HOURS);
+        execute(INIT_SUMMARY_SCRIPT, mainTaskId, String.valueOf(totalSubTasks), PROGRESS_TTL_MILLIS);
     }
 
     /**
      * 初始化一个子任务（批次）的进度条目。
+     * 当第一个子任务初始化时，宏观状态从 PENDING 变为 PROCESSING。
      */
     public void initializeSubTask(String mainTaskId, String subTaskId, int subTaskNo, int totalItemsInBatch) {
-        String redisKey = REDIS_KEY_PREFIX + mainTaskId;
-
-        SubTaskProgressDetail detail = new SubTaskProgressDetail();
-        detail.setSubTaskNo(subTaskNo);
-        detail.setSubTaskId(subTaskId);
-        detail.setStartTime(System.currentTimeMillis());
-        detail.setMainTaskId(mainTaskId);
-
-        putSubTaskDetail(redisKey, subTaskId, detail);
-
-        // 获取或创建宏观统计对象并更新状态
-        getSummary(redisKey).ifPresent(summary -> {
-            // 当第一个子任务初始化时，将宏观状态从 PENDING 变为 PROCESSING
-            if (PostProcessingTaskStatus.PENDING.name().equals(summary.getStatus())) {
-                summary.setStatus(PostProcessingTaskStatus.PROCESSING.name());
-                putSummary(redisKey, summary);
-            }
-        });
+        execute(INIT_SUBTASK_SCRIPT, mainTaskId, subTaskId, String.valueOf(subTaskNo), mainTaskId,
+                String.valueOf(System.currentTimeMillis()), PROGRESS_TTL_MILLIS);
+    }
 
-        redisTemplate.expire(redisKey, PROGRESS_TTL_HOURS, TimeUnit.HOURS);
+    /**
+     * 登记子任务的附件批次被拆分成的分片数，分片发送前调用。
+     * 之后各分片的进度累加到该子任务，所有分片完成后该子任务才完成
+     */
+    public void registerSubTaskChunks(String mainTaskId, String subTaskId, int chunkCount) {
+        execute(REGISTER_CHUNKS_SCRIPT, mainTaskId, subTaskId, String.valueOf(chunkCount), PROGRESS_TTL_MILLIS);
     }
 
     /**
      * 当一个批次开始处理时，更新该批次的总附件数。
-     * 这个方法应该在消费者接收到消息后，开始处理前调用。
+     * 这个方法应该在消费者接收到消息后，开始处理前调用。分片的附件数累加到原始子任务
      */
     public void updateTotalItemsForSubTask(String mainTaskId, String subTaskId, int totalItemsInBatch) {
-        String redisKey = REDIS_KEY_PREFIX + mainTaskId;
-
-        // 更新子任务详情
-        getSubTaskDetail(redisKey, subTaskId).ifPresent(detail -> {
-            detail.setTotalItems(totalItemsInBatch);
-            putSubTaskDetail(redisKey, subTaskId, detail);
-        });
+        int chunkIndex = SubTaskChunkUtils.chunkIndexOf(subTaskId);
+        if (chunkIndex > 0) {
+            execute(UPDATE_CHUNK_TOTAL_SCRIPT, mainTaskId, SubTaskChunkUtils.parentOf(subTaskId), String.valueOf(chunkIndex),
+                    String.valueOf(totalItemsInBatch), PROGRESS_TTL_MILLIS);
+            return;
+        }
+        execute(UPDATE_TOTAL_SCRIPT, mainTaskId, subTaskId, String.valueOf(totalItemsInBatch), PROGRESS_TTL_MILLIS);
     }
 
     /**
-     * 更新指定批次的进度，并同步更新宏观进度。
+     * 记录单个附件条目的处理结果。
+     * 只在本地累加，不直接访问 Redis，可以在每个条目处理完成后调用。
      */
-    public void updateSubTaskProgress(String mainTaskId, String subTaskId, int successIncrement, int failureIncrement) {
-        String redisKey = REDIS_KEY_PREFIX + mainTaskId;
-
-        // 更新子任务微观进度
-        getSubTaskDetail(redisKey, subTaskId).ifPresent(detail -> {
-            detail.setProcessedItems(detail.getProcessedItems() + successIncrement);
-            detail.setFailedItems(detail.getFailedItems() + failureIncrement);
-            detail.setStatus(PostProcessingTaskStatus.PROCESSING.name());
-            putSubTaskDetail(redisKey, subTaskId, detail);
-        });
+    public void recordItemResult(String mainTaskId, String subTaskId, boolean success) {
+        accumulator.add(mainTaskId, subTaskId, success ? 1 : 0, success ? 0 : 1);
+        throughputTracker.record(mainTaskId, SubTaskChunkUtils.parentOf(subTaskId), ThroughputPhase.ATTACHMENT, 1);
+    }
 
-        redisTemplate.expire(redisKey, PROGRESS_TTL_HOURS, TimeUnit.HOURS);
+    /**
+     * 在服务端累加指定批次的成功/失败数，一次往返完成。
+     * 逐条上报请使用 {@link #recordItemResult}。分片的增量累加到原始子任务，并按分片序号去重。
+     */
+    public void updateSubTaskProgress(String mainTaskId, String subTaskId, long successIncrement, long failureIncrement) {
+        execute(ADD_PROGRESS_SCRIPT, mainTaskId, SubTaskChunkUtils.parentOf(subTaskId),
+                String.valueOf(SubTaskChunkUtils.chunkIndexOf(subTaskId)), String.valueOf(successIncrement),
+                String.valueOf(failureIncrement), PROGRESS_TTL_MILLIS);
     }
 
     /**
      * 标记一个批次为完成或失败状态，并累加最终的item统计。
+     * 子任务状态、宏观统计累加和宏观状态推进在同一个脚本中原子完成。
      */
     public void markSubTaskAsFinished(String mainTaskId, String subTaskId, PostProcessingTaskStatus status, String message) {
-        String redisKey = REDIS_KEY_PREFIX + mainTaskId;
-
-        // 先获取子任务的最终处理结果
-        getSubTaskDetail(redisKey, subTaskId).ifPresent(detail -> {
-            detail.setStatus(status.name());
-            detail.setResultMessage(message);
-            detail.setFinishTime(System.currentTimeMillis());
-            putSubTaskDetail(redisKey, subTaskId, detail);
-
-            // 在批次完成后，将该批次的处理结果累加到宏观统计中
-            getSummary(redisKey).ifPresent(summary -> {
-                summary.setCompletedSubTasks(summary.getCompletedSubTasks() + 1);
-                // 累加 item 数量，用于最终展示
-                summary.setTotalItems(summary.getTotalItems() + detail.getTotalItems());
-                summary.setProcessedItems(summary.getProcessedItems() + detail.getProcessedItems());
-                summary.setFailedItems(summary.getFailedItems() + detail.getFailedItems());
-                putSummary(redisKey, summary);
-            });
-        });
+        commitSubTaskAttempt(mainTaskId, subTaskId, null, status, message, null, null);
+    }
+
+    /**
+     * 以某一次执行的身份提交批次结果。同一批次存在多个执行（如推测执行的副本）时，只有第一个提交的执行生效。
+     *
+     * @param attemptId      执行标识，为 null 时等同于 {@link #markSubTaskAsFinished}
+     * @param processedItems 非 null 时以本次执行自己的成功数覆盖子任务计数，用于不逐条上报进度的执行
+     * @param failedItems    与 processedItems 一起使用的失败数
+     * @return 本次执行的结果生效时返回 true；批次已由其他执行完成时返回 false
+     */
+    public boolean commitSubTaskAttempt(String mainTaskId, String subTaskId, String attemptId,
+                                        PostProcessingTaskStatus status, String message,
+                                        Long processedItems, Long failedItems) {
+        // 先同步写入本地尚未刷新的条目增量，保证汇总到宏观统计的是最终结果
+        accumulator.complete(subTaskId);
+        int chunkIndex = SubTaskChunkUtils.chunkIndexOf(subTaskId);
+        if (chunkIndex > 0) {
+            // 分片不参与推测执行，各自提交一次，最后一个分片完成时汇总为原始子任务完成
+            execute(FINISH_CHUNK_SCRIPT, mainTaskId, SubTaskChunkUtils.parentOf(subTaskId), String.valueOf(chunkIndex),
+                    status.name(), String.valueOf(System.currentTimeMillis()), PROGRESS_TTL_MILLIS);
+            return true;
+        }
+        boolean override = processedItems != null && failedItems != null;
+        Long result = execute(FINISH_SUBTASK_SCRIPT, mainTaskId, subTaskId, status.name(), message == null ? "" : message,
+                String.valueOf(System.currentTimeMillis()), PROGRESS_TTL_MILLIS,
+                attemptId == null ? "" : attemptId,
+                override ? String.valueOf(processedItems) : "",
+                override ? String.valueOf(failedItems) : "");
+        return result == null || result != 3L;
+    }
+
+    /**
+     * 本次执行不再提交结果（被取消或失败）时调用，写出本地尚未刷新的条目增量并释放计数器。
+     * 批次已由其他执行完成时，这些增量会被脚本忽略。
+     */
+    public void abandonSubTaskAttempt(String subTaskId) {
+        accumulator.complete(subTaskId);
+    }
 
-        redisTemplate.expire(redisKey, PROGRESS_TTL_HOURS, TimeUnit.HOURS);
+    /**
+     * 批次是否已经完成（由任意一次执行提交）
+     */
+    public boolean isSubTaskFinished(String mainTaskId, String subTaskId) {
+        int chunkIndex = SubTaskChunkUtils.chunkIndexOf(subTaskId);
+        if (chunkIndex > 0) {
+            return stringRedisTemplate.opsForHash().hasKey(hashKeyOf(mainTaskId),
+                    "chunk:" + SubTaskChunkUtils.parentOf(subTaskId) + ":" + chunkIndex + ":status");
+        }
+        Object finishTime = stringRedisTemplate.opsForHash().get(hashKeyOf(mainTaskId),
+                SUBTASK_FIELD_PREFIX + subTaskId + ":finishTime");
+        return parseLong((String) finishTime) > 0;
     }
+
     /**
-     * 获取完整的进度信息 DTO。
+     * 获取完整的进度信息 DTO，包含全部子任务。
+     * 子任务很多时请使用 {@link #getSummary} 和 {@link #getSubTaskPage}。
      */
     public FullProgress geFullProgress(String mainTaskId) {
-        String redisKey = REDIS_KEY_PREFIX + mainTaskId;
-        if (!Boolean.TRUE.equals(redisTemplate.hasKey(redisKey))) {
+        Map<Object, Object> rawData = stringRedisTemplate.opsForHash().entries(hashKeyOf(mainTaskId));
+        if (rawData.isEmpty()) {
             return null;
         }
 
+        ProgressSummary summary = null;
+        Map<String, Map<String, String>> subTaskFields = new HashMap<>();
+        for (Map.Entry<Object, Object> entry : rawData.entrySet()) {
+            String field = (String) entry.getKey();
+            String value = (String) entry.getValue();
+            if (field.startsWith(SUMMARY_FIELD_PREFIX)) {
+                if (summary == null) {
+                    summary = new ProgressSummary();
+                }
+                applySummaryField(summary, field.substring(SUMMARY_FIELD_PREFIX.length()), value);
+            } else if (field.startsWith(SUBTASK_FIELD_PREFIX)) {
+                // subTaskId 中可能含有冒号，字段名取最后一个冒号之后的部分
+                int split = field.lastIndexOf(':');
+                String subTaskId = field.substring(SUBTASK_FIELD_PREFIX.length(), split);
+                subTaskFields.computeIfAbsent(subTaskId, id -> new HashMap<>()).put(field.substring(split + 1), value);
+            }
+        }
+
         FullProgress fullProgress = new FullProgress();
+        fullProgress.setSummary(summary);
+        fullProgress.setSubTasks(subTaskFields.entrySet().stream()
+                .map(entry -> toSubTaskDetail(entry.getKey(), entry.getValue()))
+                .sorted(Comparator.comparingInt(SubTaskProgressDetail::getSubTaskNo))
+                .collect(Collectors.toList()));
+        return fullProgress;
+    }
 
-        // 使用类型安全的 getSummary 方法
-        getSummary(redisKey).ifPresent(summary -> {
-            if (summary.getTotalSubTasks() > 0 && summary.getCompletedSubTasks() >= summary.getTotalSubTasks()) {
-                String newStatus = summary.getFailedItems() > 0 ? PostProcessingTaskStatus.PARTIALLY_COMPLETED.name() : PostProcessingTaskStatus.COMPLETED.name();
-                if (!summary.getStatus().equals(newStatus)) {
-                    summary.setStatus(newStatus);
-                    putSummary(redisKey, summary);
+    /**
+     * 只读取宏观进度，一次 HMGET，与子任务数量无关。进度未初始化时返回 null
+     */
+    public ProgressSummary getSummary(String mainTaskId) {
+        List<Object> hashKeys = SUMMARY_FIELDS.stream()
+                .map(name -> SUMMARY_FIELD_PREFIX + name)
+                .collect(Collectors.toList());
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(hashKeyOf(mainTaskId), hashKeys);
+        ProgressSummary summary = null;
+        for (int i = 0; i < SUMMARY_FIELDS.size(); i++) {
+            if (values.get(i) != null) {
+                if (summary == null) {
+                    summary = new ProgressSummary();
                 }
+                applySummaryField(summary, SUMMARY_FIELDS.get(i), (String) values.get(i));
             }
-            fullProgress.setSummary(summary);
-        });
+        }
+        return summary;
+    }
 
-        // 使用类型安全的 getAllSubTaskDetails 方法
-        fullProgress.setSubTasks(getAllSubTaskDetails(redisKey));
+    /**
+     * 按 subTaskNo 顺序分页读取子任务进度
+     *
+     * @param status 只返回处于该状态的子任务，为 null 时不过滤
+     * @param offset 起始位置，从 0 开始
+     * @param limit  最多返回的条数
+     */
+    public SubTaskProgressPage getSubTaskPage(String mainTaskId, PostProcessingTaskStatus status, long offset, int limit) {
+        String indexKey = status == null ? subTaskIndexKeyOf(mainTaskId) : statusIndexKeyOf(mainTaskId, status);
+
+        SubTaskProgressPage page = new SubTaskProgressPage();
+        page.setStatus(status == null ? null : status.name());
+        page.setOffset(offset);
+        page.setLimit(limit);
+        Long total = stringRedisTemplate.opsForZSet().zCard(indexKey);
+        page.setTotal(total == null ? 0L : total);
+
+        Set<String> subTaskIds = limit > 0 ? stringRedisTemplate.opsForZSet().range(indexKey, offset, offset + limit - 1) : null;
+        if (subTaskIds == null || subTaskIds.isEmpty()) {
+            page.setSubTasks(Collections.emptyList());
+            return page;
+        }
 
-        return fullProgress;
+        // 一次 HMGET 取回本页所有子任务的所有字段
+        List<String> ids = new ArrayList<>(subTaskIds);
+        List<Object> hashKeys = new ArrayList<>(ids.size() * SUBTASK_FIELDS.size());
+        for (String subTaskId : ids) {
+            for (String name : SUBTASK_FIELDS) {
+                hashKeys.add(SUBTASK_FIELD_PREFIX + subTaskId + ":" + name);
+            }
+        }
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(hashKeyOf(mainTaskId), hashKeys);
+        List<SubTaskProgressDetail> details = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            Map<String, String> fields = new HashMap<>();
+            for (int j = 0; j < SUBTASK_FIELDS.size(); j++) {
+                Object value = values.get(i * SUBTASK_FIELDS.size() + j);
+                if (value != null) {
+                    fields.put(SUBTASK_FIELDS.get(j), (String) value);
+                }
+            }
+            if (fields.containsKey("subTaskNo")) {
+                details.add(toSubTaskDetail(ids.get(i), fields));
+            }
+        }
+        page.setSubTasks(details);
+        return page;
     }
 
-    public void cleanup(String mainTaskId) {
-        redisTemplate.delete(REDIS_KEY_PREFIX + mainTaskId);
+    /**
+     * 各状态下的子任务数，一次管道往返
+     */
+    public Map<String, Long> getSubTaskStatusCounts(String mainTaskId) {
+        List<Object> counts = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (PostProcessingTaskStatus status : STATUSES) {
+                connection.zSetCommands().zCard(statusIndexKeyOf(mainTaskId, status).getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (int i = 0; i < STATUSES.length; i++) {
+            Object count = counts.get(i);
+            result.put(STATUSES[i].name(), count instanceof Number ? ((Number) count).longValue() : 0L);
+        }
+        return result;
+    }
+
+    /**
+     * 获取子任务的最新进度，读取前会先刷新本地尚未写入的条目增量。分片返回原始子任务的汇总进度
+     */
+    public Optional<SubTaskProgressDetail> getLatestSubTaskDetail(String mainTaskId, String subTaskId) {
+        accumulator.flush(subTaskId);
+        return getSubTaskDetail(hashKeyOf(mainTaskId), SubTaskChunkUtils.parentOf(subTaskId));
     }
 
     // ====================================================================
     //              私有、类型安全的 Redis Hash 访问器方法
     // ====================================================================
 
-    private void putSummary(String redisKey, ProgressSummary summary) {
-        redisTemplate.opsForHash().put(redisKey, SUMMARY_FIELD, summary);
+    private Long execute(DefaultRedisScript<Long> script, String mainTaskId, String... args) {
+        Object[] argv = Arrays.copyOf(args, args.length + 1, Object[].class);
+        argv[args.length] = changeChannelOf(mainTaskId);
+        return stringRedisTemplate.execute(script, keysOf(mainTaskId), argv);
     }
 
-    private Optional<ProgressSummary> getSummary(String redisKey) {
-        Object raw = redisTemplate.opsForHash().get(redisKey, SUMMARY_FIELD);
-        return Optional.ofNullable((ProgressSummary) raw);
+    /**
+     * 主任务进度变更通知的 Pub/Sub 频道
+     */
+    public static String changeChannelOf(String mainTaskId) {
+        return CHANGE_CHANNEL_PREFIX + mainTaskId;
     }
 
-    private void putSubTaskDetail(String redisKey, String subTaskId, SubTaskProgressDetail detail) {
-        redisTemplate.opsForHash().put(redisKey, SUBTASK_FIELD_PREFIX + subTaskId, detail);
+    /**
+     * 主任务ID作为 hash tag，保证同一主任务的 Hash 与索引位于同一个集群 slot
+     */
+    private static String hashKeyOf(String mainTaskId) {
+        return REDIS_KEY_PREFIX + "{" + mainTaskId + "}";
     }
 
-    public Optional<SubTaskProgressDetail> getSubTaskDetail(String redisKey, String subTaskId) {
-        Object raw = redisTemplate.opsForHash().get(redisKey, SUBTASK_FIELD_PREFIX + subTaskId);
-        return Optional.ofNullable((SubTaskProgressDetail) raw);
+    private static String subTaskIndexKeyOf(String mainTaskId) {
+        return hashKeyOf(mainTaskId) + SUBTASK_INDEX_SUFFIX;
     }
 
-    private List<SubTaskProgressDetail> getAllSubTaskDetails(String redisKey) {
-        Map<Object, Object> rawData = redisTemplate.opsForHash().entries(redisKey);
-        return rawData.entrySet().stream()
-                .filter(entry -> ((String) entry.getKey()).startsWith(SUBTASK_FIELD_PREFIX))
-                .map(entry -> (SubTaskProgressDetail) entry.getValue())
-                .filter(Objects::nonNull)
-                .sorted(Comparator.comparingInt(SubTaskProgressDetail::getSubTaskNo))
+    private static String statusIndexKeyOf(String mainTaskId, PostProcessingTaskStatus status) {
+        return hashKeyOf(mainTaskId) + STATUS_INDEX_SUFFIX + status.name();
+    }
+
+    /**
+     * 脚本使用的全部 key，顺序必须与 {@link #statusKeyTable} 一致
+     */
+    private static List<String> keysOf(String mainTaskId) {
+        List<String> keys = new ArrayList<>(STATUSES.length + 2);
+        keys.add(hashKeyOf(mainTaskId));
+        keys.add(subTaskIndexKeyOf(mainTaskId));
+        for (PostProcessingTaskStatus status : STATUSES) {
+            keys.add(statusIndexKeyOf(mainTaskId, status));
+        }
+        return keys;
+    }
+
+    private static String statusKeyTable() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < STATUSES.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(STATUSES[i].name()).append(" = KEYS[").append(i + 3).append(']');
+        }
+        return sb.toString();
+    }
+
+    private Optional<SubTaskProgressDetail> getSubTaskDetail(String redisKey, String subTaskId) {
+        List<Object> hashKeys = SUBTASK_FIELDS.stream()
+                .map(name -> SUBTASK_FIELD_PREFIX + subTaskId + ":" + name)
                 .collect(Collectors.toList());
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(redisKey, hashKeys);
+        Map<String, String> fields = new HashMap<>();
+        for (int i = 0; i < SUBTASK_FIELDS.size(); i++) {
+            if (values.get(i) != null) {
+                fields.put(SUBTASK_FIELDS.get(i), (String) values.get(i));
+            }
+        }
+        if (!fields.containsKey("subTaskNo")) {
+            return Optional.empty();
+        }
+        return Optional.of(toSubTaskDetail(subTaskId, fields));
+    }
+
+    private void applySummaryField(ProgressSummary summary, String name, String value) {
+        switch (name) {
+            case "totalSubTasks":
+                summary.setTotalSubTasks(parseLong(value));
+                break;
+            case "completedSubTasks":
+                summary.setCompletedSubTasks(parseLong(value));
+                break;
+            case "totalItems":
+                summary.setTotalItems(parseLong(value));
+                break;
+            case "processedItems":
+                summary.setProcessedItems(parseLong(value));
+                break;
+            case "failedItems":
+                summary.setFailedItems(parseLong(value));
+                break;
+            case "status":
+                summary.setStatus(value);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private SubTaskProgressDetail toSubTaskDetail(String subTaskId, Map<String, String> fields) {
+        SubTaskProgressDetail detail = new SubTaskProgressDetail();
+        detail.setSubTaskId(subTaskId);
+        detail.setMainTaskId(fields.get("mainTaskId"));
+        detail.setSubTaskNo((int) parseLong(fields.get("subTaskNo")));
+        if (fields.get("status") != null) {
+            detail.setStatus(fields.get("status"));
+        }
+        detail.setTotalItems(parseLong(fields.get("totalItems")));
+        detail.setProcessedItems(parseLong(fields.get("processedItems")));
+        detail.setFailedItems(parseLong(fields.get("failedItems")));
+        detail.setStartTime(parseLong(fields.get("startTime")));
+        detail.setFinishTime(parseLong(fields.get("finishTime")));
+        detail.setResultMessage(fields.get("resultMessage"));
+        return detail;
+    }
+
+    private static long parseLong(String value) {
+        if (value == null || value.isEmpty()) {
+            return 0L;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
     }
-}
\ No newline at end of file
+}
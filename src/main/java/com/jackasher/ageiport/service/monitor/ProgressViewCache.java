@@ -0,0 +1,174 @@
+package com.jackasher.ageiport.service.monitor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.PatternTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.jackasher.ageiport.config.export.ExportProperties;
+
+/**
+ * 导出进度查询的合并与短期缓存。
+ * 1. 同一主任务、同一视图的并发查询共享同一次计算 (single-flight)；
+ * 2. 计算结果缓存 progressCacheTtlMs 毫秒，期间的查询直接返回缓存；
+ * 3. 收到该任务的进度变更事件时已完成的缓存立即失效，缓存不会掩盖真实的进度变化。
+ * 轮询对任务服务端和 Redis 的压力因此与观察者数量无关。
+ *
+ * @author Jackasher
+ */
+@Service
+public class ProgressViewCache implements MessageListener {
+
+    private static final Logger log = LoggerFactory.getLogger(ProgressViewCache.class);
+
+    @Resource
+    private ExportProgressService exportProgressService;
+
+    @Resource
+    private RedisMessageListenerContainer container;
+
+    @Resource
+    private ExportProperties exportProperties;
+
+    private final ConcurrentHashMap<ViewKey, CachedView> views = new ConcurrentHashMap<>();
+
+    private PatternTopic changeTopic;
+
+    private static final class ViewKey {
+        private final String mainTaskId;
+        private final boolean compact;
+
+        private ViewKey(String mainTaskId, boolean compact) {
+            this.mainTaskId = mainTaskId;
+            this.compact = compact;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ViewKey)) {
+                return false;
+            }
+            ViewKey that = (ViewKey) o;
+            return compact == that.compact && mainTaskId.equals(that.mainTaskId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mainTaskId, compact);
+        }
+    }
+
+    private static final class CachedView {
+        private final CompletableFuture<Map<String, Object>> future = new CompletableFuture<>();
+        // 计算完成的时间，未完成时为 0
+        private volatile long completedAt;
+
+        private boolean isFresh(long now, long ttlMillis) {
+            return completedAt == 0 || now - completedAt < ttlMillis;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        changeTopic = new PatternTopic(ProgressTrackerService.changeChannelOf("*"));
+        container.addMessageListener(this, changeTopic);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        container.removeMessageListener(this, changeTopic);
+    }
+
+    /**
+     * 获取进度视图，语义同 {@link ExportProgressService#buildProgressView}，返回的 Map 只读
+     */
+    public Map<String, Object> getProgressView(String mainTaskId, boolean compact) {
+        ViewKey key = new ViewKey(mainTaskId, compact);
+        long ttlMillis = exportProperties.getProgressCacheTtlMs();
+        if (ttlMillis <= 0) {
+            return exportProgressService.buildProgressView(mainTaskId, compact);
+        }
+
+        while (true) {
+            long now = System.currentTimeMillis();
+            CachedView existing = views.get(key);
+            if (existing != null && existing.isFresh(now, ttlMillis)) {
+                return await(existing);
+            }
+
+            CachedView mine = new CachedView();
+            boolean leader = existing == null ? views.putIfAbsent(key, mine) == null : views.replace(key, existing, mine);
+            if (!leader) {
+                // 其他请求抢先开始了新的计算，重新读取并等待它
+                continue;
+            }
+
+            try {
+                Map<String, Object> view = exportProgressService.buildProgressView(mainTaskId, compact);
+                mine.completedAt = System.currentTimeMillis();
+                mine.future.complete(view == null ? null : Collections.unmodifiableMap(view));
+            } catch (RuntimeException e) {
+                // 失败结果不缓存，下一个请求重新计算
+                views.remove(key, mine);
+                mine.future.completeExceptionally(e);
+            }
+            return await(mine);
+        }
+    }
+
+    /**
+     * 进度变更事件：失效该任务已计算完成的缓存视图。
+     * 进行中的计算保留，并发查询继续合并到这次计算上，否则导出期间每条进度变更都会打散 single-flight
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        String mainTaskId = channel.substring(ProgressTrackerService.changeChannelOf("").length());
+        views.computeIfPresent(new ViewKey(mainTaskId, true), (key, view) -> view.completedAt == 0 ? view : null);
+        views.computeIfPresent(new ViewKey(mainTaskId, false), (key, view) -> view.completedAt == 0 ? view : null);
+    }
+
+    /**
+     * 定期清理过期条目，避免已结束任务的视图一直驻留
+     */
+    @Scheduled(fixedDelayString = "${ageiport.export.progress-cache-evict-interval-ms:10000}")
+    public void evictExpired() {
+        long now = System.currentTimeMillis();
+        long ttlMillis = exportProperties.getProgressCacheTtlMs();
+        int before = views.size();
+        views.entrySet().removeIf(entry -> !entry.getValue().isFresh(now, ttlMillis));
+        if (log.isDebugEnabled() && before != views.size()) {
+            log.debug("清理过期进度视图 {} 个", before - views.size());
+        }
+    }
+
+    private static Map<String, Object> await(CachedView view) {
+        try {
+            return view.future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
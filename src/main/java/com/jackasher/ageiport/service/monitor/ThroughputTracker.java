@@ -0,0 +1,349 @@
+package com.jackasher.ageiport.service.monitor;
+
+import com.jackasher.ageiport.config.export.ExportProperties;
+import com.jackasher.ageiport.constant.ThroughputPhase;
+import com.jackasher.ageiport.model.dto.NodeThroughput;
+import com.jackasher.ageiport.model.dto.PhaseThroughput;
+import com.jackasher.ageiport.utils.network.NetworkUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 导出吞吐量统计。
+ * 每个节点在本地按 主任务/子任务/节点 三个维度、数据导出和附件处理两个阶段维护滑动窗口计数器，
+ * 定时把窗口速率上报到 Redis，查询时汇总所有节点的上报得到主任务的整体速率：
+ * <pre>
+ *   ageiport:export_throughput:{mainTaskId}            node:{节点}:{阶段} 速率、processed:{阶段} 累计量、
+ *                                                      expected:{阶段} 预计总量、start:{阶段} 开始时间
+ *   ageiport:export_throughput:{mainTaskId}:subtasks   {子任务ID}:{阶段} 速率
+ *   ageiport:export_throughput:nodes                   {节点}:{阶段} 节点整体速率和累计量
+ * </pre>
+ * 速率字段的值为 "速率,上报时间"（节点整体为 "速率,累计量,上报时间"），超过 staleMillis 未上报的视为已停止，速率按 0 计。
+ * 主任务的累计量以 HINCRBY 增量汇总，本地窗口回收后重新创建也不会丢失已上报的部分。
+ * 记录只在本地累加，上报次数与记录次数无关。
+ */
+@Service
+public class ThroughputTracker {
+
+    private static final Logger log = LoggerFactory.getLogger(ThroughputTracker.class);
+
+    private static final String REDIS_KEY_PREFIX = "ageiport:export_throughput:";
+    private static final String NODES_KEY = REDIS_KEY_PREFIX + "nodes";
+    private static final String SUBTASKS_SUFFIX = ":subtasks";
+    private static final String NODE_FIELD_PREFIX = "node:";
+    private static final String PROCESSED_FIELD_PREFIX = "processed:";
+    private static final String EXPECTED_FIELD_PREFIX = "expected:";
+    private static final String START_FIELD_PREFIX = "start:";
+    private static final long TASK_TTL_HOURS = 24;
+    // 节点整体速率中超过该时间未更新的条目在读取时清除
+    private static final long NODE_EXPIRE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ExportProperties exportProperties;
+
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    private String nodeId;
+
+    private final ConcurrentHashMap<WindowKey, ThroughputWindow> taskWindows = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<WindowKey, ThroughputWindow> subTaskWindows = new ConcurrentHashMap<>();
+    private final Map<ThroughputPhase, ThroughputWindow> nodeWindows = new EnumMap<>(ThroughputPhase.class);
+
+    private static final class WindowKey {
+        private final String mainTaskId;
+        private final String id;
+        private final ThroughputPhase phase;
+
+        private WindowKey(String mainTaskId, String id, ThroughputPhase phase) {
+            this.mainTaskId = mainTaskId;
+            this.id = id;
+            this.phase = phase;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof WindowKey)) {
+                return false;
+            }
+            WindowKey that = (WindowKey) o;
+            return mainTaskId.equals(that.mainTaskId) && id.equals(that.id) && phase == that.phase;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mainTaskId, id, phase);
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        nodeId = NetworkUtils.getLocalNodeId(serverPort);
+        for (ThroughputPhase phase : ThroughputPhase.values()) {
+            nodeWindows.put(phase, newWindow());
+        }
+    }
+
+    /**
+     * 本节点标识，格式为 IP:端口
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * 记录一次处理量，只在本地累加
+     *
+     * @param count 数据导出为行数，附件处理为条目数
+     */
+    public void record(String mainTaskId, String subTaskId, ThroughputPhase phase, long count) {
+        if (count <= 0) {
+            return;
+        }
+        taskWindows.computeIfAbsent(new WindowKey(mainTaskId, mainTaskId, phase), k -> newWindow()).record(count);
+        subTaskWindows.computeIfAbsent(new WindowKey(mainTaskId, subTaskId, phase), k -> newWindow()).record(count);
+        nodeWindows.get(phase).record(count);
+    }
+
+    /**
+     * 设置主任务在某阶段预计需要处理的总量，用于估算剩余时间
+     */
+    public void setExpected(String mainTaskId, ThroughputPhase phase, long expected) {
+        String key = taskKeyOf(mainTaskId);
+        stringRedisTemplate.opsForHash().put(key, EXPECTED_FIELD_PREFIX + phase.name(), String.valueOf(expected));
+        stringRedisTemplate.expire(key, TASK_TTL_HOURS, TimeUnit.HOURS);
+    }
+
+    /**
+     * 定时把本地窗口的速率上报到 Redis，一次管道往返。
+     * 已经没有新记录且最后一次上报已反映为 0 速率的窗口会被回收
+     */
+    @Scheduled(fixedDelayString = "${ageiport.export.throughput.publish-ms:1000}")
+    public void publish() {
+        long now = System.currentTimeMillis();
+        long idleMillis = exportProperties.getThroughput().getWindowSeconds() * 1000L;
+        Map<String, Map<String, String>> taskFields = new HashMap<>();
+        Map<String, Map<String, Long>> processedDeltas = new HashMap<>();
+        Map<String, Map<String, String>> subTaskFields = new HashMap<>();
+
+        collect(taskWindows, now, idleMillis, (key, window) -> {
+            taskFields.computeIfAbsent(key.mainTaskId, id -> new HashMap<>())
+                    .put(NODE_FIELD_PREFIX + nodeId + ":" + key.phase.name(), encodeRate(window, now));
+            processedDeltas.computeIfAbsent(key.mainTaskId, id -> new HashMap<>())
+                    .put(key.phase.name(), window.takeUnreported());
+        });
+        collect(subTaskWindows, now, idleMillis, (key, window) ->
+                subTaskFields.computeIfAbsent(key.mainTaskId, id -> new HashMap<>())
+                        .put(key.id + ":" + key.phase.name(), encodeRate(window, now)));
+
+        Map<String, String> nodeFields = new HashMap<>();
+        for (Map.Entry<ThroughputPhase, ThroughputWindow> entry : nodeWindows.entrySet()) {
+            ThroughputWindow window = entry.getValue();
+            if (window.total() > 0) {
+                nodeFields.put(nodeId + ":" + entry.getKey().name(),
+                        String.format(Locale.ROOT, "%.3f,%d,%d", window.ratePerSecond(), window.total(), now));
+            }
+        }
+
+        if (taskFields.isEmpty() && subTaskFields.isEmpty() && nodeFields.isEmpty()) {
+            return;
+        }
+        long ttlSeconds = TimeUnit.HOURS.toSeconds(TASK_TTL_HOURS);
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Map.Entry<String, Map<String, String>> entry : taskFields.entrySet()) {
+                    String key = taskKeyOf(entry.getKey());
+                    conn.hMSet(key, entry.getValue());
+                    for (Map.Entry<String, Long> delta : processedDeltas.get(entry.getKey()).entrySet()) {
+                        conn.hSetNX(key, START_FIELD_PREFIX + delta.getKey(), String.valueOf(now));
+                        if (delta.getValue() > 0) {
+                            conn.hIncrBy(key, PROCESSED_FIELD_PREFIX + delta.getKey(), delta.getValue());
+                        }
+                    }
+                    conn.expire(key, ttlSeconds);
+                }
+                for (Map.Entry<String, Map<String, String>> entry : subTaskFields.entrySet()) {
+                    String key = taskKeyOf(entry.getKey()) + SUBTASKS_SUFFIX;
+                    conn.hMSet(key, entry.getValue());
+                    conn.expire(key, ttlSeconds);
+                }
+                if (!nodeFields.isEmpty()) {
+                    conn.hMSet(NODES_KEY, nodeFields);
+                }
+                return null;
+            });
+        } catch (RuntimeException e) {
+            // 上报失败只影响速率展示，下个周期重试
+            log.warn("上报节点 {} 的吞吐量失败: {}", nodeId, e.getMessage());
+        }
+    }
+
+    /**
+     * 汇总所有节点上报的主任务吞吐量，按阶段返回
+     *
+     * @param includeSubTasks 是否包含各子任务的速率
+     */
+    public Map<String, PhaseThroughput> getTaskThroughput(String mainTaskId, boolean includeSubTasks) {
+        long now = System.currentTimeMillis();
+        Map<Object, Object> raw = stringRedisTemplate.opsForHash().entries(taskKeyOf(mainTaskId));
+        Map<String, PhaseThroughput> result = new LinkedHashMap<>();
+        for (ThroughputPhase phase : ThroughputPhase.values()) {
+            PhaseThroughput throughput = new PhaseThroughput();
+            throughput.setPhase(phase.name());
+            throughput.setNodes(new TreeMap<>());
+            Object expected = raw.get(EXPECTED_FIELD_PREFIX + phase.name());
+            if (expected != null) {
+                throughput.setExpected(Long.parseLong((String) expected));
+            }
+            Object start = raw.get(START_FIELD_PREFIX + phase.name());
+            if (start != null) {
+                throughput.setStartTime(Long.parseLong((String) start));
+            }
+            Object processed = raw.get(PROCESSED_FIELD_PREFIX + phase.name());
+            if (processed != null) {
+                throughput.setProcessed(Long.parseLong((String) processed));
+            }
+            if (includeSubTasks) {
+                throughput.setSubTasks(new TreeMap<>());
+            }
+            result.put(phase.name(), throughput);
+        }
+
+        for (Map.Entry<Object, Object> entry : raw.entrySet()) {
+            String field = (String) entry.getKey();
+            if (!field.startsWith(NODE_FIELD_PREFIX)) {
+                continue;
+            }
+            int split = field.lastIndexOf(':');
+            PhaseThroughput throughput = result.get(field.substring(split + 1));
+            if (throughput == null) {
+                continue;
+            }
+            double rate = decodeRate((String) entry.getValue(), now);
+            throughput.getNodes().put(field.substring(NODE_FIELD_PREFIX.length(), split), rate);
+            throughput.setRatePerSecond(throughput.getRatePerSecond() + rate);
+        }
+
+        if (includeSubTasks) {
+            Map<Object, Object> subTasks = stringRedisTemplate.opsForHash().entries(taskKeyOf(mainTaskId) + SUBTASKS_SUFFIX);
+            for (Map.Entry<Object, Object> entry : subTasks.entrySet()) {
+                String field = (String) entry.getKey();
+                int split = field.lastIndexOf(':');
+                PhaseThroughput throughput = result.get(field.substring(split + 1));
+                if (throughput != null) {
+                    throughput.getSubTasks().put(field.substring(0, split), decodeRate((String) entry.getValue(), now));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 所有节点最近上报的整体吞吐量，按节点排序。长时间未上报的节点会被清除
+     */
+    public List<NodeThroughput> getNodeThroughput() {
+        long now = System.currentTimeMillis();
+        Map<Object, Object> raw = stringRedisTemplate.opsForHash().entries(NODES_KEY);
+        List<NodeThroughput> result = new ArrayList<>(raw.size());
+        List<Object> expired = new ArrayList<>();
+        for (Map.Entry<Object, Object> entry : raw.entrySet()) {
+            String field = (String) entry.getKey();
+            String[] parts = ((String) entry.getValue()).split(",");
+            long updateTime = Long.parseLong(parts[2]);
+            if (now - updateTime > NODE_EXPIRE_MILLIS) {
+                expired.add(field);
+                continue;
+            }
+            int split = field.lastIndexOf(':');
+            NodeThroughput node = new NodeThroughput();
+            node.setNodeId(field.substring(0, split));
+            node.setPhase(field.substring(split + 1));
+            node.setRatePerSecond(now - updateTime > staleMillis() ? 0 : Double.parseDouble(parts[0]));
+            node.setProcessed(Long.parseLong(parts[1]));
+            node.setUpdateTime(updateTime);
+            result.add(node);
+        }
+        if (!expired.isEmpty()) {
+            stringRedisTemplate.opsForHash().delete(NODES_KEY, expired.toArray());
+        }
+        result.sort(Comparator.comparing(NodeThroughput::getNodeId).thenComparing(NodeThroughput::getPhase));
+        return result;
+    }
+
+    /**
+     * 清除主任务的吞吐量统计：本地窗口直接回收，不再上报，Redis 中的汇总一并删除。
+     * 主任务失败时调用；成功的主任务之后还有附件处理阶段，其统计保留到空闲回收和 TTL 到期
+     */
+    public void cleanup(String mainTaskId) {
+        taskWindows.keySet().removeIf(key -> key.mainTaskId.equals(mainTaskId));
+        subTaskWindows.keySet().removeIf(key -> key.mainTaskId.equals(mainTaskId));
+        stringRedisTemplate.delete(Arrays.asList(taskKeyOf(mainTaskId), taskKeyOf(mainTaskId) + SUBTASKS_SUFFIX));
+    }
+
+    // ====================================================================
+    //                          私有辅助方法
+    // ====================================================================
+
+    private ThroughputWindow newWindow() {
+        return new ThroughputWindow(exportProperties.getThroughput().getWindowSeconds());
+    }
+
+    private interface WindowVisitor {
+        void visit(WindowKey key, ThroughputWindow window);
+    }
+
+    /**
+     * 收集需要上报的窗口；空闲超过一个窗口长度的窗口最后上报一次后回收，此时其速率已经降为 0
+     */
+    private void collect(ConcurrentHashMap<WindowKey, ThroughputWindow> windows, long now, long idleMillis, WindowVisitor visitor) {
+        Iterator<Map.Entry<WindowKey, ThroughputWindow>> it = windows.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<WindowKey, ThroughputWindow> entry = it.next();
+            ThroughputWindow window = entry.getValue();
+            visitor.visit(entry.getKey(), window);
+            if (now - window.getLastRecordTime() > idleMillis) {
+                windows.remove(entry.getKey(), window);
+            }
+        }
+    }
+
+    private static String encodeRate(ThroughputWindow window, long now) {
+        return String.format(Locale.ROOT, "%.3f,%d", window.ratePerSecond(), now);
+    }
+
+    /**
+     * 解析 "速率,上报时间"，上报已过期的速率按 0 计
+     */
+    private double decodeRate(String value, long now) {
+        String[] parts = value.split(",");
+        long updateTime = Long.parseLong(parts[1]);
+        return now - updateTime > staleMillis() ? 0 : Double.parseDouble(parts[0]);
+    }
+
+    private long staleMillis() {
+        return Math.max(5_000L, exportProperties.getThroughput().getPublishMs() * 3);
+    }
+
+    private static String taskKeyOf(String mainTaskId) {
+        return REDIS_KEY_PREFIX + "{" + mainTaskId + "}";
+    }
+}
@@ -0,0 +1,99 @@
+package com.jackasher.ageiport.service.monitor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按秒分槽的滑动窗口计数器，用于计算最近一段时间内的处理速率。
+ * 每个槽记录一秒内的累加值，槽按秒数取模循环复用，读取时只统计仍在窗口内的槽，
+ * 因此内存占用与窗口长度成正比，与记录次数无关。
+ *
+ * @author Jackasher
+ * @version 1.0
+ * @since 1.0
+ */
+public class ThroughputWindow {
+
+    private final int windowSeconds;
+    private final AtomicLongArray slotSeconds;
+    private final AtomicLongArray slotCounts;
+    private final LongAdder total = new LongAdder();
+    // 已经通过 takeUnreported 取走的累计量
+    private long reported;
+    private final long createTime;
+    private volatile long lastRecordTime;
+
+    /**
+     * @param windowSeconds 窗口长度(秒)，最小为1
+     */
+    public ThroughputWindow(int windowSeconds) {
+        this.windowSeconds = Math.max(1, windowSeconds);
+        // 多一个槽给当前正在累加的这一秒
+        this.slotSeconds = new AtomicLongArray(this.windowSeconds + 1);
+        this.slotCounts = new AtomicLongArray(this.windowSeconds + 1);
+        this.createTime = System.currentTimeMillis();
+    }
+
+    /**
+     * 记录一次处理量
+     */
+    public void record(long count) {
+        long now = System.currentTimeMillis();
+        long second = now / 1000;
+        int index = (int) (second % slotCounts.length());
+        if (slotSeconds.get(index) != second) {
+            // 槽位轮转到新的一秒时清零，每个槽每秒最多发生一次
+            synchronized (this) {
+                if (slotSeconds.get(index) != second) {
+                    slotCounts.set(index, 0);
+                    slotSeconds.set(index, second);
+                }
+            }
+        }
+        slotCounts.addAndGet(index, count);
+        total.add(count);
+        lastRecordTime = now;
+    }
+
+    /**
+     * 窗口内的平均速率(每秒)。窗口尚未填满时按实际经过的时间计算，避免刚开始时速率被低估
+     */
+    public double ratePerSecond() {
+        long now = System.currentTimeMillis();
+        long second = now / 1000;
+        long sum = 0;
+        for (int i = 0; i < slotCounts.length(); i++) {
+            long slotSecond = slotSeconds.get(i);
+            if (slotSecond > second - windowSeconds && slotSecond <= second) {
+                sum += slotCounts.get(i);
+            }
+        }
+        // 统计的槽覆盖之前完整的 windowSeconds-1 秒和当前这一秒已经过去的部分
+        long elapsedMillis = Math.min((windowSeconds - 1) * 1000L + now % 1000, now - createTime);
+        return sum * 1000.0 / Math.max(1000L, elapsedMillis);
+    }
+
+    /**
+     * 创建以来的累计处理量
+     */
+    public long total() {
+        return total.sum();
+    }
+
+    /**
+     * 取走上次调用以来新增的处理量，用于把累计量以增量方式汇总到其他地方
+     */
+    public synchronized long takeUnreported() {
+        long current = total.sum();
+        long delta = current - reported;
+        reported = current;
+        return delta;
+    }
+
+    /**
+     * 最近一次记录的时间，从未记录时为 0
+     */
+    public long getLastRecordTime() {
+        return lastRecordTime;
+    }
+}
@@ -0,0 +1,55 @@
+package com.jackasher.ageiport.utils.business;
+
+/**
+ * @author Jackasher
+ * 批次分片的子任务ID约定：分片ID为 {原始子任务ID}_chunk_{分片序号}，分片序号从 1 开始
+ * @version 1.0
+ * @className SubTaskChunkUtils
+ * @since 1.0
+ **/
+public final class SubTaskChunkUtils {
+
+    private static final String CHUNK_SEPARATOR = "_chunk_";
+
+    private SubTaskChunkUtils() {
+    }
+
+    /**
+     * 生成分片ID
+     */
+    public static String chunkId(String subTaskId, int chunkIndex) {
+        return subTaskId + CHUNK_SEPARATOR + chunkIndex;
+    }
+
+    /**
+     * 是否为分片ID
+     */
+    public static boolean isChunk(String subTaskId) {
+        return chunkIndexOf(subTaskId) > 0;
+    }
+
+    /**
+     * 分片所属的原始子任务ID，不是分片ID时原样返回
+     */
+    public static String parentOf(String subTaskId) {
+        return isChunk(subTaskId) ? subTaskId.substring(0, subTaskId.lastIndexOf(CHUNK_SEPARATOR)) : subTaskId;
+    }
+
+    /**
+     * 分片序号，不是分片ID时返回 0
+     */
+    public static int chunkIndexOf(String subTaskId) {
+        if (subTaskId == null) {
+            return 0;
+        }
+        int split = subTaskId.lastIndexOf(CHUNK_SEPARATOR);
+        if (split <= 0) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(subTaskId.substring(split + CHUNK_SEPARATOR.length())));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
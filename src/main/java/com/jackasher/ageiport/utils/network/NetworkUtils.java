@@ -60,6 +60,16 @@ public class NetworkUtils {
         }
     }
     
+    /**
+     * 集群内的节点标识，格式为 IP:端口，同一台机器上的多个实例以端口区分
+     *
+     * @param port 本实例的服务端口
+     * @return 节点标识
+     */
+    public static String getLocalNodeId(int port) {
+        return getLocalIP() + ":" + port;
+    }
+    
     /**
      * 强制刷新缓存的IP地址
      * 